@@ -0,0 +1,20 @@
+#!/bin/bash
+set -euo pipefail
+
+# Build the services and benchmarks from the current checkout, then run the benchmarks.
+# Results are saved in results/ named by commit, so runs from different commits can be compared.
+# Any arguments are passed on to JMH, eg. a regex to only run some of the benchmarks.
+
+cd "$(dirname "$0")/.."
+for module in emap-star emap-interchange hl7-reader core waveform-reader waveform-generator; do
+    echo "Installing $module"
+    (cd "$module" && mvn -B -q install -DskipTests)
+done
+(cd benchmarks && mvn -B -q package)
+
+commit=$(git rev-parse --short HEAD)
+if ! git diff --quiet HEAD; then
+    commit="${commit}-dirty"
+fi
+mkdir -p benchmarks/results
+java -jar benchmarks/target/benchmarks.jar -rf json -rff "benchmarks/results/${commit}.json" "$@"
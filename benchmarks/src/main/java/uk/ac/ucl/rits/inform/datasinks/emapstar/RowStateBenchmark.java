@@ -0,0 +1,115 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.repository.CrudRepository;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitSnapshot;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.PatientClass;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of tracking changes to an entity with {@link RowState}, for a hospital visit updated from an admission
+ * message as the visit controller does it.
+ * The repositories don't save anything, so only the comparing, snapshotting and auditing is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RowStateBenchmark {
+    private final CrudRepository<HospitalVisit, Long> visitRepo = discardingRepository();
+    private final CrudRepository<HospitalVisitAudit, Long> visitAuditRepo = discardingRepository();
+    private final Instant storedFrom = Instant.parse("2024-07-31T12:00:00Z");
+    private HospitalVisit visit;
+    private AdmitPatient admit;
+    private AdmitPatient admitAsOutpatient;
+    private boolean asOutpatient = false;
+
+    /**
+     * Make a visit which already has all the values from the admission message.
+     * @throws IOException if the message can't be read
+     */
+    @Setup
+    public void setup() throws IOException {
+        InterchangeMessageFactory messageFactory = new InterchangeMessageFactory();
+        admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        admitAsOutpatient = messageFactory.getAdtMessage("generic/A01.yaml");
+        admitAsOutpatient.setPatientClass(new InterchangeValue<>(PatientClass.OUTPATIENT));
+
+        visit = new HospitalVisit();
+        visit.setMrnId(new Mrn());
+        visit.setEncounter(admit.getVisitNumber());
+        visit.setValidFrom(admit.getEventOccurredDateTime());
+        visit.setStoredFrom(storedFrom);
+        updateVisit(admit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> CrudRepository<E, Long> discardingRepository() {
+        return (CrudRepository<E, Long>) Proxy.newProxyInstance(
+                CrudRepository.class.getClassLoader(), new Class<?>[]{CrudRepository.class}, (proxy, method, args) -> {
+                    if (!"save".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return args[0];
+                });
+    }
+
+    private RowState<HospitalVisit, HospitalVisitAudit> updateVisit(AdmitPatient msg) {
+        RowState<HospitalVisit, HospitalVisitAudit> visitState = new RowState<>(
+                visit, msg.getEventOccurredDateTime(), storedFrom, false);
+        visitState.assignPatientClass(msg.getPatientClass(), HospitalVisitSnapshot.PATIENT_CLASS);
+        visitState.assignInterchangeValue(msg.getModeOfArrival(), HospitalVisitSnapshot.ARRIVAL_METHOD);
+        visitState.assignIfDifferent(msg.getSourceSystem(), HospitalVisitSnapshot.SOURCE_SYSTEM);
+        visitState.assignInterchangeValue(msg.getAdmissionDateTime(), HospitalVisitSnapshot.ADMISSION_DATETIME);
+        visitState.saveEntityOrAuditLogIfRequired(visitRepo, visitAuditRepo);
+        return visitState;
+    }
+
+    /**
+     * The same message again, nothing changes.
+     * @return row state
+     */
+    @Benchmark
+    public RowState<HospitalVisit, HospitalVisitAudit> unchanged() {
+        return updateVisit(admit);
+    }
+
+    /**
+     * Alternate the patient class, so the visit changes and is audited every time.
+     * @return row state
+     */
+    @Benchmark
+    public RowState<HospitalVisit, HospitalVisitAudit> changed() {
+        asOutpatient = !asOutpatient;
+        return updateVisit(asOutpatient ? admitAsOutpatient : admit);
+    }
+
+    /**
+     * @return audit row for the visit
+     */
+    @Benchmark
+    public HospitalVisitAudit copyAndAudit() {
+        return visit.copy().createAuditEntity(admit.getEventOccurredDateTime(), storedFrom);
+    }
+}
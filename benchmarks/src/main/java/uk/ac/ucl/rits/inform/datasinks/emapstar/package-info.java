@@ -0,0 +1,5 @@
+/**
+ * Benchmarks for the core processor.
+ * They are in the same package so that they can call the package-private parts of core directly.
+ */
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
@@ -0,0 +1,137 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.ac.ucl.rits.inform.datasources.ids.exceptions.Hl7InconsistencyException;
+import uk.ac.ucl.rits.inform.datasources.ids.exceptions.Hl7MessageIgnoredException;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * HAPI parsing and conversion to interchange messages, as done by {@link IdsOperations} for each IDS message,
+ * on a selection of the hl7-reader test messages.
+ * <p>
+ * Infection messages are left out because
+ * {@link uk.ac.ucl.rits.inform.datasources.ids.conditons.PatientInfectionFactory} keeps state between messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class Hl7ToInterchangeBenchmark {
+    @Param({
+            "Adt/generic/A01.txt",
+            "Adt/generic/A02.txt",
+            "Adt/generic/A08_v1.txt",
+            "AdvanceDecision/minimal.txt",
+            "BloodProducts/bts_o31.txt",
+            "ConsultRequest/minimal.txt",
+            "LabOrders/abl90_flex/venous.txt",
+            "LabOrders/co_path/oru_r01_copath.txt",
+            "LabOrders/imaging/oru_r01_imaging_result.txt",
+            "LabOrders/winpath/ORU_R01.txt",
+            "PatientAllergies/2019_05_multiple_allergies.txt",
+            "ProblemList/multiple_problem_lists.txt",
+            "VitalSigns/MixedHL7Message.txt",
+    })
+    private String resourceFile;
+
+    private ConfigurableApplicationContext context;
+    private IdsOperations idsOperations;
+    private HapiContext hapiContext;
+    private PipeParser parser;
+    private String hl7;
+    private Message parsed;
+
+    /**
+     * Start the hl7-reader without its main loop, and read the message as it would come from the IDS.
+     * @throws IOException  if the message can't be read
+     * @throws HL7Exception if the message can't be parsed
+     */
+    @Setup
+    public void setup() throws IOException, HL7Exception {
+        context = new SpringApplicationBuilder(AppHl7.class)
+                .web(WebApplicationType.NONE)
+                .profiles("benchmark")
+                .properties("spring.config.name=hl7-reader-benchmark")
+                .run();
+        idsOperations = context.getBean(IdsOperations.class);
+        hapiContext = HL7Utils.initializeHapiContext();
+        parser = hapiContext.getPipeParser();
+        try (InputStream stream = Objects.requireNonNull(getClass().getClassLoader().getResourceAsStream(resourceFile), resourceFile);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            // same line endings as HL7Utils.readHl7FromResource
+            hl7 = reader.lines().collect(Collectors.joining("\r", "", "\r"));
+        }
+        parsed = parser.parse(hl7);
+    }
+
+    /**
+     * @throws IOException if the HAPI context can't be closed
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        hapiContext.close();
+        context.close();
+    }
+
+    /**
+     * @return the parsed message
+     * @throws HL7Exception shouldn't happen
+     */
+    @Benchmark
+    public Message parse() throws HL7Exception {
+        return parser.parse(hl7);
+    }
+
+    /**
+     * @return interchange messages from an already parsed message
+     * @throws HL7Exception               shouldn't happen
+     * @throws Hl7InconsistencyException  shouldn't happen
+     * @throws Hl7MessageIgnoredException shouldn't happen
+     */
+    @Benchmark
+    public List<? extends EmapOperationMessage> convert() throws HL7Exception, Hl7InconsistencyException, Hl7MessageIgnoredException {
+        return idsOperations.messageFromHl7Message(parsed, 42);
+    }
+
+    /**
+     * @return interchange messages
+     * @throws HL7Exception               shouldn't happen
+     * @throws Hl7InconsistencyException  shouldn't happen
+     * @throws Hl7MessageIgnoredException shouldn't happen
+     */
+    @Benchmark
+    public List<? extends EmapOperationMessage> parseAndConvert()
+            throws HL7Exception, Hl7InconsistencyException, Hl7MessageIgnoredException {
+        return idsOperations.messageFromHl7Message(parser.parse(hl7), 42);
+    }
+}
@@ -0,0 +1,98 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ByteMessage;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Message;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+import uk.ac.ucl.rits.inform.datasources.waveform_generator.Hl7Generator;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the string based HL7 parser with the one that works on the received bytes,
+ * on messages from the waveform generator.
+ * Each operation parses one message, as received by {@link Hl7ListenerConfig#handler}.
+ * The tokeniser benchmarks only split the message into segments and fields, without building interchange messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class Hl7ParserBenchmark {
+    private Hl7ParseAndQueue hl7ParseAndQueue;
+    private byte[][] messages;
+    private int next = 0;
+
+    /**
+     * Generate some messages for every bed, the same ones every time.
+     * @throws IOException if the stream metadata can't be read
+     */
+    @Setup
+    public void setup() throws IOException {
+        // parsing doesn't publish or log anything, so there's no publisher and the segment log is disabled
+        WaveformSegmentLog segmentLog = new WaveformSegmentLog("", 64, 20_000_000);
+        hl7ParseAndQueue = new Hl7ParseAndQueue(new WaveformOperations(null, segmentLog, 100, 0),
+                new WaveformCollator(), new SourceMetadata(), new LocationMapping(), segmentLog);
+        // the generator doesn't need to send anything to make messages
+        List<String> generated = new Hl7Generator(null)
+                .makeSyntheticWaveformMsgsAllPatients(Instant.parse("2024-07-31T12:00:00Z"), 30, 5000);
+        messages = generated.stream().map(m -> m.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+    }
+
+    private byte[] nextMessage() {
+        byte[] message = messages[next];
+        next = (next + 1) % messages.length;
+        return message;
+    }
+
+    /**
+     * @return parsed messages
+     * @throws Hl7ParseException shouldn't happen
+     */
+    @Benchmark
+    public List<WaveformMessage> stringParser() throws Hl7ParseException {
+        return hl7ParseAndQueue.parseHl7(new String(nextMessage(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return parsed messages
+     * @throws Hl7ParseException shouldn't happen
+     */
+    @Benchmark
+    public List<WaveformMessage> zeroCopyParser() throws Hl7ParseException {
+        return hl7ParseAndQueue.parseHl7(nextMessage());
+    }
+
+    /**
+     * @return tokenised message
+     * @throws Hl7ParseException shouldn't happen
+     */
+    @Benchmark
+    public Hl7Message stringTokeniser() throws Hl7ParseException {
+        return new Hl7Message(new String(nextMessage(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return tokenised message
+     */
+    @Benchmark
+    public Hl7ByteMessage zeroCopyTokeniser() {
+        return new Hl7ByteMessage(nextMessage());
+    }
+}
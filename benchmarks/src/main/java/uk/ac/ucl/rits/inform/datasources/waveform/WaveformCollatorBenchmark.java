@@ -0,0 +1,110 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several threads adding messages to the {@link WaveformCollator}, as the HL7 listener does,
+ * while another thread collates them, as {@link Hl7ParseAndQueue#collateAndSend} does.
+ * Each adding thread is a different bed, sending gapless data for a few streams.
+ * Adding is much cheaper than collating, so the adding threads wait for the collator once there is a backlog,
+ * like the listener being held up. The add rate is then the rate that the collator can keep up with.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WaveformCollatorBenchmark {
+    private static final String[] STREAM_IDS = {"27", "28", "52912", "52913"};
+    private static final int SAMPLING_RATE = 500;
+    private static final int SAMPLES_PER_MESSAGE = 5;
+    private static final long MESSAGE_DURATION_MILLIS = 1000L * SAMPLES_PER_MESSAGE / SAMPLING_RATE;
+    private static final int MAX_PENDING_MESSAGES = 100_000;
+    private static final Instant START_TIME = Instant.parse("2024-07-31T12:00:00Z");
+
+    /**
+     * The collator shared by all the threads.
+     */
+    @State(Scope.Group)
+    public static class SharedCollator {
+        private final WaveformCollator collator = new WaveformCollator();
+    }
+
+    /**
+     * Makes the next messages for one bed.
+     */
+    @State(Scope.Thread)
+    public static class Bed {
+        private static final AtomicInteger BED_COUNT = new AtomicInteger();
+        private final String location = "UCHT03ICURM08BED" + BED_COUNT.incrementAndGet();
+        private final double[] values = {0.1, 0.2, 0.3, 0.4, 0.5};
+        private Instant nextObservationTime = START_TIME;
+
+        private List<WaveformMessage> nextMessages() {
+            List<WaveformMessage> messages = new ArrayList<>(STREAM_IDS.length);
+            for (String streamId : STREAM_IDS) {
+                WaveformMessage message = new WaveformMessage();
+                message.setSamplingRate(SAMPLING_RATE);
+                message.setSourceLocationString(location);
+                message.setSourceStreamId(streamId);
+                message.setObservationTime(nextObservationTime);
+                message.setNumericValues(new InterchangeValue<>(values.clone()));
+                messages.add(message);
+            }
+            nextObservationTime = nextObservationTime.plusMillis(MESSAGE_DURATION_MILLIS);
+            return messages;
+        }
+    }
+
+    /**
+     * Add the next message for each stream of a bed.
+     * @param shared  collator
+     * @param bed     bed for this thread
+     * @param control lets the wait for the collator end with the iteration
+     * @throws WaveformCollator.CollationException shouldn't happen, the messages never overlap
+     */
+    @Benchmark
+    @Group("addWhileCollating")
+    @GroupThreads(4)
+    public void add(SharedCollator shared, Bed bed, Control control) throws WaveformCollator.CollationException {
+        while (shared.collator.getPendingMessageCount() > MAX_PENDING_MESSAGES && !control.stopMeasurement) {
+            Thread.onSpinWait();
+        }
+        shared.collator.addMessages(bed.nextMessages());
+    }
+
+    /**
+     * Collate full size messages from what has been added so far, with the settings used by the reader.
+     * The data is never old enough to collate early, as otherwise every message would be collated on its own
+     * and the collator wouldn't get to the end of a stream that is still being added to.
+     * @param shared collator
+     * @return collated messages
+     * @throws WaveformCollator.CollationException shouldn't happen
+     */
+    @Benchmark
+    @Group("addWhileCollating")
+    @GroupThreads(1)
+    public List<WaveformMessage> collate(SharedCollator shared) throws WaveformCollator.CollationException {
+        return shared.collator.getReadyMessages(START_TIME, 3000, 15000, ChronoUnit.MILLIS);
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Benchmarks for the waveform reader.
+ * They are in the same package so that they can call the package-private parts of the reader directly.
+ */
+package uk.ac.ucl.rits.inform.datasources.waveform;
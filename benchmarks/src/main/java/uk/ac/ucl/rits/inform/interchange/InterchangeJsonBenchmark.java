@@ -0,0 +1,206 @@
+package uk.ac.ucl.rits.inform.interchange;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
+import uk.ac.ucl.rits.inform.interchange.adt.ImpliedAdtMessage;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson serialisation and deserialisation of each type of interchange message, with the same object mapper
+ * as the message converters of the data sources and core.
+ * The messages are the yaml samples from the interchange tests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class InterchangeJsonBenchmark {
+    @Param({
+            "AdmitPatient",
+            "CancelAdmitPatient",
+            "CancelDischargePatient",
+            "CancelPendingTransfer",
+            "CancelTransferPatient",
+            "ChangePatientIdentifiers",
+            "DeletePersonInformation",
+            "DischargePatient",
+            "ImpliedAdtMessage",
+            "MergePatient",
+            "MoveVisitInformation",
+            "PendingTransfer",
+            "RegisterPatient",
+            "SwapLocations",
+            "TransferPatient",
+            "UpdatePatientInfo",
+            "AdvanceDecisionMessage",
+            "ConsultMetadata",
+            "ConsultRequest",
+            "DepartmentMetadata",
+            "Flowsheet",
+            "FlowsheetMetadata",
+            "FormMetadataMsg",
+            "FormMsg",
+            "FormQuestionMetadataMsg",
+            "LabMetadataMsg",
+            "LabOrderMsg",
+            "LocationMetadata",
+            "PatientAllergy",
+            "PatientInfection",
+            "PatientProblem",
+            "ResearchOptOut",
+            "WaveformMessage",
+    })
+    private String messageType;
+
+    private final ObjectMapper mapper = new ObjectMapper().findAndRegisterModules();
+    private EmapOperationMessage message;
+    private byte[] json;
+
+    /**
+     * Load the sample message and serialise it once for the deserialisation benchmark.
+     * @throws IOException           if the sample can't be read or serialised
+     * @throws IllegalStateException if the sample isn't of the type being benchmarked
+     */
+    @Setup
+    public void setup() throws IOException {
+        message = sampleMessage(new InterchangeMessageFactory());
+        if (!message.getClass().getSimpleName().equals(messageType)) {
+            throw new IllegalStateException(String.format("Sample for %s is a %s", messageType, message.getClass()));
+        }
+        json = mapper.writeValueAsBytes(message);
+    }
+
+    private EmapOperationMessage sampleMessage(InterchangeMessageFactory factory) throws IOException {
+        Instant fallbackValidFrom = Instant.parse("2024-07-31T12:00:00Z");
+        switch (messageType) {
+            case "AdmitPatient":
+                return factory.getAdtMessage("generic/A01.yaml");
+            case "CancelAdmitPatient":
+                return factory.getAdtMessage("generic/A11.yaml");
+            case "CancelDischargePatient":
+                return factory.getAdtMessage("generic/A13.yaml");
+            case "CancelPendingTransfer":
+                return factory.getAdtMessage("pending/A26.yaml");
+            case "CancelTransferPatient":
+                return factory.getAdtMessage("generic/A12.yaml");
+            case "ChangePatientIdentifiers":
+                return factory.getAdtMessage("generic/A47.yaml");
+            case "DeletePersonInformation":
+                return factory.getAdtMessage("generic/A29.yaml");
+            case "DischargePatient":
+                return factory.getAdtMessage("generic/A03.yaml");
+            case "ImpliedAdtMessage":
+                return impliedAdtMessage(factory.getAdtMessage("generic/A08_v1.yaml"));
+            case "MergePatient":
+                return factory.getAdtMessage("generic/A40.yaml");
+            case "MoveVisitInformation":
+                return factory.getAdtMessage("generic/A45.yaml");
+            case "PendingTransfer":
+                return factory.getAdtMessage("pending/A15.yaml");
+            case "RegisterPatient":
+                return factory.getAdtMessage("generic/A04.yaml");
+            case "SwapLocations":
+                return factory.getAdtMessage("generic/A17.yaml");
+            case "TransferPatient":
+                return factory.getAdtMessage("generic/A02.yaml");
+            case "UpdatePatientInfo":
+                return factory.getAdtMessage("generic/A08_v1.yaml");
+            case "AdvanceDecisionMessage":
+                return factory.getAdvanceDecision("minimal.yaml");
+            case "ConsultMetadata":
+                return factory.getConsultMetadata("con2.yaml");
+            case "ConsultRequest":
+                return factory.getConsult("minimal.yaml");
+            case "DepartmentMetadata":
+                return factory.getDepartmentMetadata("acun_dept.yaml");
+            case "Flowsheet":
+                return factory.getFlowsheets("hl7.yaml").get(0);
+            case "FlowsheetMetadata":
+                return factory.getFlowsheetMetadata("flowsheet_metadata.yaml").get(0);
+            case "FormMetadataMsg":
+                return factory.getFormMetadataMsg("form_metadata1.yaml", fallbackValidFrom).get(0);
+            case "FormMsg":
+                return factory.getFormMsgs("forms1.yaml").get(0);
+            case "FormQuestionMetadataMsg":
+                return factory.getFormQuestionMetadataMsg("form_question_metadata_full.yaml", fallbackValidFrom).get(0);
+            case "LabMetadataMsg":
+                return factory.getLabMetadataMsgs("labs_metadata.yaml").get(0);
+            case "LabOrderMsg":
+                return factory.getLabOrders("winpath/ORU_R01.yaml").get(0);
+            case "LocationMetadata":
+                return factory.getLocationMetadata("acun_census_bed.yaml");
+            case "PatientAllergy":
+                return factory.getPatientAllergies("updated_only.yaml").get(0);
+            case "PatientInfection":
+                return factory.getPatientInfections("updated_only.yaml").get(0);
+            case "PatientProblem":
+                return factory.getPatientProblems("updated_only.yaml").get(0);
+            case "ResearchOptOut":
+                return factory.getResearchOptOuts("all_opt_out.yaml").get(0);
+            case "WaveformMessage":
+                // one message of the size that the waveform reader collates to
+                return factory.getWaveformMsgs("52912", "ECG", 300, 3000, 3000, "UCHT03ICURM08", "T03^T03 SR08^SR08-08",
+                        fallbackValidFrom, "uV", ChronoUnit.MILLIS).get(0);
+            default:
+                throw new IllegalArgumentException("No sample message for " + messageType);
+        }
+    }
+
+    /**
+     * There are no yaml samples for implied ADT messages, so make one with the identifiers and demographics of an ADT message.
+     * @param adtMessage message to copy from
+     * @return implied ADT message
+     */
+    private static ImpliedAdtMessage impliedAdtMessage(AdtMessage adtMessage) {
+        ImpliedAdtMessage implied = new ImpliedAdtMessage();
+        implied.setSourceSystem(adtMessage.getSourceSystem());
+        implied.setSourceMessageId(adtMessage.getSourceMessageId());
+        implied.setRecordedDateTime(adtMessage.getRecordedDateTime());
+        implied.setEventOccurredDateTime(adtMessage.getEventOccurredDateTime());
+        implied.setMrn(adtMessage.getMrn());
+        implied.setNhsNumber(adtMessage.getNhsNumber());
+        implied.setVisitNumber(adtMessage.getVisitNumber());
+        implied.setPatientClass(adtMessage.getPatientClass());
+        implied.setPatientFamilyName(adtMessage.getPatientFamilyName());
+        implied.setPatientGivenName(adtMessage.getPatientGivenName());
+        implied.setPatientBirthDate(adtMessage.getPatientBirthDate());
+        implied.setPatientSex(adtMessage.getPatientSex());
+        return implied;
+    }
+
+    /**
+     * @return the message as JSON, as sent to rabbitmq
+     * @throws IOException shouldn't happen
+     */
+    @Benchmark
+    public byte[] serialise() throws IOException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    /**
+     * @return the message read back from JSON, as core receives it
+     * @throws IOException shouldn't happen
+     */
+    @Benchmark
+    public EmapOperationMessage deserialise() throws IOException {
+        return mapper.readValue(json, EmapOperationMessage.class);
+    }
+}
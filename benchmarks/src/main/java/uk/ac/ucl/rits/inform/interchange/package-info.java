@@ -0,0 +1,4 @@
+/**
+ * Benchmarks for the interchange messages sent between the data sources and core.
+ */
+package uk.ac.ucl.rits.inform.interchange;
@@ -9,6 +9,7 @@ import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cache.annotation.EnableCaching;
@@ -16,16 +17,15 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Profile;
 import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MessageMrns;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnToLiveRepository;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
-import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
-import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Entry point class for the HL7 pipeline.
@@ -40,10 +40,22 @@ public class App {
     private static final Logger logger = LoggerFactory.getLogger(App.class);
 
     @Autowired
-    private InformDbOperations dbOps;
-
+    private MessageHandler messageHandler;
     @Autowired
-    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+    private MrnToLiveRepository mrnToLiveRepository;
+
+    /**
+     * Number of messages to process at once. If more than one, messages are processed by a pool of workers,
+     * with each message holding a lock on the MRNs it refers to so that each patient's messages are still processed in order.
+     * {@link ConnectionPoolSize} makes the database connection pool big enough for them.
+     */
+    @Value("${core.rabbitmq.parallel_workers:1}")
+    private int parallelWorkers;
+
+    /**
+     * Null if messages are processed in the listener thread.
+     */
+    private MrnPartitionedExecutor mrnPartitionedExecutor;
 
     /**
      * Added this to get Instant objects (de)serialising properly.
@@ -63,57 +75,63 @@ public class App {
     }
 
 
+    /**
+     * Start the worker pool if parallel processing has been configured.
+     */
+    @PostConstruct
+    public void startWorkers() {
+        if (parallelWorkers > 1) {
+            logger.info("Processing messages in parallel with {} workers", parallelWorkers);
+            mrnPartitionedExecutor = new MrnPartitionedExecutor(parallelWorkers, "MrnWorker-");
+        }
+    }
+
+    /**
+     * Let any messages that are being worked on finish, so they get acked before the channel closes.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @PreDestroy
+    public void stopWorkers() throws InterruptedException {
+        if (mrnPartitionedExecutor != null) {
+            mrnPartitionedExecutor.shutdown(1, TimeUnit.MINUTES);
+        }
+    }
+
     /**
      * The listener for processing messages and writing to Emap-Star. The ordering
      * of queue names in the `queues` parameter actually matters - we want HL7
      * messages to be processed in preference to caboodle messages.
+     * <p>
+     * In parallel mode this only waits for the message's patients to be free, then hands it to a worker.
+     * Merges, identifier changes and metadata wait for every earlier message to finish, and are processed on their own.
+     * Not started in batch mode, see {@link BatchMessageListener}.
      * @param msg     the message
      * @param channel the rabbitmq channel
      * @param tag     the message tag
-     * @throws IOException if rabbitmq channel has a problem
+     * @throws IOException          if rabbitmq channel has a problem
+     * @throws InterruptedException if interrupted while waiting for a worker
      */
     @Profile("default")
-    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}")
+    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}",
+            autoStartup = "#{!${core.rabbitmq.batch.enabled:false} and ${spring.rabbitmq.listener.simple.auto-startup:true}}")
     public void receiveMessage(EmapOperationMessage msg, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long tag)
-            throws IOException {
-        IdsEffectLogging idsEffectLogging = new IdsEffectLogging();
-        Instant startTime = Instant.now();
-        idsEffectLogging.setProcessingStartTime(startTime);
-        idsEffectLogging.setMessageType(msg.getMessageType());
-        if (msg instanceof AdtMessage) {
-            idsEffectLogging.setMessageDatetime(((AdtMessage) msg).getRecordedDateTime());
+            throws IOException, InterruptedException {
+        if (mrnPartitionedExecutor == null) {
+            messageHandler.processAndAck(msg, channel, tag);
+            return;
         }
-        idsEffectLogging.setSourceId(msg.getSourceMessageId());
-        try {
-            logger.info("Starting processing of interchange message {}", msg.getSourceMessageId());
-            logger.trace("{}", msg);
-            msg.processMessage(dbOps);
-            Instant doneProcessMessageTime = Instant.now();
-            Duration processMessageDuration = Duration.between(startTime, doneProcessMessageTime);
-            idsEffectLogging.setProcessMessageDuration(processMessageDuration.toNanos());
-            idsEffectLogging.setError(false);
-            logger.info("Sending ACK for {}", msg.getSourceMessageId());
-            channel.basicAck(tag, false);
-        } catch (EmapOperationMessageProcessingException e) {
-            // All errors that allow the message to be skipped should be logged
-            // using the return code from processMessage.
-            // MessageIgnoredException is not an error, all others are
-            idsEffectLogging.setError(!(e instanceof MessageIgnoredException));
-            idsEffectLogging.setMessage(e.getMessage());
-            idsEffectLogging.setStackTrace(e);
-            logger.info("Sending NACK no requeue then NOT throwing for {}", msg.getSourceMessageId());
-            channel.basicNack(tag, false, false);
-        } catch (Throwable th) {
-            // For anything else, at least log it before exiting.
-            idsEffectLogging.setError(true);
-            idsEffectLogging.setMessage(th.getMessage());
-            idsEffectLogging.setStackTrace(th);
-            logger.info("Sending NACK no requeue then throwing for {}", msg.getSourceMessageId());
-            channel.basicNack(tag, false, false);
-            throw th;
-        } finally {
-            idsEffectLogging.setProcessingEndTime(Instant.now());
-            idsEffectLoggingRepository.save(idsEffectLogging);
+        Runnable task = () -> {
+            try {
+                messageHandler.processAndAck(msg, channel, tag);
+            } catch (Throwable th) {
+                // already logged to the DB and nacked, and there is no listener to rethrow to
+                logger.error("Unexpected error processing {}", msg.getSourceMessageId(), th);
+            }
+        };
+        if (MessageMrns.isExclusive(msg)) {
+            mrnPartitionedExecutor.submitExclusive(task);
+        } else {
+            mrnPartitionedExecutor.submit(() -> MessageMrns.lockKeys(msg, mrnToLiveRepository::findLiveMrnIdsByMrnOrNhsNumber), task);
         }
     }
 
@@ -0,0 +1,152 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.CachingConfigurerSupport;
+import org.springframework.cache.interceptor.CacheResolver;
+import org.springframework.cache.interceptor.SimpleCacheResolver;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Records the cache entries written while a batch transaction is being processed, so that when some or all of the batch
+ * is rolled back, only the entries that it could have written are evicted, rather than every cache being cleared.
+ * <p>
+ * The caching annotations find their caches through {@link #cacheResolver()}, which wraps each cache to record the keys
+ * written to it by a thread that is recording. The cache manager itself isn't wrapped, so its caches keep their metrics.
+ * Only the spring caches are covered: the MRN and hospital visit caches hold nothing from a transaction until it commits.
+ */
+@Component
+@ConditionalOnProperty(name = "core.rabbitmq.batch.enabled", havingValue = "true")
+public class BatchCacheWrites extends CachingConfigurerSupport {
+    private final ObjectProvider<CacheManager> cacheManager;
+    private final ThreadLocal<List<Map.Entry<Cache, Object>>> writes = new ThreadLocal<>();
+
+    /**
+     * @param cacheManager cache manager that the caching annotations use
+     */
+    public BatchCacheWrites(ObjectProvider<CacheManager> cacheManager) {
+        this.cacheManager = cacheManager;
+    }
+
+    @Override
+    public CacheResolver cacheResolver() {
+        CacheResolver resolver = new SimpleCacheResolver(cacheManager.getObject());
+        return context -> resolver.resolveCaches(context).stream().map(RecordingCache::new).toList();
+    }
+
+    /**
+     * Start recording the cache writes of the current thread.
+     */
+    void startRecording() {
+        writes.set(new ArrayList<>());
+    }
+
+    /**
+     * Stop recording the cache writes of the current thread, keeping the entries.
+     */
+    void stopRecording() {
+        writes.remove();
+    }
+
+    /**
+     * @return position to pass to {@link #evictSince} to evict everything written after now
+     */
+    int mark() {
+        return writes.get().size();
+    }
+
+    /**
+     * Evict the entries that the current thread has written since a mark.
+     * @param mark position from {@link #mark}, or 0 for everything since recording started
+     */
+    void evictSince(int mark) {
+        List<Map.Entry<Cache, Object>> rolledBack = writes.get().subList(mark, writes.get().size());
+        for (Map.Entry<Cache, Object> write : rolledBack) {
+            write.getKey().evict(write.getValue());
+        }
+        rolledBack.clear();
+    }
+
+    private void recordWrite(Cache cache, Object key) {
+        List<Map.Entry<Cache, Object>> recording = writes.get();
+        if (recording != null) {
+            recording.add(Map.entry(cache, key));
+        }
+    }
+
+    /**
+     * Passes everything on to the cache, recording the keys that values are stored under.
+     */
+    private final class RecordingCache implements Cache {
+        private final Cache cache;
+
+        private RecordingCache(Cache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public String getName() {
+            return cache.getName();
+        }
+
+        @Override
+        public Object getNativeCache() {
+            return cache.getNativeCache();
+        }
+
+        @Override
+        public ValueWrapper get(Object key) {
+            return cache.get(key);
+        }
+
+        @Override
+        public <T> T get(Object key, Class<T> type) {
+            return cache.get(key, type);
+        }
+
+        @Override
+        public <T> T get(Object key, Callable<T> valueLoader) {
+            recordWrite(cache, key);
+            return cache.get(key, valueLoader);
+        }
+
+        @Override
+        public void put(Object key, Object value) {
+            recordWrite(cache, key);
+            cache.put(key, value);
+        }
+
+        @Override
+        public ValueWrapper putIfAbsent(Object key, Object value) {
+            recordWrite(cache, key);
+            return cache.putIfAbsent(key, value);
+        }
+
+        @Override
+        public void evict(Object key) {
+            cache.evict(key);
+        }
+
+        @Override
+        public boolean evictIfPresent(Object key) {
+            return cache.evictIfPresent(key);
+        }
+
+        @Override
+        public void clear() {
+            cache.clear();
+        }
+
+        @Override
+        public boolean invalidate() {
+            return cache.invalidate();
+        }
+    }
+}
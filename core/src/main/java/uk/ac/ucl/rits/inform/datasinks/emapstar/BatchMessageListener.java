@@ -0,0 +1,197 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.rabbitmq.client.Channel;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformBulkWriter;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catch-up mode listener: takes messages from the queue in batches and processes each batch in a single transaction,
+ * so that there is one commit (and one ack) per batch instead of one per message.
+ * <p>
+ * Each message runs inside its own savepoint, so a message that can't be processed only rolls back its own changes.
+ * Any unexpected error rolls back the whole batch, which is then processed one message at a time.
+ * The changes of each message are flushed before its savepoint is released, so that nothing from a rolled back message
+ * is left in the persistence context to be written out later.
+ * <p>
+ * Enabled by setting {@code core.rabbitmq.batch.enabled}, which also stops the one-message-at-a-time listener in {@link App}.
+ */
+@Component
+@ConditionalOnProperty(name = "core.rabbitmq.batch.enabled", havingValue = "true")
+public class BatchMessageListener {
+    private static final Logger logger = LoggerFactory.getLogger(BatchMessageListener.class);
+    static final String CONTAINER_FACTORY = "batchListenerContainerFactory";
+
+    private final MessageHandler messageHandler;
+    private final IdsEffectLoggingRepository idsEffectLoggingRepository;
+    private final WaveformBulkWriter waveformBulkWriter;
+    private final TransactionTemplate batchTransaction;
+    private final BatchCacheWrites batchCacheWrites;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param messageHandler             processes single messages
+     * @param idsEffectLoggingRepository per message effect logging
+     * @param waveformBulkWriter         holds waveform rows until the batch commits
+     * @param transactionManager         transaction manager for the batch transaction
+     * @param batchCacheWrites           cache entries written by the batch, to evict if they are rolled back
+     */
+    public BatchMessageListener(
+            MessageHandler messageHandler,
+            IdsEffectLoggingRepository idsEffectLoggingRepository,
+            WaveformBulkWriter waveformBulkWriter,
+            PlatformTransactionManager transactionManager,
+            BatchCacheWrites batchCacheWrites) {
+        this.messageHandler = messageHandler;
+        this.idsEffectLoggingRepository = idsEffectLoggingRepository;
+        this.waveformBulkWriter = waveformBulkWriter;
+        this.batchCacheWrites = batchCacheWrites;
+        batchTransaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Container factory that delivers up to batchSize messages to the listener at once.
+     * Otherwise uses the same spring.rabbitmq.listener.simple settings as the single message listener.
+     * Static so that it exists before the listener that uses it.
+     * @param configurer           applies the spring.rabbitmq.listener.simple properties
+     * @param connectionFactory    rabbitmq connection factory
+     * @param batchSize            maximum number of messages to process in one transaction
+     * @param receiveTimeoutMillis how long to wait for more messages before processing a partial batch
+     * @return the container factory
+     */
+    @Bean(CONTAINER_FACTORY)
+    public static SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer,
+            ConnectionFactory connectionFactory,
+            @Value("${core.rabbitmq.batch.size:500}") int batchSize,
+            @Value("${core.rabbitmq.batch.receive_timeout_millis:1000}") long receiveTimeoutMillis) {
+        logger.info("Processing messages in batches of up to {}", batchSize);
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setPrefetchCount(batchSize);
+        factory.setReceiveTimeout(receiveTimeoutMillis);
+        return factory;
+    }
+
+    /**
+     * Process a batch of messages in a single transaction, then ack them all at once.
+     * If the batch as a whole can't be committed, fall back to processing its messages one at a time.
+     * @param batch   messages in the order they were delivered
+     * @param channel the rabbitmq channel
+     * @throws IOException if rabbitmq channel has a problem
+     */
+    @RabbitListener(queues = "#{'${core.rabbitmq.listen_queues}'.split(',')}", containerFactory = CONTAINER_FACTORY)
+    public void receiveBatch(List<Message<EmapOperationMessage>> batch, Channel channel) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchCacheWrites.startRecording();
+        try {
+            batchTransaction.executeWithoutResult(status -> {
+                List<IdsEffectLogging> effectLogging = new ArrayList<>(batch.size());
+                for (Message<EmapOperationMessage> msg : batch) {
+                    effectLogging.add(processInSavepoint(msg.getPayload()));
+                }
+                idsEffectLoggingRepository.saveAll(effectLogging);
+            });
+        } catch (RuntimeException e) {
+            logger.error("Could not commit batch of {} messages, processing them one at a time", batch.size(), e);
+            batchCacheWrites.evictSince(0);
+            batchCacheWrites.stopRecording();
+            processIndividually(batch, channel);
+            return;
+        }
+        batchCacheWrites.stopRecording();
+        long lastTag = deliveryTag(batch.get(batch.size() - 1));
+        logger.info("Sending ACK for {} messages, up to {}", batch.size(), batch.get(batch.size() - 1).getPayload().getSourceMessageId());
+        channel.basicAck(lastTag, true);
+    }
+
+    /**
+     * Process one message within a savepoint of the batch transaction.
+     * <p>
+     * The JPA transaction manager can't create nested transactions, so the savepoint is set directly on the JDBC connection.
+     * Only expected processing failures are rolled back to the savepoint. Anything else may have marked the batch transaction
+     * as rollback only, so it is left to fail the whole batch.
+     * @param msg the message
+     * @return effect logging for the message, not yet saved
+     */
+    private IdsEffectLogging processInSavepoint(EmapOperationMessage msg) {
+        Instant startTime = Instant.now();
+        IdsEffectLogging idsEffectLogging = MessageHandler.startEffectLogging(msg, startTime);
+        Session session = entityManager.unwrap(Session.class);
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+        int waveformRowCount = waveformBulkWriter.bufferedRowCount();
+        int cacheWriteMark = batchCacheWrites.mark();
+        try {
+            messageHandler.process(msg);
+            entityManager.flush();
+            session.doWork(connection -> connection.releaseSavepoint(savepoint));
+            MessageHandler.setSuccess(idsEffectLogging, startTime);
+        } catch (EmapOperationMessageProcessingException e) {
+            logger.info("Rolling back to savepoint for {}", msg.getSourceMessageId());
+            // Everything from earlier messages has already been flushed, so this only throws away the rolled back changes
+            entityManager.clear();
+            session.doWork(connection -> connection.rollback(savepoint));
+            // waveform rows aren't in the database until the batch commits, so have to be thrown away separately
+            waveformBulkWriter.discardRowsAfter(waveformRowCount);
+            // cache entries that this message wrote may refer to rows that no longer exist
+            batchCacheWrites.evictSince(cacheWriteMark);
+            MessageHandler.setFailure(idsEffectLogging, e);
+        }
+        idsEffectLogging.setProcessingEndTime(Instant.now());
+        return idsEffectLogging;
+    }
+
+    /**
+     * Fallback for when a batch fails, so that one bad message can't block the queue.
+     * @param batch   messages in the order they were delivered
+     * @param channel the rabbitmq channel
+     * @throws IOException if rabbitmq channel has a problem
+     */
+    private void processIndividually(List<Message<EmapOperationMessage>> batch, Channel channel) throws IOException {
+        for (Message<EmapOperationMessage> msg : batch) {
+            try {
+                messageHandler.processAndAck(msg.getPayload(), channel, deliveryTag(msg));
+            } catch (RuntimeException e) {
+                // already logged to the DB and nacked, carry on with the rest of the batch
+                logger.error("Unexpected error processing {}", msg.getPayload().getSourceMessageId(), e);
+            }
+        }
+    }
+
+    private static long deliveryTag(Message<EmapOperationMessage> msg) {
+        return msg.getHeaders().get(AmqpHeaders.DELIVERY_TAG, Long.class);
+    }
+}
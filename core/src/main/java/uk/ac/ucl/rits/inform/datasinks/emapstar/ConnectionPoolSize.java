@@ -0,0 +1,56 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Makes the database connection pool big enough for every thread that can hold a connection at the same time,
+ * so that the message workers don't wait for a connection that a background job is using, or the other way round.
+ * <p>
+ * Each message worker holds a connection for its whole transaction. The threads that can use one alongside them are:
+ * <ul>
+ *     <li>the listener thread, which looks up the live MRNs of a message before handing it to a worker</li>
+ *     <li>the effect logging writer's flush thread</li>
+ *     <li>the scheduler thread, which creates waveform partitions, deletes old waveform data and prunes the bed index</li>
+ *     <li>the orphan waveform relinker's thread</li>
+ *     <li>a waveform partition being created on demand by a worker, in a connection of its own</li>
+ * </ul>
+ * A larger spring.datasource.hikari.maximum-pool-size is left as it is.
+ */
+@Component
+public class ConnectionPoolSize implements BeanPostProcessor {
+    /**
+     * Number of connections that can be in use at once other than by the message workers.
+     */
+    static final int BACKGROUND_CONNECTIONS = 5;
+    private static final Logger logger = LoggerFactory.getLogger(ConnectionPoolSize.class);
+
+    private final int minimumPoolSize;
+
+    /**
+     * @param parallelWorkers number of message workers
+     */
+    public ConnectionPoolSize(@Value("${core.rabbitmq.parallel_workers:1}") int parallelWorkers) {
+        minimumPoolSize = parallelWorkers + BACKGROUND_CONNECTIONS;
+    }
+
+    /**
+     * Raise the maximum size of the connection pool, once its configuration has been bound.
+     * @param bean     bean that has been initialised
+     * @param beanName name of the bean
+     * @return the same bean
+     */
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof HikariDataSource hikariDataSource && hikariDataSource.getMaximumPoolSize() < minimumPoolSize) {
+            logger.info("Raising the maximum size of connection pool {} from {} to {}, for the message workers and background jobs",
+                    beanName, hikariDataSource.getMaximumPoolSize(), minimumPoolSize);
+            hikariDataSource.setMaximumPoolSize(minimumPoolSize);
+        }
+        return bean;
+    }
+}
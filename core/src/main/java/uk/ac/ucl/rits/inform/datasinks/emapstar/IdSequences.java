@@ -0,0 +1,75 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.hibernate.cfg.AvailableSettings;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.orm.jpa.EntityManagerFactoryDependsOnPostProcessor;
+import org.springframework.boot.autoconfigure.orm.jpa.JpaProperties;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Makes the ID sequences increment by {@link IdGeneration#ALLOCATION_SIZE}.
+ * <p>
+ * Hibernate checks the increment of each sequence against its mapping when the entity manager factory is created,
+ * and refuses to start if they differ, so this runs first. A schema that was created when IDs were allocated
+ * one at a time has sequences that increment by 1. Only done on PostgreSQL, and only to sequences that already exist.
+ */
+@Component
+public class IdSequences {
+    private static final Logger logger = LoggerFactory.getLogger(IdSequences.class);
+    private static final List<String> SEQUENCES = List.of(IdGeneration.SEQUENCE, IdGeneration.WAVEFORM_SEQUENCE);
+
+    private final DataSource dataSource;
+    private final String schema;
+
+    /**
+     * @param dataSource    connection to the star database
+     * @param jpaProperties for the schema of the star tables
+     */
+    public IdSequences(DataSource dataSource, JpaProperties jpaProperties) {
+        this.dataSource = dataSource;
+        schema = jpaProperties.getProperties().get(AvailableSettings.DEFAULT_SCHEMA);
+    }
+
+    /**
+     * Alter the increment of each sequence.
+     * @throws SQLException if a sequence can't be altered
+     */
+    @PostConstruct
+    public void setIncrements() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            if (!connection.isWrapperFor(PGConnection.class)) {
+                logger.info("Not altering ID sequences, as the database isn't PostgreSQL");
+                return;
+            }
+            String schemaPrefix = schema == null || schema.isEmpty() ? "" : schema + ".";
+            for (String sequence : SEQUENCES) {
+                statement.execute(String.format(
+                        "ALTER SEQUENCE IF EXISTS %s%s INCREMENT BY %d", schemaPrefix, sequence, IdGeneration.ALLOCATION_SIZE));
+            }
+            logger.info("ID sequences {} increment by {}", SEQUENCES, IdGeneration.ALLOCATION_SIZE);
+        }
+    }
+
+    /**
+     * Makes the entity manager factory wait for the sequences to be altered.
+     */
+    @Component
+    public static class EntityManagerFactoryDependsOnIdSequences extends EntityManagerFactoryDependsOnPostProcessor {
+        /**
+         * Depend on {@link IdSequences}.
+         */
+        public EntityManagerFactoryDependsOnIdSequences() {
+            super(IdSequences.class);
+        }
+    }
+}
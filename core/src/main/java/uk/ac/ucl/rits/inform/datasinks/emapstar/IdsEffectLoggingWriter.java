@@ -0,0 +1,122 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes effect logging in the background, so that processing a message doesn't need a second DB write.
+ * <p>
+ * Logs are held in a bounded buffer and saved in batches, either every flush interval or as soon as
+ * a full batch is waiting. If the buffer fills up then message processing waits for the writer to catch up.
+ * A batch that can't be saved goes back to the head of the buffer to be retried on the next flush.
+ * All timing fields must be set before a log is handed over.
+ */
+@Component
+public class IdsEffectLoggingWriter {
+    private static final Logger logger = LoggerFactory.getLogger(IdsEffectLoggingWriter.class);
+
+    private final IdsEffectLoggingRepository idsEffectLoggingRepository;
+    private final BlockingDeque<IdsEffectLogging> buffer;
+    private final int flushSize;
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "IdsEffectLoggingWriter"));
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    /**
+     * @param idsEffectLoggingRepository repository to save the logs to
+     * @param bufferSize                 maximum number of logs waiting to be saved
+     * @param flushSize                  maximum number of logs saved at once
+     */
+    public IdsEffectLoggingWriter(
+            IdsEffectLoggingRepository idsEffectLoggingRepository,
+            @Value("${core.effect_logging.buffer_size:10000}") int bufferSize,
+            @Value("${core.effect_logging.flush_size:500}") int flushSize) {
+        this.idsEffectLoggingRepository = idsEffectLoggingRepository;
+        this.buffer = new LinkedBlockingDeque<>(bufferSize);
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * Queue a log to be saved. Blocks if the buffer is full.
+     * @param idsEffectLogging the completed log for one message
+     */
+    public void write(IdsEffectLogging idsEffectLogging) {
+        if (!buffer.offer(idsEffectLogging)) {
+            logger.warn("Effect logging buffer is full, waiting for the writer to catch up");
+            try {
+                buffer.put(idsEffectLogging);
+            } catch (InterruptedException e) {
+                // don't lose the log, but do it the slow way
+                Thread.currentThread().interrupt();
+                idsEffectLoggingRepository.save(idsEffectLogging);
+                return;
+            }
+        }
+        if (buffer.size() >= flushSize && flushRequested.compareAndSet(false, true)) {
+            flushExecutor.execute(this::flush);
+        }
+    }
+
+    /**
+     * Save everything in the buffer, in batches of at most flushSize.
+     * Runs every flush interval, and can be called directly to make sure earlier logs are in the DB.
+     */
+    @Scheduled(fixedDelayString = "${core.effect_logging.flush_interval_millis:1000}",
+            initialDelayString = "${core.effect_logging.flush_interval_millis:1000}")
+    public synchronized void flush() {
+        flushRequested.set(false);
+        List<IdsEffectLogging> batch = new ArrayList<>(flushSize);
+        while (buffer.drainTo(batch, flushSize) > 0) {
+            try {
+                idsEffectLoggingRepository.saveAll(batch);
+            } catch (RuntimeException e) {
+                int requeued = requeue(batch);
+                logger.error("Could not save {} effect logs, {} will be retried on the next flush and the rest have been lost",
+                        batch.size(), requeued, e);
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Put a batch back at the head of the buffer in its original order, as far as there is room for it.
+     * If the buffer has filled up in the meantime, the oldest logs in the batch are the ones left out.
+     * @param batch logs that couldn't be saved
+     * @return number of logs put back
+     */
+    private int requeue(List<IdsEffectLogging> batch) {
+        int requeued = 0;
+        ListIterator<IdsEffectLogging> newestFirst = batch.listIterator(batch.size());
+        while (newestFirst.hasPrevious() && buffer.offerFirst(newestFirst.previous())) {
+            requeued++;
+        }
+        return requeued;
+    }
+
+    /**
+     * Save anything that is still waiting before shutting down.
+     * @throws InterruptedException if interrupted while waiting for a flush in progress
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        flush();
+    }
+}
@@ -0,0 +1,161 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.rabbitmq.client.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
+import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Processes single interchange messages, acks or nacks them, and logs the effect each one had.
+ */
+@Component
+public class MessageHandler {
+    private static final Logger logger = LoggerFactory.getLogger(MessageHandler.class);
+    /**
+     * How long to wait before processing a message again after its reference data was changed by a message being processed
+     * in parallel. Doubles for each conflict, up to the maximum.
+     */
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 10;
+    private static final long MAXIMUM_RETRY_DELAY_MILLIS = 1000;
+
+    private final InformDbOperations dbOps;
+    private final IdsEffectLoggingWriter idsEffectLoggingWriter;
+
+    /**
+     * @param dbOps                  processes each message type
+     * @param idsEffectLoggingWriter saves per message effect logging in the background
+     */
+    public MessageHandler(InformDbOperations dbOps, IdsEffectLoggingWriter idsEffectLoggingWriter) {
+        this.dbOps = dbOps;
+        this.idsEffectLoggingWriter = idsEffectLoggingWriter;
+    }
+
+    /**
+     * Process a single message in its own transaction, ack or nack it, and log the effect.
+     * @param msg     the message
+     * @param channel the rabbitmq channel
+     * @param tag     the message tag
+     * @throws IOException if rabbitmq channel has a problem
+     */
+    public void processAndAck(EmapOperationMessage msg, Channel channel, long tag) throws IOException {
+        Instant startTime = Instant.now();
+        IdsEffectLogging idsEffectLogging = startEffectLogging(msg, startTime);
+        try {
+            logger.info("Starting processing of interchange message {}", msg.getSourceMessageId());
+            logger.trace("{}", msg);
+            processWithRetries(msg);
+            setSuccess(idsEffectLogging, startTime);
+            logger.info("Sending ACK for {}", msg.getSourceMessageId());
+            channel.basicAck(tag, false);
+        } catch (EmapOperationMessageProcessingException e) {
+            // All errors that allow the message to be skipped should be logged
+            // using the return code from processMessage.
+            setFailure(idsEffectLogging, e);
+            logger.info("Sending NACK no requeue then NOT throwing for {}", msg.getSourceMessageId());
+            channel.basicNack(tag, false, false);
+        } catch (Throwable th) {
+            // For anything else, at least log it before exiting.
+            setFailure(idsEffectLogging, th);
+            if (ReferenceDataGuard.isConflict(th)) {
+                // Only when interrupted while waiting to process it again, the message itself is fine
+                logger.info("Sending NACK with requeue then throwing for {}", msg.getSourceMessageId());
+                channel.basicNack(tag, false, true);
+            } else {
+                logger.info("Sending NACK no requeue then throwing for {}", msg.getSourceMessageId());
+                channel.basicNack(tag, false, false);
+            }
+            throw th;
+        } finally {
+            idsEffectLogging.setProcessingEndTime(Instant.now());
+            idsEffectLoggingWriter.write(idsEffectLogging);
+        }
+    }
+
+    /**
+     * Process a message, and keep processing it again, with a backoff, for as long as it clashes with other messages
+     * creating the same reference data.
+     * Each attempt is its own transaction, and the message's patients are still locked, so it stays in order for each patient.
+     * If interrupted while waiting, the conflict is thrown so that the message can be requeued.
+     * @param msg the message
+     * @throws EmapOperationMessageProcessingException if the message could not be processed
+     */
+    private void processWithRetries(EmapOperationMessage msg) throws EmapOperationMessageProcessingException {
+        long delayMillis = INITIAL_RETRY_DELAY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                msg.processMessage(dbOps);
+                return;
+            } catch (RuntimeException e) {
+                if (!ReferenceDataGuard.isConflict(e)) {
+                    throw e;
+                }
+                logger.info("Processing {} again in {} ms after attempt {}: {}",
+                        msg.getSourceMessageId(), delayMillis, attempt, e.getMessage());
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                delayMillis = Math.min(delayMillis * 2, MAXIMUM_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Process a single message, letting any exception propagate so that the caller can decide what to roll back.
+     * @param msg the message
+     * @throws EmapOperationMessageProcessingException if the message could not be processed
+     */
+    void process(EmapOperationMessage msg) throws EmapOperationMessageProcessingException {
+        logger.info("Starting processing of interchange message {}", msg.getSourceMessageId());
+        logger.trace("{}", msg);
+        msg.processMessage(dbOps);
+    }
+
+    /**
+     * @param msg       the message about to be processed
+     * @param startTime when processing started
+     * @return effect logging with the message details filled in
+     */
+    static IdsEffectLogging startEffectLogging(EmapOperationMessage msg, Instant startTime) {
+        IdsEffectLogging idsEffectLogging = new IdsEffectLogging();
+        idsEffectLogging.setProcessingStartTime(startTime);
+        idsEffectLogging.setMessageType(msg.getMessageType());
+        if (msg instanceof AdtMessage) {
+            idsEffectLogging.setMessageDatetime(((AdtMessage) msg).getRecordedDateTime());
+        }
+        idsEffectLogging.setSourceId(msg.getSourceMessageId());
+        return idsEffectLogging;
+    }
+
+    /**
+     * @param idsEffectLogging effect logging to update
+     * @param startTime        when processing started
+     */
+    static void setSuccess(IdsEffectLogging idsEffectLogging, Instant startTime) {
+        Duration processMessageDuration = Duration.between(startTime, Instant.now());
+        idsEffectLogging.setProcessMessageDuration(processMessageDuration.toNanos());
+        idsEffectLogging.setError(false);
+    }
+
+    /**
+     * MessageIgnoredException is not an error, all other exceptions are.
+     * @param idsEffectLogging effect logging to update
+     * @param th               the reason processing failed
+     */
+    static void setFailure(IdsEffectLogging idsEffectLogging, Throwable th) {
+        idsEffectLogging.setError(!(th instanceof MessageIgnoredException));
+        idsEffectLogging.setMessage(th.getMessage());
+        idsEffectLogging.setStackTrace(th);
+    }
+}
@@ -0,0 +1,154 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Hibernate;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.type.Type;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.ReferenceDataConflictException;
+import uk.ac.ucl.rits.inform.informdb.conditions.ConditionType;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationType;
+import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecisionType;
+import uk.ac.ucl.rits.inform.informdb.forms.FormDefinition;
+import uk.ac.ucl.rits.inform.informdb.forms.FormQuestion;
+import uk.ac.ucl.rits.inform.informdb.labs.LabBattery;
+import uk.ac.ucl.rits.inform.informdb.labs.LabBatteryElement;
+import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinition;
+import uk.ac.ucl.rits.inform.informdb.movement.Bed;
+import uk.ac.ucl.rits.inform.informdb.movement.BedFacility;
+import uk.ac.ucl.rits.inform.informdb.movement.BedState;
+import uk.ac.ucl.rits.inform.informdb.movement.Department;
+import uk.ac.ucl.rits.inform.informdb.movement.DepartmentState;
+import uk.ac.ucl.rits.inform.informdb.movement.Location;
+import uk.ac.ucl.rits.inform.informdb.movement.Room;
+import uk.ac.ucl.rits.inform.informdb.movement.RoomState;
+import uk.ac.ucl.rits.inform.informdb.questions.Question;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stops messages that are processed in parallel from creating the same reference data twice.
+ * <p>
+ * Reference data (locations, observation types, lab test definitions, questions...) is shared by all patients, so it isn't covered
+ * by the patient locks of {@link uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor}, and it is looked up
+ * and created if missing without any database constraint to stop two transactions from both creating it.
+ * Instead, the first write of reference data in a transaction takes a single lock, which is held until the transaction completes,
+ * so only one transaction at a time can be writing reference data. If another transaction has committed reference data changes
+ * since this one started, this transaction may have missed them when looking up, so a {@link ReferenceDataConflictException}
+ * is thrown and the message should be processed again.
+ * <p>
+ * Once the reference data has been seen, it is rarely written to, so retries are rare and the lock is hardly ever waited for.
+ * Patient data is locked separately by patient, so a transaction waiting for this lock can't be holding anything that
+ * the transaction holding it is waiting for.
+ * <p>
+ * Only active if {@code core.rabbitmq.parallel_workers} is more than 1.
+ */
+@Component
+public class ReferenceDataGuard extends EmptyInterceptor implements HibernatePropertiesCustomizer {
+    private static final long serialVersionUID = 3785012334512190483L;
+
+    private static final Set<Class<?>> REFERENCE_ENTITIES = Set.of(
+            Location.class, Department.class, DepartmentState.class, Room.class, RoomState.class, Bed.class, BedState.class,
+            BedFacility.class, LabBattery.class, LabBatteryElement.class, LabTestDefinition.class, VisitObservationType.class,
+            Question.class, AdvanceDecisionType.class, ConsultationType.class, ConditionType.class, FormDefinition.class,
+            FormQuestion.class);
+
+    private final boolean enabled;
+    /**
+     * Incremented by every commit that changed reference data.
+     */
+    private final transient AtomicLong generation = new AtomicLong();
+    private final transient ReentrantLock writeLock = new ReentrantLock();
+    /**
+     * The generation when the current thread's transaction started.
+     */
+    private final transient ThreadLocal<Long> startGeneration = new ThreadLocal<>();
+
+    /**
+     * @param parallelWorkers number of workers processing messages at once
+     */
+    public ReferenceDataGuard(@Value("${core.rabbitmq.parallel_workers:1}") int parallelWorkers) {
+        enabled = parallelWorkers > 1;
+    }
+
+    @Override
+    public void customize(Map<String, Object> hibernateProperties) {
+        if (enabled) {
+            hibernateProperties.put(AvailableSettings.INTERCEPTOR, this);
+        }
+    }
+
+    @Override
+    public void afterTransactionBegin(Transaction tx) {
+        startGeneration.set(generation.get());
+    }
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        guardWrite(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(
+            Object entity, Serializable id, Object[] currentState, Object[] previousState, String[] propertyNames, Type[] types) {
+        guardWrite(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        guardWrite(entity);
+    }
+
+    /**
+     * Take the write lock if the entity is reference data and this transaction doesn't already hold it,
+     * and check that no other transaction has changed reference data since this one started.
+     * @param entity entity about to be written
+     * @throws ReferenceDataConflictException if another transaction has committed reference data since this one started
+     */
+    private void guardWrite(Object entity) {
+        if (!REFERENCE_ENTITIES.contains(Hibernate.getClass(entity)) || writeLock.isHeldByCurrentThread()
+                || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        writeLock.lock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    generation.incrementAndGet();
+                }
+                writeLock.unlock();
+            }
+        });
+        Long started = startGeneration.get();
+        if (started == null || started != generation.get()) {
+            throw new ReferenceDataConflictException(String.format(
+                    "Reference data changed by another transaction while writing %s", entity.getClass().getSimpleName()));
+        }
+    }
+
+    /**
+     * @param th exception thrown while processing a message
+     * @return true if it was caused by a reference data conflict, so the message can be processed again
+     */
+    public static boolean isConflict(Throwable th) {
+        for (Throwable cause = th; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ReferenceDataConflictException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
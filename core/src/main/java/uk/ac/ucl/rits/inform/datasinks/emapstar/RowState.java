@@ -5,6 +5,8 @@ import org.slf4j.LoggerFactory;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.lang.Nullable;
 import uk.ac.ucl.rits.inform.informdb.AuditCore;
+import uk.ac.ucl.rits.inform.informdb.AuditedField;
+import uk.ac.ucl.rits.inform.informdb.EntitySnapshot;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.adt.PatientClass;
@@ -13,14 +15,15 @@ import uk.ac.ucl.rits.inform.interchange.lab.LabResultStatus;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
-import java.util.Arrays;
-import java.util.Objects;
-import java.util.function.Consumer;
 
 /**
  * Track the state of a hibernate entity.
  * All values for the entity should be updated from the assign*IfDifferent method of this class to track the state and
  * automatically update the validFrom and storedFrom fields.
+ * <p>
+ * Only the original values of the fields changed through this class are kept, and the audit entity is built from them
+ * and the current state of the entity when it is saved. So changes made directly to an existing entity would end up
+ * in the audit log as if they were its previous state.
  * @param <T> Hibernate Entity type that has validFrom and storedFrom fields.
  * @param <A> The AuditEntity Type
  */
@@ -28,7 +31,11 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private T entity;
-    private final T originalEntity;
+    /**
+     * Original values of the fields changed through this RowState, that the audit entity is built from.
+     * Only started when an existing entity is first changed, so entities that are left as they are don't get copied.
+     */
+    private EntitySnapshot<T, A> snapshot;
     private final boolean entityCreated;
     private final Instant newValidFrom;
     private final Instant newStoredFrom;
@@ -45,7 +52,6 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
         this.newValidFrom = newValidFrom;
         this.newStoredFrom = newStoredFrom;
         this.entityCreated = entityCreated;
-        this.originalEntity = entity.copy();
     }
 
     /**
@@ -79,98 +85,86 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
     }
 
     /**
-     * If new value is different assign from InterchangeValue of PatientClass to a setter taking a string.
-     * @param newValue        new value
-     * @param currentValue    current value
-     * @param setPatientClass setter to use if value should be updated
+     * If new value is different assign from InterchangeValue of PatientClass to a string field.
+     * @param newValue new value
+     * @param field    field to update if value is different
      */
-    public void assignInterchangeValue(InterchangeValue<PatientClass> newValue, String currentValue, Consumer<String> setPatientClass) {
+    public void assignPatientClass(InterchangeValue<PatientClass> newValue, AuditedField<T, A, String> field) {
         if (newValue.isUnknown()) {
             return;
         }
-        assignIfDifferent(newValue.get().toString(), currentValue, setPatientClass);
+        assignIfDifferent(newValue.get().toString(), field);
     }
 
     /**
-     * If new value is different assign from LabResultStatus to a setter taking a string.
-     * @param newValue        new value
-     * @param currentValue    current value
-     * @param setResultStatus setter to use if value should be updated
+     * If new value is different assign from LabResultStatus to a string field.
+     * @param newValue new value
+     * @param field    field to update if value is different
      */
-    public void assignIfDifferent(LabResultStatus newValue, String currentValue, Consumer<String> setResultStatus) {
-        assignIfDifferent(newValue.toString(), currentValue, setResultStatus);
+    public void assignIfDifferent(LabResultStatus newValue, AuditedField<T, A, String> field) {
+        assignIfDifferent(newValue.toString(), field);
     }
 
     /**
-     * Assign new Instant value to LocalDate if different.
-     * @param newValue        new value
-     * @param currentValue    current value
-     * @param setter          setter to use if value should be updated
+     * Assign new Instant value to a LocalDate field if different.
+     * @param newValue new value
+     * @param field    field to update if value is different
      */
-    public void assignInterchangeValue(InterchangeValue<Instant> newValue, LocalDate currentValue, Consumer<LocalDate> setter) {
+    public void assignLocalDate(InterchangeValue<Instant> newValue, AuditedField<T, A, LocalDate> field) {
         if (newValue.isUnknown()) {
             return;
         }
         Instant unpackedValue = newValue.get();
         LocalDate dateTime = (unpackedValue == null) ? null : unpackedValue.atZone(ZoneId.systemDefault()).toLocalDate();
-        assignIfDifferent(dateTime, currentValue, setter);
+        assignIfDifferent(dateTime, field);
     }
 
     /**
-     * Assign new byte array value if different.
-     * Adds in arrays equal check before assigning if different.
-     * @param newValue     new value
-     * @param currentValue current value
-     * @param setter       setter to use if value should be updated
+     * If new value is different assign from InterchangeValue to a field of the same type.
+     * @param newValue new value
+     * @param field    field to update if value is different
+     * @param <R>      type of the value in the hibernate entity
      */
-    public void assignInterchangeValue(InterchangeValue<byte[]> newValue, byte[] currentValue, Consumer<byte[]> setter) {
-        if (newValue.isUnknown() || Arrays.equals(newValue.get(), currentValue)) {
-            return;
-        }
-        assignIfDifferent(newValue.get(), currentValue, setter);
-    }
-
-    /**
-     * If new value is different assign from InterchangeValue to a setter taking the same type.
-     * @param newValue     new value
-     * @param currentValue current value
-     * @param setter       setter to use if value should be updated
-     * @param <R>          type of the value in the hibernate entity
-     */
-    public <R> void assignInterchangeValue(InterchangeValue<R> newValue, R currentValue, Consumer<R> setter) {
+    public <R> void assignInterchangeValue(InterchangeValue<R> newValue, AuditedField<T, A, R> field) {
         if (newValue.isUnknown()) {
             return;
         }
-        assignIfDifferent(newValue.get(), currentValue, setter);
+        assignIfDifferent(newValue.get(), field);
     }
 
     /**
      * Directly assign a new value if it is different from current value.
-     * @param newValue     new value
-     * @param currentValue current value
-     * @param setter       setter to use if value should be updated
-     * @param <R>          type of the value in the hibernate entity
+     * The first time that each field of an existing entity is changed, its current value is kept for the audit entity.
+     * @param newValue new value
+     * @param field    field to update if value is different
+     * @param <R>      type of the value in the hibernate entity
      * @return true if state has been updated
      */
-    public <R> boolean assignIfDifferent(@Nullable R newValue, @Nullable R currentValue, Consumer<R> setter) {
-        if (Objects.equals(newValue, currentValue)) {
+    public <R> boolean assignIfDifferent(@Nullable R newValue, AuditedField<T, A, R> field) {
+        R currentValue = field.get(entity);
+        if (!field.isDifferent(newValue, currentValue)) {
             return false;
         }
+        if (!entityCreated) {
+            if (snapshot == null) {
+                snapshot = field.newSnapshot(entity);
+            }
+            snapshot.keepOriginal(field, currentValue);
+        }
         entityUpdated = true;
-        setter.accept(newValue);
+        field.set(entity, newValue);
         return true;
     }
 
 
     /**
      * If current value exists, remove it and set validFrom cancellation time.
-     * @param currentValue      current value
-     * @param setter            setter to use if value should be updated
+     * @param field             field to remove the value of
      * @param cancelledDateTime Time of cancellation
      * @param <R>               type of the value in the hibernate entity
      */
-    public <R> void removeIfExists(@Nullable R currentValue, Consumer<R> setter, Instant cancelledDateTime) {
-        boolean removed = assignIfDifferent(null, currentValue, setter);
+    public <R> void removeIfExists(AuditedField<T, A, R> field, Instant cancelledDateTime) {
+        boolean removed = assignIfDifferent(null, field);
         if (removed && cancelledDateTime != null) {
             entity.setValidFrom(cancelledDateTime);
         }
@@ -189,10 +183,10 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
             entity.setValidFrom(newValidFrom);
             logger.debug("New Entity saved: {}", entityRepo.save(entity));
         } else if (entityUpdated) {
+            A auditEntity = snapshot.createAuditEntity(newValidFrom, newStoredFrom);
             entity.setStoredFrom(newStoredFrom);
             entity.setValidFrom(newValidFrom);
             entityRepo.save(entity);
-            A auditEntity = originalEntity.createAuditEntity(newValidFrom, newStoredFrom);
             auditRepo.save(auditEntity);
             logger.debug("New AuditEntity being saved: {}", auditEntity);
         }
@@ -202,17 +196,15 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
      * Convenience method to allow assignment of fields which should always be added to if currently null in database.
      * If a value exists, then should only update the value if the message is newer.
      * @param msgValue         interchange value from message
-     * @param currentValue     current value
-     * @param setter           setter to use if value should be updated
+     * @param field            field to update if value should be updated
      * @param messageValidFrom updateTime of the message
      * @param entityValidFrom  validFrom from the database entity
      * @param <R>              type of the value in the hibernate entity
      */
     public <R> void assignIfCurrentlyNullOrNewerAndDifferent(
-            InterchangeValue<R> msgValue, R currentValue, Consumer<R> setter, Instant messageValidFrom, Instant entityValidFrom
-    ) {
-        if (currentValue == null || messageValidFrom.isAfter(entityValidFrom)) {
-            assignInterchangeValue(msgValue, currentValue, setter);
+            InterchangeValue<R> msgValue, AuditedField<T, A, R> field, Instant messageValidFrom, Instant entityValidFrom) {
+        if (field.get(entity) == null || messageValidFrom.isAfter(entityValidFrom)) {
+            assignInterchangeValue(msgValue, field);
         }
     }
 
@@ -220,16 +212,15 @@ public class RowState<T extends TemporalCore<T, A>, A extends AuditCore> {
      * Convenience method to allow assignment of fields which should always be added to if currently null in database.
      * If a value exists, then should only update the value if the message is newer.
      * @param msgValue         value from message
-     * @param currentValue     current value
-     * @param setter           setter to use if value should be updated
+     * @param field            field to update if value should be updated
      * @param messageValidFrom updateTime of the message
      * @param entityValidFrom  validFrom from the database entity
      * @param <R>              type of the value in the hibernate entity
      */
     public <R> void assignIfCurrentlyNullOrNewerAndDifferent(
-            R msgValue, R currentValue, Consumer<R> setter, Instant messageValidFrom, Instant entityValidFrom) {
-        if (currentValue == null || messageValidFrom.isAfter(entityValidFrom)) {
-            assignIfDifferent(msgValue, currentValue, setter);
+            R msgValue, AuditedField<T, A, R> field, Instant messageValidFrom, Instant entityValidFrom) {
+        if (field.get(entity) == null || messageValidFrom.isAfter(entityValidFrom)) {
+            assignIfDifferent(msgValue, field);
         }
     }
 }
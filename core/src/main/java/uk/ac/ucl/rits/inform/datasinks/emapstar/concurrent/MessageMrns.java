@@ -0,0 +1,140 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent;
+
+import uk.ac.ucl.rits.inform.interchange.AdvanceDecisionMessage;
+import uk.ac.ucl.rits.inform.interchange.ConsultRequest;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.PatientConditionMessage;
+import uk.ac.ucl.rits.inform.interchange.ResearchOptOut;
+import uk.ac.ucl.rits.inform.interchange.adt.AdtMessage;
+import uk.ac.ucl.rits.inform.interchange.adt.PreviousIdentifiers;
+import uk.ac.ucl.rits.inform.interchange.adt.SwapLocations;
+import uk.ac.ucl.rits.inform.interchange.form.FormMsg;
+import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.Flowsheet;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Works out which patients an interchange message could modify, so that they can be locked using an {@link MrnLock}.
+ * <p>
+ * Each MRN string and NHS number in the message is a key, so that messages creating the same new patient are kept in order.
+ * Identifiers that already exist are also resolved to their live MRNs, which are keys as well, because the same patient can be
+ * referred to by a merged MRN, an NHS number or the live MRN itself.
+ * <p>
+ * Messages that change which MRN is live, and messages without any patient identifier (metadata) should be processed on their own,
+ * see {@link #isExclusive(EmapOperationMessage)}. Waveform messages only read patient data, so they all share {@link #WAVEFORM_KEY}.
+ */
+public final class MessageMrns {
+    /**
+     * Lock key for messages that are not about a single patient. Cannot clash with a patient key.
+     */
+    public static final String NO_MRN_KEY = "<no mrn>";
+    /**
+     * Lock key for waveform messages. Cannot clash with a patient key.
+     */
+    public static final String WAVEFORM_KEY = "<waveform>";
+    private static final String MRN_PREFIX = "mrn:";
+    private static final String NHS_NUMBER_PREFIX = "nhs:";
+    private static final String LIVE_MRN_PREFIX = "live:";
+
+    /**
+     * Finds the live MRNs of the patients that already exist with an MRN string or NHS number.
+     */
+    @FunctionalInterface
+    public interface LiveMrnLookup {
+        /**
+         * @param mrn       MRN string, may be null
+         * @param nhsNumber NHS number, may be null
+         * @return IDs of the live MRNs of all MRN rows with the MRN string or the NHS number
+         */
+        List<Long> findLiveMrnIds(String mrn, String nhsNumber);
+    }
+
+    private MessageMrns() {}
+
+    /**
+     * Messages that change which MRN is live can affect patients that aren't known until they are processed,
+     * and messages without any patient identifier create and update the data shared by all patients.
+     * @param msg interchange message
+     * @return true if the message should be processed while no other message is being processed
+     */
+    public static boolean isExclusive(EmapOperationMessage msg) {
+        if (msg instanceof PreviousIdentifiers) {
+            return true;
+        }
+        return List.of(NO_MRN_KEY).equals(lockKeys(msg, (mrn, nhsNumber) -> List.of()));
+    }
+
+    /**
+     * Get the lock keys for a message. Messages that refer to two patients (merges, swaps, moving visit information)
+     * return the keys for both.
+     * @param msg           interchange message
+     * @param liveMrnLookup finds the live MRNs of existing patients
+     * @return unique, sorted, non-empty list of keys to lock on
+     */
+    public static List<String> lockKeys(EmapOperationMessage msg, LiveMrnLookup liveMrnLookup) {
+        SortedSet<String> keys = new TreeSet<>();
+        if (msg instanceof AdtMessage adtMsg) {
+            addKeys(keys, liveMrnLookup, adtMsg.getMrn(), adtMsg.getNhsNumber());
+            if (msg instanceof PreviousIdentifiers previous) {
+                addKeys(keys, liveMrnLookup, previous.getPreviousMrn(), previous.getPreviousNhsNumber());
+            }
+            if (msg instanceof SwapLocations swap) {
+                addKeys(keys, liveMrnLookup, swap.getOtherMrn(), swap.getOtherNhsNumber());
+            }
+        } else if (msg instanceof LabOrderMsg labOrder) {
+            addKeys(keys, liveMrnLookup, labOrder.getMrn(), null);
+        } else if (msg instanceof Flowsheet flowsheet) {
+            addKeys(keys, liveMrnLookup, flowsheet.getMrn(), null);
+        } else if (msg instanceof PatientConditionMessage condition) {
+            addKeys(keys, liveMrnLookup, condition.getMrn(), null);
+        } else if (msg instanceof ConsultRequest consult) {
+            addKeys(keys, liveMrnLookup, consult.getMrn(), null);
+        } else if (msg instanceof AdvanceDecisionMessage decision) {
+            addKeys(keys, liveMrnLookup, decision.getMrn(), null);
+        } else if (msg instanceof ResearchOptOut optOut) {
+            addKeys(keys, liveMrnLookup, optOut.getMrn(), null);
+        } else if (msg instanceof FormMsg form) {
+            addKeys(keys, liveMrnLookup, form.getMrn(), null);
+        } else if (msg instanceof WaveformMessage) {
+            keys.add(WAVEFORM_KEY);
+        }
+
+        if (keys.isEmpty()) {
+            keys.add(NO_MRN_KEY);
+        }
+        return new ArrayList<>(keys);
+    }
+
+    /**
+     * Add the MRN string and NHS number as keys, along with the live MRNs of any patients that already have them.
+     * @param keys          keys to add to
+     * @param liveMrnLookup finds the live MRNs of existing patients
+     * @param mrn           MRN, may be null or blank
+     * @param nhsNumber     NHS number, may be null or blank. Only given for messages that can use it to find the patient.
+     */
+    private static void addKeys(SortedSet<String> keys, LiveMrnLookup liveMrnLookup, String mrn, String nhsNumber) {
+        String mrnKey = isBlank(mrn) ? null : mrn;
+        String nhsNumberKey = isBlank(nhsNumber) ? null : nhsNumber;
+        if (mrnKey == null && nhsNumberKey == null) {
+            return;
+        }
+        if (mrnKey != null) {
+            keys.add(MRN_PREFIX + mrnKey);
+        }
+        if (nhsNumberKey != null) {
+            keys.add(NHS_NUMBER_PREFIX + nhsNumberKey);
+        }
+        for (Long liveMrnId : liveMrnLookup.findLiveMrnIds(mrnKey, nhsNumberKey)) {
+            keys.add(LIVE_MRN_PREFIX + liveMrnId);
+        }
+    }
+
+    private static boolean isBlank(String identifier) {
+        return identifier == null || identifier.isBlank();
+    }
+}
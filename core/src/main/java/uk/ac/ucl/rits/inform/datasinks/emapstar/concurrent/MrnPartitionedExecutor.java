@@ -0,0 +1,173 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks on a pool of worker threads, where each task is only allowed to run once it holds the {@link MrnLock} for all its MRNs.
+ * <p>
+ * Locks are acquired by the thread calling {@link #submit(Supplier, Runnable)}, in submission order, and are released by the worker
+ * once the task has finished. A task for an MRN that is still being worked on therefore blocks the submitter until the earlier task
+ * has completed. This keeps the order of tasks for each patient the same as the submission order, while tasks for unrelated patients
+ * run in parallel.
+ * <p>
+ * Although the submitting thread can hold locks on behalf of many tasks at once, each task's locks are acquired with a single call and
+ * the tasks themselves never wait on a lock, so the {@link MrnLock} rules are kept and deadlock is not possible.
+ * <p>
+ * Lock keys can depend on what earlier tasks have written, for example which patient an MRN has been merged into, so they are
+ * worked out again once the locks are held, and if they have changed the locks are released and the new keys locked instead.
+ * Tasks that can't be given keys up front, like merges, are submitted with {@link #submitExclusive(Runnable)} instead,
+ * which waits for all earlier tasks to finish and stops later tasks from starting until it has finished.
+ */
+public class MrnPartitionedExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(MrnPartitionedExecutor.class);
+
+    /**
+     * Every task holds at least one permit while it's running, exclusive tasks hold them all.
+     */
+    private static final int ALL_PERMITS = Integer.MAX_VALUE;
+
+    private final MrnLock mrnLock = new MrnLock();
+    private final Semaphore exclusivity = new Semaphore(ALL_PERMITS);
+    private final ExecutorService workers;
+
+    /**
+     * @param numWorkers number of worker threads
+     * @param threadNamePrefix prefix for worker thread names
+     * @throws IllegalArgumentException if numWorkers is not positive
+     */
+    public MrnPartitionedExecutor(int numWorkers, String threadNamePrefix) {
+        if (numWorkers < 1) {
+            throw new IllegalArgumentException(String.format("numWorkers must be positive, got %d", numWorkers));
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = r -> new Thread(r, threadNamePrefix + threadCount.incrementAndGet());
+        workers = Executors.newFixedThreadPool(numWorkers, threadFactory);
+    }
+
+    /**
+     * Block until all the MRNs are free, then hand the task to a worker.
+     * @param mrns MRNs that the task will modify. Must be unique and non-empty.
+     * @param task the work to do while holding the locks
+     * @throws InterruptedException if interrupted while waiting for the locks
+     */
+    public void submit(List<String> mrns, Runnable task) throws InterruptedException {
+        submit(() -> mrns, task);
+    }
+
+    /**
+     * Block until no exclusive task is running and all the task's lock keys are free, then hand the task to a worker.
+     * @param lockKeys works out the keys that the task will modify. Each list must be unique and non-empty.
+     * @param task     the work to do while holding the locks
+     * @throws InterruptedException if interrupted while waiting for the locks
+     */
+    public void submit(Supplier<List<String>> lockKeys, Runnable task) throws InterruptedException {
+        exclusivity.acquire();
+        List<String> heldKeys;
+        try {
+            heldKeys = acquireCurrentKeys(lockKeys);
+        } catch (InterruptedException | RuntimeException e) {
+            exclusivity.release();
+            throw e;
+        }
+        execute(task, () -> {
+            mrnLock.release(heldKeys);
+            exclusivity.release();
+        });
+    }
+
+    /**
+     * Block until all earlier tasks have finished, then hand the task to a worker. No other task starts until it has finished.
+     * @param task the work to do on its own
+     * @throws InterruptedException if interrupted while waiting for earlier tasks
+     */
+    public void submitExclusive(Runnable task) throws InterruptedException {
+        exclusivity.acquire(ALL_PERMITS);
+        execute(task, () -> exclusivity.release(ALL_PERMITS));
+    }
+
+    /**
+     * Lock the task's keys, repeating until they are the same once they are locked as they were before.
+     * @param lockKeys works out the keys to lock
+     * @return the keys that are now held
+     * @throws InterruptedException if interrupted while waiting for the locks
+     */
+    private List<String> acquireCurrentKeys(Supplier<List<String>> lockKeys) throws InterruptedException {
+        List<String> keys = new ArrayList<>(lockKeys.get());
+        while (true) {
+            acquire(keys);
+            List<String> currentKeys;
+            try {
+                currentKeys = lockKeys.get();
+            } catch (RuntimeException e) {
+                mrnLock.release(keys);
+                throw e;
+            }
+            if (currentKeys.equals(keys)) {
+                return keys;
+            }
+            logger.debug("Lock keys changed from {} to {} while waiting", keys, currentKeys);
+            mrnLock.release(keys);
+            keys = new ArrayList<>(currentKeys);
+        }
+    }
+
+    /**
+     * @param keys keys to lock with a single call
+     * @throws InterruptedException if interrupted while waiting for the locks
+     */
+    private void acquire(List<String> keys) throws InterruptedException {
+        if (keys.size() == 1) {
+            mrnLock.acquire(keys.get(0));
+        } else {
+            mrnLock.acquire(keys);
+        }
+    }
+
+    /**
+     * Run the task on a worker, which releases its locks afterwards.
+     * @param task    the work to do
+     * @param release releases the locks held for the task
+     */
+    private void execute(Runnable task, Runnable release) {
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    release.run();
+                }
+            });
+        } catch (RuntimeException e) {
+            // task was never started, so it won't release its own locks
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop accepting tasks and wait for those already submitted to finish.
+     * @param timeout maximum time to wait
+     * @param unit    unit of timeout
+     * @return true if all tasks finished within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        workers.shutdown();
+        boolean finished = workers.awaitTermination(timeout, unit);
+        if (!finished) {
+            logger.warn("Workers did not finish within {} {}", timeout, unit);
+        }
+        return finished;
+    }
+}
@@ -11,6 +11,7 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.decisions.AdvanceDecisionR
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.decisions.AdvanceDecisionTypeRepository;
 import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecision;
 import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecisionAudit;
+import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecisionSnapshot;
 import uk.ac.ucl.rits.inform.informdb.decisions.AdvanceDecisionType;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.interchange.AdvanceDecisionMessage;
@@ -123,17 +124,11 @@ public class AdvanceDecisionController {
      */
     private void updateConsultRequest(AdvanceDecisionMessage msg, RowState<AdvanceDecision,
             AdvanceDecisionAudit> advanceDecisionState) {
-        AdvanceDecision advanceDecision = advanceDecisionState.getEntity();
-
-        advanceDecisionState.assignIfDifferent(msg.getRequestedDatetime(), advanceDecision.getRequestedDatetime(),
-                advanceDecision::setRequestedDatetime);
-        advanceDecisionState.assignIfDifferent(msg.getStatusChangeDatetime(), advanceDecision.getStatusChangeDatetime(),
-                advanceDecision::setStatusChangeDatetime);
-        advanceDecisionState.assignIfDifferent(msg.isCancelled(), advanceDecision.getCancelled(),
-                advanceDecision::setCancelled);
+        advanceDecisionState.assignIfDifferent(msg.getRequestedDatetime(), AdvanceDecisionSnapshot.REQUESTED_DATETIME);
+        advanceDecisionState.assignIfDifferent(msg.getStatusChangeDatetime(), AdvanceDecisionSnapshot.STATUS_CHANGE_DATETIME);
+        advanceDecisionState.assignIfDifferent(msg.isCancelled(), AdvanceDecisionSnapshot.CANCELLED);
         advanceDecisionState.assignIfDifferent(msg.isClosedDueToDischarge(),
-                advanceDecision.getClosedDueToDischarge(),
-                advanceDecision::setClosedDueToDischarge);
+                AdvanceDecisionSnapshot.CLOSED_DUE_TO_DISCHARGE);
     }
 }
 
@@ -0,0 +1,197 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository.Occupancy;
+import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * In memory index of which location visit each location had at any time, so that waveform data can be linked to
+ * location visits without a query per row.
+ * <p>
+ * Only covers location visits that were open at some point within the last {@code core.waveform.location_index.hours},
+ * older observation times are looked up in the database as before.
+ * The index is filled for all locations at startup, and {@link PatientLocationController} invalidates locations whose
+ * location visits it changes once the transaction has finished. An invalidated location is reloaded from the database
+ * the next time it's looked up.
+ */
+@Component
+public class BedOccupancyIndex {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final LocationVisitRepository locationVisitRepo;
+    private final Duration indexedDuration;
+    /**
+     * Location visits by location string, in descending order of admission time.
+     */
+    private final Map<String, List<Occupancy>> occupancyByLocation = new ConcurrentHashMap<>();
+    /**
+     * Number of times each location has been invalidated, so that a load that overlapped an invalidation isn't kept.
+     */
+    private final Map<String, Long> invalidationCounts = new ConcurrentHashMap<>();
+    private volatile Instant indexedFrom = Instant.MAX;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param locationVisitRepo location visit repository
+     * @param indexedHours      how many hours back the index covers, 0 to always query the database
+     */
+    public BedOccupancyIndex(
+            LocationVisitRepository locationVisitRepo,
+            @Value("${core.waveform.location_index.hours:24}") int indexedHours) {
+        this.locationVisitRepo = locationVisitRepo;
+        this.indexedDuration = Duration.ofHours(indexedHours);
+    }
+
+    /**
+     * @return whether location visits are looked up in the index, rather than always queried
+     */
+    public boolean isEnabled() {
+        return !indexedDuration.isZero();
+    }
+
+    /**
+     * Load the location visits that are open, or were closed within the indexed time.
+     */
+    @PostConstruct
+    public void warmUp() {
+        if (!isEnabled()) {
+            logger.info("Bed occupancy index disabled, location visits will be queried for each waveform row");
+            return;
+        }
+        Instant from = Instant.now().minus(indexedDuration);
+        Map<String, List<Occupancy>> loaded = locationVisitRepo.findOccupancyDischargedSince(from).stream()
+                .collect(Collectors.groupingBy(Occupancy::getLocationString));
+        loaded.forEach((location, occupancies) -> occupancyByLocation.put(location, sortedByAdmission(occupancies)));
+        indexedFrom = from;
+        logger.info("Bed occupancy index loaded {} location visits at {} locations, from {}",
+                loaded.values().stream().mapToInt(List::size).sum(), loaded.size(), from);
+    }
+
+    /**
+     * Forget location visits that were closed before the indexed time, so the index doesn't keep growing.
+     */
+    @Scheduled(fixedRate = 60 * 60 * 1000)
+    public void pruneClosedVisits() {
+        if (!isEnabled()) {
+            return;
+        }
+        Instant from = Instant.now().minus(indexedDuration);
+        // observation times before the new start go to the database from now on
+        indexedFrom = from;
+        for (String location : occupancyByLocation.keySet()) {
+            occupancyByLocation.computeIfPresent(location, (key, occupancies) -> occupancies.stream()
+                    .filter(occupancy -> occupancy.getDischargeDatetime() == null || !occupancy.getDischargeDatetime().isBefore(from))
+                    .collect(Collectors.toUnmodifiableList()));
+        }
+    }
+
+    /**
+     * Find the location visit that was at a location at the given time.
+     * If more than one location visit was, the most recently admitted is used.
+     * @param locationString      location string
+     * @param observationDatetime any time when the patient was at that location
+     * @return the location visit, if it exists
+     */
+    public Optional<LocationVisit> findLocationVisit(String locationString, Instant observationDatetime) {
+        if (locationString == null) {
+            return Optional.empty();
+        }
+        if (observationDatetime.isBefore(indexedFrom)) {
+            return locationVisitRepo.findLocationVisitByLocationAndTime(observationDatetime, locationString);
+        }
+        List<Occupancy> occupancies = occupancyByLocation.get(locationString);
+        if (occupancies == null) {
+            occupancies = loadLocation(locationString);
+        }
+        for (Occupancy occupancy : occupancies) {
+            if (!observationDatetime.isBefore(occupancy.getAdmissionDatetime())
+                    && (occupancy.getDischargeDatetime() == null || !observationDatetime.isAfter(occupancy.getDischargeDatetime()))) {
+                return Optional.of(entityManager.getReference(LocationVisit.class, occupancy.getLocationVisitId()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Reload locations the next time they are looked up, after the current transaction has committed or rolled back.
+     * @param locationStrings locations where location visits have been created, changed or deleted
+     */
+    public void invalidateAfterTransaction(Collection<String> locationStrings) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            locationStrings.forEach(this::invalidate);
+            return;
+        }
+        Set<String> transactionLocations = boundLocations();
+        if (transactionLocations == null) {
+            Set<String> newLocations = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, newLocations);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(BedOccupancyIndex.this);
+                    // a rolled back transaction may have loaded its own changes into the index
+                    newLocations.forEach(BedOccupancyIndex.this::invalidate);
+                }
+            });
+            transactionLocations = newLocations;
+        }
+        transactionLocations.addAll(locationStrings);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> boundLocations() {
+        return (Set<String>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    private void invalidate(String locationString) {
+        // count first, so that a load in progress sees the change before it can be stored
+        invalidationCounts.merge(locationString, 1L, Long::sum);
+        occupancyByLocation.remove(locationString);
+    }
+
+    /**
+     * @param locationString location string
+     * @return location visits at the location, which are kept unless the location was invalidated while loading
+     */
+    private List<Occupancy> loadLocation(String locationString) {
+        long invalidationCount = invalidationCounts.getOrDefault(locationString, 0L);
+        List<Occupancy> loaded = sortedByAdmission(
+                locationVisitRepo.findOccupancyByLocationDischargedSince(locationString, indexedFrom));
+        occupancyByLocation.compute(locationString, (key, existing) ->
+                invalidationCounts.getOrDefault(locationString, 0L) == invalidationCount ? loaded : existing);
+        return loaded;
+    }
+
+    private static List<Occupancy> sortedByAdmission(List<Occupancy> occupancies) {
+        return occupancies.stream()
+                .sorted(Comparator.comparing(Occupancy::getAdmissionDatetime).reversed())
+                .collect(Collectors.toUnmodifiableList());
+    }
+}
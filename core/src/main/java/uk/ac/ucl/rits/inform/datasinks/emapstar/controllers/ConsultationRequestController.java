@@ -13,8 +13,10 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.ConsultationTypeAuditRepos
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.ConsultationTypeRepository;
 import uk.ac.ucl.rits.inform.informdb.consults.ConsultationRequest;
 import uk.ac.ucl.rits.inform.informdb.consults.ConsultationRequestAudit;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationRequestSnapshot;
 import uk.ac.ucl.rits.inform.informdb.consults.ConsultationType;
 import uk.ac.ucl.rits.inform.informdb.consults.ConsultationTypeAudit;
+import uk.ac.ucl.rits.inform.informdb.consults.ConsultationTypeSnapshot;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.interchange.ConsultMetadata;
 import uk.ac.ucl.rits.inform.interchange.ConsultRequest;
@@ -75,7 +77,7 @@ public class ConsultationRequestController {
         ConsultationType consultationType = consultationState.getEntity();
 
         if (consultationTypeShouldBeUpdated(msg.getLastUpdatedDate(), consultationType)) {
-            consultationState.assignIfDifferent(msg.getName(), consultationType.getName(), consultationType::setName);
+            consultationState.assignIfDifferent(msg.getName(), ConsultationTypeSnapshot.NAME);
         }
         consultationState.saveEntityOrAuditLogIfRequired(consultationTypeRepo, consultationTypeAuditRepo);
     }
@@ -191,15 +193,13 @@ public class ConsultationRequestController {
      */
     private void updateConsultRequest(ConsultRequest msg, RowState<ConsultationRequest,
             ConsultationRequestAudit> requestState) {
-        ConsultationRequest request = requestState.getEntity();
-
-        requestState.assignIfDifferent(msg.getScheduledDatetime(), request.getScheduledDatetime(), request::setScheduledDatetime);
-        requestState.assignInterchangeValue(msg.getNotes(), request.getComments(), request::setComments);
-        requestState.assignIfDifferent(msg.isCancelled(), request.getCancelled(), request::setCancelled);
-        requestState.assignIfDifferent(msg.isClosedDueToDischarge(), request.getClosedDueToDischarge(), request::setClosedDueToDischarge);
+        requestState.assignIfDifferent(msg.getScheduledDatetime(), ConsultationRequestSnapshot.SCHEDULED_DATETIME);
+        requestState.assignInterchangeValue(msg.getNotes(), ConsultationRequestSnapshot.COMMENTS);
+        requestState.assignIfDifferent(msg.isCancelled(), ConsultationRequestSnapshot.CANCELLED);
+        requestState.assignIfDifferent(msg.isClosedDueToDischarge(), ConsultationRequestSnapshot.CLOSED_DUE_TO_DISCHARGE);
         // only update status change time if the entity has been created or updated
         if (requestState.isEntityCreated() || requestState.isEntityUpdated()) {
-            requestState.assignIfDifferent(msg.getStatusChangeDatetime(), request.getStatusChangeDatetime(), request::setStatusChangeDatetime);
+            requestState.assignIfDifferent(msg.getStatusChangeDatetime(), ConsultationRequestSnapshot.STATUS_CHANGE_DATETIME);
         }
     }
 
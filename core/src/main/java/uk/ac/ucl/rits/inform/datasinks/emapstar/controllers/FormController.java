@@ -15,10 +15,13 @@ import uk.ac.ucl.rits.inform.informdb.TemporalFrom;
 import uk.ac.ucl.rits.inform.informdb.forms.Form;
 import uk.ac.ucl.rits.inform.informdb.forms.FormAnswer;
 import uk.ac.ucl.rits.inform.informdb.forms.FormAnswerAudit;
+import uk.ac.ucl.rits.inform.informdb.forms.FormAnswerSnapshot;
 import uk.ac.ucl.rits.inform.informdb.forms.FormDefinition;
 import uk.ac.ucl.rits.inform.informdb.forms.FormDefinitionAudit;
+import uk.ac.ucl.rits.inform.informdb.forms.FormDefinitionSnapshot;
 import uk.ac.ucl.rits.inform.informdb.forms.FormQuestion;
 import uk.ac.ucl.rits.inform.informdb.forms.FormQuestionAudit;
+import uk.ac.ucl.rits.inform.informdb.forms.FormQuestionSnapshot;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.interchange.form.FormAnswerMsg;
@@ -155,7 +158,7 @@ public class FormController {
             // gets updated evey time even if nothing changed).
             if (formAnswerRowState.isEntityUpdated()) {
                 formAnswerRowState.assignIfCurrentlyNullOrNewerAndDifferent(
-                        answerMsg.getFiledDatetime(), formAnswer.getFiledDatetime(), formAnswer::setFiledDatetime,
+                        answerMsg.getFiledDatetime(), FormAnswerSnapshot.FILED_DATETIME,
                         answerMsg.getFiledDatetime(), formAnswer.getFiledDatetime());
             }
             formAnswerRowState.saveEntityOrAuditLogIfRequired(formAnswerRepository, formAnswerAuditRepository);
@@ -172,32 +175,27 @@ public class FormController {
         if (answerMsg.getStringValue().isSave()) {
             formAnswerRowState.assignIfDifferent(
                     answerMsg.getStringValue().get(),
-                    formAnswer.getValueAsText(),
-                    formAnswer::setValueAsText);
+                    FormAnswerSnapshot.VALUE_AS_TEXT);
         }
         if (answerMsg.getBooleanValue().isSave()) {
             formAnswerRowState.assignIfDifferent(
                     answerMsg.getBooleanValue().get(),
-                    formAnswer.getValueAsBoolean(),
-                    formAnswer::setValueAsBoolean);
+                    FormAnswerSnapshot.VALUE_AS_BOOLEAN);
         }
         if (answerMsg.getDateValue().isSave()) {
             formAnswerRowState.assignIfDifferent(
                     answerMsg.getDateValue().get(),
-                    formAnswer.getValueAsDate(),
-                    formAnswer::setValueAsDate);
+                    FormAnswerSnapshot.VALUE_AS_DATE);
         }
         if (answerMsg.getUtcDatetimeValue().isSave()) {
             formAnswerRowState.assignIfDifferent(
                     answerMsg.getUtcDatetimeValue().get(),
-                    formAnswer.getValueAsDatetime(),
-                    formAnswer::setValueAsDatetime);
+                    FormAnswerSnapshot.VALUE_AS_DATETIME);
         }
         if (answerMsg.getNumericValue().isSave()) {
             formAnswerRowState.assignIfDifferent(
                     answerMsg.getNumericValue().get(),
-                    formAnswer.getValueAsNumber(),
-                    formAnswer::setValueAsNumber);
+                    FormAnswerSnapshot.VALUE_AS_NUMBER);
         }
     }
 
@@ -253,16 +251,13 @@ class FormDefinitionController {
                 formQuestionMetadataMsg.getSourceMessageId(), storedFrom, validFrom);
         formQuestion.assignIfDifferent(
                 formQuestionMetadataMsg.getName(),
-                formQuestion.getEntity().getConceptName(),
-                formQuestion.getEntity()::setConceptName);
+                FormQuestionSnapshot.CONCEPT_NAME);
         formQuestion.assignIfDifferent(
                 formQuestionMetadataMsg.getAbbrevName(),
-                formQuestion.getEntity().getConceptAbbrevName(),
-                formQuestion.getEntity()::setConceptAbbrevName);
+                FormQuestionSnapshot.CONCEPT_ABBREV_NAME);
         formQuestion.assignIfDifferent(
                 formQuestionMetadataMsg.getDescription(),
-                formQuestion.getEntity().getDescription(),
-                formQuestion.getEntity()::setDescription);
+                FormQuestionSnapshot.DESCRIPTION);
         formQuestion.saveEntityOrAuditLogIfRequired(formQuestionRepository, formQuestionAuditRepository);
     }
 
@@ -280,12 +275,10 @@ class FormDefinitionController {
                 formMetadataMsg.getSourceMessageId(), storedFrom, validFrom);
         formDefinition.assignIfDifferent(
                 formMetadataMsg.getFormName(),
-                formDefinition.getEntity().getName(),
-                formDefinition.getEntity()::setName);
+                FormDefinitionSnapshot.NAME);
         formDefinition.assignIfDifferent(
                 formMetadataMsg.getFormPatientFriendlyName(),
-                formDefinition.getEntity().getPatientFriendlyName(),
-                formDefinition.getEntity()::setPatientFriendlyName);
+                FormDefinitionSnapshot.PATIENT_FRIENDLY_NAME);
         formDefinition.saveEntityOrAuditLogIfRequired(formDefinitionRepository, formDefinitionAuditRepository);
     }
 
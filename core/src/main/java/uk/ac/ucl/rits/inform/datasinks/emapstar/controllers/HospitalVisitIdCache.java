@@ -0,0 +1,130 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of which hospital visit an encounter belongs to, so that {@link VisitController} doesn't have to
+ * query the hospital_visit table for every lab, flowsheet, form, consult or patient state message.
+ * <p>
+ * Only the ID of the visit is cached, and callers get a reference to it in their own persistence context,
+ * which is only loaded from the database if more than its ID is used.
+ * <p>
+ * Only committed data is cached. Once the current transaction has created, moved or deleted the visit for an encounter,
+ * the encounter is forgotten, it isn't cached again in that transaction, and it's forgotten again when the transaction completes.
+ * This also covers a message being rolled back to a savepoint of a batch transaction,
+ * because the batch transaction itself only completes later.
+ * <p>
+ * The cache is bounded by {@code core.visit_cache.maximum_size}, and if a MeterRegistry is available,
+ * its hits, misses and evictions are published as metrics.
+ */
+@Component
+public class HospitalVisitIdCache {
+    private final Cache<String, Long> cache;
+    /**
+     * Incremented whenever encounters are forgotten, so that a lookup that overlapped that isn't kept.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param maximumSize   maximum number of encounters to cache
+     * @param meterRegistry registry for cache metrics, if there is one
+     */
+    public HospitalVisitIdCache(@Value("${core.visit_cache.maximum_size:200000}") long maximumSize, ObjectProvider<MeterRegistry> meterRegistry) {
+        cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+        meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "hospitalVisitId"));
+    }
+
+    /**
+     * @param encounter encounter
+     * @return reference to the cached hospital visit, if there is one
+     */
+    Optional<HospitalVisit> get(String encounter) {
+        return Optional.ofNullable(cache.getIfPresent(encounter))
+                .map(visitId -> entityManager.getReference(HospitalVisit.class, visitId));
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put} for the result of a lookup started now
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the result of a lookup, unless the encounter has been changed by the current transaction.
+     * @param encounter  encounter that was looked up
+     * @param visit      the hospital visit that was found
+     * @param generation generation from before the lookup started
+     */
+    void put(String encounter, HospitalVisit visit, long generation) {
+        Set<String> changedEncounters = currentChanges();
+        if (changedEncounters != null && changedEncounters.contains(encounter)) {
+            return;
+        }
+        Long visitId = visit.getHospitalVisitId();
+        cache.asMap().compute(encounter, (k, existing) -> this.generation.get() == generation ? visitId : existing);
+    }
+
+    /**
+     * Record that the current transaction is creating, moving or deleting the visit for an encounter.
+     * Forgets the encounter now, and again once the transaction has completed.
+     * @param encounter encounter
+     */
+    void changed(String encounter) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            Set<String> changedEncounters = currentChanges();
+            if (changedEncounters == null) {
+                Set<String> newChanges = new HashSet<>();
+                TransactionSynchronizationManager.bindResource(this, newChanges);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        TransactionSynchronizationManager.unbindResource(HospitalVisitIdCache.this);
+                        forget(newChanges);
+                    }
+                });
+                changedEncounters = newChanges;
+            }
+            changedEncounters.add(encounter);
+        }
+        forget(Set.of(encounter));
+    }
+
+    /**
+     * @return hits, misses and evictions so far
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    private void forget(Set<String> encounters) {
+        // count first, so that a lookup in progress sees the change before it can be stored
+        generation.incrementAndGet();
+        cache.invalidateAll(encounters);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> currentChanges() {
+        return (Set<String>) TransactionSynchronizationManager.getResource(this);
+    }
+}
@@ -21,9 +21,11 @@ import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.informdb.labs.LabBattery;
 import uk.ac.ucl.rits.inform.informdb.labs.LabBatteryAudit;
 import uk.ac.ucl.rits.inform.informdb.labs.LabBatteryElement;
+import uk.ac.ucl.rits.inform.informdb.labs.LabBatterySnapshot;
 import uk.ac.ucl.rits.inform.informdb.labs.LabOrder;
 import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinition;
 import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinitionAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinitionSnapshot;
 import uk.ac.ucl.rits.inform.interchange.lab.LabMetadataMsg;
 import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
 import uk.ac.ucl.rits.inform.interchange.lab.LabResultMsg;
@@ -112,7 +114,7 @@ public class LabController {
         LabTestDefinition testDefinition = definitionState.getEntity();
 
         if (definitionState.isEntityCreated() || !Objects.equals(testDefinition.getLabDepartment(), labDepartment)) {
-            definitionState.assignIfDifferent(labDepartment, testDefinition.getLabDepartment(), testDefinition::setLabDepartment);
+            definitionState.assignIfDifferent(labDepartment, LabTestDefinitionSnapshot.LAB_DEPARTMENT);
             cache.updateLabTestDefinitionCache(definitionState);
         }
 
@@ -171,7 +173,7 @@ public class LabController {
         }
 
         if (labBatteryRowState.isEntityCreated() || battery.getBatteryName() == null || battery.getValidFrom().isBefore(validFrom)) {
-            labBatteryRowState.assignIfDifferent(labMetadataMsg.getName(), battery.getBatteryName(), battery::setBatteryName);
+            labBatteryRowState.assignIfDifferent(labMetadataMsg.getName(), LabBatterySnapshot.BATTERY_NAME);
             cache.saveEntityAndUpdateCache(labBatteryRowState);
         }
     }
@@ -189,7 +191,7 @@ public class LabController {
         LabTestDefinition testDefinition = definitionState.getEntity();
 
         if (definitionState.isEntityCreated() || testDefinition.getName() == null || testDefinition.getValidFrom().isBefore(validFrom)) {
-            definitionState.assignIfDifferent(msg.getName(), testDefinition.getName(), testDefinition::setName);
+            definitionState.assignIfDifferent(msg.getName(), LabTestDefinitionSnapshot.NAME);
             cache.updateLabTestDefinitionCache(definitionState);
         }
     }
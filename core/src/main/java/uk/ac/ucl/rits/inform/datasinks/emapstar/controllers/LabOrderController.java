@@ -20,8 +20,10 @@ import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.informdb.labs.LabBattery;
 import uk.ac.ucl.rits.inform.informdb.labs.LabOrder;
 import uk.ac.ucl.rits.inform.informdb.labs.LabOrderAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabOrderSnapshot;
 import uk.ac.ucl.rits.inform.informdb.labs.LabSample;
 import uk.ac.ucl.rits.inform.informdb.labs.LabSampleAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabSampleSnapshot;
 import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
 
 import java.time.Instant;
@@ -154,19 +156,19 @@ public class LabOrderController {
 
         LabSample labSample = state.getEntity();
         state.assignIfCurrentlyNullOrNewerAndDifferent(
-                msg.getSpecimenType(), labSample.getSpecimenType(), labSample::setSpecimenType, validFrom, labSample.getValidFrom());
+                msg.getSpecimenType(), LabSampleSnapshot.SPECIMEN_TYPE, validFrom, labSample.getValidFrom());
         state.assignIfCurrentlyNullOrNewerAndDifferent(
-                msg.getSampleSite(), labSample.getSampleSite(), labSample::setSampleSite, validFrom, labSample.getValidFrom());
+                msg.getSampleSite(), LabSampleSnapshot.SAMPLE_SITE, validFrom, labSample.getValidFrom());
         state.assignIfCurrentlyNullOrNewerAndDifferent(
-                msg.getSampleReceivedTime(), labSample.getReceiptAtLabDatetime(), labSample::setReceiptAtLabDatetime,
+                msg.getSampleReceivedTime(), LabSampleSnapshot.RECEIPT_AT_LAB_DATETIME,
                 validFrom, labSample.getValidFrom());
         // Allow for change of sample labSample time, but don't expect this to happen
         if (state.isEntityCreated() || validFrom.isAfter(labSample.getValidFrom())) {
             if (collectionTimeExistsAndWillChange(msg, labSample)) {
                 logger.warn("Not expecting Sample Collection time to change");
             }
-            state.assignIfDifferent(msg.getCollectionDateTime(), labSample.getSampleCollectionDatetime(), labSample::setSampleCollectionDatetime);
-            state.assignInterchangeValue(msg.getCollectionMethod(), labSample.getCollectionMethod(), labSample::setCollectionMethod);
+            state.assignIfDifferent(msg.getCollectionDateTime(), LabSampleSnapshot.SAMPLE_COLLECTION_DATETIME);
+            state.assignInterchangeValue(msg.getCollectionMethod(), LabSampleSnapshot.COLLECTION_METHOD);
         }
 
         state.saveEntityOrAuditLogIfRequired(labSampleRepo, labSampleAuditRepo);
@@ -226,23 +228,23 @@ public class LabOrderController {
 
         // Values that should always update if they're null
         if (order.getHospitalVisitId() == null) {
-            orderState.assignIfDifferent(visit, null, order::setHospitalVisitId);
+            orderState.assignIfDifferent(visit, LabOrderSnapshot.HOSPITAL_VISIT_ID);
         }
 
 
         orderState.assignIfCurrentlyNullOrNewerAndDifferent(
-                msg.getOrderDateTime(), order.getOrderDatetime(), order::setOrderDatetime, validFrom, order.getValidFrom());
+                msg.getOrderDateTime(), LabOrderSnapshot.ORDER_DATETIME, validFrom, order.getValidFrom());
         orderState.assignIfCurrentlyNullOrNewerAndDifferent(
-                msg.getRequestedDateTime(), order.getRequestDatetime(), order::setRequestDatetime, validFrom, order.getValidFrom());
+                msg.getRequestedDateTime(), LabOrderSnapshot.REQUEST_DATETIME, validFrom, order.getValidFrom());
 
         // only update if newer
         if (orderState.isEntityCreated() || validFrom.isAfter(order.getValidFrom())) {
-            orderState.assignInterchangeValue(msg.getClinicalInformation(), order.getClinicalInformation(), order::setClinicalInformation);
-            orderState.assignIfDifferent(msg.getSourceSystem(), order.getSourceSystem(), order::setSourceSystem);
+            orderState.assignInterchangeValue(msg.getClinicalInformation(), LabOrderSnapshot.CLINICAL_INFORMATION);
+            orderState.assignIfDifferent(msg.getSourceSystem(), LabOrderSnapshot.SOURCE_SYSTEM);
             if (epicNumberIsSaveAndDifferent(msg, order)) {
                 logger.warn("Epic lab order number has changed from {} to {}", order.getInternalLabNumber(), msg.getEpicCareOrderNumber().get());
             }
-            orderState.assignInterchangeValue(msg.getEpicCareOrderNumber(), order.getInternalLabNumber(), order::setInternalLabNumber);
+            orderState.assignInterchangeValue(msg.getEpicCareOrderNumber(), LabOrderSnapshot.INTERNAL_LAB_NUMBER);
         }
     }
 
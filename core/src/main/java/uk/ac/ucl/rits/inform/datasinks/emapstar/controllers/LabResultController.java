@@ -14,11 +14,14 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabSensitivityAuditRe
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.labs.LabSensitivityRepository;
 import uk.ac.ucl.rits.inform.informdb.labs.LabIsolate;
 import uk.ac.ucl.rits.inform.informdb.labs.LabIsolateAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabIsolateSnapshot;
 import uk.ac.ucl.rits.inform.informdb.labs.LabOrder;
 import uk.ac.ucl.rits.inform.informdb.labs.LabResult;
 import uk.ac.ucl.rits.inform.informdb.labs.LabResultAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabResultSnapshot;
 import uk.ac.ucl.rits.inform.informdb.labs.LabSensitivity;
 import uk.ac.ucl.rits.inform.informdb.labs.LabSensitivityAudit;
+import uk.ac.ucl.rits.inform.informdb.labs.LabSensitivitySnapshot;
 import uk.ac.ucl.rits.inform.informdb.labs.LabTestDefinition;
 import uk.ac.ucl.rits.inform.interchange.lab.LabIsolateMsg;
 import uk.ac.ucl.rits.inform.interchange.lab.LabResultMsg;
@@ -111,24 +114,24 @@ class LabResultController {
 
     private void updateLabResult(RowState<LabResult, LabResultAudit> resultState, LabResultMsg resultMsg) throws RequiredDataMissingException {
         LabResult labResult = resultState.getEntity();
-        resultState.assignInterchangeValue(resultMsg.getUnits(), labResult.getUnits(), labResult::setUnits);
-        resultState.assignInterchangeValue(resultMsg.getReferenceLow(), labResult.getRangeLow(), labResult::setRangeLow);
-        resultState.assignInterchangeValue(resultMsg.getReferenceHigh(), labResult.getRangeHigh(), labResult::setRangeHigh);
-        resultState.assignInterchangeValue(resultMsg.getAbnormalFlag(), labResult.getAbnormalFlag(), labResult::setAbnormalFlag);
-        resultState.assignInterchangeValue(resultMsg.getNotes(), labResult.getComment(), labResult::setComment);
-        resultState.assignIfDifferent(resultMsg.getResultStatus(), labResult.getResultStatus(), labResult::setResultStatus);
-        resultState.assignIfDifferent(resultMsg.getMimeType().toString(), labResult.getMimeType(), labResult::setMimeType);
+        resultState.assignInterchangeValue(resultMsg.getUnits(), LabResultSnapshot.UNITS);
+        resultState.assignInterchangeValue(resultMsg.getReferenceLow(), LabResultSnapshot.RANGE_LOW);
+        resultState.assignInterchangeValue(resultMsg.getReferenceHigh(), LabResultSnapshot.RANGE_HIGH);
+        resultState.assignInterchangeValue(resultMsg.getAbnormalFlag(), LabResultSnapshot.ABNORMAL_FLAG);
+        resultState.assignInterchangeValue(resultMsg.getNotes(), LabResultSnapshot.COMMENT);
+        resultState.assignIfDifferent(resultMsg.getResultStatus(), LabResultSnapshot.RESULT_STATUS);
+        resultState.assignIfDifferent(resultMsg.getMimeType().toString(), LabResultSnapshot.MIME_TYPE);
 
         switch (resultMsg.getMimeType()) {
             case NUMERIC:
-                resultState.assignInterchangeValue(resultMsg.getNumericValue(), labResult.getValueAsReal(), labResult::setValueAsReal);
-                resultState.assignIfDifferent(resultMsg.getResultOperator(), labResult.getResultOperator(), labResult::setResultOperator);
+                resultState.assignInterchangeValue(resultMsg.getNumericValue(), LabResultSnapshot.VALUE_AS_REAL);
+                resultState.assignIfDifferent(resultMsg.getResultOperator(), LabResultSnapshot.RESULT_OPERATOR);
                 break;
             case TEXT:
-                resultState.assignInterchangeValue(resultMsg.getStringValue(), labResult.getValueAsText(), labResult::setValueAsText);
+                resultState.assignInterchangeValue(resultMsg.getStringValue(), LabResultSnapshot.VALUE_AS_TEXT);
                 break;
             case PDF:
-                resultState.assignInterchangeValue(resultMsg.getByteValue(), labResult.getValueAsBytes(), labResult::setValueAsBytes);
+                resultState.assignInterchangeValue(resultMsg.getByteValue(), LabResultSnapshot.VALUE_AS_BYTES);
                 break;
             case LAB_ISOLATE:
                 break;
@@ -160,18 +163,18 @@ class LabResultController {
         LabIsolate labIsolate = isolateState.getEntity();
 
         if (isolateState.isEntityCreated() || validFrom.isAfter(labIsolate.getValidFrom())) {
-            isolateState.assignIfDifferent(isolateMsg.getIsolateCode(), labIsolate.getIsolateCode(), labIsolate::setIsolateCode);
-            isolateState.assignIfDifferent(isolateMsg.getIsolateName(), labIsolate.getIsolateName(), labIsolate::setIsolateName);
-            isolateState.assignInterchangeValue(isolateMsg.getCultureType(), labIsolate.getCultureType(), labIsolate::setCultureType);
-            isolateState.assignInterchangeValue(isolateMsg.getQuantity(), labIsolate.getQuantity(), labIsolate::setQuantity);
+            isolateState.assignIfDifferent(isolateMsg.getIsolateCode(), LabIsolateSnapshot.ISOLATE_CODE);
+            isolateState.assignIfDifferent(isolateMsg.getIsolateName(), LabIsolateSnapshot.ISOLATE_NAME);
+            isolateState.assignInterchangeValue(isolateMsg.getCultureType(), LabIsolateSnapshot.CULTURE_TYPE);
+            isolateState.assignInterchangeValue(isolateMsg.getQuantity(), LabIsolateSnapshot.QUANTITY);
             isolateState.assignInterchangeValue(
-                    isolateMsg.getClinicalInformation(), labIsolate.getClinicalInformation(), labIsolate::setClinicalInformation);
+                    isolateMsg.getClinicalInformation(), LabIsolateSnapshot.CLINICAL_INFORMATION);
         }
 
         // if change in isolate state we should update the time of the result
         // because the result is a link, and this has changed
         if (isolateState.isEntityUpdated()) {
-            labResultState.assignIfDifferent(validFrom, labResult.getResultLastModifiedDatetime(), labResult::setResultLastModifiedDatetime);
+            labResultState.assignIfDifferent(validFrom, LabResultSnapshot.RESULT_LAST_MODIFIED_DATETIME);
         }
 
         isolateState.saveEntityOrAuditLogIfRequired(labIsolateRepo, labIsolateAuditRepo);
@@ -197,9 +200,9 @@ class LabResultController {
         LabSensitivity sensitivity = sensitivityState.getEntity();
 
         if (sensitivityState.isEntityCreated() || validFrom.isAfter(sensitivity.getReportingDatetime())) {
-            sensitivityState.assignInterchangeValue(sensitivityMsg.getAbnormalFlag(), sensitivity.getSensitivity(), sensitivity::setSensitivity);
+            sensitivityState.assignInterchangeValue(sensitivityMsg.getAbnormalFlag(), LabSensitivitySnapshot.SENSITIVITY);
             if (sensitivityState.isEntityUpdated()) {
-                sensitivityState.assignIfDifferent(validFrom, sensitivity.getReportingDatetime(), sensitivity::setReportingDatetime);
+                sensitivityState.assignIfDifferent(validFrom, LabSensitivitySnapshot.REPORTING_DATETIME);
             }
             sensitivityState.saveEntityOrAuditLogIfRequired(labSensitivityRepo, labSensitivityAuditRepo);
         }
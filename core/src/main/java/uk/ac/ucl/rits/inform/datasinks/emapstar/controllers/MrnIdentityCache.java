@@ -0,0 +1,242 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of which MRN row an MRN string or NHS number resolves to, and its live MRN, so that
+ * {@link PersonController} doesn't have to query the mrn and mrn_to_live tables for every message.
+ * <p>
+ * Only committed data is cached:
+ * <ul>
+ *     <li>Nothing that refers to an MRN created in the current transaction is cached until that transaction has committed.</li>
+ *     <li>Once the current transaction has changed existing identifiers or live MRNs (merges, identifier changes, NHS number
+ *     updates), the whole cache is cleared, nothing more is cached in that transaction, and the cache is cleared again
+ *     when it completes. These changes are rare compared to lookups.</li>
+ * </ul>
+ * This also covers a message being rolled back to a savepoint of a batch transaction,
+ * because the batch transaction itself only completes later.
+ * <p>
+ * The cache is bounded by {@code core.mrn_cache.maximum_size}, and if a MeterRegistry is available,
+ * its hits, misses and evictions are published as metrics.
+ */
+@Component
+public class MrnIdentityCache {
+    private final Cache<IdentityKey, CachedMrn> cache;
+    /**
+     * Incremented whenever the cache is cleared, so that a lookup that overlapped a clear isn't kept.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * Either an MRN string or an NHS number.
+     * @param byMrn      whether the identifier is an MRN string rather than an NHS number
+     * @param identifier the MRN string or NHS number
+     */
+    private record IdentityKey(boolean byMrn, String identifier) {
+    }
+
+    /**
+     * The MRN row that an identifier resolves to, with its identifiers at the time, and its live MRN.
+     * @param mrnId     ID of the MRN row
+     * @param liveMrnId ID of its live MRN
+     * @param mrn       MRN string of the row
+     * @param nhsNumber NHS number of the row
+     */
+    record CachedMrn(long mrnId, long liveMrnId, String mrn, String nhsNumber) {
+    }
+
+    /**
+     * Identity changes made by the current transaction.
+     */
+    private static final class TransactionChanges {
+        private final Set<Long> createdMrnIds = new HashSet<>();
+        private final Set<IdentityKey> createdKeys = new HashSet<>();
+        private boolean identitiesChanged = false;
+    }
+
+    /**
+     * @param maximumSize   maximum number of identifiers to cache
+     * @param meterRegistry registry for cache metrics, if there is one
+     */
+    public MrnIdentityCache(@Value("${core.mrn_cache.maximum_size:200000}") long maximumSize, ObjectProvider<MeterRegistry> meterRegistry) {
+        cache = Caffeine.newBuilder().maximumSize(maximumSize).recordStats().build();
+        meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "mrnIdentity"));
+    }
+
+    /**
+     * Which identifier a lookup resolves through, following {@code MrnRepository.findByMrnOrNhsNumber}.
+     * A lookup with both identifiers finds the MRN by its MRN string if it can, so it's cached by MRN string only.
+     * @param mrnString MRN string
+     * @param nhsNumber NHS number
+     * @return key for the lookup, or null if both are null
+     */
+    private static IdentityKey keyFor(String mrnString, String nhsNumber) {
+        if (mrnString != null) {
+            return new IdentityKey(true, mrnString);
+        }
+        if (nhsNumber != null) {
+            return new IdentityKey(false, nhsNumber);
+        }
+        return null;
+    }
+
+    /**
+     * @param mrnString MRN string
+     * @param nhsNumber NHS number, only used if the MRN string is null
+     * @return the cached MRN, if there is one
+     */
+    Optional<CachedMrn> get(String mrnString, String nhsNumber) {
+        IdentityKey key = keyFor(mrnString, nhsNumber);
+        return key == null ? Optional.empty() : Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    /**
+     * @param cachedMrn cached MRN
+     * @return reference to its live MRN, which is only loaded from the database if it's used for more than its ID
+     */
+    Mrn getLiveMrn(CachedMrn cachedMrn) {
+        return entityManager.getReference(Mrn.class, cachedMrn.liveMrnId());
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put} for the result of a lookup started now
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the result of a lookup, unless it was found by an NHS number instead of the MRN string that was given,
+     * or it's not known to be committed.
+     * @param mrnString  MRN string that was looked up
+     * @param nhsNumber  NHS number that was looked up
+     * @param mrn        the MRN row that was found
+     * @param liveMrn    its live MRN
+     * @param generation generation from before the lookup started
+     */
+    void put(String mrnString, String nhsNumber, Mrn mrn, Mrn liveMrn, long generation) {
+        IdentityKey key = keyFor(mrnString, nhsNumber);
+        if (key == null || (key.byMrn() && !mrnString.equals(mrn.getMrn()))) {
+            return;
+        }
+        TransactionChanges changes = currentChanges();
+        if (changes != null && (changes.identitiesChanged
+                || changes.createdMrnIds.contains(mrn.getMrnId()) || changes.createdMrnIds.contains(liveMrn.getMrnId()))) {
+            return;
+        }
+        CachedMrn cachedMrn = new CachedMrn(mrn.getMrnId(), liveMrn.getMrnId(), mrn.getMrn(), mrn.getNhsNumber());
+        cache.asMap().compute(key, (k, existing) -> this.generation.get() == generation ? cachedMrn : existing);
+    }
+
+    /**
+     * Record that an MRN has been created in the current transaction, so that it isn't cached until it's committed.
+     * Its identifiers are forgotten now and once the transaction has completed, as an NHS number could now resolve to a different row.
+     * @param mrn new MRN, which has been saved
+     */
+    void created(Mrn mrn) {
+        TransactionChanges changes = changesForTransaction();
+        List<IdentityKey> keys = new ArrayList<>(2);
+        if (mrn.getMrn() != null) {
+            keys.add(new IdentityKey(true, mrn.getMrn()));
+        }
+        if (mrn.getNhsNumber() != null) {
+            keys.add(new IdentityKey(false, mrn.getNhsNumber()));
+        }
+        if (changes != null) {
+            changes.createdKeys.addAll(keys);
+            if (mrn.getMrnId() != null) {
+                changes.createdMrnIds.add(mrn.getMrnId());
+            }
+        }
+        forget(keys);
+    }
+
+    private void forget(Collection<IdentityKey> keys) {
+        if (!keys.isEmpty()) {
+            generation.incrementAndGet();
+            cache.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * Record that the current transaction is changing existing identifiers or live MRNs.
+     * Clears the cache now, and again once the transaction has completed.
+     */
+    void identitiesChanged() {
+        TransactionChanges changes = changesForTransaction();
+        if (changes != null) {
+            changes.identitiesChanged = true;
+        }
+        clear();
+    }
+
+    /**
+     * @return hits, misses and evictions so far
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void clear() {
+        // count first, so that a lookup in progress sees the change before it can be stored
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    private TransactionChanges currentChanges() {
+        return (TransactionChanges) TransactionSynchronizationManager.getResource(this);
+    }
+
+    /**
+     * @return changes for the current transaction, or null if there isn't one
+     */
+    private TransactionChanges changesForTransaction() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        TransactionChanges changes = currentChanges();
+        if (changes == null) {
+            TransactionChanges newChanges = new TransactionChanges();
+            TransactionSynchronizationManager.bindResource(this, newChanges);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResource(MrnIdentityCache.this);
+                    if (newChanges.identitiesChanged) {
+                        clear();
+                    } else {
+                        forget(newChanges.createdKeys);
+                    }
+                }
+            });
+            changes = newChanges;
+        }
+        return changes;
+    }
+}
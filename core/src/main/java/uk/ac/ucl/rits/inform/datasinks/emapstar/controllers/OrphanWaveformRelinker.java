@@ -0,0 +1,394 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository.Occupancy;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Links orphaned waveform rows (those written without a location visit) to location visits that are created later.
+ * <p>
+ * The observation times of orphaned rows are tracked in memory as ranges per source location, along with the
+ * location string that each source location was mapped to. When {@link PatientLocationController} has committed
+ * changes to the location visits at a location, the orphaned ranges from the source locations mapped to it are
+ * linked to those location visits in the background.
+ * Rows are updated by source location and a slice of observation time at a time, each in its own short transaction
+ * with a pause in between, so that the main writer isn't held up.
+ * <p>
+ * Orphaned rows written before core was last started aren't tracked, so won't be linked, and ranges are forgotten
+ * once they are older than {@code core.waveform.retention_hours}, as their rows will have been deleted.
+ * <p>
+ * The background thread takes a database connection of its own, which
+ * {@link uk.ac.ucl.rits.inform.datasinks.emapstar.ConnectionPoolSize} leaves room for.
+ */
+@Component
+public class OrphanWaveformRelinker {
+    private static final Logger logger = LoggerFactory.getLogger(OrphanWaveformRelinker.class);
+    /**
+     * Orphaned rows closer together than this are tracked as one range.
+     */
+    private static final Duration MERGE_GAP = Duration.ofMinutes(1);
+
+    private final DataSource dataSource;
+    private final LocationVisitRepository locationVisitRepo;
+    private final AbstractEntityPersister waveformPersister;
+    private final boolean enabled;
+    private final Duration batchDuration;
+    private final long pauseMillis;
+    private final Duration retention;
+    private final ExecutorService relinkExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "OrphanWaveformRelinker"));
+    private final AtomicBoolean relinkRequested = new AtomicBoolean(false);
+    private final Set<String> pendingLocations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Orphaned observation times by source location, as inclusive ranges from start to end. Guarded by this.
+     */
+    private final Map<String, NavigableMap<Instant, Instant>> orphanRangesBySource = new HashMap<>();
+    /**
+     * Source locations by the location string they were last mapped to. Guarded by this.
+     */
+    private final Map<String, Set<String>> sourcesByLocation = new HashMap<>();
+
+    /**
+     * @param dataSource           connection to the star database
+     * @param entityManagerFactory for the waveform table and column names
+     * @param locationVisitRepo    to find the location visits to link to
+     * @param enabled              whether to link orphaned rows at all
+     * @param batchMinutes         how many minutes of observation time to update at once
+     * @param pauseMillis          how long to wait between updates
+     * @param retentionHours       how long waveform data is kept for, zero or less to keep it forever
+     */
+    public OrphanWaveformRelinker(
+            DataSource dataSource,
+            EntityManagerFactory entityManagerFactory,
+            LocationVisitRepository locationVisitRepo,
+            @Value("${core.waveform.relink.enabled:true}") boolean enabled,
+            @Value("${core.waveform.relink.batch_minutes:10}") int batchMinutes,
+            @Value("${core.waveform.relink.pause_millis:50}") long pauseMillis,
+            @Value("${core.waveform.retention_hours}") int retentionHours) {
+        this.dataSource = dataSource;
+        this.locationVisitRepo = locationVisitRepo;
+        waveformPersister = (AbstractEntityPersister) entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getMetamodel().entityPersister(Waveform.class);
+        this.enabled = enabled;
+        this.batchDuration = Duration.ofMinutes(batchMinutes);
+        this.pauseMillis = pauseMillis;
+        this.retention = Duration.ofHours(retentionHours);
+    }
+
+    /**
+     * @return whether orphaned rows are linked when their location visits turn up
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Track an orphaned row once the current transaction has committed.
+     * @param sourceLocation      source location of the row
+     * @param mappedLocation      location string that the source location is mapped to, null if not known
+     * @param observationDatetime observation datetime of the row
+     */
+    public void orphanWritten(String sourceLocation, String mappedLocation, Instant observationDatetime) {
+        if (!enabled || mappedLocation == null) {
+            return;
+        }
+        afterCommit(() -> addOrphan(sourceLocation, mappedLocation, observationDatetime));
+    }
+
+    /**
+     * Link any orphaned rows at these locations in the background, once the current transaction has committed.
+     * @param locationStrings locations where location visits have been created or changed
+     */
+    public void relinkAfterCommit(Collection<String> locationStrings) {
+        if (!enabled) {
+            return;
+        }
+        List<String> locations = List.copyOf(locationStrings);
+        afterCommit(() -> requestRelink(locations));
+    }
+
+    /**
+     * Link the orphaned rows at all pending locations on the background thread, and wait for that to finish.
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ExecutionException   if linking fails
+     */
+    public void drainPending() throws InterruptedException, ExecutionException {
+        relinkExecutor.submit(this::relinkPending).get();
+    }
+
+    /**
+     * Link the orphaned rows at all pending locations. Only run on the background thread, so one location at a time.
+     * The tracker is only locked while ranges are claimed and put back, so that the processing thread isn't
+     * held up while rows are updated.
+     */
+    private void relinkPending() {
+        relinkRequested.set(false);
+        while (!pendingLocations.isEmpty()) {
+            String location = pendingLocations.iterator().next();
+            pendingLocations.remove(location);
+            relinkLocation(location);
+        }
+    }
+
+    /**
+     * Stop any background linking. Ranges that haven't been linked yet are lost.
+     * @throws InterruptedException if interrupted while waiting for the current update
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        relinkExecutor.shutdownNow();
+        relinkExecutor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Forget the orphaned ranges from before the retention time, so that the ranges of source locations that never get
+     * a location visit don't keep growing. As when old waveform data is deleted, the retention time is counted back from
+     * the most recent orphaned row, unless that is in the future.
+     */
+    @Scheduled(fixedRate = 60 * 60 * 1000)
+    public synchronized void pruneExpiredRanges() {
+        if (!enabled || retention.isZero() || retention.isNegative()) {
+            return;
+        }
+        Instant now = Instant.now();
+        orphanRangesBySource.values().stream()
+                .map(ranges -> ranges.lastEntry().getValue())
+                .max(Comparator.naturalOrder())
+                .map(mostRecent -> mostRecent.isAfter(now) ? now : mostRecent)
+                .ifPresent(baseline -> {
+                    Instant cutoff = baseline.minus(retention);
+                    orphanRangesBySource.values().removeIf(ranges -> {
+                        removeRange(ranges, Instant.MIN, cutoff);
+                        return ranges.isEmpty();
+                    });
+                });
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private synchronized void addOrphan(String sourceLocation, String mappedLocation, Instant observationDatetime) {
+        boolean newMapping = sourcesByLocation.computeIfAbsent(mappedLocation, location -> new HashSet<>()).add(sourceLocation);
+        if (newMapping) {
+            sourcesByLocation.forEach((location, sources) -> {
+                if (!location.equals(mappedLocation)) {
+                    sources.remove(sourceLocation);
+                }
+            });
+        }
+        addRange(orphanRangesBySource.computeIfAbsent(sourceLocation, source -> new TreeMap<>()), observationDatetime, observationDatetime);
+    }
+
+    private void requestRelink(Collection<String> locationStrings) {
+        synchronized (this) {
+            for (String location : locationStrings) {
+                if (sourcesByLocation.getOrDefault(location, Set.of()).stream().anyMatch(orphanRangesBySource::containsKey)) {
+                    pendingLocations.add(location);
+                }
+            }
+        }
+        if (!pendingLocations.isEmpty() && relinkRequested.compareAndSet(false, true)) {
+            relinkExecutor.execute(this::relinkPending);
+        }
+    }
+
+    /**
+     * Link orphaned rows from all the source locations mapped to a location.
+     * The ranges are taken out of the tracker while they are linked, and whatever is left is put back.
+     * @param location location string
+     */
+    private void relinkLocation(String location) {
+        Map<String, NavigableMap<Instant, Instant>> claimed = new HashMap<>();
+        synchronized (this) {
+            for (String source : sourcesByLocation.getOrDefault(location, Set.of())) {
+                NavigableMap<Instant, Instant> ranges = orphanRangesBySource.remove(source);
+                if (ranges != null) {
+                    claimed.put(source, ranges);
+                }
+            }
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+        Instant earliestOrphan = claimed.values().stream().map(NavigableMap::firstKey).min(Comparator.naturalOrder()).orElseThrow();
+        // when location visits overlap, the most recent admission is linked to, as when the rows were written
+        List<Occupancy> visits = new ArrayList<>(locationVisitRepo.findOccupancyByLocationDischargedSince(location, earliestOrphan));
+        visits.sort(Comparator.comparing(Occupancy::getAdmissionDatetime).reversed());
+
+        int linked = 0;
+        try {
+            for (Map.Entry<String, NavigableMap<Instant, Instant>> sourceRanges : claimed.entrySet()) {
+                for (Occupancy visit : visits) {
+                    linked += linkVisit(visit, sourceRanges.getKey(), sourceRanges.getValue());
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            logger.error("Could not link orphaned waveform rows at {}, will try again when its location visits change", location, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            putBack(location, claimed, visits);
+        }
+        if (linked > 0) {
+            logger.info("Linked {} orphaned waveform rows at {}", linked, location);
+        }
+    }
+
+    /**
+     * Link the orphaned rows within a location visit, and remove its time from the ranges.
+     * @param visit          location visit
+     * @param sourceLocation source location of the rows
+     * @param ranges         orphaned ranges for the source location, updated as rows are linked
+     * @return number of rows linked
+     * @throws SQLException         if the rows can't be updated
+     * @throws InterruptedException if interrupted while pausing between updates
+     */
+    private int linkVisit(Occupancy visit, String sourceLocation, NavigableMap<Instant, Instant> ranges)
+            throws SQLException, InterruptedException {
+        Instant admission = visit.getAdmissionDatetime();
+        Instant discharge = visit.getDischargeDatetime() == null ? Instant.MAX : visit.getDischargeDatetime();
+        int linked = 0;
+        for (Map.Entry<Instant, Instant> range : List.copyOf(overlapping(ranges, admission, discharge).entrySet())) {
+            Instant from = range.getKey().isBefore(admission) ? admission : range.getKey();
+            Instant until = range.getValue().isAfter(discharge) ? discharge : range.getValue();
+            // consecutive slices share their boundary, rows that were linked by the first slice are no longer orphans
+            for (Instant sliceStart = from; !sliceStart.isAfter(until); sliceStart = sliceStart.plus(batchDuration)) {
+                Instant sliceEnd = sliceStart.plus(batchDuration).isBefore(until) ? sliceStart.plus(batchDuration) : until;
+                linked += linkSlice(visit.getLocationVisitId(), sourceLocation, sliceStart, sliceEnd);
+                Thread.sleep(pauseMillis);
+                if (sliceEnd.equals(until)) {
+                    break;
+                }
+            }
+            removeRange(ranges, from, until);
+        }
+        return linked;
+    }
+
+    private int linkSlice(long locationVisitId, String sourceLocation, Instant from, Instant until) throws SQLException {
+        String sql = String.format("UPDATE %s SET %s = ? WHERE %s = ? AND %s IS NULL AND %s >= ? AND %s <= ?",
+                waveformPersister.getTableName(), column("locationVisitId"), column("sourceLocation"),
+                column("locationVisitId"), column("observationDatetime"), column("observationDatetime"));
+        try (Connection connection = dataSource.getConnection(); PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, locationVisitId);
+            statement.setString(2, sourceLocation);
+            statement.setObject(3, OffsetDateTime.ofInstant(from, ZoneOffset.UTC));
+            statement.setObject(4, OffsetDateTime.ofInstant(until, ZoneOffset.UTC));
+            return statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Put back the ranges that weren't linked, and check for orphans that were tracked in the meantime.
+     * Those can be from transactions that looked for a location visit before it was committed.
+     * @param location location string
+     * @param claimed  orphaned ranges by source location, with the linked ranges removed
+     * @param visits   location visits at the location
+     */
+    private void putBack(String location, Map<String, NavigableMap<Instant, Instant>> claimed, List<Occupancy> visits) {
+        boolean relinkAgain = false;
+        synchronized (this) {
+            for (Map.Entry<String, NavigableMap<Instant, Instant>> sourceRanges : claimed.entrySet()) {
+                NavigableMap<Instant, Instant> current = orphanRangesBySource.get(sourceRanges.getKey());
+                if (current != null) {
+                    relinkAgain |= visits.stream().anyMatch(visit -> !overlapping(current, visit.getAdmissionDatetime(),
+                            visit.getDischargeDatetime() == null ? Instant.MAX : visit.getDischargeDatetime()).isEmpty());
+                }
+                if (sourceRanges.getValue().isEmpty()) {
+                    continue;
+                }
+                NavigableMap<Instant, Instant> merged = orphanRangesBySource.computeIfAbsent(sourceRanges.getKey(), source -> new TreeMap<>());
+                sourceRanges.getValue().forEach((start, end) -> addRange(merged, start, end));
+            }
+        }
+        if (relinkAgain) {
+            pendingLocations.add(location);
+        }
+    }
+
+    private String column(String property) {
+        return waveformPersister.getPropertyColumnNames(property)[0];
+    }
+
+    /**
+     * @param ranges inclusive ranges by start
+     * @param from   start of the time to check
+     * @param until  end of the time to check, inclusive
+     * @return the ranges that overlap the time
+     */
+    private static NavigableMap<Instant, Instant> overlapping(NavigableMap<Instant, Instant> ranges, Instant from, Instant until) {
+        Map.Entry<Instant, Instant> before = ranges.floorEntry(from);
+        Instant firstStart = before != null && !before.getValue().isBefore(from) ? before.getKey() : from;
+        return ranges.subMap(firstStart, true, until, true);
+    }
+
+    private static void addRange(NavigableMap<Instant, Instant> ranges, Instant start, Instant end) {
+        Instant newStart = start;
+        Instant newEnd = end;
+        for (Map.Entry<Instant, Instant> range : List.copyOf(
+                overlapping(ranges, start.minus(MERGE_GAP), end.plus(MERGE_GAP)).entrySet())) {
+            ranges.remove(range.getKey());
+            newStart = range.getKey().isBefore(newStart) ? range.getKey() : newStart;
+            newEnd = range.getValue().isAfter(newEnd) ? range.getValue() : newEnd;
+        }
+        ranges.put(newStart, newEnd);
+    }
+
+    private static void removeRange(NavigableMap<Instant, Instant> ranges, Instant from, Instant until) {
+        for (Map.Entry<Instant, Instant> range : List.copyOf(overlapping(ranges, from, until).entrySet())) {
+            ranges.remove(range.getKey());
+            if (range.getKey().isBefore(from)) {
+                ranges.put(range.getKey(), from.minusNanos(1));
+            }
+            if (range.getValue().isAfter(until)) {
+                ranges.put(until.plusNanos(1), range.getValue());
+            }
+        }
+    }
+}
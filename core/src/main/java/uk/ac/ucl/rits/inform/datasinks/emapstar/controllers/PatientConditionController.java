@@ -17,9 +17,11 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.conditions.AllergenReactio
 import uk.ac.ucl.rits.inform.informdb.conditions.ConditionType;
 import uk.ac.ucl.rits.inform.informdb.conditions.AllergenReaction;
 import uk.ac.ucl.rits.inform.informdb.conditions.ConditionTypeAudit;
+import uk.ac.ucl.rits.inform.informdb.conditions.ConditionTypeSnapshot;
 import uk.ac.ucl.rits.inform.informdb.conditions.PatientCondition;
 import uk.ac.ucl.rits.inform.informdb.conditions.PatientConditionAudit;
 import uk.ac.ucl.rits.inform.informdb.conditions.ConditionVisits;
+import uk.ac.ucl.rits.inform.informdb.conditions.PatientConditionSnapshot;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.interchange.EmapOperationMessageProcessingException;
@@ -115,15 +117,13 @@ public class PatientConditionController {
      */
     private void updatePatientCondition(PatientConditionMessage msg, HospitalVisit visit, RowState<PatientCondition,
             PatientConditionAudit> conditionState) {
-
-        PatientCondition condition = conditionState.getEntity();
-        conditionState.assignInterchangeValue(msg.getEpicConditionId(), condition.getInternalId(), condition::setInternalId);
-        conditionState.assignIfDifferent(msg.getUpdatedDateTime(), condition.getValidFrom(), condition::setValidFrom);
-        conditionState.assignIfDifferent(visit, condition.getHospitalVisitId(), condition::setHospitalVisitId);
-        conditionState.assignInterchangeValue(msg.getStatus(), condition.getStatus(), condition::setStatus);
-        conditionState.assignInterchangeValue(msg.getComment(), condition.getComment(), condition::setComment);
-        conditionState.assignInterchangeValue(msg.getOnsetDate(), condition.getOnsetDate(), condition::setOnsetDate);
-        conditionState.assignInterchangeValue(msg.getSeverity(), condition.getSeverity(), condition::setSeverity);
+        conditionState.assignInterchangeValue(msg.getEpicConditionId(), PatientConditionSnapshot.INTERNAL_ID);
+        conditionState.assignIfDifferent(msg.getUpdatedDateTime(), PatientConditionSnapshot.VALID_FROM);
+        conditionState.assignIfDifferent(visit, PatientConditionSnapshot.HOSPITAL_VISIT_ID);
+        conditionState.assignInterchangeValue(msg.getStatus(), PatientConditionSnapshot.STATUS);
+        conditionState.assignInterchangeValue(msg.getComment(), PatientConditionSnapshot.COMMENT);
+        conditionState.assignInterchangeValue(msg.getOnsetDate(), PatientConditionSnapshot.ONSET_DATE);
+        conditionState.assignInterchangeValue(msg.getSeverity(), PatientConditionSnapshot.SEVERITY);
     }
 
     /**
@@ -199,11 +199,10 @@ public class PatientConditionController {
      */
     private void updatePatientAllergy(PatientAllergy msg, HospitalVisit visit, RowState<PatientCondition,
             PatientConditionAudit> conditionState) {
-        PatientCondition condition = conditionState.getEntity();
-        conditionState.assignIfDifferent(msg.getAddedDatetime(), condition.getAddedDatetime(), condition::setAddedDatetime);
+        conditionState.assignIfDifferent(msg.getAddedDatetime(), PatientConditionSnapshot.ADDED_DATETIME);
 
         if (msg.getAction() == ConditionAction.DELETE) {
-            conditionState.assignIfDifferent(true, condition.getIsDeleted(), condition::setIsDeleted);
+            conditionState.assignIfDifferent(true, PatientConditionSnapshot.IS_DELETED);
         }
 
         updatePatientCondition(msg, visit, conditionState);
@@ -268,9 +267,8 @@ public class PatientConditionController {
      */
     private void updatePatientProblem(PatientProblem msg, HospitalVisit visit, RowState<PatientCondition,
             PatientConditionAudit> conditionState) throws RequiredDataMissingException {
-        PatientCondition condition = conditionState.getEntity();
-        conditionState.assignIfDifferent(msg.getResolvedDate(), condition.getResolutionDate(), condition::setResolutionDate);
-        conditionState.assignIfDifferent(msg.getAddedDate(), condition.getAddedDate(), condition::setAddedDate);
+        conditionState.assignIfDifferent(msg.getResolvedDate(), PatientConditionSnapshot.RESOLUTION_DATE);
+        conditionState.assignIfDifferent(msg.getAddedDate(), PatientConditionSnapshot.ADDED_DATE);
         updatePatientCondition(msg, visit, conditionState);
 
         if (msg.getAction().equals(ConditionAction.DELETE)) {
@@ -278,11 +276,11 @@ public class PatientConditionController {
             if (msg.getStatus().isUnknown()) {
                 throw new RequiredDataMissingException("Failed to determine if the message is a delete without a defined status");
             } else if (msg.getStatus().get().equalsIgnoreCase("active")) {
-                conditionState.assignIfDifferent(true, condition.getIsDeleted(), condition::setIsDeleted);
+                conditionState.assignIfDifferent(true, PatientConditionSnapshot.IS_DELETED);
             }
 
         } else {
-            conditionState.assignIfDifferent(false, condition.getIsDeleted(), condition::setIsDeleted);
+            conditionState.assignIfDifferent(false, PatientConditionSnapshot.IS_DELETED);
         }
     }
 
@@ -321,10 +319,9 @@ public class PatientConditionController {
      */
     private void updatePatientInfection(PatientInfection msg, HospitalVisit visit, RowState<PatientCondition,
             PatientConditionAudit> conditionState) {
-        PatientCondition condition = conditionState.getEntity();
         conditionState.assignInterchangeValue(
-                msg.getResolvedDatetime(), condition.getResolutionDatetime(), condition::setResolutionDatetime);
-        conditionState.assignIfDifferent(msg.getAddedDatetime(), condition.getAddedDatetime(), condition::setAddedDatetime);
+                msg.getResolvedDatetime(), PatientConditionSnapshot.RESOLUTION_DATETIME);
+        conditionState.assignIfDifferent(msg.getAddedDatetime(), PatientConditionSnapshot.ADDED_DATETIME);
         updatePatientCondition(msg, visit, conditionState);
     }
 
@@ -553,10 +550,8 @@ class PatientConditionCache {
 
         ConditionType typeEntity = typeState.getEntity();
 
-        typeState.assignIfCurrentlyNullOrNewerAndDifferent(msg.getConditionName(), typeEntity.getName(),
-                typeEntity::setName, validFrom, typeEntity.getValidFrom());
-        typeState.assignIfCurrentlyNullOrNewerAndDifferent(msg.getSubType(), typeEntity.getSubType(),
-                typeEntity::setSubType, validFrom, typeEntity.getValidFrom());
+        typeState.assignIfCurrentlyNullOrNewerAndDifferent(msg.getConditionName(), ConditionTypeSnapshot.NAME, validFrom, typeEntity.getValidFrom());
+        typeState.assignIfCurrentlyNullOrNewerAndDifferent(msg.getSubType(), ConditionTypeSnapshot.SUB_TYPE, validFrom, typeEntity.getValidFrom());
 
         typeState.saveEntityOrAuditLogIfRequired(conditionTypeRepo, conditionTypeAuditRepo);
     }
@@ -18,6 +18,7 @@ import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.movement.Location;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisitAudit;
+import uk.ac.ucl.rits.inform.informdb.movement.LocationVisitSnapshot;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
 import uk.ac.ucl.rits.inform.interchange.adt.AdtCancellation;
@@ -51,18 +52,25 @@ public class PatientLocationController {
     private final LocationVisitRepository locationVisitRepo;
     private final LocationVisitAuditRepository locationVisitAuditRepo;
     private final LocationController locationController;
+    private final BedOccupancyIndex bedOccupancyIndex;
+    private final OrphanWaveformRelinker orphanWaveformRelinker;
 
     /**
      * Constructor implicitly autowiring beans.
      * @param locationVisitRepo      location visit repo
      * @param locationVisitAuditRepo audit location repo
      * @param locationController     to get or create cached location from location string
+     * @param bedOccupancyIndex      to update when location visits change
+     * @param orphanWaveformRelinker to link waveform data to new or changed location visits
      */
     public PatientLocationController(LocationVisitRepository locationVisitRepo,
-                                     LocationVisitAuditRepository locationVisitAuditRepo, LocationController locationController) {
+                                     LocationVisitAuditRepository locationVisitAuditRepo, LocationController locationController,
+                                     BedOccupancyIndex bedOccupancyIndex, OrphanWaveformRelinker orphanWaveformRelinker) {
         this.locationVisitRepo = locationVisitRepo;
         this.locationVisitAuditRepo = locationVisitAuditRepo;
         this.locationController = locationController;
+        this.bedOccupancyIndex = bedOccupancyIndex;
+        this.orphanWaveformRelinker = orphanWaveformRelinker;
     }
 
     /**
@@ -124,12 +132,31 @@ public class PatientLocationController {
                 visitB, locationA, validFrom, storedFrom);
         // swap to the correct locations
         visitStateA.assignInterchangeValue(
-                InterchangeValue.buildFromHl7(locationA), visitStateA.getEntity().getLocationId(), visitStateA.getEntity()::setLocationId);
+                InterchangeValue.buildFromHl7(locationA), LocationVisitSnapshot.LOCATION_ID);
         visitStateB.assignInterchangeValue(
-                InterchangeValue.buildFromHl7(locationB), visitStateB.getEntity().getLocationId(), visitStateB.getEntity()::setLocationId);
+                InterchangeValue.buildFromHl7(locationB), LocationVisitSnapshot.LOCATION_ID);
         // save newly created or audit
-        visitStateA.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
-        visitStateB.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        saveLocationVisit(visitStateA);
+        saveLocationVisit(visitStateB);
+    }
+
+    /**
+     * Save a location visit if it's new, or audit it if it has changed. Its location then needs to be reloaded
+     * in the bed occupancy index, and may now have orphaned waveform data to link.
+     * Deleted location visits are dealt with when they are deleted.
+     * @param locationVisitState location visit that may have been created, moved or had its times changed
+     */
+    private void saveLocationVisit(RowState<LocationVisit, LocationVisitAudit> locationVisitState) {
+        locationVisitState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        if (!locationVisitState.isEntityCreated() && !locationVisitState.isEntityUpdated()) {
+            return;
+        }
+        if (!bedOccupancyIndex.isEnabled() && !orphanWaveformRelinker.isEnabled()) {
+            return;
+        }
+        List<String> locationString = List.of(locationVisitState.getEntity().getLocationId().getLocationString());
+        bedOccupancyIndex.invalidateAfterTransaction(locationString);
+        orphanWaveformRelinker.relinkAfterCommit(locationString);
     }
 
     /**
@@ -169,7 +196,7 @@ public class PatientLocationController {
 
         try {
             updateOrCreatePreviousMoveLocations(visit, msg, storedFrom, validFrom, visitLocations, indexCurrentOrPrevious);
-            currentLocation.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+            saveLocationVisit(currentLocation);
         } catch (MessageIgnoredException e) {
             logger.debug(e.getMessage());
         }
@@ -353,7 +380,7 @@ public class PatientLocationController {
                         RowState<LocationVisit, LocationVisitAudit> existingPrevious = new RowState<>(existingLocation, validFrom, storedFrom, false);
                         Instant inferredDischargeTime = validFrom.minus(1, ChronoUnit.SECONDS);
                         setInferredDischargeAndTime(true, inferredDischargeTime, existingPrevious);
-                        existingPrevious.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+                        saveLocationVisit(existingPrevious);
                     }
                 }
             } else {
@@ -364,7 +391,7 @@ public class PatientLocationController {
                     logger.debug("No previous hl7 location, but found existing previous location. Inferring existing location discharge.");
                     RowState<LocationVisit, LocationVisitAudit> existingPrevious = new RowState<>(existingLocation, validFrom, storedFrom, false);
                     setInferredDischargeAndTime(true, validFrom, existingPrevious);
-                    existingPrevious.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+                    saveLocationVisit(existingPrevious);
                 }
             }
         } else if (previousLocationId.isPresent()) {
@@ -377,7 +404,7 @@ public class PatientLocationController {
 
         // Always save previous hl7 location if it exists
         if (previousHl7Location != null) {
-            previousHl7Location.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+            saveLocationVisit(previousHl7Location);
         }
     }
 
@@ -463,7 +490,7 @@ public class PatientLocationController {
             savingVisits.addAll(previousLocations);
         }
 
-        savingVisits.forEach(rowState -> rowState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo));
+        savingVisits.forEach(this::saveLocationVisit);
     }
 
     /**
@@ -556,16 +583,14 @@ public class PatientLocationController {
      */
     private void setInferredDischargeAndTime(Boolean isInferred, Instant
             dischargeTime, RowState<LocationVisit, LocationVisitAudit> locationState) {
-        LocationVisit existingLocation = locationState.getEntity();
-        locationState.assignIfDifferent(dischargeTime, existingLocation.getDischargeDatetime(), existingLocation::setDischargeDatetime);
-        locationState.assignIfDifferent(isInferred, existingLocation.getInferredDischarge(), existingLocation::setInferredDischarge);
+        locationState.assignIfDifferent(dischargeTime, LocationVisitSnapshot.DISCHARGE_DATETIME);
+        locationState.assignIfDifferent(isInferred, LocationVisitSnapshot.INFERRED_DISCHARGE);
     }
 
     private void setInferredAdmissionAndTime(Boolean isInferred, Instant
             dischargeTime, RowState<LocationVisit, LocationVisitAudit> locationState) {
-        LocationVisit existingLocation = locationState.getEntity();
-        locationState.assignIfDifferent(dischargeTime, existingLocation.getAdmissionDatetime(), existingLocation::setAdmissionDatetime);
-        locationState.assignIfDifferent(isInferred, existingLocation.getInferredAdmission(), existingLocation::setInferredAdmission);
+        locationState.assignIfDifferent(dischargeTime, LocationVisitSnapshot.ADMISSION_DATETIME);
+        locationState.assignIfDifferent(isInferred, LocationVisitSnapshot.INFERRED_ADMISSION);
     }
 
     /**
@@ -704,7 +729,7 @@ public class PatientLocationController {
         RowState<LocationVisit, LocationVisitAudit> previousLocationState = new RowState<>(
                 visitLocations.get(previousIndex.intValue()), cancellationTime, storedFrom, false);
         setInferredDischargeAndTime(true, previousDischargeTime, previousLocationState);
-        previousLocationState.saveEntityOrAuditLogIfRequired(locationVisitRepo, locationVisitAuditRepo);
+        saveLocationVisit(previousLocationState);
 
     }
 
@@ -819,6 +844,7 @@ public class PatientLocationController {
         locationVisitAuditRepo.save(new LocationVisitAudit(locationVisit, validFrom, storedFrom));
         logger.debug("Deleting LocationVisit: {}", locationVisit);
         locationVisitRepo.delete(locationVisit);
+        bedOccupancyIndex.invalidateAfterTransaction(List.of(locationVisit.getLocationId().getLocationString()));
     }
 
     /**
@@ -10,6 +10,7 @@ import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.movement.Location;
 import uk.ac.ucl.rits.inform.informdb.movement.PlannedMovement;
 import uk.ac.ucl.rits.inform.informdb.movement.PlannedMovementAudit;
+import uk.ac.ucl.rits.inform.informdb.movement.PlannedMovementSnapshot;
 import uk.ac.ucl.rits.inform.interchange.adt.CancelPendingTransfer;
 import uk.ac.ucl.rits.inform.interchange.adt.PendingTransfer;
 
@@ -79,7 +80,7 @@ public class PendingAdtController {
         PlannedMovement plannedMovement = plannedState.getEntity();
         // If we receive a cancelled message before the original request then add it in
         if (plannedMovement.getEventDatetime() == null) {
-            plannedState.assignIfDifferent(msg.getEventOccurredDateTime(), plannedMovement.getEventDatetime(), plannedMovement::setEventDatetime);
+            plannedState.assignIfDifferent(msg.getEventOccurredDateTime(), PlannedMovementSnapshot.EVENT_DATETIME);
         }
 
         plannedState.saveEntityOrAuditLogIfRequired(plannedMovementRepo, plannedMovementAuditRepo);
@@ -132,8 +133,8 @@ public class PendingAdtController {
         PlannedMovement plannedMovement = plannedState.getEntity();
         // Cancel the message if it hasn't been cancelled already
         if (plannedMovement.getCancelledDatetime() == null) {
-            plannedState.assignIfDifferent(msg.getCancelledDateTime(), plannedMovement.getCancelledDatetime(), plannedMovement::setCancelledDatetime);
-            plannedState.assignIfDifferent(true, plannedMovement.getCancelled(), plannedMovement::setCancelled);
+            plannedState.assignIfDifferent(msg.getCancelledDateTime(), PlannedMovementSnapshot.CANCELLED_DATETIME);
+            plannedState.assignIfDifferent(true, PlannedMovementSnapshot.CANCELLED);
         }
 
         plannedState.saveEntityOrAuditLogIfRequired(plannedMovementRepo, plannedMovementAuditRepo);
@@ -167,8 +168,7 @@ public class PendingAdtController {
      * @param movementState movement wrapped in state class
      */
     private void addHospitalService(final PendingTransfer msg, RowState<PlannedMovement, PlannedMovementAudit> movementState) {
-        PlannedMovement movement = movementState.getEntity();
-        movementState.assignInterchangeValue(msg.getHospitalService(), movement.getHospitalService(), movement::setHospitalService);
+        movementState.assignInterchangeValue(msg.getHospitalService(), PlannedMovementSnapshot.HOSPITAL_SERVICE);
     }
 }
 
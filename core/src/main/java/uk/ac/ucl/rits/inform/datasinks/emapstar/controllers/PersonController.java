@@ -14,6 +14,7 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnToLiveAuditRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnToLiveRepository;
 import uk.ac.ucl.rits.inform.informdb.demographics.CoreDemographic;
 import uk.ac.ucl.rits.inform.informdb.demographics.CoreDemographicAudit;
+import uk.ac.ucl.rits.inform.informdb.demographics.CoreDemographicSnapshot;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.informdb.identity.MrnToLive;
 import uk.ac.ucl.rits.inform.informdb.identity.MrnToLiveAudit;
@@ -27,10 +28,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
  * Interactions with patients at the person level: MRN and core demographics.
+ * <p>
+ * MRN lookups are cached in {@link MrnIdentityCache}, which has to be told about any change to MRN identifiers or live MRNs.
  * @author Stef Piatek
  */
 @Component
@@ -42,6 +46,7 @@ public class PersonController {
     private final MrnToLiveAuditRepository mrnToLiveAuditRepo;
     private final CoreDemographicRepository coreDemographicRepo;
     private final CoreDemographicAuditRepository coreDemographicAuditRepo;
+    private final MrnIdentityCache mrnIdentityCache;
 
     /**
      * Constructor implicitly autowiring beans.
@@ -50,14 +55,17 @@ public class PersonController {
      * @param mrnToLiveAuditRepo       auditMrnToLiveRepo
      * @param coreDemographicRepo      coreDemographicRepo
      * @param coreDemographicAuditRepo auditCoreDemographicRepo
+     * @param mrnIdentityCache         cache of MRN lookups
      */
     public PersonController(MrnRepository mrnRepo, MrnToLiveRepository mrnToLiveRepo, MrnToLiveAuditRepository mrnToLiveAuditRepo,
-                            CoreDemographicRepository coreDemographicRepo, CoreDemographicAuditRepository coreDemographicAuditRepo) {
+                            CoreDemographicRepository coreDemographicRepo, CoreDemographicAuditRepository coreDemographicAuditRepo,
+                            MrnIdentityCache mrnIdentityCache) {
         this.mrnRepo = mrnRepo;
         this.mrnToLiveRepo = mrnToLiveRepo;
         this.mrnToLiveAuditRepo = mrnToLiveAuditRepo;
         this.coreDemographicRepo = coreDemographicRepo;
         this.coreDemographicAuditRepo = coreDemographicAuditRepo;
+        this.mrnIdentityCache = mrnIdentityCache;
     }
 
     /**
@@ -111,6 +119,7 @@ public class PersonController {
     }
 
     private void mergeMrns(Collection<Mrn> originalMrns, Mrn survivingMrn, Instant validFrom, Instant storedFrom) {
+        mrnIdentityCache.identitiesChanged();
         // change all live mrns from original mrn to surviving mrn
         originalMrns.stream()
                 .flatMap(mrn -> mrnToLiveRepo.getAllByLiveMrnIdEquals(mrn).stream())
@@ -174,23 +183,62 @@ public class PersonController {
     public Mrn getOrCreateMrn(final String mrnString, final String nhsNumber, final String sourceSystem, final Instant messageDateTime,
                               final Instant storedFrom) throws RequiredDataMissingException {
         logger.debug("Getting or creating MRN: mrn {}, nhsNumber {}", mrnString, nhsNumber);
+        Optional<Mrn> cachedLiveMrn = getCachedLiveMrn(sourceSystem, mrnString, nhsNumber);
+        if (cachedLiveMrn.isPresent()) {
+            return cachedLiveMrn.get();
+        }
+        long cacheGeneration = mrnIdentityCache.getGeneration();
         return mrnRepo
                 .findByMrnOrNhsNumber(mrnString, nhsNumber)
-                .map(mrn -> updateIdentifiersAndGetMrn(sourceSystem, mrnString, nhsNumber, mrn))
+                .map(mrn -> updateIdentifiersAndGetMrn(sourceSystem, mrnString, nhsNumber, mrn, cacheGeneration))
                 // otherwise create new mrn and mrn_to_live row
                 .orElseGet(() -> createNewLiveMrn(mrnString, nhsNumber, sourceSystem, messageDateTime, storedFrom));
     }
 
     /**
-     * Update identifiers (nhs number if different, MRN if missing), then return current live MRN.
+     * Get the live MRN from the cache, as long as the MRN's identifiers don't need updating.
      * @param sourceSystem source system
      * @param mrnString    MRN string
      * @param nhsNumber    NHS number
-     * @param mrn          MRN entity
+     * @return the live MRN entity, if it was cached
+     */
+    private Optional<Mrn> getCachedLiveMrn(final String sourceSystem, final String mrnString, final String nhsNumber) {
+        return mrnIdentityCache.get(mrnString, nhsNumber)
+                .filter(cached -> !identifiersNeedUpdating(sourceSystem, mrnString, nhsNumber, cached.mrn(), cached.nhsNumber()))
+                .map(mrnIdentityCache::getLiveMrn);
+    }
+
+    /**
+     * @param sourceSystem      source system
+     * @param mrnString         MRN string from the message
+     * @param nhsNumber         NHS number from the message
+     * @param existingMrn       MRN string of the existing MRN
+     * @param existingNhsNumber NHS number of the existing MRN
+     * @return true if {@link #updateIdentifiersAndGetMrn} would change the existing MRN's identifiers
+     */
+    private static boolean identifiersNeedUpdating(
+            String sourceSystem, String mrnString, String nhsNumber, String existingMrn, String existingNhsNumber) {
+        if (!DataSources.isTrusted(sourceSystem)) {
+            return false;
+        }
+        boolean nhsNumberChanges = nhsNumber != null && !nhsNumber.equals(existingNhsNumber);
+        String updatedNhsNumber = nhsNumberChanges ? nhsNumber : existingNhsNumber;
+        return nhsNumberChanges || (mrnString != null && existingMrn == null && updatedNhsNumber != null);
+    }
+
+    /**
+     * Update identifiers (nhs number if different, MRN if missing), then return current live MRN.
+     * @param sourceSystem    source system
+     * @param mrnString       MRN string
+     * @param nhsNumber       NHS number
+     * @param mrn             MRN entity
+     * @param cacheGeneration cache generation from before the MRN was looked up
      * @return the live MRN entity
      */
-    private Mrn updateIdentifiersAndGetMrn(final String sourceSystem, final String mrnString, final String nhsNumber, Mrn mrn) {
-        if (DataSources.isTrusted(sourceSystem)) {
+    private Mrn updateIdentifiersAndGetMrn(final String sourceSystem, final String mrnString, final String nhsNumber, Mrn mrn,
+                                           long cacheGeneration) {
+        if (identifiersNeedUpdating(sourceSystem, mrnString, nhsNumber, mrn.getMrn(), mrn.getNhsNumber())) {
+            mrnIdentityCache.identitiesChanged();
             if (nhsNumber != null && !nhsNumber.equals(mrn.getNhsNumber())) {
                 logger.debug("Updating NHS number to {} for MRN {}", nhsNumber, mrn);
                 mrn.setNhsNumber(nhsNumber);
@@ -202,7 +250,9 @@ public class PersonController {
             }
         }
 
-        return mrnToLiveRepo.getByMrnIdEquals(mrn).getLiveMrnId();
+        Mrn liveMrn = mrnToLiveRepo.getByMrnIdEquals(mrn).getLiveMrnId();
+        mrnIdentityCache.put(mrnString, nhsNumber, mrn, liveMrn, cacheGeneration);
+        return liveMrn;
     }
 
 
@@ -223,10 +273,15 @@ public class PersonController {
             throw new RequiredDataMissingException("No MRN found");
         }
         logger.debug("Getting or creating MRN: mrn {} only", mrnString);
+        Optional<Mrn> cachedLiveMrn = getCachedLiveMrn(sourceSystem, mrnString, nhsNumber);
+        if (cachedLiveMrn.isPresent()) {
+            return cachedLiveMrn.get();
+        }
+        long cacheGeneration = mrnIdentityCache.getGeneration();
         return mrnRepo
                 .findByMrnEquals(mrnString)
                 // mrn exists, update NHS number if message source is trusted, then get the live mrn
-                .map(mrn -> updateIdentifiersAndGetMrn(sourceSystem, mrnString, nhsNumber, mrn))
+                .map(mrn -> updateIdentifiersAndGetMrn(sourceSystem, mrnString, nhsNumber, mrn, cacheGeneration))
                 // otherwise create new mrn and mrn_to_live row
                 .orElseGet(() -> createNewLiveMrn(mrnString, nhsNumber, sourceSystem, messageDateTime, storedFrom));
     }
@@ -295,19 +350,18 @@ public class PersonController {
      * @param demographicState state for the demographic entity
      */
     private void updateCoreDemographicFields(final AdtMessage adtMessage, RowState<CoreDemographic, CoreDemographicAudit> demographicState) {
-        CoreDemographic demo = demographicState.getEntity();
-        demographicState.assignInterchangeValue(adtMessage.getPatientGivenName(), demo.getFirstname(), demo::setFirstname);
-        demographicState.assignInterchangeValue(adtMessage.getPatientMiddleName(), demo.getMiddlename(), demo::setMiddlename);
-        demographicState.assignInterchangeValue(adtMessage.getPatientFamilyName(), demo.getLastname(), demo::setLastname);
-        demographicState.assignInterchangeValue(adtMessage.getPatientBirthDate(), demo.getDateOfBirth(), demo::setDateOfBirth);
-        demographicState.assignInterchangeValue(adtMessage.getPatientBirthDateTime(), demo.getDatetimeOfBirth(), demo::setDatetimeOfBirth);
-        demographicState.assignInterchangeValue(adtMessage.getPatientSex(), demo.getSex(), demo::setSex);
-        demographicState.assignInterchangeValue(adtMessage.getPatientZipOrPostalCode(), demo.getHomePostcode(), demo::setHomePostcode);
-        demographicState.assignInterchangeValue(adtMessage.getEthnicGroup(), demo.getEthnicity(), demo::setEthnicity);
+        demographicState.assignInterchangeValue(adtMessage.getPatientGivenName(), CoreDemographicSnapshot.FIRSTNAME);
+        demographicState.assignInterchangeValue(adtMessage.getPatientMiddleName(), CoreDemographicSnapshot.MIDDLENAME);
+        demographicState.assignInterchangeValue(adtMessage.getPatientFamilyName(), CoreDemographicSnapshot.LASTNAME);
+        demographicState.assignInterchangeValue(adtMessage.getPatientBirthDate(), CoreDemographicSnapshot.DATE_OF_BIRTH);
+        demographicState.assignInterchangeValue(adtMessage.getPatientBirthDateTime(), CoreDemographicSnapshot.DATETIME_OF_BIRTH);
+        demographicState.assignInterchangeValue(adtMessage.getPatientSex(), CoreDemographicSnapshot.SEX);
+        demographicState.assignInterchangeValue(adtMessage.getPatientZipOrPostalCode(), CoreDemographicSnapshot.HOME_POSTCODE);
+        demographicState.assignInterchangeValue(adtMessage.getEthnicGroup(), CoreDemographicSnapshot.ETHNICITY);
         // death
-        demographicState.assignInterchangeValue(adtMessage.getPatientIsAlive(), demo.getAlive(), demo::setAlive);
-        demographicState.assignInterchangeValue(adtMessage.getPatientDeathDateTime(), demo.getDateOfDeath(), demo::setDateOfDeath);
-        demographicState.assignInterchangeValue(adtMessage.getPatientDeathDateTime(), demo.getDatetimeOfDeath(), demo::setDatetimeOfDeath);
+        demographicState.assignInterchangeValue(adtMessage.getPatientIsAlive(), CoreDemographicSnapshot.ALIVE);
+        demographicState.assignLocalDate(adtMessage.getPatientDeathDateTime(), CoreDemographicSnapshot.DATE_OF_DEATH);
+        demographicState.assignInterchangeValue(adtMessage.getPatientDeathDateTime(), CoreDemographicSnapshot.DATETIME_OF_DEATH);
     }
 
     /**
@@ -335,6 +389,7 @@ public class PersonController {
         mrnToLive.setStoredFrom(storedFrom);
         mrnToLive.setValidFrom(messageDateTime);
         mrnToLiveRepo.save(mrnToLive);
+        mrnIdentityCache.created(mrn);
         return mrn;
     }
 
@@ -387,6 +442,7 @@ public class PersonController {
         );
         // simple case, the surviving MRN doesn't exist so just update previous MRN with the new details
         if (survivingMrns.isEmpty()) {
+            mrnIdentityCache.identitiesChanged();
             if (msg.getMrn() != null) {
                 previousMrns.forEach(mrn -> mrn.setMrn(msg.getMrn()));
             }
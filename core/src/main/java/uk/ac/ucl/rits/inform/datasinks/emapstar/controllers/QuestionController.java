@@ -12,6 +12,7 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.RequestAnswerRepository;
 import uk.ac.ucl.rits.inform.informdb.questions.Question;
 import uk.ac.ucl.rits.inform.informdb.questions.RequestAnswer;
 import uk.ac.ucl.rits.inform.informdb.questions.RequestAnswerAudit;
+import uk.ac.ucl.rits.inform.informdb.questions.RequestAnswerSnapshot;
 
 import javax.annotation.Resource;
 import java.time.Instant;
@@ -134,7 +135,7 @@ public class QuestionController {
      * @param answerState Answer as previously provided for question.
      */
     private void updateRequestAnswer(String answer, RowState<RequestAnswer, RequestAnswerAudit> answerState) {
-        answerState.assignIfDifferent(answer, answerState.getEntity().getAnswer(), answerState.getEntity()::setAnswer);
+        answerState.assignIfDifferent(answer, RequestAnswerSnapshot.ANSWER);
     }
 
 }
@@ -12,6 +12,7 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitAuditReposito
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitAudit;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisitSnapshot;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.interchange.adt.AdmissionDateTime;
 import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
@@ -27,6 +28,7 @@ import uk.ac.ucl.rits.inform.interchange.adt.UpdatePatientInfo;
 
 import java.time.Instant;
 import java.util.List;
+import java.util.Optional;
 
 /**
  * Interactions with visits.
@@ -37,19 +39,24 @@ public class VisitController {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final HospitalVisitRepository hospitalVisitRepo;
     private final HospitalVisitAuditRepository hospitalVisitAuditRepo;
+    private final HospitalVisitIdCache hospitalVisitIdCache;
 
     /**
      * @param hospitalVisitRepo      repository for HospitalVisit
      * @param hospitalVisitAuditRepo repository for HospitalVisitAudit
+     * @param hospitalVisitIdCache   cache of the visit for each encounter
      */
-    public VisitController(HospitalVisitRepository hospitalVisitRepo, HospitalVisitAuditRepository hospitalVisitAuditRepo) {
+    public VisitController(HospitalVisitRepository hospitalVisitRepo, HospitalVisitAuditRepository hospitalVisitAuditRepo,
+                           HospitalVisitIdCache hospitalVisitIdCache) {
         this.hospitalVisitRepo = hospitalVisitRepo;
         this.hospitalVisitAuditRepo = hospitalVisitAuditRepo;
+        this.hospitalVisitIdCache = hospitalVisitIdCache;
     }
 
     /**
      * Get or create hospital visit, should be used for non-ADT source.
      * Will create a minimum hospital visit and save it it can't match one by the encounter string.
+     * Existing visits are cached by encounter, so the visit may be a reference that is only loaded when it is used.
      * @param encounter       encounter number
      * @param mrn             Mrn
      * @param sourceSystem    source system
@@ -61,10 +68,19 @@ public class VisitController {
     public HospitalVisit getOrCreateMinimalHospitalVisit(
             final String encounter, final Mrn mrn, final String sourceSystem, final Instant messageDateTime, final Instant storedFrom
     ) throws RequiredDataMissingException {
+        if (encounter != null) {
+            Optional<HospitalVisit> cachedVisit = hospitalVisitIdCache.get(encounter);
+            if (cachedVisit.isPresent()) {
+                return cachedVisit.get();
+            }
+        }
+        long cacheGeneration = hospitalVisitIdCache.getGeneration();
         RowState<HospitalVisit, HospitalVisitAudit> visit = getOrCreateHospitalVisit(encounter, mrn, sourceSystem, messageDateTime, storedFrom);
         if (visit.isEntityCreated()) {
             logger.debug("Minimal encounter created. encounter: {}, mrn: {}", encounter, mrn);
             hospitalVisitRepo.save(visit.getEntity());
+        } else {
+            hospitalVisitIdCache.put(encounter, visit.getEntity(), cacheGeneration);
         }
         return visit.getEntity();
     }
@@ -103,6 +119,7 @@ public class VisitController {
      */
     private RowState<HospitalVisit, HospitalVisitAudit> createHospitalVisit(
             final String encounter, Mrn mrn, final String sourceSystem, final Instant messageDateTime, final Instant storedFrom) {
+        hospitalVisitIdCache.changed(encounter);
         HospitalVisit visit = new HospitalVisit();
         visit.setMrnId(mrn);
         visit.setEncounter(encounter);
@@ -203,10 +220,9 @@ public class VisitController {
      * @param visitState visit wrapped in state class
      */
     private void updateGenericData(final AdtMessage msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
-        HospitalVisit visit = visitState.getEntity();
-        visitState.assignInterchangeValue(msg.getPatientClass(), visit.getPatientClass(), visit::setPatientClass);
-        visitState.assignInterchangeValue(msg.getModeOfArrival(), visit.getArrivalMethod(), visit::setArrivalMethod);
-        visitState.assignIfDifferent(msg.getSourceSystem(), visit.getSourceSystem(), visit::setSourceSystem);
+        visitState.assignPatientClass(msg.getPatientClass(), HospitalVisitSnapshot.PATIENT_CLASS);
+        visitState.assignInterchangeValue(msg.getModeOfArrival(), HospitalVisitSnapshot.ARRIVAL_METHOD);
+        visitState.assignIfDifferent(msg.getSourceSystem(), HospitalVisitSnapshot.SOURCE_SYSTEM);
     }
 
     /**
@@ -215,8 +231,7 @@ public class VisitController {
      * @param visitState visit wrapped in state class
      */
     private void addAdmissionDateTime(final AdmissionDateTime msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
-        HospitalVisit visit = visitState.getEntity();
-        visitState.assignInterchangeValue(msg.getAdmissionDateTime(), visit.getAdmissionDatetime(), visit::setAdmissionDatetime);
+        visitState.assignInterchangeValue(msg.getAdmissionDateTime(), HospitalVisitSnapshot.ADMISSION_DATETIME);
     }
 
     /**
@@ -225,8 +240,7 @@ public class VisitController {
      * @param visitState visit wrapped in state class
      */
     private void removeAdmissionInformation(final AdtCancellation msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
-        HospitalVisit visit = visitState.getEntity();
-        visitState.removeIfExists(visit.getAdmissionDatetime(), visit::setAdmissionDatetime, msg.getCancelledDateTime());
+        visitState.removeIfExists(HospitalVisitSnapshot.ADMISSION_DATETIME, msg.getCancelledDateTime());
     }
 
     /**
@@ -235,8 +249,7 @@ public class VisitController {
      * @param visitState visit wrapped in state class
      */
     private void addRegistrationInformation(final RegisterPatient msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
-        HospitalVisit visit = visitState.getEntity();
-        visitState.assignInterchangeValue(msg.getPresentationDateTime(), visit.getPresentationDatetime(), visit::setPresentationDatetime);
+        visitState.assignInterchangeValue(msg.getPresentationDateTime(), HospitalVisitSnapshot.PRESENTATION_DATETIME);
     }
 
     /**
@@ -247,13 +260,13 @@ public class VisitController {
      */
     private void addDischargeInformation(final DischargePatient msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
         HospitalVisit visit = visitState.getEntity();
-        visitState.assignIfDifferent(msg.getDischargeDateTime(), visit.getDischargeDatetime(), visit::setDischargeDatetime);
-        visitState.assignIfDifferent(msg.getDischargeDisposition(), visit.getDischargeDisposition(), visit::setDischargeDisposition);
-        visitState.assignIfDifferent(msg.getDischargeLocation(), visit.getDischargeDestination(), visit::setDischargeDestination);
+        visitState.assignIfDifferent(msg.getDischargeDateTime(), HospitalVisitSnapshot.DISCHARGE_DATETIME);
+        visitState.assignIfDifferent(msg.getDischargeDisposition(), HospitalVisitSnapshot.DISCHARGE_DISPOSITION);
+        visitState.assignIfDifferent(msg.getDischargeLocation(), HospitalVisitSnapshot.DISCHARGE_DESTINATION);
 
         // If started mid-stream, no admission information so add this in on discharge
         if (visit.getAdmissionDatetime() == null && !msg.getAdmissionDateTime().isUnknown()) {
-            visitState.assignInterchangeValue(msg.getAdmissionDateTime(), visit.getAdmissionDatetime(), visit::setAdmissionDatetime);
+            visitState.assignInterchangeValue(msg.getAdmissionDateTime(), HospitalVisitSnapshot.ADMISSION_DATETIME);
         }
     }
 
@@ -263,10 +276,9 @@ public class VisitController {
      * @param visitState visit wrapped in state class
      */
     private void removeDischargeInformation(final AdtCancellation msg, RowState<HospitalVisit, HospitalVisitAudit> visitState) {
-        HospitalVisit visit = visitState.getEntity();
-        visitState.removeIfExists(visit.getDischargeDatetime(), visit::setDischargeDatetime, msg.getCancelledDateTime());
-        visitState.removeIfExists(visit.getDischargeDisposition(), visit::setDischargeDisposition, msg.getCancelledDateTime());
-        visitState.removeIfExists(visit.getDischargeDestination(), visit::setDischargeDestination, msg.getCancelledDateTime());
+        visitState.removeIfExists(HospitalVisitSnapshot.DISCHARGE_DATETIME, msg.getCancelledDateTime());
+        visitState.removeIfExists(HospitalVisitSnapshot.DISCHARGE_DISPOSITION, msg.getCancelledDateTime());
+        visitState.removeIfExists(HospitalVisitSnapshot.DISCHARGE_DESTINATION, msg.getCancelledDateTime());
 
     }
 
@@ -295,6 +307,8 @@ public class VisitController {
             throw new IncompatibleDatabaseStateException(String.format("MoveVisitInformation where new encounter already exists : %s", msg));
         }
 
+        hospitalVisitIdCache.changed(msg.getPreviousVisitNumber());
+        hospitalVisitIdCache.changed(msg.getVisitNumber());
         Instant validFrom = msg.bestGuessAtValidFrom();
         RowState<HospitalVisit, HospitalVisitAudit> visitState = getOrCreateHospitalVisit(
                 msg.getPreviousVisitNumber(), previousMrn, msg.getSourceSystem(), validFrom, storedFrom);
@@ -302,9 +316,8 @@ public class VisitController {
         if (visitShouldBeUpdated(validFrom, msg.getSourceSystem(), visitState)) {
             updateGenericData(msg, visitState);
             // move the encounter and MRN to the correct value
-            HospitalVisit visit = visitState.getEntity();
-            visitState.assignIfDifferent(msg.getPreviousVisitNumber(), visit.getEncounter(), visit::setEncounter);
-            visitState.assignIfDifferent(currentMrn, visit.getMrnId(), visit::setMrnId);
+            visitState.assignIfDifferent(msg.getPreviousVisitNumber(), HospitalVisitSnapshot.ENCOUNTER);
+            visitState.assignIfDifferent(currentMrn, HospitalVisitSnapshot.MRN_ID);
         }
         visitState.saveEntityOrAuditLogIfRequired(hospitalVisitRepo, hospitalVisitAuditRepo);
         return visitState.getEntity();
@@ -320,11 +333,13 @@ public class VisitController {
 
     /**
      * Deletes visit and updates corresponding audit table.
+     * This is also how {@link DeletionController} deletes visits, so it's where the visit is removed from the cache.
      * @param visit             List of hospital visits
      * @param invalidationTime  Time of the delete information message
      * @param deletionTime      time that emap-core started processing the message.
      */
     public void deleteVisit(HospitalVisit visit, Instant invalidationTime, Instant deletionTime) {
+        hospitalVisitIdCache.changed(visit.getEncounter());
         hospitalVisitAuditRepo.save(visit.createAuditEntity(invalidationTime, deletionTime));
         hospitalVisitRepo.delete(visit);
     }
@@ -15,8 +15,10 @@ import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.VisitOb
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservation;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationAudit;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationSnapshot;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationTypeAudit;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationTypeSnapshot;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.Flowsheet;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.FlowsheetMetadata;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
@@ -82,15 +84,15 @@ public class VisitObservationController {
             Instant messageValidFrom = msg.getLastUpdatedInstant();
             Instant entityValidFrom = observationType.getValidFrom();
             typeState.assignIfCurrentlyNullOrNewerAndDifferent(
-                    msg.getName(), observationType.getName(), observationType::setName, messageValidFrom, entityValidFrom);
+                    msg.getName(), VisitObservationTypeSnapshot.NAME, messageValidFrom, entityValidFrom);
             typeState.assignIfCurrentlyNullOrNewerAndDifferent(
-                    msg.getDisplayName(), observationType.getDisplayName(), observationType::setDisplayName, messageValidFrom, entityValidFrom);
+                    msg.getDisplayName(), VisitObservationTypeSnapshot.DISPLAY_NAME, messageValidFrom, entityValidFrom);
             typeState.assignIfCurrentlyNullOrNewerAndDifferent(
-                    msg.getDescription(), observationType.getDescription(), observationType::setDescription, messageValidFrom, entityValidFrom);
+                    msg.getDescription(), VisitObservationTypeSnapshot.DESCRIPTION, messageValidFrom, entityValidFrom);
             typeState.assignIfCurrentlyNullOrNewerAndDifferent(
-                    msg.getValueType(), observationType.getPrimaryDataType(), observationType::setPrimaryDataType, messageValidFrom, entityValidFrom);
+                    msg.getValueType(), VisitObservationTypeSnapshot.PRIMARY_DATA_TYPE, messageValidFrom, entityValidFrom);
             typeState.assignIfCurrentlyNullOrNewerAndDifferent(
-                    msg.getCreationInstant(), observationType.getCreationDatetime(), observationType::setCreationDatetime,
+                    msg.getCreationInstant(), VisitObservationTypeSnapshot.CREATION_DATETIME,
                     messageValidFrom, entityValidFrom);
 
             typeState.saveEntityOrAuditLogIfRequired(visitObservationTypeRepo, visitObservationTypeAuditRepo);
@@ -181,14 +183,13 @@ public class VisitObservationController {
             vot.saveEntityOrAuditLogIfRequired(visitObservationTypeRepo, visitObservationTypeAuditRepo);
         } else if (votCaboodleState != null) {
             VisitObservationType votCaboodle = votCaboodleState.getEntity();
-            votCaboodleState.assignIfDifferent(msg.getInterfaceId(), votCaboodle.getInterfaceId(), votCaboodle::setInterfaceId);
+            votCaboodleState.assignIfDifferent(msg.getInterfaceId(), VisitObservationTypeSnapshot.INTERFACE_ID);
             if (votEpicState != null) {
                 replaceVisitObservationType(votEpicState.getEntity(), votCaboodle, msg.getLastUpdatedInstant(), storedFrom);
             }
             votCaboodleState.saveEntityOrAuditLogIfRequired(visitObservationTypeRepo, visitObservationTypeAuditRepo);
         } else { // state where votEpic exists and votCaboodle doesn't
-            VisitObservationType votEpic = votEpicState.getEntity();
-            votEpicState.assignIfDifferent(msg.getFlowsheetId(), votEpic.getIdInApplication(), votEpic::setIdInApplication);
+            votEpicState.assignIfDifferent(msg.getFlowsheetId(), VisitObservationTypeSnapshot.ID_IN_APPLICATION);
             votEpicState.saveEntityOrAuditLogIfRequired(visitObservationTypeRepo, visitObservationTypeAuditRepo);
         }
     }
@@ -208,7 +209,7 @@ public class VisitObservationController {
         for (VisitObservation visit : visitObservationRepo.findAllByVisitObservationTypeId(votEpic)) {
             RowState<VisitObservation, VisitObservationAudit> vState = new RowState<>(visit, validFrom,
                     storedFrom, false);
-            vState.assignIfDifferent(votCaboodle, votEpic, visit::setVisitObservationTypeId);
+            vState.assignIfDifferent(votCaboodle, VisitObservationSnapshot.VISIT_OBSERVATION_TYPE_ID);
             vState.saveEntityOrAuditLogIfRequired(visitObservationRepo, visitObservationAuditRepo);
         }
         deleteVisitObservationType(votEpic, validFrom, storedFrom);
@@ -304,22 +305,21 @@ public class VisitObservationController {
      */
     private void updateVisitObservation(Flowsheet msg, RowState<VisitObservation, VisitObservationAudit> observationState)
             throws RequiredDataMissingException {
-        VisitObservation observation = observationState.getEntity();
         switch (msg.getValueType()) {
             case NUMERIC:
-                observationState.assignInterchangeValue(msg.getNumericValue(), observation.getValueAsReal(), observation::setValueAsReal);
+                observationState.assignInterchangeValue(msg.getNumericValue(), VisitObservationSnapshot.VALUE_AS_REAL);
                 break;
             case TEXT:
-                observationState.assignInterchangeValue(msg.getStringValue(), observation.getValueAsText(), observation::setValueAsText);
+                observationState.assignInterchangeValue(msg.getStringValue(), VisitObservationSnapshot.VALUE_AS_TEXT);
                 break;
             case DATE:
-                observationState.assignInterchangeValue(msg.getDateValue(), observation.getValueAsDate(), observation::setValueAsDate);
+                observationState.assignInterchangeValue(msg.getDateValue(), VisitObservationSnapshot.VALUE_AS_DATE);
                 break;
             default:
                 throw new RequiredDataMissingException(String.format("Flowsheet DataType '%s' not recognised", msg.getValueType()));
         }
-        observationState.assignInterchangeValue(msg.getUnit(), observation.getUnit(), observation::setUnit);
-        observationState.assignInterchangeValue(msg.getComment(), observation.getComment(), observation::setComment);
+        observationState.assignInterchangeValue(msg.getUnit(), VisitObservationSnapshot.UNIT);
+        observationState.assignInterchangeValue(msg.getComment(), VisitObservationSnapshot.COMMENT);
     }
 
     /**
@@ -332,12 +332,12 @@ public class VisitObservationController {
     private void updateDataFlagsAndSaveObservationType(Flowsheet msg, VisitObservationType observationType, Instant validFrom, Instant storedFrom) {
 
         var rowState = new RowState<>(observationType, validFrom, storedFrom, false);
-        rowState.assignIfDifferent(true, observationType.getHasVisitObservation(), observationType::setHasVisitObservation);
+        rowState.assignIfDifferent(true, VisitObservationTypeSnapshot.HAS_VISIT_OBSERVATION);
 
         // the isRealTime flag should only ever be set false -> true, not true -> false as there could be more live data
         var isRealTime = observationType.getIsRealTime();
         if (isRealTime == null || !isRealTime) {
-            rowState.assignIfDifferent(msg.getIsRealTime(), isRealTime, observationType::setIsRealTime);
+            rowState.assignIfDifferent(msg.getIsRealTime(), VisitObservationTypeSnapshot.IS_REAL_TIME);
         }
 
         rowState.saveEntityOrAuditLogIfRequired(visitObservationTypeRepo, visitObservationTypeAuditRepo);
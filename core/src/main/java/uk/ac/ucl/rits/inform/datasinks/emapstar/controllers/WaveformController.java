@@ -2,19 +2,21 @@ package uk.ac.ucl.rits.inform.datasinks.emapstar.controllers;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.MessageIgnoredException;
-import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformBulkWriter;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformPartitions;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformRepository;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformCompression;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.time.Instant;
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -26,14 +28,26 @@ public class WaveformController {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final WaveformRepository waveformRepository;
-    private final LocationVisitRepository locationVisitRepository;
+    private final WaveformBulkWriter waveformBulkWriter;
+    private final WaveformPartitions waveformPartitions;
+    private final BedOccupancyIndex bedOccupancyIndex;
+    private final OrphanWaveformRelinker orphanWaveformRelinker;
+    private final boolean compressValues;
 
     WaveformController(
             WaveformRepository waveformRepository,
-            LocationVisitRepository locationVisitRepository
+            WaveformBulkWriter waveformBulkWriter,
+            WaveformPartitions waveformPartitions,
+            BedOccupancyIndex bedOccupancyIndex,
+            OrphanWaveformRelinker orphanWaveformRelinker,
+            @Value("${core.waveform.compression.enabled:false}") boolean compressValues
     ) {
         this.waveformRepository = waveformRepository;
-        this.locationVisitRepository = locationVisitRepository;
+        this.waveformBulkWriter = waveformBulkWriter;
+        this.waveformPartitions = waveformPartitions;
+        this.bedOccupancyIndex = bedOccupancyIndex;
+        this.orphanWaveformRelinker = orphanWaveformRelinker;
+        this.compressValues = compressValues;
     }
 
     /**
@@ -48,17 +62,17 @@ public class WaveformController {
             WaveformMessage msg,
             VisitObservationType visitObservationType,
             Instant storedFrom) throws MessageIgnoredException {
-        InterchangeValue<List<Double>> interchangeValue = msg.getNumericValues();
+        InterchangeValue<double[]> interchangeValue = msg.getNumericValues();
         if (!interchangeValue.isSave()) {
             throw new MessageIgnoredException("Updating/deleting waveform data is not supported");
         }
         // All given values are put into one new row. It's the responsibility of whoever is
         // generating the message to choose an appropriate size of array.
-        List<Double> numericValues = interchangeValue.get();
+        double[] numericValues = interchangeValue.get();
         Instant observationTime = msg.getObservationTime();
         // Try to find the visit. We don't have enough information to create the visit if it doesn't already exist.
         Optional<LocationVisit> inferredLocationVisit =
-                locationVisitRepository.findLocationVisitByLocationAndTime(observationTime, msg.getMappedLocationString());
+                bedOccupancyIndex.findLocationVisit(msg.getMappedLocationString(), observationTime);
         // XXX: will have to do some sanity checks here to be sure that the HL7 feed hasn't gone down.
         // See issue #36, and here for discussion:
         // https://github.com/SAFEHR-data/emap/blob/develop/docs/dev/features/waveform_hf_data.md#core-processor-logic-orphan-data-problem
@@ -66,14 +80,24 @@ public class WaveformController {
                 observationTime,
                 observationTime,
                 storedFrom);
-        inferredLocationVisit.ifPresent(dataRow::setLocationVisitId);
-        Double[] valuesAsArray = numericValues.toArray(new Double[0]);
+        if (inferredLocationVisit.isPresent()) {
+            dataRow.setLocationVisitId(inferredLocationVisit.get());
+        } else {
+            // linked later if the location visit turns up
+            orphanWaveformRelinker.orphanWritten(msg.getSourceLocationString(), msg.getMappedLocationString(), observationTime);
+        }
         dataRow.setSamplingRate(msg.getSamplingRate());
         dataRow.setSourceLocation(msg.getSourceLocationString());
         dataRow.setVisitObservationTypeId(visitObservationType);
         dataRow.setUnit(msg.getUnit());
-        dataRow.setValuesArray(valuesAsArray);
-        waveformRepository.save(dataRow);
+        if (compressValues) {
+            dataRow.setValuesCompressed(WaveformCompression.encode(numericValues));
+        } else {
+            dataRow.setValuesArray(numericValues);
+        }
+        waveformPartitions.ensurePartitionFor(observationTime);
+        // copied in bulk when the transaction commits
+        waveformBulkWriter.write(dataRow);
     }
 
     /**
@@ -86,6 +110,22 @@ public class WaveformController {
         return waveformRepository.deleteAllInBatchByObservationDatetimeBefore(olderThanCutoff);
     }
 
+    /**
+     * @return whether old waveform data is removed by dropping partitions rather than deleting rows
+     */
+    public boolean isWaveformTablePartitioned() {
+        return waveformPartitions.isPartitioned();
+    }
+
+    /**
+     * Drop the waveform partitions that only contain data from before the cutoff date.
+     * @param olderThanCutoff cutoff date
+     * @return number of partitions dropped
+     */
+    public int dropOldWaveformPartitions(Instant olderThanCutoff) {
+        return waveformPartitions.dropPartitionsBefore(olderThanCutoff);
+    }
+
     /**
      * @return Return observation datetime of most recent waveform data.
      */
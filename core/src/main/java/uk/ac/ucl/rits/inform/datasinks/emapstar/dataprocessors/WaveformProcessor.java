@@ -85,6 +85,12 @@ public class WaveformProcessor {
             return;
         }
         Instant cutoff = baselineDatetime.minus(retentionTimeHours, ChronoUnit.HOURS);
+        if (waveformController.isWaveformTablePartitioned()) {
+            logger.info("deleteOldWaveformData: dropping partitions, baseline date = {}, cutoff = {}", baselineDatetime, cutoff);
+            int numDropped = waveformController.dropOldWaveformPartitions(cutoff);
+            logger.info("deleteOldWaveformData: dropped {} partitions entirely older than {}", numDropped, cutoff);
+            return;
+        }
         logger.info("deleteOldWaveformData: deleting, baseline date = {}, cutoff = {}", baselineDatetime, cutoff);
         int numDeleted = waveformController.deleteOldWaveformData(cutoff);
         logger.info("deleteOldWaveformData: deleted {} rows older than {}", numDeleted, cutoff);
@@ -0,0 +1,16 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions;
+
+/**
+ * Data shared by all patients was changed by another transaction after this one started,
+ * so anything this transaction looked up and found missing may now exist. The transaction must be retried.
+ */
+public class ReferenceDataConflictException extends RuntimeException {
+    private static final long serialVersionUID = -2383409215693847061L;
+
+    /**
+     * @param message the message
+     */
+    public ReferenceDataConflictException(String message) {
+        super(message);
+    }
+}
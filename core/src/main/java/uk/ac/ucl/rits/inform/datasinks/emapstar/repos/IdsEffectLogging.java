@@ -1,11 +1,14 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.repos;
 
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -23,7 +26,8 @@ import java.time.Instant;
         indexes = {@Index(columnList = "sourceId", unique = false)})
 public class IdsEffectLogging {
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long id;
     private String sourceId;
     private Instant messageDatetime;
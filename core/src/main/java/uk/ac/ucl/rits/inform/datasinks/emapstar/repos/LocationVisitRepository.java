@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.repos;
 
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
@@ -17,8 +18,9 @@ import java.util.Optional;
 public interface LocationVisitRepository extends CrudRepository<LocationVisit, Long> {
     /**
      * @param visit hospital visit
-     * @return the LocationVisits
+     * @return the LocationVisits, with their locations
      */
+    @EntityGraph(attributePaths = "locationId")
     List<LocationVisit> findAllByHospitalVisitId(HospitalVisit visit);
 
     /**
@@ -87,6 +89,59 @@ public interface LocationVisitRepository extends CrudRepository<LocationVisit, L
     )
     Optional<LocationVisit> findLocationVisitByLocationAndTime(Instant observationDatetime, String locationString);
 
+    /**
+     * Admission and discharge times of a location visit, without loading the rest of the entity.
+     */
+    interface Occupancy {
+        /**
+         * @return location visit ID
+         */
+        long getLocationVisitId();
+
+        /**
+         * @return location string
+         */
+        String getLocationString();
+
+        /**
+         * @return admission datetime
+         */
+        Instant getAdmissionDatetime();
+
+        /**
+         * @return discharge datetime, null if the visit is still open
+         */
+        Instant getDischargeDatetime();
+    }
+
+    /**
+     * @param dischargedSince earliest discharge time of the closed location visits to include
+     * @return open location visits, and those closed since the given time
+     */
+    @Query("select lv.locationVisitId as locationVisitId, loc.locationString as locationString, "
+            + "lv.admissionDatetime as admissionDatetime, lv.dischargeDatetime as dischargeDatetime "
+            + "from LocationVisit lv "
+            + "inner join lv.locationId as loc "
+            + "where lv.admissionDatetime is not null "
+            + "and (lv.dischargeDatetime is null or lv.dischargeDatetime >= :dischargedSince)"
+    )
+    List<Occupancy> findOccupancyDischargedSince(Instant dischargedSince);
+
+    /**
+     * @param locationString  location string
+     * @param dischargedSince earliest discharge time of the closed location visits to include
+     * @return open location visits at the location, and those closed since the given time
+     */
+    @Query("select lv.locationVisitId as locationVisitId, loc.locationString as locationString, "
+            + "lv.admissionDatetime as admissionDatetime, lv.dischargeDatetime as dischargeDatetime "
+            + "from LocationVisit lv "
+            + "inner join lv.locationId as loc "
+            + "where loc.locationString = :locationString "
+            + "and lv.admissionDatetime is not null "
+            + "and (lv.dischargeDatetime is null or lv.dischargeDatetime >= :dischargedSince)"
+    )
+    List<Occupancy> findOccupancyByLocationDischargedSince(String locationString, Instant dischargedSince);
+
     /**
      * For testing: find by location string.
      * @param location full location string
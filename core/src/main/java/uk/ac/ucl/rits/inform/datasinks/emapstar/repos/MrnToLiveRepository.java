@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.repos;
 
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 import uk.ac.ucl.rits.inform.informdb.identity.MrnToLive;
@@ -21,4 +22,13 @@ public interface MrnToLiveRepository extends CrudRepository<MrnToLive, Long> {
      * @return List of all rows
      */
     List<MrnToLive> getAllByLiveMrnIdEquals(Mrn mrn);
+
+    /**
+     * @param mrn       MRN string, may be null
+     * @param nhsNumber NHS number, may be null
+     * @return IDs of the live MRNs of all MRN rows with the MRN string or the NHS number
+     */
+    @Query("select distinct mtl.liveMrnId.mrnId from MrnToLive mtl "
+            + "where mtl.mrnId.mrn = :mrn or mtl.mrnId.nhsNumber = :nhsNumber")
+    List<Long> findLiveMrnIdsByMrnOrNhsNumber(String mrn, String nhsNumber);
 }
@@ -1,5 +1,6 @@
 package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.forms;
 
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.repository.CrudRepository;
 import uk.ac.ucl.rits.inform.informdb.forms.Form;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
@@ -10,6 +11,11 @@ import java.util.List;
 import java.util.Optional;
 
 public interface FormRepository extends CrudRepository<Form, Long> {
+    /**
+     * @param internalId internal ID of the form instance
+     * @return the form, with its answers and their questions
+     */
+    @EntityGraph(attributePaths = {"formAnswers", "formAnswers.formQuestionId"})
     Optional<Form> findByInternalId(String internalId);
 
     List<Form> findAllByHospitalVisitId(HospitalVisit hospitalVisit);
@@ -0,0 +1,193 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Saves new waveform rows with a binary COPY at the end of the transaction, instead of an insert per row.
+ * <p>
+ * Rows are given their ID from waveform_id_sequence as soon as they are written, by the same generator that
+ * hibernate uses, then held until the transaction is about to commit. Everything else in the persistence context
+ * is flushed first, so that the visit observation types and location visits that the rows refer to already exist.
+ * If the copy fails then the commit fails, so a message is only acked once its rows are in the database.
+ * <p>
+ * The copy only works on PostgreSQL, so on any other database, or if {@code core.waveform.bulk_copy.enabled} is false,
+ * rows are saved through the repository as normal.
+ */
+@Component
+public class WaveformBulkWriter {
+    private static final Logger logger = LoggerFactory.getLogger(WaveformBulkWriter.class);
+    private static final int COPY_BUFFER_BYTES = 64 * 1024;
+
+    private final WaveformRepository waveformRepository;
+    private final boolean copyEnabled;
+    private volatile Boolean isPostgres;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @param waveformRepository repository to save to when not copying
+     * @param copyEnabled        whether to copy rows when the database supports it
+     */
+    public WaveformBulkWriter(
+            WaveformRepository waveformRepository,
+            @Value("${core.waveform.bulk_copy.enabled:true}") boolean copyEnabled) {
+        this.waveformRepository = waveformRepository;
+        this.copyEnabled = copyEnabled;
+    }
+
+    /**
+     * Give a new row its ID and add it to the rows to be copied when the current transaction commits.
+     * @param waveform new row
+     * @throws IllegalStateException if there is no transaction to copy the row in
+     */
+    public void write(Waveform waveform) {
+        if (!useCopy()) {
+            waveformRepository.save(waveform);
+            return;
+        }
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        Long waveformId = (Long) waveformPersister().getIdentifierGenerator().generate(session, waveform);
+        waveform.setWaveformId(waveformId);
+        transactionRows().add(waveform);
+    }
+
+    /**
+     * @return number of rows waiting to be copied in the current transaction
+     */
+    public int bufferedRowCount() {
+        List<Waveform> rows = boundRows();
+        return rows == null ? 0 : rows.size();
+    }
+
+    /**
+     * Forget rows written since an earlier point in the current transaction, because the changes that they
+     * were written with have been rolled back to a savepoint.
+     * @param rowCount {@link #bufferedRowCount()} before the rolled back changes
+     */
+    public void discardRowsAfter(int rowCount) {
+        List<Waveform> rows = boundRows();
+        if (rows != null && rows.size() > rowCount) {
+            logger.debug("Discarding {} waveform rows", rows.size() - rowCount);
+            rows.subList(rowCount, rows.size()).clear();
+        }
+    }
+
+    private boolean useCopy() {
+        if (!copyEnabled) {
+            return false;
+        }
+        if (isPostgres == null) {
+            isPostgres = entityManager.unwrap(Session.class).doReturningWork(c -> c.isWrapperFor(PGConnection.class));
+            logger.info("Saving waveform rows with {}", isPostgres ? "COPY" : "inserts, as the database isn't PostgreSQL");
+        }
+        return isPostgres;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Waveform> boundRows() {
+        return (List<Waveform>) TransactionSynchronizationManager.getResource(this);
+    }
+
+    /**
+     * @return rows for the current transaction, which will be copied just before it commits
+     * @throws IllegalStateException if there is no transaction
+     */
+    private List<Waveform> transactionRows() {
+        List<Waveform> rows = boundRows();
+        if (rows != null) {
+            return rows;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Waveform rows can only be copied within a transaction");
+        }
+        List<Waveform> newRows = new ArrayList<>();
+        TransactionSynchronizationManager.bindResource(this, newRows);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void beforeCommit(boolean readOnly) {
+                copy(newRows);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResource(WaveformBulkWriter.this);
+            }
+        });
+        return newRows;
+    }
+
+    private AbstractEntityPersister waveformPersister() {
+        SharedSessionContractImplementor session = entityManager.unwrap(SharedSessionContractImplementor.class);
+        return (AbstractEntityPersister) session.getFactory().getMetamodel().entityPersister(Waveform.class);
+    }
+
+    /**
+     * @return copy statement for the columns in {@link WaveformCopyFormat#PROPERTY_ORDER}
+     */
+    private String copyStatement() {
+        AbstractEntityPersister persister = waveformPersister();
+        String columns = WaveformCopyFormat.PROPERTY_ORDER.stream()
+                .map(property -> property.equals(persister.getIdentifierPropertyName())
+                        ? persister.getIdentifierColumnNames()[0] : persister.getPropertyColumnNames(property)[0])
+                .collect(Collectors.joining(", "));
+        return String.format("COPY %s (%s) FROM STDIN (FORMAT BINARY)", persister.getTableName(), columns);
+    }
+
+    /**
+     * Flush everything else, then copy the rows on the transaction's connection.
+     * @param rows rows to copy
+     */
+    private void copy(List<Waveform> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        String copyStatement = copyStatement();
+        Session session = entityManager.unwrap(Session.class);
+        session.flush();
+        session.doWork(connection -> copy(connection, copyStatement, rows));
+        logger.debug("Copied {} waveform rows", rows.size());
+    }
+
+    private static void copy(Connection connection, String copyStatement, List<Waveform> rows) throws SQLException {
+        CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(copyStatement);
+        try {
+            DataOutputStream out = new DataOutputStream(new PGCopyOutputStream(copyIn, COPY_BUFFER_BYTES));
+            WaveformCopyFormat.writeHeader(out);
+            for (Waveform row : rows) {
+                WaveformCopyFormat.writeRow(out, row);
+            }
+            WaveformCopyFormat.writeTrailer(out);
+            out.close();
+        } catch (IOException e) {
+            throw new SQLException("Could not copy waveform rows", e);
+        } finally {
+            // only still active if the copy didn't get to the end
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations;
+
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+/**
+ * Writes waveform rows in the PostgreSQL binary COPY format, so that the values arrays go to the server as float8
+ * without being turned into text.
+ * <p>
+ * A copy is the header, then one tuple per row, then the trailer. All numbers are big-endian, as written by
+ * {@link DataOutputStream}. See the "Binary Format" section of the PostgreSQL COPY documentation.
+ */
+public final class WaveformCopyFormat {
+    /**
+     * Entity properties in the order that their columns are written in each tuple.
+     */
+    public static final List<String> PROPERTY_ORDER = List.of(
+            "waveformId", "storedFrom", "validFrom", "observationDatetime", "samplingRate",
+            "sourceLocation", "unit", "valuesArray", "valuesCompressed", "locationVisitId", "visitObservationTypeId");
+
+    static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    static final int FLOAT8_OID = 701;
+    /**
+     * timestamptz is sent as microseconds since this.
+     */
+    static final Instant POSTGRES_EPOCH = Instant.parse("2000-01-01T00:00:00Z");
+
+    private WaveformCopyFormat() {}
+
+    /**
+     * Start a copy, with no flags or header extension.
+     * @param out copy data
+     * @throws IOException if the stream can't be written to
+     */
+    public static void writeHeader(DataOutputStream out) throws IOException {
+        out.write(SIGNATURE);
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    /**
+     * Write one row as a tuple, with its fields in {@link #PROPERTY_ORDER}.
+     * @param out      copy data
+     * @param waveform row to write, which must already have its ID and a saved visit observation type
+     * @throws IOException if the stream can't be written to
+     */
+    public static void writeRow(DataOutputStream out, Waveform waveform) throws IOException {
+        out.writeShort(PROPERTY_ORDER.size());
+        writeInt8(out, waveform.getWaveformId());
+        writeTimestamptz(out, waveform.getStoredFrom());
+        writeTimestamptz(out, waveform.getValidFrom());
+        writeTimestamptz(out, waveform.getObservationDatetime());
+        writeInt8(out, waveform.getSamplingRate());
+        writeText(out, waveform.getSourceLocation());
+        writeText(out, waveform.getUnit());
+        if (waveform.getValuesCompressed() == null) {
+            writeFloat8Array(out, waveform.getValuesArray());
+            writeNull(out);
+        } else {
+            // the getter would decompress the values
+            writeNull(out);
+            writeBytea(out, waveform.getValuesCompressed());
+        }
+        if (waveform.getLocationVisitId() == null) {
+            writeNull(out);
+        } else {
+            writeInt8(out, waveform.getLocationVisitId().getLocationVisitId());
+        }
+        writeInt8(out, waveform.getVisitObservationTypeId().getVisitObservationTypeId());
+    }
+
+    /**
+     * End a copy.
+     * @param out copy data
+     * @throws IOException if the stream can't be written to
+     */
+    public static void writeTrailer(DataOutputStream out) throws IOException {
+        out.writeShort(-1);
+    }
+
+    private static void writeNull(DataOutputStream out) throws IOException {
+        out.writeInt(-1);
+    }
+
+    private static void writeInt8(DataOutputStream out, long value) throws IOException {
+        out.writeInt(Long.BYTES);
+        out.writeLong(value);
+    }
+
+    private static void writeTimestamptz(DataOutputStream out, Instant value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        writeInt8(out, ChronoUnit.MICROS.between(POSTGRES_EPOCH, value));
+    }
+
+    private static void writeText(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeNull(out);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeBytea(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * A one dimensional array with no nulls, indexed from 1 as SQL arrays are.
+     * An empty array has no dimensions.
+     * @param out    copy data
+     * @param values array to write
+     * @throws IOException if the stream can't be written to
+     */
+    private static void writeFloat8Array(DataOutputStream out, double[] values) throws IOException {
+        if (values == null) {
+            writeNull(out);
+            return;
+        }
+        int dimensions = values.length == 0 ? 0 : 1;
+        out.writeInt(3 * Integer.BYTES + dimensions * 2 * Integer.BYTES + values.length * (Integer.BYTES + Double.BYTES));
+        out.writeInt(dimensions);
+        out.writeInt(0);
+        out.writeInt(FLOAT8_OID);
+        if (dimensions == 0) {
+            return;
+        }
+        out.writeInt(values.length);
+        out.writeInt(1);
+        for (double value : values) {
+            out.writeInt(Double.BYTES);
+            out.writeDouble(value);
+        }
+    }
+}
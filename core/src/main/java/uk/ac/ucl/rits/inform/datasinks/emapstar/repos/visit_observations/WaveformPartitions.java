@@ -0,0 +1,404 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Range partitioning of the waveform table by observation datetime, so that old data can be removed by dropping
+ * whole partitions instead of deleting rows.
+ * <p>
+ * Enabled by setting {@code core.waveform.partition_hours}, on PostgreSQL 11 or later.
+ * Partitions start on multiples of that many hours since the epoch (UTC), and are created a few partitions ahead
+ * of the current time, or on demand for data outside the existing partitions (eg. when replaying old data).
+ * Partitions are created and dropped on their own connection, so that the DDL isn't rolled back with the message
+ * being processed. This relies on waveform rows being written when the transaction commits
+ * ({@link WaveformBulkWriter}), as creating a partition has to wait for transactions that have written to the table,
+ * which would include the transaction that is waiting for the partition. So partitioning refuses to start
+ * if {@code core.waveform.bulk_copy.enabled} is false.
+ * <p>
+ * If the waveform table isn't partitioned yet, it is replaced at startup by a partitioned table with the same columns,
+ * indexes and foreign keys. The existing table and its rows become the first partition, covering everything before
+ * the partition after its newest row.
+ */
+@Component
+public class WaveformPartitions {
+    private static final Logger logger = LoggerFactory.getLogger(WaveformPartitions.class);
+    private static final DateTimeFormatter PARTITION_SUFFIX = DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneOffset.UTC);
+    private static final String UNPARTITIONED_SUFFIX = "_unpartitioned";
+
+    private final DataSource dataSource;
+    private final AbstractEntityPersister waveformPersister;
+    private final Duration partitionLength;
+    private final int partitionsAhead;
+    private final boolean bulkCopyEnabled;
+    /**
+     * Existing partitions, by lower bound. The unpartitioned table has no lower bound, so is under {@link Instant#MIN}.
+     */
+    private final NavigableMap<Instant, Partition> partitions = new ConcurrentSkipListMap<>();
+    private volatile boolean partitioned = false;
+
+    /**
+     * A partition of the waveform table.
+     * @param name       table name, without the schema
+     * @param lowerBound first observation datetime in the partition
+     * @param upperBound observation datetime after the end of the partition, null if unbounded
+     */
+    private record Partition(String name, Instant lowerBound, Instant upperBound) {
+        boolean contains(Instant observationDatetime) {
+            return upperBound == null || observationDatetime.isBefore(upperBound);
+        }
+    }
+
+    /**
+     * @param dataSource           connection to the star database
+     * @param entityManagerFactory for the waveform table and column names, and so that the schema is up to date first
+     * @param partitionHours       length of each partition, or 0 to leave the table unpartitioned
+     * @param partitionsAhead      how many partitions after the current one to keep ready
+     * @param bulkCopyEnabled      whether waveform rows are only written when the transaction commits
+     */
+    public WaveformPartitions(
+            DataSource dataSource,
+            EntityManagerFactory entityManagerFactory,
+            @Value("${core.waveform.partition_hours:0}") int partitionHours,
+            @Value("${core.waveform.partitions_ahead:3}") int partitionsAhead,
+            @Value("${core.waveform.bulk_copy.enabled:true}") boolean bulkCopyEnabled) {
+        this.dataSource = dataSource;
+        waveformPersister = (AbstractEntityPersister) entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getMetamodel().entityPersister(Waveform.class);
+        this.partitionLength = Duration.ofHours(partitionHours);
+        this.partitionsAhead = partitionsAhead;
+        this.bulkCopyEnabled = bulkCopyEnabled;
+    }
+
+    /**
+     * @param observationDatetime observation datetime
+     * @param partitionLength     length of each partition
+     * @return lower bound of the partition that the observation datetime would be in, if there were no other partitions
+     */
+    public static Instant partitionStart(Instant observationDatetime, Duration partitionLength) {
+        long lengthSeconds = partitionLength.toSeconds();
+        return Instant.ofEpochSecond(Math.floorDiv(observationDatetime.getEpochSecond(), lengthSeconds) * lengthSeconds);
+    }
+
+    /**
+     * @return whether old data should be removed by dropping partitions
+     */
+    public boolean isPartitioned() {
+        return partitioned;
+    }
+
+    /**
+     * Partition the table if that has been configured and not done already, then create the upcoming partitions.
+     * @throws SQLException if the table can't be partitioned
+     * @throws IllegalStateException if partitioning is configured without bulk copy, as creating a partition on demand
+     *                               would then wait for the transaction of the message that needs it
+     */
+    @PostConstruct
+    public synchronized void partitionTable() throws SQLException {
+        if (partitionLength.isZero()) {
+            return;
+        }
+        if (!bulkCopyEnabled) {
+            throw new IllegalStateException("core.waveform.partition_hours needs core.waveform.bulk_copy.enabled");
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            if (!connection.isWrapperFor(PGConnection.class)) {
+                logger.warn("Not partitioning the waveform table, as the database isn't PostgreSQL");
+                return;
+            }
+            if (!isTablePartitioned(connection)) {
+                replaceWithPartitionedTable(connection);
+            }
+            loadPartitions(connection);
+        }
+        partitioned = true;
+        logger.info("Waveform table is partitioned every {} hours, with {} existing partitions", partitionLength.toHours(), partitions.size());
+        createUpcomingPartitions();
+    }
+
+    /**
+     * Keep partitions ready for live data, so that they don't have to be created while processing messages.
+     */
+    @Scheduled(fixedRate = 10 * 60 * 1000)
+    public void createUpcomingPartitions() {
+        if (!partitioned) {
+            return;
+        }
+        Instant now = Instant.now();
+        for (int i = 0; i <= partitionsAhead; i++) {
+            ensurePartitionFor(now.plus(partitionLength.multipliedBy(i)));
+        }
+    }
+
+    /**
+     * Make sure there is a partition for an observation datetime, creating one if necessary.
+     * Only the bounds that don't overlap any existing partitions are used, in case the partition length has changed.
+     * @param observationDatetime observation datetime of a row about to be written
+     * @throws UncategorizedSQLException if the partition can't be created
+     */
+    public void ensurePartitionFor(Instant observationDatetime) {
+        if (!partitioned || partitionContaining(observationDatetime) != null) {
+            return;
+        }
+        synchronized (this) {
+            if (partitionContaining(observationDatetime) != null) {
+                return;
+            }
+            Instant lowerBound = partitionStart(observationDatetime, partitionLength);
+            Instant upperBound = lowerBound.plus(partitionLength);
+            Map.Entry<Instant, Partition> before = partitions.floorEntry(observationDatetime);
+            if (before != null && before.getValue().upperBound().isAfter(lowerBound)) {
+                lowerBound = before.getValue().upperBound();
+            }
+            Instant after = partitions.higherKey(observationDatetime);
+            if (after != null && after.isBefore(upperBound)) {
+                upperBound = after;
+            }
+            String name = tableName() + "_" + PARTITION_SUFFIX.format(lowerBound);
+            String sql = String.format("CREATE TABLE IF NOT EXISTS %s%s PARTITION OF %s FOR VALUES FROM ('%s') TO ('%s')",
+                    schemaPrefix(), name, waveformPersister.getTableName(), lowerBound, upperBound);
+            try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            } catch (SQLException e) {
+                throw new UncategorizedSQLException("Creating waveform partition", sql, e);
+            }
+            logger.info("Created waveform partition {} from {} to {}", name, lowerBound, upperBound);
+            partitions.put(lowerBound, new Partition(name, lowerBound, upperBound));
+        }
+    }
+
+    /**
+     * Drop the partitions that only contain data from before the cutoff.
+     * Data in the partition that the cutoff falls in is kept until the whole partition has expired.
+     * @param cutoff observation datetime before which data is no longer needed
+     * @return number of partitions dropped
+     * @throws UncategorizedSQLException if the partitions can't be dropped
+     */
+    public synchronized int dropPartitionsBefore(Instant cutoff) {
+        List<Partition> expired = new ArrayList<>();
+        for (Partition partition : partitions.values()) {
+            if (partition.upperBound() != null && !partition.upperBound().isAfter(cutoff)) {
+                expired.add(partition);
+            }
+        }
+        for (Partition partition : expired) {
+            String sql = String.format("DROP TABLE %s%s", schemaPrefix(), partition.name());
+            try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            } catch (SQLException e) {
+                throw new UncategorizedSQLException("Dropping waveform partition", sql, e);
+            }
+            partitions.remove(partition.lowerBound());
+            logger.info("Dropped waveform partition {}, which ended at {}", partition.name(), partition.upperBound());
+        }
+        return expired.size();
+    }
+
+    private Partition partitionContaining(Instant observationDatetime) {
+        Map.Entry<Instant, Partition> entry = partitions.floorEntry(observationDatetime);
+        if (entry == null || !entry.getValue().contains(observationDatetime)) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    private String schemaPrefix() {
+        String table = waveformPersister.getTableName();
+        return table.substring(0, table.lastIndexOf('.') + 1);
+    }
+
+    private String tableName() {
+        String table = waveformPersister.getTableName();
+        return table.substring(table.lastIndexOf('.') + 1);
+    }
+
+    private String column(String property) {
+        return waveformPersister.getPropertyColumnNames(property)[0];
+    }
+
+    private boolean isTablePartitioned(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM pg_partitioned_table WHERE partrelid = ?::regclass")) {
+            statement.setString(1, waveformPersister.getTableName());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1) > 0;
+            }
+        }
+    }
+
+    /**
+     * Read the bounds of the existing partitions.
+     * @param connection connection to use
+     * @throws SQLException if the partitions can't be read
+     */
+    private void loadPartitions(Connection connection) throws SQLException {
+        String sql = "SELECT c.relname,"
+                + " (regexp_match(pg_get_expr(c.relpartbound, c.oid), 'FROM \\(''([^'']*)''\\)'))[1]::timestamptz,"
+                + " (regexp_match(pg_get_expr(c.relpartbound, c.oid), 'TO \\(''([^'']*)''\\)'))[1]::timestamptz"
+                + " FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = ?::regclass";
+        partitions.clear();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, waveformPersister.getTableName());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    OffsetDateTime lowerBound = resultSet.getObject(2, OffsetDateTime.class);
+                    OffsetDateTime upperBound = resultSet.getObject(3, OffsetDateTime.class);
+                    Partition partition = new Partition(
+                            resultSet.getString(1),
+                            lowerBound == null ? Instant.MIN : lowerBound.toInstant(),
+                            upperBound == null ? null : upperBound.toInstant());
+                    partitions.put(partition.lowerBound(), partition);
+                }
+            }
+        }
+    }
+
+    /**
+     * Swap the waveform table for a partitioned one, in a single transaction.
+     * The primary key of a partitioned table has to include the partition column, so it is the ID and observation datetime.
+     * The old indexes are renamed, as index names have to be unique within the schema.
+     * @param connection connection to use
+     * @throws SQLException if the table can't be replaced, in which case nothing is changed
+     */
+    private void replaceWithPartitionedTable(Connection connection) throws SQLException {
+        String table = waveformPersister.getTableName();
+        String oldTable = table + UNPARTITIONED_SUFFIX;
+        String observationDatetime = column("observationDatetime");
+        logger.warn("Replacing {} with a partitioned table, the existing data will be kept in {}", table, oldTable);
+
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            Map<String, String> indexes = queryNameAndDefinition(connection,
+                    "SELECT i.relname, pg_get_indexdef(i.oid), x.indisprimary FROM pg_index x JOIN pg_class i ON i.oid = x.indexrelid"
+                            + " WHERE x.indrelid = ?::regclass ORDER BY i.relname");
+            Map<String, String> foreignKeys = queryNameAndDefinition(connection,
+                    "SELECT conname, pg_get_constraintdef(oid), false FROM pg_constraint"
+                            + " WHERE conrelid = ?::regclass AND contype = 'f' ORDER BY conname");
+            Instant newestObservation;
+            try (ResultSet resultSet = statement.executeQuery(String.format("SELECT max(%s) FROM %s", observationDatetime, table))) {
+                resultSet.next();
+                OffsetDateTime newest = resultSet.getObject(1, OffsetDateTime.class);
+                newestObservation = newest == null ? null : newest.toInstant();
+            }
+
+            // recreated on the new table by WaveformSqlObjects
+            statement.execute(String.format("DROP VIEW IF EXISTS %swaveform_decoded", schemaPrefix()));
+            statement.execute(String.format("ALTER TABLE %s RENAME TO %s", table, tableName() + UNPARTITIONED_SUFFIX));
+            for (String index : indexes.keySet()) {
+                statement.execute(String.format("ALTER INDEX %s%s RENAME TO %s", schemaPrefix(), index, index + UNPARTITIONED_SUFFIX));
+            }
+            statement.execute(String.format("CREATE TABLE %s (LIKE %s INCLUDING DEFAULTS) PARTITION BY RANGE (%s)",
+                    table, oldTable, observationDatetime));
+            statement.execute(String.format("ALTER TABLE %s ADD PRIMARY KEY (%s, %s)",
+                    table, waveformPersister.getIdentifierColumnNames()[0], observationDatetime));
+            // the index definitions were made before the rename, so refer to the new table
+            for (String indexDefinition : indexes.values()) {
+                if (indexDefinition != null) {
+                    statement.execute(indexDefinition);
+                }
+            }
+            for (Map.Entry<String, String> foreignKey : foreignKeys.entrySet()) {
+                statement.execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s %s", table, foreignKey.getKey(), foreignKey.getValue()));
+            }
+
+            if (newestObservation == null) {
+                statement.execute(String.format("DROP TABLE %s", oldTable));
+            } else {
+                attachUnpartitionedTable(statement, indexes, newestObservation);
+            }
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Make the renamed old table the first partition, without attaching having to scan or index it while holding its lock.
+     * <p>
+     * A check constraint matching the partition bound is added without checking the rows, then validated, which lets
+     * the primary key and the attach trust it. The new primary key is built as a unique index first and then made the
+     * table's primary key, so that attaching uses it as the partition's primary key instead of building another.
+     * The other old indexes are attached as they are.
+     * @param statement         statement on the connection that is replacing the table
+     * @param indexes           definitions of the old table's indexes by their name before the rename, null for the primary key
+     * @param newestObservation newest observation datetime in the old table
+     * @throws SQLException if the table can't be attached
+     */
+    private void attachUnpartitionedTable(Statement statement, Map<String, String> indexes, Instant newestObservation)
+            throws SQLException {
+        String table = waveformPersister.getTableName();
+        String oldTable = table + UNPARTITIONED_SUFFIX;
+        String observationDatetime = column("observationDatetime");
+        Instant upperBound = partitionStart(newestObservation, partitionLength).plus(partitionLength);
+
+        String boundConstraint = tableName() + UNPARTITIONED_SUFFIX + "_bound";
+        statement.execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s CHECK (%s IS NOT NULL AND %s < '%s') NOT VALID",
+                oldTable, boundConstraint, observationDatetime, observationDatetime, upperBound));
+        statement.execute(String.format("ALTER TABLE %s VALIDATE CONSTRAINT %s", oldTable, boundConstraint));
+
+        for (Map.Entry<String, String> index : indexes.entrySet()) {
+            if (index.getValue() == null) {
+                statement.execute(String.format("ALTER TABLE %s DROP CONSTRAINT %s", oldTable, index.getKey() + UNPARTITIONED_SUFFIX));
+            }
+        }
+        String primaryKey = tableName() + UNPARTITIONED_SUFFIX + "_pkey";
+        statement.execute(String.format("CREATE UNIQUE INDEX %s ON %s (%s, %s)",
+                primaryKey, oldTable, waveformPersister.getIdentifierColumnNames()[0], observationDatetime));
+        statement.execute(String.format("ALTER TABLE %s ADD CONSTRAINT %s PRIMARY KEY USING INDEX %s", oldTable, primaryKey, primaryKey));
+
+        statement.execute(String.format("ALTER TABLE %s ATTACH PARTITION %s FOR VALUES FROM (MINVALUE) TO ('%s')",
+                table, oldTable, upperBound));
+        // the partition bound does the same job from now on
+        statement.execute(String.format("ALTER TABLE %s DROP CONSTRAINT %s", oldTable, boundConstraint));
+    }
+
+    /**
+     * @param connection connection to use
+     * @param sql        query for the name, definition, and whether to skip the definition, of objects on the waveform table
+     * @return definitions by name, null for the skipped ones
+     * @throws SQLException if the query fails
+     */
+    private Map<String, String> queryNameAndDefinition(Connection connection, String sql) throws SQLException {
+        Map<String, String> definitions = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, waveformPersister.getTableName());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    definitions.put(resultSet.getString(1), resultSet.getBoolean(3) ? null : resultSet.getString(2));
+                }
+            }
+        }
+        return definitions;
+    }
+}
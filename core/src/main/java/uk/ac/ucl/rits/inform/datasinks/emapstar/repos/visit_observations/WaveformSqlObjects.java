@@ -0,0 +1,92 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.stream.Collectors;
+
+/**
+ * Creates the SQL objects for reading compressed waveform values, which hibernate doesn't manage:
+ * <ul>
+ *     <li>the waveform_decode function, which turns values_compressed back into an array</li>
+ *     <li>the waveform_decoded view, which has values_array filled in whichever way the values are stored</li>
+ * </ul>
+ * The values_array column is also made nullable, as hibernate won't do that to an existing table.
+ * Only done on PostgreSQL, after hibernate has updated the schema and the table has been partitioned.
+ */
+@Component
+@DependsOn("waveformPartitions")
+public class WaveformSqlObjects {
+    private static final Logger logger = LoggerFactory.getLogger(WaveformSqlObjects.class);
+
+    private final DataSource dataSource;
+    private final AbstractEntityPersister waveformPersister;
+
+    /**
+     * @param dataSource           connection to the star database
+     * @param entityManagerFactory for the waveform table and column names, and so that the schema is up to date first
+     */
+    public WaveformSqlObjects(DataSource dataSource, EntityManagerFactory entityManagerFactory) {
+        this.dataSource = dataSource;
+        waveformPersister = (AbstractEntityPersister) entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+                .getMetamodel().entityPersister(Waveform.class);
+    }
+
+    /**
+     * Create or replace the function and view.
+     * @throws IOException  if the function definition can't be read
+     * @throws SQLException if the objects can't be created
+     */
+    @PostConstruct
+    public void createSqlObjects() throws IOException, SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            if (!connection.isWrapperFor(PGConnection.class)) {
+                logger.info("Not creating waveform_decode function, as the database isn't PostgreSQL");
+                return;
+            }
+            String table = waveformPersister.getTableName();
+            int schemaEnd = table.lastIndexOf('.');
+            String schemaPrefix = schemaEnd < 0 ? "" : table.substring(0, schemaEnd + 1);
+            String valuesArray = column("valuesArray");
+            String valuesCompressed = column("valuesCompressed");
+
+            String decodeFunction = StreamUtils.copyToString(
+                    new ClassPathResource("waveform_decode.sql").getInputStream(), StandardCharsets.UTF_8);
+            statement.execute(decodeFunction.replace("{schema}.", schemaPrefix));
+            statement.execute(String.format("ALTER TABLE %s ALTER COLUMN %s DROP NOT NULL", table, valuesArray));
+
+            // the same columns as the table, apart from values_compressed
+            String decodedColumns = WaveformCopyFormat.PROPERTY_ORDER.stream()
+                    .filter(property -> !property.equals("valuesCompressed"))
+                    .map(property -> property.equals("valuesArray")
+                            ? String.format("coalesce(%s, %swaveform_decode(%s)) AS %s", valuesArray, schemaPrefix, valuesCompressed, valuesArray)
+                            : column(property))
+                    .collect(Collectors.joining(", "));
+            statement.execute(String.format("CREATE OR REPLACE VIEW %swaveform_decoded AS SELECT %s FROM %s", schemaPrefix, decodedColumns, table));
+            logger.info("Created waveform_decode function and waveform_decoded view");
+        }
+    }
+
+    private String column(String property) {
+        if (property.equals(waveformPersister.getIdentifierPropertyName())) {
+            return waveformPersister.getIdentifierColumnNames()[0];
+        }
+        return waveformPersister.getPropertyColumnNames(property)[0];
+    }
+}
@@ -0,0 +1,64 @@
+-- Decode waveform values compressed by WaveformCompression in emap-star.
+-- The data is a format version byte, a 32 bit sample count, then a bit string of XOR encoded values.
+-- {schema} is replaced with the schema of the waveform table.
+CREATE OR REPLACE FUNCTION {schema}.waveform_decode(data bytea) RETURNS float8[]
+LANGUAGE plpgsql IMMUTABLE STRICT PARALLEL SAFE AS $$
+DECLARE
+    sample_count int;
+    bits varbit;
+    pos int := 1;
+    previous bit(64);
+    leading_zeros int := 0;
+    meaningful_bits int := 0;
+    exponent int;
+    mantissa int8;
+    value float8;
+    result float8[] := '{}';
+BEGIN
+    IF get_byte(data, 0) <> 1 THEN
+        RAISE EXCEPTION 'Unknown waveform compression format %', get_byte(data, 0);
+    END IF;
+    sample_count := (get_byte(data, 1) << 24) | (get_byte(data, 2) << 16) | (get_byte(data, 3) << 8) | get_byte(data, 4);
+    bits := ('x' || encode(substring(data FROM 6), 'hex'))::varbit;
+    FOR i IN 1..sample_count LOOP
+        IF i = 1 THEN
+            previous := substring(bits FROM pos FOR 64)::bit(64);
+            pos := pos + 64;
+        ELSIF substring(bits FROM pos FOR 1) = B'0' THEN
+            -- same value as before
+            pos := pos + 1;
+        ELSE
+            IF substring(bits FROM pos + 1 FOR 1) = B'1' THEN
+                -- new window of meaningful bits
+                leading_zeros := substring(bits FROM pos + 2 FOR 5)::bit(5)::int;
+                meaningful_bits := substring(bits FROM pos + 7 FOR 6)::bit(6)::int;
+                IF meaningful_bits = 0 THEN
+                    meaningful_bits := 64;
+                END IF;
+                pos := pos + 13;
+            ELSE
+                pos := pos + 2;
+            END IF;
+            -- casting to bit(64) pads the trailing zeros
+            previous := previous # (repeat('0', leading_zeros)::varbit || substring(bits FROM pos FOR meaningful_bits))::bit(64);
+            pos := pos + meaningful_bits;
+        END IF;
+
+        -- reinterpret the IEEE 754 bits as a float8
+        exponent := substring(previous FROM 2 FOR 11)::bit(11)::int;
+        mantissa := substring(previous FROM 13 FOR 52)::bit(52)::int8;
+        IF exponent = 2047 THEN
+            value := CASE WHEN mantissa = 0 THEN 'Infinity'::float8 ELSE 'NaN'::float8 END;
+        ELSIF exponent = 0 THEN
+            value := mantissa::float8 * power(2::float8, -1074);
+        ELSE
+            value := (mantissa + 4503599627370496)::float8 * power(2::float8, exponent - 1075);
+        END IF;
+        IF substring(previous FROM 1 FOR 1) = B'1' THEN
+            value := -value;
+        END IF;
+        result[i] := value;
+    END LOOP;
+    RETURN result;
+END
+$$;
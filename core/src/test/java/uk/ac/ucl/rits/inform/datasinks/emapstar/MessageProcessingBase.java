@@ -7,7 +7,9 @@ import org.springframework.data.repository.CrudRepository;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringJUnitConfig;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.PersonController;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnRepository;
 import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.MrnToLiveRepository;
@@ -37,6 +39,8 @@ public abstract class MessageProcessingBase {
 
     @Autowired
     protected InformDbOperations dbOps;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
 
     protected final String defaultMrn = "40800000";
     protected final String defaultEncounter = "123412341234";
@@ -58,6 +62,14 @@ public abstract class MessageProcessingBase {
         }
     }
 
+    /**
+     * Run checks in a transaction, so that they can follow the lazy associations of the entities that they load.
+     * @param checks loading of entities and assertions on them
+     */
+    protected void inTransaction(Runnable checks) {
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> checks.run());
+    }
+
     protected List<Mrn> getAllMrns() {
         return StreamSupport.stream(mrnRepo.findAll().spliterator(), false).collect(Collectors.toList());
     }
@@ -0,0 +1,106 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.VisitObservationTypeRepository;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Processing several messages in one transaction, with a savepoint per message.
+ * Not transactional, so that the batch transaction is the outermost one.
+ * Caching is on, as rolled back messages mustn't leave anything in the caches.
+ */
+@TestPropertySource(properties = {"core.rabbitmq.batch.enabled=true", "spring.cache.type=simple"})
+class TestBatchMessageListener extends MessageProcessingBase {
+    @Autowired
+    private BatchMessageListener batchMessageListener;
+    @Autowired
+    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+    @Autowired
+    private VisitObservationTypeRepository visitObservationTypeRepository;
+
+    private List<Message<EmapOperationMessage>> withDeliveryTags(List<EmapOperationMessage> msgs) {
+        List<Message<EmapOperationMessage>> batch = new ArrayList<>();
+        long tag = 1;
+        for (EmapOperationMessage msg : msgs) {
+            batch.add(MessageBuilder.withPayload(msg).setHeader(AmqpHeaders.DELIVERY_TAG, tag++).build());
+        }
+        return batch;
+    }
+
+    private AdmitPatient admitPatient(String mrn, String visitNumber) throws Exception {
+        AdmitPatient msg = messageFactory.getAdtMessage("generic/A01.yaml");
+        msg.setMrn(mrn);
+        msg.setNhsNumber(null);
+        msg.setVisitNumber(visitNumber);
+        return msg;
+    }
+
+    private WaveformMessage waveformMessage() {
+        return messageFactory.getWaveformMsgs("52912", "stream 52912", 300, 10, 10,
+                "source1", "T11E^T11E BY02^BY02-25", Instant.parse("2010-09-10T12:00:00Z"), "uV", ChronoUnit.MILLIS).get(0);
+    }
+
+    /**
+     * An ignored message in the middle of a batch should only roll back its own changes, and the whole batch should
+     * be acked with a single multiple-ack.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testIgnoredMessageOnlyRollsBackItself() throws Exception {
+        // creates a visit observation type before being rejected as a delete
+        WaveformMessage waveformDelete = waveformMessage();
+        waveformDelete.setNumericValues(InterchangeValue.delete());
+
+        Channel channel = mock(Channel.class);
+        batchMessageListener.receiveBatch(
+                withDeliveryTags(List.of(admitPatient("11111111", "1001"), waveformDelete, admitPatient("22222222", "1002"))),
+                channel);
+
+        assertEquals(2, getAllMrns().size());
+        assertEquals(0, visitObservationTypeRepository.count());
+        assertEquals(3, idsEffectLoggingRepository.count());
+        verify(channel, times(1)).basicAck(3L, true);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    /**
+     * A cached entity created by a message that was rolled back to its savepoint isn't used by later messages.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testRolledBackCacheEntryIsEvicted() throws Exception {
+        // creates and caches a visit observation type before being rejected as a delete
+        WaveformMessage waveformDelete = waveformMessage();
+        waveformDelete.setNumericValues(InterchangeValue.delete());
+        Channel channel = mock(Channel.class);
+        batchMessageListener.receiveBatch(withDeliveryTags(List.of(waveformDelete)), channel);
+        assertEquals(0, visitObservationTypeRepository.count());
+
+        batchMessageListener.receiveBatch(withDeliveryTags(List.of(waveformMessage())), channel);
+        assertEquals(1, visitObservationTypeRepository.count());
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+}
@@ -0,0 +1,101 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLogging;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.IdsEffectLoggingRepository;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Effect logging is saved in the background, in batches.
+ * The scheduled flush is effectively turned off so that the tests decide when things get saved.
+ */
+@TestPropertySource(properties = {
+        "core.effect_logging.flush_size=5",
+        "core.effect_logging.flush_interval_millis=3600000"})
+class TestIdsEffectLoggingWriter extends MessageProcessingBase {
+    @Autowired
+    private IdsEffectLoggingWriter idsEffectLoggingWriter;
+    @Autowired
+    private IdsEffectLoggingRepository idsEffectLoggingRepository;
+    @Autowired
+    private MessageHandler messageHandler;
+
+    private IdsEffectLogging effectLogging(String sourceId) {
+        IdsEffectLogging idsEffectLogging = new IdsEffectLogging();
+        idsEffectLogging.setSourceId(sourceId);
+        idsEffectLogging.setProcessingStartTime(past);
+        idsEffectLogging.setProcessingEndTime(past);
+        return idsEffectLogging;
+    }
+
+    /**
+     * Processing a message queues its effect logging, which is saved on the next flush.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testProcessedMessageIsLoggedOnFlush() throws Exception {
+        AdmitPatient msg = messageFactory.getAdtMessage("generic/A01.yaml");
+        messageHandler.processAndAck(msg, mock(Channel.class), 1L);
+        assertEquals(0, idsEffectLoggingRepository.count());
+
+        idsEffectLoggingWriter.flush();
+        assertEquals(1, idsEffectLoggingRepository.count());
+    }
+
+    /**
+     * Once a full batch is waiting it is saved without waiting for the flush interval.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testFullBatchIsSavedWithoutFlush() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            idsEffectLoggingWriter.write(effectLogging(String.valueOf(i)));
+        }
+        Thread.sleep(500);
+        assertEquals(0, idsEffectLoggingRepository.count());
+
+        idsEffectLoggingWriter.write(effectLogging("4"));
+        Instant deadline = Instant.now().plusSeconds(10);
+        while (idsEffectLoggingRepository.count() < 5 && Instant.now().isBefore(deadline)) {
+            Thread.sleep(50);
+        }
+        assertEquals(5, idsEffectLoggingRepository.count());
+    }
+
+    /**
+     * A batch that fails to save is kept in the buffer, and saved in its original order on the next flush.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testFailedBatchIsRetried() throws InterruptedException {
+        IdsEffectLoggingRepository failingRepository = mock(IdsEffectLoggingRepository.class);
+        List<List<IdsEffectLogging>> savedBatches = new ArrayList<>();
+        when(failingRepository.saveAll(any()))
+                .thenThrow(new IllegalStateException("database unavailable"))
+                .thenAnswer(invocation -> {
+                    savedBatches.add(new ArrayList<>(invocation.getArgument(0)));
+                    return List.of();
+                });
+        IdsEffectLoggingWriter writer = new IdsEffectLoggingWriter(failingRepository, 10, 10);
+        List<IdsEffectLogging> logs = List.of(effectLogging("0"), effectLogging("1"), effectLogging("2"));
+        logs.forEach(writer::write);
+
+        writer.flush();
+        assertEquals(List.of(), savedBatches);
+        writer.flush();
+        assertEquals(List.of(logs), savedBatches);
+        writer.shutdown();
+    }
+}
@@ -0,0 +1,194 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MessageMrns;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MrnPartitionedExecutor;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.MergePatient;
+import uk.ac.ucl.rits.inform.interchange.adt.SwapLocations;
+import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
+import uk.ac.ucl.rits.inform.interchange.location.LocationMetadata;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests for processing messages in parallel, partitioned by MRN.
+ */
+public class TestMrnPartitionedExecutor {
+    private MrnPartitionedExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new MrnPartitionedExecutor(4, "TestWorker-");
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        executor.shutdown(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Tasks for the same MRN must run in the order they were submitted, even if earlier tasks are slower.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testSameMrnKeepsOrder() throws InterruptedException {
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            int taskNum = i;
+            executor.submit(List.of("mrn1"), () -> {
+                sleep(10 - taskNum);
+                completed.add(taskNum);
+            });
+        }
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), completed);
+    }
+
+    /**
+     * Tasks for different MRNs can run at the same time.
+     * If they couldn't, the first task would never see the second one start and the latch would time out.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testDifferentMrnsRunInParallel() throws InterruptedException {
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        List<Boolean> results = Collections.synchronizedList(new ArrayList<>());
+        Runnable task = () -> {
+            bothStarted.countDown();
+            try {
+                results.add(bothStarted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        executor.submit(List.of("mrn1"), task);
+        executor.submit(List.of("mrn2"), task);
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of(true, true), results);
+    }
+
+    /**
+     * A task locking two MRNs must wait for earlier tasks on either of them.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testPairWaitsForBothMrns() throws InterruptedException {
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        executor.submit(List.of("mrn1"), () -> {
+            sleep(50);
+            completed.add("first");
+        });
+        executor.submit(List.of("mrn2"), () -> {
+            sleep(100);
+            completed.add("second");
+        });
+        executor.submit(List.of("mrn1", "mrn2"), () -> completed.add("merge"));
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second", "merge"), completed);
+    }
+
+    /**
+     * An exclusive task waits for all earlier tasks, and later tasks wait for it.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testExclusiveRunsOnItsOwn() throws InterruptedException {
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        executor.submit(List.of("mrn1"), () -> {
+            sleep(50);
+            completed.add("before");
+        });
+        executor.submitExclusive(() -> {
+            sleep(50);
+            completed.add("exclusive");
+        });
+        executor.submit(List.of("mrn2"), () -> completed.add("after"));
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("before", "exclusive", "after"), completed);
+    }
+
+    /**
+     * If a task's keys change while it waits for them, for example because an earlier task merged its patient,
+     * it must also wait for the new keys.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testKeysWorkedOutAgainOnceLocked() throws InterruptedException {
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger lookups = new AtomicInteger();
+        executor.submit(List.of("mrn1"), () -> {
+            sleep(50);
+            completed.add("first");
+        });
+        executor.submit(List.of("mrn2"), () -> {
+            sleep(100);
+            completed.add("second");
+        });
+        executor.submit(() -> lookups.getAndIncrement() == 0 ? List.of("mrn1") : List.of("mrn2"), () -> completed.add("third"));
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(List.of("first", "second", "third"), completed);
+        assertEquals(3, lookups.get());
+    }
+
+    /**
+     * Messages referring to two patients lock both, with their MRN strings, NHS numbers and live MRNs.
+     */
+    @Test
+    void testMessageLockKeys() {
+        MessageMrns.LiveMrnLookup lookup = (mrn, nhsNumber) -> "mrn1".equals(mrn) ? List.of(10L) : List.of();
+
+        AdmitPatient admit = new AdmitPatient();
+        admit.setMrn("mrn1");
+        assertEquals(List.of("live:10", "mrn:mrn1"), MessageMrns.lockKeys(admit, lookup));
+
+        MergePatient merge = new MergePatient();
+        merge.setMrn("mrn2");
+        merge.setPreviousMrn("mrn1");
+        assertEquals(List.of("live:10", "mrn:mrn1", "mrn:mrn2"), MessageMrns.lockKeys(merge, lookup));
+
+        SwapLocations swap = new SwapLocations();
+        swap.setMrn("mrn1");
+        swap.setOtherNhsNumber("nhs2");
+        assertEquals(List.of("live:10", "mrn:mrn1", "nhs:nhs2"), MessageMrns.lockKeys(swap, lookup));
+
+        assertEquals(List.of(MessageMrns.WAVEFORM_KEY), MessageMrns.lockKeys(new WaveformMessage(), lookup));
+        assertEquals(List.of(MessageMrns.NO_MRN_KEY), MessageMrns.lockKeys(new LocationMetadata(), lookup));
+    }
+
+    /**
+     * Merges and metadata are processed on their own, everything else with its patient locked.
+     */
+    @Test
+    void testExclusiveMessages() {
+        assertTrue(MessageMrns.isExclusive(new MergePatient()));
+        assertTrue(MessageMrns.isExclusive(new LocationMetadata()));
+        AdmitPatient admit = new AdmitPatient();
+        admit.setNhsNumber("nhs1");
+        assertFalse(MessageMrns.isExclusive(admit));
+        LabOrderMsg labOrder = new LabOrderMsg();
+        labOrder.setMrn("mrn1");
+        assertFalse(MessageMrns.isExclusive(labOrder));
+        assertFalse(MessageMrns.isExclusive(new WaveformMessage()));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
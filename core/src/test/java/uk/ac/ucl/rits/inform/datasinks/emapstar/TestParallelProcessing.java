@@ -0,0 +1,152 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import com.rabbitmq.client.Channel;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.concurrent.MessageMrns;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.ReferenceDataConflictException;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.locations.LocationRepository;
+import uk.ac.ucl.rits.inform.informdb.movement.Location;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.lab.LabOrderMsg;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Database side of processing messages in parallel: finding which patients a message locks,
+ * and stopping two transactions from creating the same reference data.
+ */
+@TestPropertySource(properties = {"core.rabbitmq.parallel_workers=2"})
+class TestParallelProcessing extends MessageProcessingBase {
+    @Autowired
+    private LocationRepository locationRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    @Autowired
+    private HikariDataSource dataSource;
+    @Autowired
+    private MessageHandler messageHandler;
+
+    /**
+     * The connection pool is raised from its configured size to fit the workers and the background jobs.
+     */
+    @Test
+    void testConnectionPoolFitsWorkers() {
+        assertEquals(2 + ConnectionPoolSize.BACKGROUND_CONNECTIONS, dataSource.getMaximumPoolSize());
+    }
+
+    /**
+     * A message that keeps clashing with other messages over reference data is processed again until it succeeds,
+     * and is then acked, rather than being dropped after a few attempts.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testConflictingMessageIsRetriedUntilProcessed() throws Exception {
+        EmapOperationMessage msg = mock(EmapOperationMessage.class);
+        when(msg.getSourceMessageId()).thenReturn("conflicting");
+        when(msg.getMessageType()).thenReturn("test");
+        doThrow(new ReferenceDataConflictException("conflict")).doThrow(new ReferenceDataConflictException("conflict"))
+                .doThrow(new ReferenceDataConflictException("conflict")).doThrow(new ReferenceDataConflictException("conflict"))
+                .doNothing().when(msg).processMessage(any());
+        Channel channel = mock(Channel.class);
+
+        messageHandler.processAndAck(msg, channel, 1L);
+
+        verify(msg, times(5)).processMessage(any());
+        verify(channel).basicAck(1L, false);
+        verify(channel, never()).basicNack(1L, false, false);
+    }
+
+    /**
+     * A retired MRN and the MRN it was merged into are the same patient, as is a patient only known by their NHS number.
+     */
+    @Test
+    @Sql("/populate_db.sql")
+    void testLockKeysIncludeLiveMrn() {
+        MessageMrns.LiveMrnLookup lookup = mrnToLiveRepo::findLiveMrnIdsByMrnOrNhsNumber;
+
+        LabOrderMsg retiredMrnLab = new LabOrderMsg();
+        retiredMrnLab.setMrn("60600000");
+        AdmitPatient survivingMrnAdmit = new AdmitPatient();
+        survivingMrnAdmit.setMrn("30700000");
+        assertEquals(List.of("live:1003", "mrn:60600000"), MessageMrns.lockKeys(retiredMrnLab, lookup));
+        assertEquals(List.of("live:1003", "mrn:30700000"), MessageMrns.lockKeys(survivingMrnAdmit, lookup));
+
+        AdmitPatient nhsNumberAdmit = new AdmitPatient();
+        nhsNumberAdmit.setNhsNumber("222222222");
+        LabOrderMsg mrnLab = new LabOrderMsg();
+        mrnLab.setMrn("50100010");
+        assertEquals(List.of("live:1005", "nhs:222222222"), MessageMrns.lockKeys(nhsNumberAdmit, lookup));
+        assertEquals(List.of("live:1005", "mrn:50100010"), MessageMrns.lockKeys(mrnLab, lookup));
+
+        AdmitPatient newPatient = new AdmitPatient();
+        newPatient.setMrn("new mrn");
+        assertEquals(List.of("mrn:new mrn"), MessageMrns.lockKeys(newPatient, lookup));
+    }
+
+    /**
+     * A transaction that looked for reference data before another transaction committed some can't write reference data,
+     * because it might be creating a duplicate of what the other transaction created.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testConflictingReferenceDataWrite() throws Exception {
+        TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        CountDownLatch lookedUp = new CountDownLatch(1);
+        CountDownLatch otherCommitted = new CountDownLatch(1);
+        ExecutorService thread = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> slowTransaction = thread.submit(() -> transaction.executeWithoutResult(status -> {
+                locationRepository.findByLocationStringEquals("slow");
+                lookedUp.countDown();
+                awaitLatch(otherCommitted);
+                locationRepository.save(new Location("slow"));
+            }));
+            assertTrue(lookedUp.await(10, TimeUnit.SECONDS));
+            transaction.executeWithoutResult(status -> locationRepository.save(new Location("fast")));
+            otherCommitted.countDown();
+
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> slowTransaction.get(10, TimeUnit.SECONDS));
+            assertTrue(ReferenceDataGuard.isConflict(thrown));
+        } finally {
+            thread.shutdownNow();
+        }
+
+        // processed again, it sees the other transaction's data and can write
+        transaction.executeWithoutResult(status -> locationRepository.save(new Location("slow")));
+        assertTrue(locationRepository.findByLocationStringEquals("fast").isPresent());
+        assertTrue(locationRepository.findByLocationStringEquals("slow").isPresent());
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -91,12 +91,14 @@ public class TestPatientAllergyProcessing extends MessageProcessingBase {
         assertEquals(1, getAllEntities(conditionTypeRepository).size());
         assertEquals(1, getAllMrns().size());
 
-        PatientCondition condition = getFirstPatientCondition();
-        assertEquals(FIRST_MRN, condition.getMrnId().getMrn());
-        assertEquals(NUM_TRAMADOL_REACTIONS, getAllEntities(allergenReactionRepository).size());
-        assertEquals(Instant.parse(FIRST_ADDED_TIME), condition.getAddedDatetime());
-        assertEquals(LocalDate.parse(FIRST_ONSET_DATE), condition.getOnsetDate());
-        assertTrue(hasNoPriorityCommentOrResolutionTime(condition));
+        inTransaction(() -> {
+            PatientCondition condition = getFirstPatientCondition();
+            assertEquals(FIRST_MRN, condition.getMrnId().getMrn());
+            assertEquals(NUM_TRAMADOL_REACTIONS, getAllEntities(allergenReactionRepository).size());
+            assertEquals(Instant.parse(FIRST_ADDED_TIME), condition.getAddedDatetime());
+            assertEquals(LocalDate.parse(FIRST_ONSET_DATE), condition.getOnsetDate());
+            assertTrue(hasNoPriorityCommentOrResolutionTime(condition));
+        });
     }
 
     /**
@@ -134,27 +136,29 @@ public class TestPatientAllergyProcessing extends MessageProcessingBase {
         processSingleMessage(hooverMessages.get(0));
         assertTrue(aSingleConditionExists());
 
-        PatientCondition condition = getFirstPatientCondition();
-        assertEquals(FIRST_MRN, condition.getMrnId().getMrn());
-        assertEquals(1, condition.getInternalId());
-        assertEquals(SECOND_ALLERGEN, condition.getConditionTypeId().getInternalCode());
-        assertEquals(CONDITION_TYPE, condition.getConditionTypeId().getDataType());
-        assertEquals(SECOND_ALLERGEN_SUBTYPE, condition.getConditionTypeId().getSubType());
-        assertEquals(Instant.parse(FIRST_ADDED_TIME), condition.getAddedDatetime());
-        assertEquals(LocalDate.parse("2019-03-05"), condition.getOnsetDate());
-        assertEquals(SECOND_ALLERGY_SEVERITY, condition.getSeverity());
-        assertEquals(ACTIVE, condition.getStatus());
-        assertTrue(hasNoPriorityCommentOrResolutionTime(condition));
-
-        List<AllergenReaction> reactions = getAllEntities(allergenReactionRepository);
-        assertEquals(2, reactions.size());
-
-        List<String> reactionNames = Arrays.asList(reactions.get(0).getName(), reactions.get(1).getName());
-
-        for (String reactionName : SECOND_ALLERGY_REACTIONS){
-            assertTrue(reactionNames.contains(reactionName));
-
-        }
+        inTransaction(() -> {
+            PatientCondition condition = getFirstPatientCondition();
+            assertEquals(FIRST_MRN, condition.getMrnId().getMrn());
+            assertEquals(1, condition.getInternalId());
+            assertEquals(SECOND_ALLERGEN, condition.getConditionTypeId().getInternalCode());
+            assertEquals(CONDITION_TYPE, condition.getConditionTypeId().getDataType());
+            assertEquals(SECOND_ALLERGEN_SUBTYPE, condition.getConditionTypeId().getSubType());
+            assertEquals(Instant.parse(FIRST_ADDED_TIME), condition.getAddedDatetime());
+            assertEquals(LocalDate.parse("2019-03-05"), condition.getOnsetDate());
+            assertEquals(SECOND_ALLERGY_SEVERITY, condition.getSeverity());
+            assertEquals(ACTIVE, condition.getStatus());
+            assertTrue(hasNoPriorityCommentOrResolutionTime(condition));
+
+            List<AllergenReaction> reactions = getAllEntities(allergenReactionRepository);
+            assertEquals(2, reactions.size());
+
+            List<String> reactionNames = Arrays.asList(reactions.get(0).getName(), reactions.get(1).getName());
+
+            for (String reactionName : SECOND_ALLERGY_REACTIONS){
+                assertTrue(reactionNames.contains(reactionName));
+
+            }
+        });
     }
 
     /**
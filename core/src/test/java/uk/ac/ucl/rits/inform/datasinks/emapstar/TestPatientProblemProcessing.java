@@ -111,13 +111,15 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
             }
         }
 
-        PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
-
-        assertEquals(PATIENT_MRN, condition.getMrnId().getMrn());
-        assertEquals(MYELOMA_PROBLEM_CODE, condition.getConditionTypeId().getInternalCode());
-        assertEquals(MYELOMA_PROBLEM_NAME, condition.getConditionTypeId().getName());
-        assertEquals(LocalDate.parse(MYELOMA_ADDED_TIME), condition.getAddedDate());
-        assertEquals(LocalDate.parse(MYELOMA_ONSET_DATE), condition.getOnsetDate());
+        inTransaction(() -> {
+            PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
+
+            assertEquals(PATIENT_MRN, condition.getMrnId().getMrn());
+            assertEquals(MYELOMA_PROBLEM_CODE, condition.getConditionTypeId().getInternalCode());
+            assertEquals(MYELOMA_PROBLEM_NAME, condition.getConditionTypeId().getName());
+            assertEquals(LocalDate.parse(MYELOMA_ADDED_TIME), condition.getAddedDate());
+            assertEquals(LocalDate.parse(MYELOMA_ONSET_DATE), condition.getOnsetDate());
+        });
     }
 
     /**
@@ -147,15 +149,17 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
         processSingleMessage(hl7MyelomaInpatient);
         processSingleMessage(hl7OtherProblemInpatient);
 
-        List<PatientCondition> entities = getAllEntities(patientConditionRepository);
-        assertEquals(2, entities.size());
-        PatientCondition firstProblem = entities.get(0);
-        PatientCondition secondProblem = entities.get(1);
-
-        // Conditions should refer to the same patient, but have different types and problem names
-        assertEquals(firstProblem.getMrnId(), secondProblem.getMrnId());
-        assertNotEquals(firstProblem.getConditionTypeId(), secondProblem.getConditionTypeId());
-        assertNotEquals(firstProblem.getConditionTypeId().getName(), secondProblem.getConditionTypeId().getName());
+        inTransaction(() -> {
+            List<PatientCondition> entities = getAllEntities(patientConditionRepository);
+            assertEquals(2, entities.size());
+            PatientCondition firstProblem = entities.get(0);
+            PatientCondition secondProblem = entities.get(1);
+
+            // Conditions should refer to the same patient, but have different types and problem names
+            assertEquals(firstProblem.getMrnId(), secondProblem.getMrnId());
+            assertNotEquals(firstProblem.getConditionTypeId(), secondProblem.getConditionTypeId());
+            assertNotEquals(firstProblem.getConditionTypeId().getName(), secondProblem.getConditionTypeId().getName());
+        });
     }
 
     /**
@@ -176,9 +180,11 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
 
         processSingleMessage(hl7MyelomaInpatient);
 
-        PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
-        assertEquals(originalTime, condition.getValidFrom());
-        assertEquals("the current problem", condition.getConditionTypeId().getName());
+        inTransaction(() -> {
+            PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
+            assertEquals(originalTime, condition.getValidFrom());
+            assertEquals("the current problem", condition.getConditionTypeId().getName());
+        });
     }
 
     /**
@@ -252,9 +258,11 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
 
         processSingleMessage(msg);
 
-        PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
-        assertEquals(msg.getConditionName().get(), condition.getConditionTypeId().getName());
-        assertEquals(msg.getUpdatedDateTime(), condition.getValidFrom());
+        inTransaction(() -> {
+            PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
+            assertEquals(msg.getConditionName().get(), condition.getConditionTypeId().getName());
+            assertEquals(msg.getUpdatedDateTime(), condition.getValidFrom());
+        });
     }
 
     /**
@@ -272,8 +280,10 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
 
         processSingleMessage(msg);
 
-        PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
-        assertEquals(hl7MyelomaInpatient.getConditionName().get(), condition.getConditionTypeId().getName());
+        inTransaction(() -> {
+            PatientCondition condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
+            assertEquals(hl7MyelomaInpatient.getConditionName().get(), condition.getConditionTypeId().getName());
+        });
     }
 
     /**
@@ -388,13 +398,15 @@ public class TestPatientProblemProcessing extends MessageProcessingBase {
 
         processSingleMessage(hl7MyelomaOutpatient);
 
-        var condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
-        var visit = hospitalVisitRepository.findByEncounter(newVisitNumber).orElseThrow();
+        inTransaction(() -> {
+            var condition = patientConditionRepository.findByMrnIdMrn(PATIENT_MRN).orElseThrow();
+            var visit = hospitalVisitRepository.findByEncounter(newVisitNumber).orElseThrow();
 
-        assertEquals(condition.getHospitalVisitId().getEncounter(), visit.getEncounter());
+            assertEquals(condition.getHospitalVisitId().getEncounter(), visit.getEncounter());
 
-        var links = conditionVisitLinkRepository.findAll();
-        assertEquals(2, links.size());
+            var links = conditionVisitLinkRepository.findAll();
+            assertEquals(2, links.size());
+        });
     }
 
     /**
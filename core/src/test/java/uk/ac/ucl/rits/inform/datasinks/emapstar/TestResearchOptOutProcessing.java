@@ -71,10 +71,12 @@ class TestResearchOptOutProcessing extends MessageProcessingBase {
         var optOutForMergedMrn = optOutMessages.stream().filter(mrn -> EXISTING_MRN.equals(mrn.getMrn())).findFirst().orElseThrow();
         processSingleMessage(optOutForMergedMrn);
 
-        var mrn = mrnRepository.findByMrnEquals(EXISTING_MRN).orElseThrow();
-        assertTrue(mrn.isResearchOptOut());
-        var liveMrn = mrnToLiveRepository.getByMrnIdEquals(mrn).getLiveMrnId();
-        assertTrue(liveMrn.isResearchOptOut());
+        inTransaction(() -> {
+            var mrn = mrnRepository.findByMrnEquals(EXISTING_MRN).orElseThrow();
+            assertTrue(mrn.isResearchOptOut());
+            var liveMrn = mrnToLiveRepository.getByMrnIdEquals(mrn).getLiveMrnId();
+            assertTrue(liveMrn.isResearchOptOut());
+        });
     }
 
     /**
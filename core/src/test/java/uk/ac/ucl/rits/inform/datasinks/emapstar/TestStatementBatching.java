@@ -0,0 +1,101 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Number of JDBC statements prepared and selects run to process each type of message, once a patient has already been admitted.
+ * <p>
+ * Inserts are batched and IDs come from the sequence in blocks, so this is mostly the queries that find existing rows.
+ * A budget going up means that a change has added statements for every message of that type, so check that it's worth it.
+ * <p>
+ * Associations are fetched lazily, so a change that walks an association that the repository method didn't fetch
+ * adds a select for every message. If the select budget goes up, add the association to the method's entity graph instead.
+ */
+@TestPropertySource(properties = {"spring.jpa.properties.hibernate.generate_statistics=true"})
+class TestStatementBatching extends MessageProcessingBase {
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    private Statistics statistics;
+
+    @BeforeEach
+    void admitPatient() throws Exception {
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        AdmitPatient admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        dbOps.processMessage(admit);
+    }
+
+    /**
+     * @param messages          messages to process
+     * @param expectedInserts   number of rows that the messages should insert
+     * @param maximumStatements most statements that processing the messages should prepare
+     * @param maximumSelects    most queries and lazy association fetches that processing the messages should run
+     * @throws Exception shouldn't happen
+     */
+    private void assertStatementsWithinBudget(
+            List<? extends EmapOperationMessage> messages, long expectedInserts, long maximumStatements, long maximumSelects)
+            throws Exception {
+        statistics.clear();
+        for (EmapOperationMessage msg : messages) {
+            msg.processMessage(dbOps);
+        }
+        assertEquals(expectedInserts, statistics.getEntityInsertCount());
+        long statements = statistics.getPrepareStatementCount();
+        assertTrue(statements <= maximumStatements,
+                String.format("%d statements prepared, more than the budget of %d", statements, maximumStatements));
+        long selects = statistics.getQueryExecutionCount() + statistics.getEntityFetchCount() + statistics.getCollectionFetchCount();
+        assertTrue(selects <= maximumSelects, String.format("%d selects, more than the budget of %d", selects, maximumSelects));
+    }
+
+    @Test
+    void testDischarge() throws Exception {
+        assertStatementsWithinBudget(List.of(messageFactory.getAdtMessage("generic/A03.yaml")), 3, 14, 9);
+    }
+
+    @Test
+    void testLabOrders() throws Exception {
+        assertStatementsWithinBudget(messageFactory.getLabOrders("winpath/ORU_R01.yaml", "0000040"), 20, 54, 28);
+    }
+
+    @Test
+    void testFlowsheets() throws Exception {
+        assertStatementsWithinBudget(messageFactory.getFlowsheets("hl7.yaml", "0000040"), 27, 60, 21);
+    }
+
+    @Test
+    void testPatientProblem() throws Exception {
+        assertStatementsWithinBudget(messageFactory.getPatientProblems("hl7/minimal_myeloma_inpatient.yaml"), 5, 15, 6);
+    }
+
+    @Test
+    void testPatientAllergy() throws Exception {
+        assertStatementsWithinBudget(messageFactory.getPatientAllergies("hl7/minimal_allergy.yaml"), 4, 12, 4);
+    }
+
+    @Test
+    void testAdvanceDecision() throws Exception {
+        assertStatementsWithinBudget(List.of(messageFactory.getAdvanceDecision("new_with_questions.yaml")), 8, 23, 11);
+    }
+
+    @Test
+    void testForms() throws Exception {
+        assertStatementsWithinBudget(messageFactory.getFormMsgs("forms1.yaml"), 35, 73, 32);
+    }
+
+    @Test
+    void testConsultRequest() throws Exception {
+        assertStatementsWithinBudget(List.of(messageFactory.getConsult("notes.yaml")), 8, 23, 11);
+    }
+}
@@ -93,18 +93,20 @@ class TestAdtProcessingLocation extends MessageProcessingBase {
         dbOps.processMessage(msg);
 
         // original location visit is discharged
-        LocationVisit dischargedVisit = locationVisitRepository.findByLocationIdLocationString(ORIGINAL_LOCATION).orElseThrow(NullPointerException::new);
-        assertNotNull(dischargedVisit.getDischargeDatetime());
-
-        // current location visit is different
-        LocationVisit currentVisit = locationVisitRepository
-                .findByDischargeDatetimeIsNullAndHospitalVisitIdHospitalVisitId(DEFAULT_HOSPITAL_VISIT_ID)
-                .orElseThrow(NullPointerException::new);
-        assertNotEquals(ORIGINAL_LOCATION, currentVisit.getLocationId().getLocationString());
-
-        // audit row for location when it had no discharge time
-        LocationVisitAudit audit = locationVisitAuditRepository.findByLocationIdLocationString(ORIGINAL_LOCATION).orElseThrow(NullPointerException::new);
-        assertNull(audit.getDischargeDatetime());
+        inTransaction(() -> {
+            LocationVisit dischargedVisit = locationVisitRepository.findByLocationIdLocationString(ORIGINAL_LOCATION).orElseThrow(NullPointerException::new);
+            assertNotNull(dischargedVisit.getDischargeDatetime());
+
+            // current location visit is different
+            LocationVisit currentVisit = locationVisitRepository
+                    .findByDischargeDatetimeIsNullAndHospitalVisitIdHospitalVisitId(DEFAULT_HOSPITAL_VISIT_ID)
+                    .orElseThrow(NullPointerException::new);
+            assertNotEquals(ORIGINAL_LOCATION, currentVisit.getLocationId().getLocationString());
+
+            // audit row for location when it had no discharge time
+            LocationVisitAudit audit = locationVisitAuditRepository.findByLocationIdLocationString(ORIGINAL_LOCATION).orElseThrow(NullPointerException::new);
+            assertNull(audit.getDischargeDatetime());
+        });
     }
 
     /**
@@ -386,8 +388,8 @@ class TestAdtProcessingLocation extends MessageProcessingBase {
         LocationVisit swappedLocationVisitA = locationVisitRepository.findByHospitalVisitIdAndDischargeDatetimeIsNull(visitA).orElseThrow();
         LocationVisit swappedLocationVisitB = locationVisitRepository.findByHospitalVisitIdAndDischargeDatetimeIsNull(visitB).orElseThrow();
 
-        assertEquals(originalLocationVisitB.getLocationId(), swappedLocationVisitA.getLocationId());
-        assertEquals(originalLocationVisitA.getLocationId(), swappedLocationVisitB.getLocationId());
+        assertEquals(originalLocationVisitB.getLocationId().getLocationId(), swappedLocationVisitA.getLocationId().getLocationId());
+        assertEquals(originalLocationVisitA.getLocationId().getLocationId(), swappedLocationVisitB.getLocationId().getLocationId());
 
     }
 }
@@ -335,13 +335,15 @@ class TestAdtProcessingPerson extends MessageProcessingBase {
         dbOps.processMessage(msg);
 
         // audit log for demographics should be populated
-        List<MrnToLiveAudit> audits = mrnToLiveAuditRepository.getAllByLiveMrnIdMrn(retiringMrnString);
-        assertEquals(2, audits.size());
-
-        // original live should be saved to audit
-        for (MrnToLiveAudit audit : audits) {
-            assertEquals(retiringMrnString, audit.getLiveMrnId().getMrn());
-        }
+        inTransaction(() -> {
+            List<MrnToLiveAudit> audits = mrnToLiveAuditRepository.getAllByLiveMrnIdMrn(retiringMrnString);
+            assertEquals(2, audits.size());
+
+            // original live should be saved to audit
+            for (MrnToLiveAudit audit : audits) {
+                assertEquals(retiringMrnString, audit.getLiveMrnId().getMrn());
+            }
+        });
     }
 
     /**
@@ -400,13 +400,15 @@ public class TestAdtProcessingVisit extends MessageProcessingBase {
         MoveVisitInformation msg = messageFactory.getAdtMessage("generic/A45.yaml");
         dbOps.processMessage(msg);
 
-        HospitalVisit visit = hospitalVisitRepository.findByEncounter(defaultEncounter).orElseThrow(NullPointerException::new);
-        // should be changed from default Mrn value
-        assertNotEquals(defaultMrn, visit.getMrnId().getMrn());
-
-        // Audit log should exist
-        HospitalVisitAudit audit = hospitalVisitAuditRepository.findByEncounter(defaultEncounter);
-        assertEquals(defaultMrn, audit.getMrnId().getMrn());
+        inTransaction(() -> {
+            HospitalVisit visit = hospitalVisitRepository.findByEncounter(defaultEncounter).orElseThrow(NullPointerException::new);
+            // should be changed from default Mrn value
+            assertNotEquals(defaultMrn, visit.getMrnId().getMrn());
+
+            // Audit log should exist
+            HospitalVisitAudit audit = hospitalVisitAuditRepository.findByEncounter(defaultEncounter);
+            assertEquals(defaultMrn, audit.getMrnId().getMrn());
+        });
     }
 
     /**
@@ -0,0 +1,98 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.adt;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.jdbc.Sql;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.BedOccupancyIndex;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.CancelAdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.DischargePatient;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The bed occupancy index must give the same location visits as querying the database, as location visits change.
+ * Indexes all of time, so that the test data is in the index.
+ */
+@TestPropertySource(properties = {"core.waveform.location_index.hours=1000000"})
+class TestBedOccupancyIndex extends MessageProcessingBase {
+    @Autowired
+    private BedOccupancyIndex bedOccupancyIndex;
+    @Autowired
+    private LocationVisitRepository locationVisitRepository;
+
+    private static final String LOCATION = "T42E^T42E BY02^BY02-17";
+    private static final String EXISTING_LOCATION = "T42E^T42E BY03^BY03-17";
+    private final Instant admissionTime = Instant.parse("2013-02-11T10:00:52Z");
+    private AdmitPatient admit;
+
+    @BeforeEach
+    void setup() throws Exception {
+        admit = messageFactory.getAdtMessage("generic/A01.yaml");
+    }
+
+    private Optional<Long> indexedVisitId(String location, Instant time) {
+        return bedOccupancyIndex.findLocationVisit(location, time).map(LocationVisit::getLocationVisitId);
+    }
+
+    private Optional<Long> queriedVisitId(String location, Instant time) {
+        return locationVisitRepository.findLocationVisitByLocationAndTime(time, location).map(LocationVisit::getLocationVisitId);
+    }
+
+    @Test
+    void testAdmitThenDischarge() throws Exception {
+        Instant duringVisit = admissionTime.plus(1, ChronoUnit.HOURS);
+        // looking the location up first means that the index has to notice the admission
+        assertTrue(indexedVisitId(LOCATION, duringVisit).isEmpty());
+
+        dbOps.processMessage(admit);
+        Optional<Long> openVisitId = indexedVisitId(LOCATION, duringVisit);
+        assertTrue(openVisitId.isPresent());
+        assertEquals(queriedVisitId(LOCATION, duringVisit), openVisitId);
+        assertTrue(indexedVisitId(LOCATION, admissionTime.minusSeconds(1)).isEmpty());
+
+        Instant dischargeTime = admissionTime.plus(2, ChronoUnit.HOURS);
+        DischargePatient discharge = messageFactory.getAdtMessage("generic/A03.yaml");
+        discharge.setFullLocationString(InterchangeValue.buildFromHl7(LOCATION));
+        discharge.setDischargeDateTime(dischargeTime);
+        dbOps.processMessage(discharge);
+        assertEquals(openVisitId, indexedVisitId(LOCATION, duringVisit));
+        assertEquals(openVisitId, indexedVisitId(LOCATION, dischargeTime));
+        assertTrue(indexedVisitId(LOCATION, dischargeTime.plusSeconds(1)).isEmpty());
+    }
+
+    @Test
+    void testCancelledAdmit() throws Exception {
+        Instant duringVisit = admissionTime.plus(1, ChronoUnit.HOURS);
+        dbOps.processMessage(admit);
+        assertTrue(indexedVisitId(LOCATION, duringVisit).isPresent());
+
+        CancelAdmitPatient cancelAdmit = messageFactory.getAdtMessage("generic/A11.yaml");
+        cancelAdmit.setFullLocationString(InterchangeValue.buildFromHl7(LOCATION));
+        cancelAdmit.setCancelledDateTime(admissionTime);
+        dbOps.processMessage(cancelAdmit);
+        assertTrue(indexedVisitId(LOCATION, duringVisit).isEmpty());
+    }
+
+    @Test
+    @Sql("/populate_db.sql")
+    void testExistingVisitsMatchQuery() {
+        for (Instant time : new Instant[]{
+                Instant.parse("2010-09-10T12:00:00Z"), Instant.parse("2010-09-14T15:27:00Z"), Instant.parse("2010-09-14T16:00:00Z")}) {
+            for (String location : new String[]{LOCATION, EXISTING_LOCATION, "T11E^T11E BY02^BY02-25", "unknown"}) {
+                assertEquals(queriedVisitId(location, time), indexedVisitId(location, time));
+            }
+        }
+    }
+}
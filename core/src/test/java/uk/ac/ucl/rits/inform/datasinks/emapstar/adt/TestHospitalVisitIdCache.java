@@ -0,0 +1,112 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.adt;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.jdbc.Sql;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.HospitalVisitIdCache;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.VisitController;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.RequiredDataMissingException;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
+import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.interchange.adt.DeletePersonInformation;
+import uk.ac.ucl.rits.inform.interchange.adt.MoveVisitInformation;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * The hospital visit cache must give the same visits as querying the database, as visits are moved and deleted.
+ */
+class TestHospitalVisitIdCache extends MessageProcessingBase {
+    @Autowired
+    private HospitalVisitIdCache hospitalVisitIdCache;
+    @Autowired
+    private VisitController visitController;
+    @Autowired
+    private HospitalVisitRepository hospitalVisitRepository;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private static final String SOURCE_SYSTEM = "EPIC";
+    private final Instant now = Instant.now();
+
+    private HospitalVisit minimalVisit(String encounter) throws RequiredDataMissingException {
+        Mrn mrn = personController.getOrCreateMrn(defaultMrn, null, SOURCE_SYSTEM, past, now);
+        return visitController.getOrCreateMinimalHospitalVisit(encounter, mrn, SOURCE_SYSTEM, past, now);
+    }
+
+    private long minimalVisitId(String encounter) throws RequiredDataMissingException {
+        return minimalVisit(encounter).getHospitalVisitId();
+    }
+
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testRepeatedLookupsAreCached() throws Exception {
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+        assertEquals(0, hospitalVisitIdCache.stats().hitCount());
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+        assertEquals(2, hospitalVisitIdCache.stats().hitCount());
+    }
+
+    /**
+     * A new visit is only cached once it has been committed.
+     */
+    @Test
+    void testNewVisitCachedOnceCommitted() throws Exception {
+        long newVisitId = minimalVisitId(defaultEncounter);
+        assertEquals(newVisitId, minimalVisitId(defaultEncounter));
+        assertEquals(0, hospitalVisitIdCache.stats().hitCount());
+        assertEquals(newVisitId, minimalVisitId(defaultEncounter));
+        assertEquals(1, hospitalVisitIdCache.stats().hitCount());
+    }
+
+    /**
+     * A cached visit is attached to the caller's persistence context, so it can be used as a normal entity.
+     */
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testCachedVisitIsAttached() throws Exception {
+        minimalVisitId(defaultEncounter);
+        String cachedEncounter = new TransactionTemplate(transactionManager).execute(status -> {
+            try {
+                return minimalVisit(defaultEncounter).getEncounter();
+            } catch (RequiredDataMissingException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(1, hospitalVisitIdCache.stats().hitCount());
+        assertEquals(defaultEncounter, cachedEncounter);
+    }
+
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testMovedVisitIsLookedUpAgain() throws Exception {
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+
+        MoveVisitInformation msg = messageFactory.getAdtMessage("generic/A45.yaml");
+        dbOps.processMessage(msg);
+
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+        assertEquals(0, hospitalVisitIdCache.stats().hitCount());
+    }
+
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testDeletedVisitIsNotReturned() throws Exception {
+        assertEquals(4001L, minimalVisitId(defaultEncounter));
+
+        DeletePersonInformation msg = messageFactory.getAdtMessage("generic/A29.yaml");
+        dbOps.processMessage(msg);
+
+        long newVisitId = minimalVisitId(defaultEncounter);
+        assertNotEquals(4001L, newVisitId);
+        assertEquals(newVisitId, hospitalVisitRepository.findByEncounter(defaultEncounter).orElseThrow().getHospitalVisitId());
+    }
+}
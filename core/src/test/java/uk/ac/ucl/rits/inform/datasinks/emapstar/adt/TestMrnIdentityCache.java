@@ -0,0 +1,88 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.adt;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.jdbc.Sql;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.MrnIdentityCache;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.exceptions.RequiredDataMissingException;
+import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
+import uk.ac.ucl.rits.inform.interchange.adt.MergePatient;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * The MRN cache must give the same live MRNs as querying the database, as MRNs are created, updated and merged.
+ */
+class TestMrnIdentityCache extends MessageProcessingBase {
+    @Autowired
+    private MrnIdentityCache mrnIdentityCache;
+
+    private static final String TRUSTED_SOURCE = "EPIC";
+    private final Instant now = Instant.now();
+
+    private long liveMrnId(String mrnString, String nhsNumber) throws RequiredDataMissingException {
+        return personController.getOrCreateMrn(mrnString, nhsNumber, TRUSTED_SOURCE, past, now).getMrnId();
+    }
+
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testRepeatedLookupsAreCached() throws Exception {
+        // merged MRN
+        assertEquals(1003L, liveMrnId("60600000", "1111111111"));
+        assertEquals(0, mrnIdentityCache.stats().hitCount());
+        assertEquals(1003L, liveMrnId("60600000", "1111111111"));
+        assertEquals(1003L, liveMrnId("60600000", null));
+        assertEquals(2, mrnIdentityCache.stats().hitCount());
+
+        // NHS number only
+        assertEquals(1009L, liveMrnId(null, "997372627"));
+        assertEquals(1009L, liveMrnId(null, "997372627"));
+        assertEquals(3, mrnIdentityCache.stats().hitCount());
+    }
+
+    /**
+     * A new MRN is only cached once it has been committed.
+     */
+    @Test
+    void testNewMrnCachedOnceCommitted() throws Exception {
+        long newMrnId = liveMrnId(defaultMrn, null);
+        assertEquals(newMrnId, liveMrnId(defaultMrn, null));
+        assertEquals(0, mrnIdentityCache.stats().hitCount());
+        assertEquals(newMrnId, liveMrnId(defaultMrn, null));
+        assertEquals(1, mrnIdentityCache.stats().hitCount());
+    }
+
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testMergeChangesCachedLiveMrn() throws Exception {
+        assertEquals(1001L, liveMrnId(defaultMrn, null));
+
+        MergePatient msg = messageFactory.getAdtMessage("generic/A40.yaml");
+        msg.setMrn("30700000");
+        dbOps.processMessage(msg);
+
+        assertEquals(1003L, liveMrnId(defaultMrn, null));
+        assertEquals(1003L, liveMrnId(defaultMrn, null));
+    }
+
+    /**
+     * A cached MRN still has its NHS number updated, and the old NHS number no longer finds it.
+     */
+    @Test
+    @Sql(value = "/populate_db.sql")
+    void testNhsNumberUpdatedForCachedMrn() throws Exception {
+        String newNhsNumber = "1234567890";
+        assertEquals(1001L, liveMrnId(defaultMrn, null));
+        assertEquals(1001L, liveMrnId(null, "9999999999"));
+
+        assertEquals(1001L, liveMrnId(defaultMrn, newNhsNumber));
+        assertEquals(newNhsNumber, mrnRepo.findByMrnEquals(defaultMrn).map(Mrn::getNhsNumber).orElseThrow());
+
+        assertEquals(1001L, liveMrnId(null, newNhsNumber));
+        assertNotEquals(1001L, liveMrnId(null, "9999999999"));
+    }
+}
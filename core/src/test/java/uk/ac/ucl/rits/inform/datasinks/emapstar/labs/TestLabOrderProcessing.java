@@ -245,13 +245,15 @@ class TestLabOrderProcessing extends MessageProcessingBase {
         //process message
         processSingleMessage(msg);
         // check results correct
-        LabSample labSample = labSampleRepository.findByExternalLabNumber(singleResultLabNumber).orElseThrow();
-        assertEquals(defaultMrn, labSample.getMrnId().getMrn());
-        assertEquals(sampleType, labSample.getSpecimenType());
-        assertEquals(sampleSite, labSample.getSampleSite());
-        assertEquals(collectionMethod, labSample.getCollectionMethod());
-        assertEquals(collectTime, labSample.getSampleCollectionDatetime());
-        assertEquals(collectTime, labSample.getReceiptAtLabDatetime());
+        inTransaction(() -> {
+            LabSample labSample = labSampleRepository.findByExternalLabNumber(singleResultLabNumber).orElseThrow();
+            assertEquals(defaultMrn, labSample.getMrnId().getMrn());
+            assertEquals(sampleType, labSample.getSpecimenType());
+            assertEquals(sampleSite, labSample.getSampleSite());
+            assertEquals(collectionMethod, labSample.getCollectionMethod());
+            assertEquals(collectTime, labSample.getSampleCollectionDatetime());
+            assertEquals(collectTime, labSample.getReceiptAtLabDatetime());
+        });
     }
 
     void processWithChangedSampleInformation(String initialValue, boolean changeSpecimenType) throws EmapOperationMessageProcessingException {
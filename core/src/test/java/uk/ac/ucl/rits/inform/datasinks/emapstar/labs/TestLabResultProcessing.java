@@ -321,11 +321,13 @@ class TestLabResultProcessing extends MessageProcessingBase {
         processSingleMessage(addLabIsolateAtResultTime(finalIsolateCode, finalIsolateName, "", "", "", laterTime));
 
         assertEquals(1, labIsolateRepository.count());
-        LabIsolate isolate = labIsolateRepository.findByIsolateCode(finalIsolateCode).orElseThrow();
-        assertEquals(finalIsolateName, isolate.getIsolateName());
-        // should update the isolate time, but also the result's updated time
-        assertEquals(laterTime, isolate.getValidFrom());
-        assertEquals(laterTime, isolate.getLabResultId().getResultLastModifiedDatetime());
+        inTransaction(() -> {
+            LabIsolate isolate = labIsolateRepository.findByIsolateCode(finalIsolateCode).orElseThrow();
+            assertEquals(finalIsolateName, isolate.getIsolateName());
+            // should update the isolate time, but also the result's updated time
+            assertEquals(laterTime, isolate.getValidFrom());
+            assertEquals(laterTime, isolate.getLabResultId().getResultLastModifiedDatetime());
+        });
     }
 
     @Test
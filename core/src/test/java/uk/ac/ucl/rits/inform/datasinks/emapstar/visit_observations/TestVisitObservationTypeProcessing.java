@@ -185,14 +185,16 @@ public class TestVisitObservationTypeProcessing extends MessageProcessingBase {
     @Sql("/test_files/visit_observation_type_processing/complex.sql")
     void testMappingClaritySecondOT() throws EmapOperationMessageProcessingException {
         processSingleMessage(flowsheetMpiMetadata);
-        List<VisitObservationType> vots = getAllEntities(visitObservationTypeRepository);
-        assertEquals(1, vots.size());
-        assertEquals(vots.get(0).getInterfaceId(), INTERFACE_ID);
-        assertEquals(vots.get(0).getIdInApplication(), ID_IN_APPLICATION);
-        List<VisitObservation> vos = visitObservationRepository.findAllByHospitalVisitIdEncounter(defaultEncounter);
-        for (VisitObservation vo : vos) {
-            assertEquals(vo.getVisitObservationTypeId(), vots.get(0));
-        }
+        inTransaction(() -> {
+            List<VisitObservationType> vots = getAllEntities(visitObservationTypeRepository);
+            assertEquals(1, vots.size());
+            assertEquals(vots.get(0).getInterfaceId(), INTERFACE_ID);
+            assertEquals(vots.get(0).getIdInApplication(), ID_IN_APPLICATION);
+            List<VisitObservation> vos = visitObservationRepository.findAllByHospitalVisitIdEncounter(defaultEncounter);
+            for (VisitObservation vo : vos) {
+                assertEquals(vo.getVisitObservationTypeId(), vots.get(0));
+            }
+        });
     }
 
     /**
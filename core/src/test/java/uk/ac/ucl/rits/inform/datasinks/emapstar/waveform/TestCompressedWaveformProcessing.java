@@ -0,0 +1,11 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * The same waveform processing tests, with the values stored compressed.
+ * The entity decompresses them, so the tests can read them in the same way.
+ */
+@TestPropertySource(properties = {"core.waveform.compression.enabled=true"})
+class TestCompressedWaveformProcessing extends TestWaveformProcessing {
+}
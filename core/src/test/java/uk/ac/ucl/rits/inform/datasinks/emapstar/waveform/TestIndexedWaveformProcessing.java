@@ -0,0 +1,11 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * The same waveform processing tests, with the test data recent enough to be linked from the bed occupancy index
+ * rather than by query.
+ */
+@TestPropertySource(properties = {"core.waveform.location_index.hours=1000000"})
+class TestIndexedWaveformProcessing extends TestWaveformProcessing {
+}
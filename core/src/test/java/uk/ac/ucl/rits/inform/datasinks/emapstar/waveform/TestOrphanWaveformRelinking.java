@@ -0,0 +1,151 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.MessageProcessingBase;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.controllers.OrphanWaveformRelinker;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.HospitalVisitRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.LocationVisitRepository;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformRepository;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.adt.AdmitPatient;
+import uk.ac.ucl.rits.inform.interchange.adt.DischargePatient;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Waveform data that arrives before the admission to its bed is linked once the admission arrives.
+ */
+@TestPropertySource(properties = {"core.waveform.relink.batch_minutes=5", "core.waveform.relink.pause_millis=0"})
+class TestOrphanWaveformRelinking extends MessageProcessingBase {
+    @Autowired
+    private WaveformRepository waveformRepository;
+    @Autowired
+    private HospitalVisitRepository hospitalVisitRepository;
+    @Autowired
+    private LocationVisitRepository locationVisitRepository;
+    @Autowired
+    private OrphanWaveformRelinker orphanWaveformRelinker;
+
+    private static final String LOCATION = "T42E^T42E BY02^BY02-17";
+    private static final String SOURCE_LOCATION = "bed17";
+    private static final String FIRST_ENCOUNTER = "123412341234";
+    private static final String SECOND_ENCOUNTER = "123412341235";
+    private final Instant admissionTime = Instant.parse("2013-02-11T10:00:52Z");
+
+    /**
+     * 20 minutes of data from 10 minutes before the first admission, 120 rows of 10 seconds.
+     */
+    private void processWaveforms() throws Exception {
+        List<WaveformMessage> messages = messageFactory.getWaveformMsgs("23", "stream 23", 50, 60_000, 500,
+                SOURCE_LOCATION, LOCATION, admissionTime.minusSeconds(600), "uV", null);
+        for (WaveformMessage msg : messages) {
+            processSingleMessage(msg);
+        }
+    }
+
+    private List<Waveform> getRows() {
+        List<Waveform> rows = new ArrayList<>();
+        waveformRepository.findAllBySourceLocationOrderByObservationDatetime(SOURCE_LOCATION).forEach(rows::add);
+        assertEquals(120, rows.size());
+        return rows;
+    }
+
+    private Long linkedVisitId(Waveform row) {
+        return row.getLocationVisitId() == null ? null : row.getLocationVisitId().getLocationVisitId();
+    }
+
+    private long visitIdForEncounter(String encounter) {
+        return locationVisitRepository.findAllByHospitalVisitId(hospitalVisitRepository.findByEncounter(encounter).orElseThrow()).get(0).getLocationVisitId();
+    }
+
+    @Test
+    void testOrphansLinkedOnAdmission() throws Exception {
+        processWaveforms();
+        assertTrue(getRows().stream().allMatch(row -> row.getLocationVisitId() == null));
+
+        AdmitPatient admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        dbOps.processMessage(admit);
+        orphanWaveformRelinker.drainPending();
+
+        long visitId = visitIdForEncounter(FIRST_ENCOUNTER);
+        for (Waveform row : getRows()) {
+            Long expected = row.getObservationDatetime().isBefore(admissionTime) ? null : visitId;
+            assertEquals(expected, linkedVisitId(row), "row at " + row.getObservationDatetime());
+        }
+    }
+
+    /**
+     * Orphans from either side of a closed visit are only linked to the next visit from its admission onwards.
+     */
+    @Test
+    void testOrphansOnlyLinkedDuringVisit() throws Exception {
+        Instant dischargeTime = admissionTime.plusSeconds(300);
+        AdmitPatient admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        dbOps.processMessage(admit);
+        DischargePatient discharge = messageFactory.getAdtMessage("generic/A03.yaml");
+        discharge.setFullLocationString(InterchangeValue.buildFromHl7(LOCATION));
+        discharge.setDischargeDateTime(dischargeTime);
+        dbOps.processMessage(discharge);
+        processWaveforms();
+
+        Instant secondAdmissionTime = dischargeTime.plusSeconds(120);
+        AdmitPatient secondAdmit = messageFactory.getAdtMessage("generic/A01.yaml");
+        secondAdmit.setMrn("40800001");
+        secondAdmit.setNhsNumber("9999999998");
+        secondAdmit.setVisitNumber(SECOND_ENCOUNTER);
+        secondAdmit.setAdmissionDateTime(InterchangeValue.buildFromHl7(secondAdmissionTime));
+        secondAdmit.setEventOccurredDateTime(secondAdmissionTime);
+        secondAdmit.setRecordedDateTime(secondAdmissionTime);
+        dbOps.processMessage(secondAdmit);
+        orphanWaveformRelinker.drainPending();
+
+        long firstVisitId = visitIdForEncounter(FIRST_ENCOUNTER);
+        long secondVisitId = visitIdForEncounter(SECOND_ENCOUNTER);
+        for (Waveform row : getRows()) {
+            Instant time = row.getObservationDatetime();
+            Long expected = null;
+            if (!time.isBefore(secondAdmissionTime)) {
+                expected = secondVisitId;
+            } else if (!time.isBefore(admissionTime) && !time.isAfter(dischargeTime)) {
+                expected = firstVisitId;
+            }
+            assertEquals(expected, linkedVisitId(row), "row at " + time);
+        }
+    }
+
+    /**
+     * Orphans from longer ago than the retention time before the most recent orphan are forgotten, so aren't linked.
+     */
+    @Test
+    void testExpiredOrphansNotLinked() throws Exception {
+        processWaveforms();
+        Instant lateTime = admissionTime.plusSeconds(2 * 60 * 60);
+        for (WaveformMessage msg : messageFactory.getWaveformMsgs("23", "stream 23", 50, 500, 500,
+                SOURCE_LOCATION, LOCATION, lateTime, "uV", null)) {
+            processSingleMessage(msg);
+        }
+        orphanWaveformRelinker.pruneExpiredRanges();
+
+        AdmitPatient admit = messageFactory.getAdtMessage("generic/A01.yaml");
+        dbOps.processMessage(admit);
+        orphanWaveformRelinker.drainPending();
+
+        long visitId = visitIdForEncounter(FIRST_ENCOUNTER);
+        List<Waveform> rows = new ArrayList<>();
+        waveformRepository.findAllBySourceLocationOrderByObservationDatetime(SOURCE_LOCATION).forEach(rows::add);
+        assertEquals(121, rows.size());
+        for (Waveform row : rows) {
+            Long expected = row.getObservationDatetime().equals(lateTime) ? visitId : null;
+            assertEquals(expected, linkedVisitId(row), "row at " + row.getObservationDatetime());
+        }
+    }
+}
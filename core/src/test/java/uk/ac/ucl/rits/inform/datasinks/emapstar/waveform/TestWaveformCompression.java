@@ -0,0 +1,88 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformCompression;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compressed waveform values must decode to exactly the same bits.
+ */
+class TestWaveformCompression {
+    private static double[] sineWave(int numSamples) {
+        double[] values = new double[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            values[i] = Math.sin(i * 0.05);
+        }
+        return values;
+    }
+
+    /**
+     * Whole numbers of microvolts, as monitors tend to send.
+     */
+    private static double[] quantisedWave(int numSamples) {
+        return Arrays.stream(sineWave(numSamples)).map(v -> Math.round(v * 500)).toArray();
+    }
+
+    static Stream<double[]> valueArrays() {
+        return Stream.of(
+                new double[0],
+                new double[]{42.5},
+                new double[]{1, 1, 1, 1},
+                new double[]{0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                        Double.MIN_VALUE, -Double.MIN_NORMAL, Double.MAX_VALUE, 1e-310, 0.0},
+                new double[]{1, 2, 1, 2, 1e100, 1, 1e-100},
+                sineWave(3000),
+                quantisedWave(3000));
+    }
+
+    @ParameterizedTest
+    @MethodSource("valueArrays")
+    void testRoundTrip(double[] values) {
+        double[] decoded = WaveformCompression.decode(WaveformCompression.encode(values));
+        assertEquals(values.length, decoded.length);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decoded[i]));
+        }
+    }
+
+    @Test
+    void testRepeatedValuesTakeOneBitEach() {
+        double[] values = new double[3000];
+        Arrays.fill(values, 12.5);
+        // header, the first value, then the rest of the bits rounded up to a byte
+        assertEquals(5 + 8 + (2999 + 7) / 8, WaveformCompression.encode(values).length);
+    }
+
+    @Test
+    void testQuantisedValuesAreSmallerThanArray() {
+        byte[] compressed = WaveformCompression.encode(quantisedWave(3000));
+        assertTrue(compressed.length < 3000 * 8 / 2, "compressed to " + compressed.length);
+    }
+
+    @Test
+    void testTruncatedData() {
+        byte[] compressed = WaveformCompression.encode(sineWave(10));
+        assertThrows(IllegalArgumentException.class, () -> WaveformCompression.decode(Arrays.copyOf(compressed, compressed.length - 2)));
+    }
+
+    @Test
+    void testUnknownFormat() {
+        byte[] compressed = WaveformCompression.encode(sineWave(10));
+        compressed[0] = 2;
+        assertThrows(IllegalArgumentException.class, () -> WaveformCompression.decode(compressed));
+    }
+
+    @Test
+    void testEmptyArray() {
+        assertArrayEquals(new double[0], WaveformCompression.decode(WaveformCompression.encode(new double[0])));
+    }
+}
@@ -0,0 +1,141 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.junit.jupiter.api.Test;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformCopyFormat;
+import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservationType;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformCompression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Read back the binary COPY data field by field, as the server would.
+ */
+class TestWaveformCopyFormat {
+    private final Instant observationTime = Instant.parse("2010-09-10T12:00:00.123456Z");
+    private final Instant storedFrom = Instant.parse("2000-01-01T00:00:01Z");
+
+    private Waveform waveform(double[] values, LocationVisit locationVisit) {
+        Waveform waveform = new Waveform(observationTime, observationTime, storedFrom);
+        waveform.setWaveformId(1234);
+        waveform.setSamplingRate(300);
+        waveform.setSourceLocation("bed1");
+        waveform.setUnit("µV");
+        waveform.setValuesArray(values);
+        waveform.setLocationVisitId(locationVisit);
+        VisitObservationType visitObservationType = new VisitObservationType();
+        visitObservationType.setVisitObservationTypeId(56);
+        waveform.setVisitObservationTypeId(visitObservationType);
+        return waveform;
+    }
+
+    private static DataInputStream copyData(Waveform... rows) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            WaveformCopyFormat.writeHeader(out);
+            for (Waveform row : rows) {
+                WaveformCopyFormat.writeRow(out, row);
+            }
+            WaveformCopyFormat.writeTrailer(out);
+        }
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static long readInt8(DataInputStream in) throws IOException {
+        assertEquals(8, in.readInt());
+        return in.readLong();
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testHeaderRowAndTrailer() throws IOException {
+        double[] values = {0.5, -1.25, Double.MAX_VALUE};
+        LocationVisit locationVisit = new LocationVisit();
+        locationVisit.setLocationVisitId(78);
+        DataInputStream in = copyData(waveform(values, locationVisit));
+
+        byte[] signature = new byte[11];
+        in.readFully(signature);
+        assertArrayEquals("PGCOPY\n\377\r\n\0".getBytes(StandardCharsets.ISO_8859_1), signature);
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+
+        assertEquals(11, in.readShort());
+        assertEquals(1234, readInt8(in));
+        assertEquals(1_000_000, readInt8(in));
+        // microseconds since 2000-01-01
+        assertEquals(337435200_123456L, readInt8(in));
+        assertEquals(337435200_123456L, readInt8(in));
+        assertEquals(300, readInt8(in));
+        assertEquals("bed1", readText(in));
+        assertEquals("µV", readText(in));
+
+        assertEquals(20 + 3 * 12, in.readInt());
+        assertEquals(1, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(701, in.readInt());
+        assertEquals(3, in.readInt());
+        assertEquals(1, in.readInt());
+        for (double value : values) {
+            assertEquals(8, in.readInt());
+            assertEquals(value, in.readDouble());
+        }
+        assertEquals(-1, in.readInt());
+
+        assertEquals(78, readInt8(in));
+        assertEquals(56, readInt8(in));
+        assertEquals(-1, in.readShort());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void testOrphanedRowWithEmptyArray() throws IOException {
+        DataInputStream in = copyData(waveform(new double[0], null));
+        skipToValues(in);
+
+        assertEquals(12, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(701, in.readInt());
+        assertEquals(-1, in.readInt());
+
+        assertEquals(-1, in.readInt());
+        assertEquals(56, readInt8(in));
+        assertEquals(-1, in.readShort());
+    }
+
+    @Test
+    void testCompressedValues() throws IOException {
+        double[] values = {0.5, 0.5, 0.75};
+        Waveform waveform = waveform(null, null);
+        waveform.setValuesCompressed(WaveformCompression.encode(values));
+        DataInputStream in = copyData(waveform);
+        skipToValues(in);
+
+        assertEquals(-1, in.readInt());
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        assertArrayEquals(values, WaveformCompression.decode(compressed));
+    }
+
+    private static void skipToValues(DataInputStream in) throws IOException {
+        in.skipBytes(19);
+        assertEquals(11, in.readShort());
+        in.skipBytes(5 * 12 + (4 + "bed1".length()) + (4 + "µV".getBytes(StandardCharsets.UTF_8).length));
+    }
+}
@@ -0,0 +1,55 @@
+package uk.ac.ucl.rits.inform.datasinks.emapstar.waveform;
+
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import uk.ac.ucl.rits.inform.datasinks.emapstar.repos.visit_observations.WaveformPartitions;
+import uk.ac.ucl.rits.inform.informdb.visit_recordings.Waveform;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Partition boundaries don't depend on when core happens to create the partitions,
+ * and partitioning is only used when it can't deadlock.
+ */
+class TestWaveformPartitions {
+    @ParameterizedTest
+    @CsvSource({
+            "2024-01-02T12:34:56.789Z, 1, 2024-01-02T12:00:00Z",
+            "2024-01-02T12:00:00Z, 1, 2024-01-02T12:00:00Z",
+            "2024-01-02T11:59:59.999Z, 1, 2024-01-02T11:00:00Z",
+            "2024-01-02T12:34:56Z, 6, 2024-01-02T12:00:00Z",
+            "2024-01-02T05:59:59Z, 6, 2024-01-02T00:00:00Z",
+            "2024-01-02T23:59:59Z, 24, 2024-01-02T00:00:00Z",
+            "1969-12-31T23:30:00Z, 24, 1969-12-31T00:00:00Z",
+    })
+    void testPartitionStart(Instant observationDatetime, int partitionHours, Instant expectedStart) {
+        assertEquals(expectedStart, WaveformPartitions.partitionStart(observationDatetime, Duration.ofHours(partitionHours)));
+    }
+
+    /**
+     * Without bulk copy, a message's transaction would already have written to the table when its partition is created.
+     */
+    @Test
+    void testRefusedWithoutBulkCopy() {
+        EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class);
+        SessionFactoryImplementor sessionFactory = mock(SessionFactoryImplementor.class, RETURNS_DEEP_STUBS);
+        when(entityManagerFactory.unwrap(SessionFactoryImplementor.class)).thenReturn(sessionFactory);
+        when(sessionFactory.getMetamodel().entityPersister(Waveform.class)).thenReturn(mock(AbstractEntityPersister.class));
+        DataSource dataSource = mock(DataSource.class);
+
+        WaveformPartitions partitions = new WaveformPartitions(dataSource, entityManagerFactory, 6, 3, false);
+        assertThrows(IllegalStateException.class, partitions::partitionTable);
+    }
+}
@@ -139,7 +139,7 @@ class TestWaveformProcessing extends MessageProcessingBase {
             for (var row: waveformRows) {
                 assertTrue(row.getValuesArray().length <= test.maxSamplesPerMessage);
                 assertEquals(test.unit, row.getUnit());
-                actualDataPointsAtLocation.addAll(Arrays.asList(row.getValuesArray()));
+                Arrays.stream(row.getValuesArray()).forEach(actualDataPointsAtLocation::add);
             }
             checkLooksLikeSineWave(actualDataPointsAtLocation);
 
@@ -257,8 +257,8 @@ class TestWaveformProcessing extends MessageProcessingBase {
         return Math.abs(d1 - d2) <= Math.abs(absTol);
     }
 
-    private static void checkVisitObservationTypes(List<Waveform> waveformRows,
-                                                   String sourceStreamId, String mappedStreamName) {
+    private void checkVisitObservationTypes(List<Waveform> waveformRows,
+                                            String sourceStreamId, String mappedStreamName) {
         // visit observations should all be the same, and be the right thing
         List<Long> distinctVisitObservationIds =
                 waveformRows.stream()
@@ -266,7 +266,7 @@ class TestWaveformProcessing extends MessageProcessingBase {
                         .map(VisitObservationType::getVisitObservationTypeId)
                         .distinct().toList();
         assertEquals(distinctVisitObservationIds.size(), 1);
-        VisitObservationType identicalVisitObs = waveformRows.get(0).getVisitObservationTypeId();
+        VisitObservationType identicalVisitObs = visitObservationTypeRepository.findById(distinctVisitObservationIds.get(0)).orElseThrow();
         assertEquals(sourceStreamId, identicalVisitObs.getIdInApplication());
         assertEquals(mappedStreamName, identicalVisitObs.getName());
     }
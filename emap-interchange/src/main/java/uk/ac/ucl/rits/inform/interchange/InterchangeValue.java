@@ -5,6 +5,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonTypeInfo;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -151,17 +152,19 @@ public class InterchangeValue<T> implements Serializable {
             return false;
         }
         InterchangeValue<?> interchangeValue = (InterchangeValue<?>) o;
-        return Objects.equals(value, interchangeValue.value)
+        // values may be arrays, which should be compared by content
+        return Objects.deepEquals(value, interchangeValue.value)
                 && status == interchangeValue.status;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(value, status);
+        return Arrays.deepHashCode(new Object[]{value, status});
     }
 
     @Override
     public String toString() {
-        return String.format("InterchangeValue{value=%s, status=%s}", value, status);
+        String valueString = Arrays.deepToString(new Object[]{value});
+        return String.format("InterchangeValue{value=%s, status=%s}", valueString.substring(1, valueString.length() - 1), status);
     }
 }
@@ -1,9 +1,13 @@
 package uk.ac.ucl.rits.inform.interchange.messaging;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpException;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,12 +17,18 @@ import uk.ac.ucl.rits.inform.interchange.EmapOperationMessage;
 import uk.ac.ucl.rits.inform.interchange.springconfig.EmapDataSource;
 
 import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
@@ -26,6 +36,19 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Publishes messages to rabbitmq, resending messages that receive a nack messaged.
+ * <p>
+ * Up to rabbitmq.max.intransit messages can be waiting for a publisher confirm at once. Callers that need to record
+ * progress should use {@link #submitInOrder}, so that progress is only ever moved on to the latest batch for which
+ * it and every earlier batch have been confirmed, and is safe to resume from after a crash.
+ * <p>
+ * Messages reach the queue in the order they were submitted. A message only counts as published once it and every
+ * message published before it have been confirmed. When a message is rejected, nothing new is published until every
+ * message in transit has had its confirm, then after a delay the rejected message and every message published after it
+ * are resent, in their original order. So a message that was accepted after a rejected one is published again,
+ * and consumers can receive it twice.
+ * <p>
+ * If a MeterRegistry is available, the number of messages waiting for a confirm and the time taken to get one
+ * are published as metrics.
  * @author Stef Piatek
  */
 @Component
@@ -33,14 +56,25 @@ public class Publisher implements Runnable, Releasable {
     private final RabbitTemplate rabbitTemplate;
     private final Semaphore semaphore;
     private final BlockingQueue<MessageBatch<? extends EmapOperationMessage>> blockingQueue;
-    private final Map<String, EmapOperationMessage> waitingMap;
+    /**
+     * Messages that have been published and not yet counted as published, by the sequence number they were last sent with.
+     * Also used as the lock for publishing and for handling confirms, so that messages are sent in sequence order.
+     */
+    private final NavigableMap<Long, InTransit> inTransit = new TreeMap<>();
+    private long nextSequence = 0;
+    private boolean resendScheduled = false;
     private final Map<String, ImmutablePair<Integer, Runnable>> batchWaitingMap;
+    /**
+     * Batches submitted in order, which haven't had their callback run yet. Also used as the lock for running them.
+     */
+    private final Deque<OrderedBatch> orderedBatches = new ArrayDeque<>();
+    private final ExecutorService orderedCallbackExecutor = Executors.newSingleThreadExecutor();
+    private Timer confirmLatency;
     private final ScheduledThreadPoolExecutor executorService;
     private final int maxInTransit;
-    private volatile boolean failedSend = false;
+    private boolean failedSend = false;
     private final int initialDelay;
     private int currentDelay;
-    private int countMessagesAtCurrentDelay = 0;
     private final int delayMultiplier = 2;
     private @Value("${rabbitmq.retry.delay.maximum:600}")
     int maximumDelay;
@@ -60,25 +94,27 @@ public class Publisher implements Runnable, Releasable {
      * @param maxInTransit   Application properties value rabbitmq.max.batches
      *                       Sets the maximum number of messages that can be awaiting an acknowledgement by rabbitmq
      * @param initialDelay   Initial delay for a failed message to be resent in seconds
+     * @param meterRegistry  Registry for publisher metrics, if there is one
      */
     @Autowired
     public Publisher(RabbitTemplate rabbitTemplate,
                      EmapDataSource emapDataSource,
                      @Value("${rabbitmq.max.batches:1}") int maxBatches,
                      @Value("${rabbitmq.max.intransit:1}") int maxInTransit,
-                     @Value("${rabbitmq.retry.delay.initial:1}") int initialDelay) {
+                     @Value("${rabbitmq.retry.delay.initial:1}") int initialDelay,
+                     ObjectProvider<MeterRegistry> meterRegistry) {
         semaphore = new Semaphore(maxInTransit, true);
         rabbitTemplate.setConfirmCallback(new MessagesConfirmCallback(this));
         this.rabbitTemplate = rabbitTemplate;
         this.getEmapDataSource = emapDataSource;
         blockingQueue = new ArrayBlockingQueue<>(maxBatches);
-        waitingMap = new ConcurrentHashMap<>();
         batchWaitingMap = new ConcurrentHashMap<>();
         executorService = new ScheduledThreadPoolExecutor(2);
         this.maxInTransit = maxInTransit;
         this.initialDelay = initialDelay;
         currentDelay = initialDelay;
         isFinished = false;
+        meterRegistry.ifAvailable(this::registerMetrics);
         mainThread = new Thread(this);
         mainThread.start();
     }
@@ -91,15 +127,16 @@ public class Publisher implements Runnable, Releasable {
      *                      Must not contain a colon character.
      * @param callback      To be run on receipt of a successful acknowledgement of publishing from rabbitmq.
      *                      Most likely to update the state of progress.
+     * @return false if a batch with this batchId is already being published, in which case the message was not submitted
      * @throws InterruptedException  if thread gets interrupted during queue put wait
      * @throws IllegalStateException if publisher has been shut down
      */
-    public void submit(EmapOperationMessage message, String correlationId, String batchId, Runnable callback)
+    public boolean submit(EmapOperationMessage message, String correlationId, String batchId, Runnable callback)
             throws InterruptedException, IllegalStateException {
         ImmutablePair<EmapOperationMessage, String> pair = new ImmutablePair<>(message, correlationId);
         List<ImmutablePair<EmapOperationMessage, String>> list = new ArrayList<>();
         list.add(pair);
-        submit(list, batchId, callback);
+        return submit(list, batchId, callback);
     }
 
     /**
@@ -111,10 +148,12 @@ public class Publisher implements Runnable, Releasable {
      * @param callback To be run on receipt of a successful acknowledgement of publishing all messages in batch from rabbitmq
      *                 Most likely to update the state of progress
      * @param <T>      Any child of EmapOperationMessage so that you can pass in child class directly.
+     * @return false if a batch with this batchId is already being published, in which case the batch was not submitted
+     *         and its callback will never be run
      * @throws InterruptedException  if thread gets interrupted during queue put wait
      * @throws IllegalStateException if publisher has been shut down
      */
-    public <T extends EmapOperationMessage> void submit(List<ImmutablePair<T, String>> batch, String batchId, Runnable callback)
+    public <T extends EmapOperationMessage> boolean submit(List<ImmutablePair<T, String>> batch, String batchId, Runnable callback)
             throws InterruptedException, IllegalStateException {
         if (isFinished) {
             throw new IllegalStateException("Publisher has been shut down");
@@ -123,17 +162,89 @@ public class Publisher implements Runnable, Releasable {
 
         // If queue is full for longer than the scan for new messages, then the progress would not have been updated
         // so check ensure that we're not adding a duplicate batchId of one in progress or a waiting batch
-        if (batchWaitingMap.containsKey(batchId) || blockingQueue.contains(submitBatch)) {
+        if (isDuplicate(submitBatch)) {
             logger.error("Queue with a batchId of {} already exists", batchId);
+            return false;
+        }
+        put(submitBatch);
+        return true;
+    }
+
+    /**
+     * Submit a batch of messages, with a callback that is only run once this batch and all batches previously submitted
+     * with this method have been published. Callbacks are run one at a time, in the order the batches were submitted.
+     * @param batch    Batch of messages to be sent (pairs of Emap messages and their unique correlationIds)
+     *                 CorrelationIds should be unique within the batch and not contain a colon character.
+     *                 Can be empty, so that progress can be recorded for something that gave rise to no messages.
+     * @param batchId  Unique Id for the batch. Must not contain a colon character.
+     * @param callback To be run once this and all earlier batches have been acknowledged by rabbitmq, in submission order.
+     *                 Most likely to update the state of progress
+     * @param <T>      Any child of EmapOperationMessage so that you can pass in child class directly.
+     * @throws InterruptedException     if thread gets interrupted during queue put wait
+     * @throws IllegalStateException    if publisher has been shut down
+     * @throws IllegalArgumentException if a batch with this batchId is still being published
+     */
+    public <T extends EmapOperationMessage> void submitInOrder(List<ImmutablePair<T, String>> batch, String batchId, Runnable callback)
+            throws InterruptedException, IllegalStateException, IllegalArgumentException {
+        if (isFinished) {
+            throw new IllegalStateException("Publisher has been shut down");
+        }
+        OrderedBatch orderedBatch = new OrderedBatch(callback);
+        MessageBatch<T> submitBatch = new MessageBatch<>(batchId, batch, () -> confirmedInOrder(orderedBatch));
+        if (isDuplicate(submitBatch)) {
+            throw new IllegalArgumentException(String.format("Queue with a batchId of %s already exists", batchId));
+        }
+        synchronized (orderedBatches) {
+            orderedBatches.addLast(orderedBatch);
+        }
+        if (batch.isEmpty()) {
+            confirmedInOrder(orderedBatch);
             return;
         }
+        put(submitBatch);
+    }
+
+    private boolean isDuplicate(MessageBatch<? extends EmapOperationMessage> submitBatch) {
+        return batchWaitingMap.containsKey(submitBatch.getBatchId()) || blockingQueue.contains(submitBatch);
+    }
+
+    private void put(MessageBatch<? extends EmapOperationMessage> submitBatch) throws InterruptedException {
         try {
             blockingQueue.put(submitBatch);
         } catch (InterruptedException e) {
             logger.error("Waiting to submit a batch was interrupted", e);
             throw e;
         }
-        logger.trace("BatchId {} with {} messages was submitted to Publisher batches", batchId, batch.size());
+        logger.trace("BatchId {} with {} messages was submitted to Publisher batches",
+                submitBatch.getBatchId(), submitBatch.getNumberOfMessages());
+    }
+
+    /**
+     * Mark a batch as published, then run the callbacks of all batches at the front of the queue that have been published.
+     * @param orderedBatch batch that has been published
+     */
+    private void confirmedInOrder(OrderedBatch orderedBatch) {
+        synchronized (orderedBatches) {
+            orderedBatch.confirmed = true;
+            while (!orderedBatches.isEmpty() && orderedBatches.peekFirst().confirmed) {
+                orderedCallbackExecutor.execute(orderedBatches.pollFirst().callback);
+            }
+        }
+    }
+
+    private void registerMetrics(MeterRegistry registry) {
+        Gauge.builder("emap.publisher.in_transit", this, Publisher::inTransitCount)
+                .description("Messages published to rabbitmq that are waiting for a confirm")
+                .register(registry);
+        Gauge.builder("emap.publisher.in_transit.max", () -> maxInTransit)
+                .description("Maximum number of messages that can be waiting for a confirm")
+                .register(registry);
+        Gauge.builder("emap.publisher.ordered_batches", orderedBatches, Deque::size)
+                .description("Batches submitted in order that are waiting for their own or an earlier batch's confirm")
+                .register(registry);
+        confirmLatency = Timer.builder("emap.publisher.confirm_latency")
+                .description("Time from first publishing a message to it being confirmed by rabbitmq, including any resends")
+                .register(registry);
     }
 
     /**
@@ -142,14 +253,16 @@ public class Publisher implements Runnable, Releasable {
     @PreDestroy
     public void shutdown() {
         executorService.shutdownNow();
+        orderedCallbackExecutor.shutdownNow();
         isFinished = true;
         mainThread.interrupt();
     }
 
     /**
      * If the number of messages published to rabbitmq queue is less than the maximum number of elements in flight,
-     * then the message will be added to the waitingMap and published to rabbitmq.
-     * Otherwise the it will block here and keep on retrying until an acknowledgement of reciept from rabbitmq is received.
+     * then the message will be added to the messages in transit and published to rabbitmq.
+     * Otherwise it will block here until an earlier message has been confirmed.
+     * Also waits while rejected messages are waiting to be resent, so that nothing overtakes them.
      * @param message       Emap message to be sent.
      * @param correlationId Unique Id for the message. Must not contain a colon character.
      * @param batchId       Unique Id for the batch, in most cases this can be the correlationId.
@@ -158,16 +271,35 @@ public class Publisher implements Runnable, Releasable {
      */
     private void publish(EmapOperationMessage message, String correlationId, String batchId) throws InterruptedException {
         logger.trace("Sending message to RabbitMQ");
-
-        CorrelationData correlationData = new CorrelationData(correlationId + ":" + batchId);
         try {
             semaphore.acquire();
+            synchronized (inTransit) {
+                while (failedSend) {
+                    inTransit.wait();
+                }
+                send(new InTransit(message, correlationId, batchId));
+            }
         } catch (InterruptedException e) {
             logger.error("Waiting to send message to rabbitmq was interrupted", e);
             throw e;
         }
-        waitingMap.put(correlationId, message);
-        rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), message, correlationData);
+    }
+
+    /**
+     * Send a message with the next sequence number. Must hold the inTransit lock.
+     * The message keeps the permit that it was first sent with until it is counted as published.
+     * @param message message to send
+     */
+    private void send(InTransit message) {
+        long sequence = nextSequence++;
+        inTransit.put(sequence, message);
+        rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), message.message, new CorrelationData(Long.toString(sequence)));
+    }
+
+    private int inTransitCount() {
+        synchronized (inTransit) {
+            return inTransit.size();
+        }
     }
 
     /**
@@ -193,93 +325,107 @@ public class Publisher implements Runnable, Releasable {
     }
 
     /**
-     * On acknowledgement from rabbitmq allow new messages to be sent and run the batch's callback runnable
-     * (most likely to update the progress). If the entire batch has been successfully finished, then allow space
-     * for another batch to be added to the Publisher.
-     * <p>
-     * There are two possible states that this is called from:
-     * - If there have been no nacks received: Free up a single space for a new message to be sent
-     * - If there has been a nack and this is the first ack: Free up all spaces for new messages to be published again.
-     * @param correlationId correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * On acknowledgement from rabbitmq, count this message and any acknowledged messages after it as published,
+     * as long as every message published before it has been. For each message counted, allow a new message to be sent,
+     * and if it finishes its batch, run the batch's callback (most likely to update the progress).
+     * @param correlationId sequence number that the message was sent with
      */
     @Override
     public void finishedSending(String correlationId) {
-        String[] ids = correlationId.split(":");
-        if (ids.length != 2) {
-            logger.error("Colon was present in correlationId or batchId provided");
-            throw new IllegalStateException("Colon was present in correlationId or batchId provided");
+        synchronized (inTransit) {
+            InTransit confirmed = inTransit.get(Long.parseLong(correlationId));
+            if (confirmed == null) {
+                logger.warn("Received a confirm for a message that isn't in transit: {}", correlationId);
+                return;
+            }
+            confirmed.confirm = Confirm.ACKED;
+            while (!inTransit.isEmpty() && inTransit.firstEntry().getValue().confirm == Confirm.ACKED) {
+                published(inTransit.pollFirstEntry().getValue());
+            }
+            resendIfAllConfirmed();
         }
+    }
 
-        // Synchronised to make sure that only one thread is releasing semaphores if there was a previous nack
-        synchronized (waitingMap) {
-            waitingMap.remove(ids[0]);
-            if (failedSend) {
-                currentDelay = initialDelay;
-                if (waitingMap.isEmpty()) {
-                    failedSend = false;
-                    semaphore.release(maxInTransit);
-                }
-            } else {
-                semaphore.release();
-            }
+    /**
+     * Count a message as published.
+     * @param message message that it and every earlier message have been acknowledged
+     */
+    private void published(InTransit message) {
+        currentDelay = initialDelay;
+        semaphore.release();
+        if (confirmLatency != null) {
+            confirmLatency.record(System.nanoTime() - message.firstSentNanos, TimeUnit.NANOSECONDS);
         }
         synchronized (batchWaitingMap) {
-            ImmutablePair<Integer, Runnable> batchState = batchWaitingMap.get(ids[1]);
+            ImmutablePair<Integer, Runnable> batchState = batchWaitingMap.get(message.batchId);
             int countOfWaitingMessages = batchState.getLeft() - 1;
             if (countOfWaitingMessages == 0) {
-                batchWaitingMap.remove(ids[1]);
+                batchWaitingMap.remove(message.batchId);
                 // Real work done in a separate thread so that it doesn't block the event thread
                 executorService.execute(batchState.getRight());
             } else {
-                batchWaitingMap.put(ids[1], new ImmutablePair<>(countOfWaitingMessages, batchState.getRight()));
+                batchWaitingMap.put(message.batchId, new ImmutablePair<>(countOfWaitingMessages, batchState.getRight()));
             }
         }
-        logger.trace("Sent message with correlationId: {}", correlationId);
-
+        logger.trace("Sent message with correlationId: {} in batch {}", message.correlationId, message.batchId);
     }
 
     /**
-     * On a nack response, no new messages will be sent, attempting to resend the messages that have failed to publish.
+     * On a nack response, no new messages will be sent. Once every message in transit has had its confirm,
+     * the rejected message and every message sent after it are resent in their original order.
      * <p>
-     * Failed messages will be sent with an exponential backoff, using the 'rabbitmq.retry.delay.initial'
-     * and the 'rabbitmq.retry.delay.maximum' from application.properties as the seconds delay. The exponential backoff
-     * will double after every message in transit has received a nack.
-     * @param correlationId correlationId + ":" + batchId (within the correlationData sent to rabbitmq).
+     * Resends are made with an exponential backoff, using the 'rabbitmq.retry.delay.initial'
+     * and the 'rabbitmq.retry.delay.maximum' from application.properties as the seconds delay. The delay
+     * doubles every time that a resent message is rejected again.
+     * @param correlationId sequence number that the message was sent with
      */
     @Override
     public void failedSending(final String correlationId) {
-        // On first Nack, drain all permits so only retries will be republished
-        semaphore.drainPermits();
-        failedSend = true;
-
-        String[] ids = correlationId.split(":");
-        if (ids.length != 2) {
-            logger.error("Colon was present in correlationId or batchId provided");
-            throw new IllegalStateException("Colon was present in correlationId or batchId provided");
-        }
-        final EmapOperationMessage message = waitingMap.get(ids[0]);
-        final CorrelationData correlationData = new CorrelationData(correlationId);
-
-        executorService.schedule(new Runnable() {
-            @Override
-            public void run() {
-                rabbitTemplate.convertAndSend(getEmapDataSource.getQueueName(), message, correlationData);
-                String queueFull = "Failed to deliver message (correlationData {}) was resent after a delay of {} seconds";
-                if (currentDelayIsFirstThreeRounds()) {
-                    logger.trace(queueFull, correlationData, currentDelay);
-                } else {
-                    logger.info(queueFull, correlationData, currentDelay);
-                }
+        synchronized (inTransit) {
+            InTransit rejected = inTransit.get(Long.parseLong(correlationId));
+            if (rejected == null) {
+                logger.warn("Received a nack for a message that isn't in transit: {}", correlationId);
+                return;
             }
-        }, currentDelay, TimeUnit.SECONDS);
+            rejected.confirm = Confirm.NACKED;
+            failedSend = true;
+            resendIfAllConfirmed();
+        }
+    }
 
-        if (currentDelay < maximumDelay && countMessagesAtCurrentDelay == maxInTransit) {
-            currentDelay *= delayMultiplier;
-            countMessagesAtCurrentDelay = 1;
-        } else if (currentDelay < maximumDelay) {
-            countMessagesAtCurrentDelay += 1;
+    /**
+     * Schedule a resend if a message has been rejected and there are no confirms still to come. Must hold the inTransit lock.
+     */
+    private void resendIfAllConfirmed() {
+        if (!failedSend || resendScheduled || inTransit.values().stream().anyMatch(message -> message.confirm == Confirm.WAITING)) {
+            return;
+        }
+        resendScheduled = true;
+        String queueFull = "{} messages from the first rejected message onwards will be resent after a delay of {} seconds";
+        if (currentDelayIsFirstThreeRounds()) {
+            logger.trace(queueFull, inTransit.size(), currentDelay);
         } else {
-            currentDelay = maximumDelay;
+            logger.info(queueFull, inTransit.size(), currentDelay);
+        }
+        executorService.schedule(this::resendInTransit, currentDelay, TimeUnit.SECONDS);
+        currentDelay = Math.min(currentDelay * delayMultiplier, maximumDelay);
+    }
+
+    /**
+     * Resend every message in transit in its original order, then let new messages be sent after them.
+     * Every message before the first rejected one has already been counted as published, so this starts with it.
+     */
+    private void resendInTransit() {
+        synchronized (inTransit) {
+            List<InTransit> toResend = new ArrayList<>(inTransit.values());
+            inTransit.clear();
+            for (InTransit message : toResend) {
+                message.confirm = Confirm.WAITING;
+                send(message);
+            }
+            resendScheduled = false;
+            failedSend = false;
+            inTransit.notifyAll();
         }
     }
 
@@ -289,4 +435,40 @@ public class Publisher implements Runnable, Releasable {
     private boolean currentDelayIsFirstThreeRounds() {
         return currentDelay <= initialDelay * delayMultiplier * delayMultiplier;
     }
+
+    /**
+     * Confirm state of a message in transit.
+     */
+    private enum Confirm {
+        WAITING, ACKED, NACKED
+    }
+
+    /**
+     * A message that has been sent and not yet counted as published.
+     */
+    private static final class InTransit {
+        private final EmapOperationMessage message;
+        private final String correlationId;
+        private final String batchId;
+        private final long firstSentNanos = System.nanoTime();
+        private Confirm confirm = Confirm.WAITING;
+
+        InTransit(EmapOperationMessage message, String correlationId, String batchId) {
+            this.message = message;
+            this.correlationId = correlationId;
+            this.batchId = batchId;
+        }
+    }
+
+    /**
+     * Callback for a batch submitted in order, waiting for it and all earlier batches to be confirmed.
+     */
+    private static final class OrderedBatch {
+        private final Runnable callback;
+        private boolean confirmed = false;
+
+        OrderedBatch(Runnable callback) {
+            this.callback = callback;
+        }
+    }
 }
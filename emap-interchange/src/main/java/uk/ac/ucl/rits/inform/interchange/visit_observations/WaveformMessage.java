@@ -12,7 +12,6 @@ import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.List;
 
 /**
  * Represent a Waveform message. At this time, waveform data doesn't come with any direct identifiers for
@@ -63,9 +62,11 @@ public class WaveformMessage extends EmapOperationMessage {
     private String unit;
 
     /**
-     * Numeric value.
+     * Numeric values, one per sample.
+     * Kept as a primitive array because there can be many thousands of them per message,
+     * Jackson reads and writes these as a plain JSON array without boxing.
      */
-    private InterchangeValue<List<Double>> numericValues = InterchangeValue.unknown();
+    private InterchangeValue<double[]> numericValues = InterchangeValue.unknown();
 
     /**
      * @return expected observation datetime for the next message, if it exists and there are
@@ -73,7 +74,7 @@ public class WaveformMessage extends EmapOperationMessage {
      */
     @JsonIgnore
     public Instant getExpectedNextObservationDatetime() {
-        int numValues = numericValues.get().size();
+        int numValues = numericValues.get().length;
         long microsToAdd = 1_000_000L * numValues / samplingRate;
         return observationTime.plus(microsToAdd, ChronoUnit.MICROS);
     }
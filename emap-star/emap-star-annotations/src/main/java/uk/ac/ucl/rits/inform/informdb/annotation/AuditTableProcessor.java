@@ -15,6 +15,7 @@ import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
 import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.persistence.Column;
@@ -60,6 +61,10 @@ import java.util.stream.Collectors;
 @SupportedSourceVersion(SourceVersion.RELEASE_11)
 @AutoService(Processor.class)
 public class AuditTableProcessor extends AbstractProcessor {
+    /**
+     * Fields of every entity, from TemporalCore.
+     */
+    private static final List<String> TEMPORAL_FIELDS = List.of("validFrom", "storedFrom");
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
@@ -94,7 +99,8 @@ public class AuditTableProcessor extends AbstractProcessor {
                 String baseClassName = className.substring(lastDot + 1);
 
                 try {
-                    createAudit(parent, packageName, baseClassName, className);
+                    List<FieldStore> fields = createAudit(parent, packageName, baseClassName, className);
+                    createSnapshot(parent, packageName, baseClassName, fields);
                 } catch (IOException e) {
                     e.printStackTrace();
                     processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
@@ -106,12 +112,22 @@ public class AuditTableProcessor extends AbstractProcessor {
         return true;
     }
 
-    private void createAudit(TypeElement parent, String packageName, String baseClassName, String baseImport)
+    /**
+     * Generate the audit class of an entity.
+     * @param parent        The entity
+     * @param packageName   The package of the entity
+     * @param baseClassName The simple name of the entity
+     * @param baseImport    The fully qualified name of the entity
+     * @return The fields of the entity that are in the audit class
+     * @throws IOException if the audit class can't be written
+     */
+    private List<FieldStore> createAudit(TypeElement parent, String packageName, String baseClassName, String baseImport)
             throws IOException {
 
         String auditClassName = baseClassName + "Audit";
         String idColumnName = lowercaseInitial(baseClassName) + "AuditId";
         JavaFileObject builderFile = processingEnv.getFiler().createSourceFile(packageName + "." + auditClassName);
+        List<FieldStore> shortFields;
 
         try (PrintWriter out = new PrintWriter(builderFile.openWriter())) {
 
@@ -132,7 +148,7 @@ public class AuditTableProcessor extends AbstractProcessor {
                     parent.getEnclosedElements().stream().filter(element -> element instanceof VariableElement)
                             .map(element -> (VariableElement) element).collect(Collectors.toList());
 
-            List<FieldStore> shortFields = this.generateFields(out, idColumnName, fields);
+            shortFields = this.generateFields(out, idColumnName, fields);
 
             this.generateCopyConstructor(out, auditClassName, idColumnName, shortFields);
 
@@ -176,6 +192,83 @@ public class AuditTableProcessor extends AbstractProcessor {
             out.println();
 
         }
+        return shortFields;
+    }
+
+    /**
+     * Generate the snapshot class of an entity, which keeps the original values of only the fields that are changed,
+     * and builds the audit entity from them. Also generates an {@code AuditedField} constant for each field, so that
+     * fields can be compared and changed directly.
+     * @param parent        The entity
+     * @param packageName   The package of the entity
+     * @param baseClassName The simple name of the entity
+     * @param fields        The fields of the entity that are in the audit class
+     * @throws IOException if the snapshot class can't be written
+     */
+    private void createSnapshot(TypeElement parent, String packageName, String baseClassName, List<FieldStore> fields)
+            throws IOException {
+        int fieldCount = fields.size() + TEMPORAL_FIELDS.size();
+        if (fieldCount > Long.SIZE) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "@AuditTable entities can't have more than " + (Long.SIZE - TEMPORAL_FIELDS.size()) + " fields", parent);
+            return;
+        }
+        String auditClassName = baseClassName + "Audit";
+        String snapshotClassName = baseClassName + "Snapshot";
+        String fieldTypes = String.format("%s, %s", baseClassName, auditClassName);
+        JavaFileObject snapshotFile = processingEnv.getFiler().createSourceFile(packageName + "." + snapshotClassName);
+
+        try (PrintWriter out = new PrintWriter(snapshotFile.openWriter())) {
+            if (packageName != null) {
+                out.println(String.format("package %s;", packageName));
+                out.println();
+            }
+            out.println("import java.time.Instant;");
+            out.println("import uk.ac.ucl.rits.inform.informdb.AuditedField;");
+            out.println("import uk.ac.ucl.rits.inform.informdb.EntitySnapshot;");
+            out.println();
+            out.println("/**");
+            out.println(String.format(" * Snapshot of the changed fields of {@link %s}, and its audited fields.", baseClassName));
+            out.println(" */");
+            out.println(String.format("public final class %s extends EntitySnapshot<%s> {", snapshotClassName, fieldTypes));
+
+            for (int index = 0; index < fields.size(); index++) {
+                FieldStore f = fields.get(index);
+                generateFieldConstant(out, baseClassName, snapshotClassName, f, index);
+            }
+            // The snapshot keeps the temporal fields from when it is started, so they don't need their originals kept
+            for (int index = 0; index < TEMPORAL_FIELDS.size(); index++) {
+                FieldStore f = new FieldStore(TEMPORAL_FIELDS.get(index), false, null, "java.time.Instant", false);
+                generateFieldConstant(out, baseClassName, snapshotClassName, f, fields.size() + index);
+            }
+            out.println();
+            out.println(String.format("    private %s(%s entity) {", snapshotClassName, baseClassName));
+            out.println(String.format("        super(entity, %d);", fieldCount));
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println(String.format("    public %s createAuditEntity(Instant validUntil, Instant storedUntil) {", auditClassName));
+            out.println(String.format("        %1$s audit = new %1$s(getEntity(), validUntil, storedUntil);", auditClassName));
+            out.println("        audit.setValidFrom(getValidFrom());");
+            out.println("        audit.setStoredFrom(getStoredFrom());");
+            for (FieldStore f : fields) {
+                String constant = constantName(f.fieldName);
+                String accessor = capitalizeInitial(f.fieldName);
+                out.println(String.format("        if (isChanged(%s)) {", constant));
+                if (f.isForeignKey) {
+                    // Temporal foreign keys are kept as their primary key
+                    out.println(String.format("            %s original = getOriginal(%s);", f.entityTypeName, constant));
+                    out.println(String.format("            audit.set%s(original == null ? null : original.get%s());",
+                            accessor, capitalizeInitial(f.primaryKeyName)));
+                } else {
+                    out.println(String.format("            audit.set%s(getOriginal(%s));", accessor, constant));
+                }
+                out.println("        }");
+            }
+            out.println("        return audit;");
+            out.println("    }");
+            out.println('}');
+        }
     }
 
     /**
@@ -194,6 +287,7 @@ public class AuditTableProcessor extends AbstractProcessor {
         out.println("import javax.persistence.Index;");
         out.println("import javax.persistence.ManyToOne;");
         out.println("import javax.persistence.OneToOne;");
+        out.println("import javax.persistence.SequenceGenerator;");
         out.println("import javax.persistence.Table;");
         out.println("import java.time.Instant;");
         out.println("import java.time.LocalDate;");
@@ -201,6 +295,7 @@ public class AuditTableProcessor extends AbstractProcessor {
         out.println("import lombok.EqualsAndHashCode;");
         out.println("import lombok.ToString;");
         out.println("import uk.ac.ucl.rits.inform.informdb.AuditCore;");
+        out.println("import uk.ac.ucl.rits.inform.informdb.IdGeneration;");
         out.println("import static javax.persistence.FetchType.*;");
         out.println("import static javax.persistence.ConstraintMode.*;");
         out.println("import static javax.persistence.CascadeType.*;");
@@ -270,7 +365,10 @@ public class AuditTableProcessor extends AbstractProcessor {
         List<FieldStore> fieldShorts = new ArrayList<>();
 
         // Primary key
-        this.generateSingleField(out, "\t@Id\n\t@GeneratedValue(strategy = GenerationType.AUTO)", "Long", primaryKey);
+        // same ID generator as the data tables, see IdGeneration
+        this.generateSingleField(out, "\t@Id\n\t@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)\n"
+                + "\t@SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE,"
+                + " allocationSize = IdGeneration.ALLOCATION_SIZE)", "Long", primaryKey);
 
         // All other fields
         for (VariableElement field : fields) {
@@ -321,6 +419,8 @@ public class AuditTableProcessor extends AbstractProcessor {
                     TypeKind individualKind = individualType.getKind();
                     if (individualKind == TypeKind.BYTE) {
                         typeName = "byte[]";
+                    } else if (individualKind == TypeKind.DOUBLE) {
+                        typeName = "double[]";
                     } else if (individualKind == TypeKind.DECLARED) {
                         DeclaredType declaredType = (DeclaredType) individualType;
                         TypeElement elem = (TypeElement) declaredType.asElement();
@@ -477,8 +577,11 @@ public class AuditTableProcessor extends AbstractProcessor {
             }
 
             String fieldName = field.getSimpleName().toString();
+            String entityTypeName = kind.isPrimitive()
+                    ? processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString()
+                    : type.toString();
             // Foreign keys are only treated specially if they are temporal!
-            fieldShorts.add(new FieldStore(fieldName, isTemporal && isForeignKey, foreignKeyName));
+            fieldShorts.add(new FieldStore(fieldName, isTemporal && isForeignKey, foreignKeyName, entityTypeName, kind == TypeKind.ARRAY));
             this.generateSingleField(out, annotation, typeName, fieldName);
         }
 
@@ -597,6 +700,55 @@ public class AuditTableProcessor extends AbstractProcessor {
         return lead + tail;
     }
 
+    /**
+     * Generate the {@code AuditedField} constant of a field.
+     * @param out               File to write to
+     * @param baseClassName     The simple name of the entity
+     * @param snapshotClassName The simple name of the snapshot class
+     * @param f                 The field
+     * @param index             Position of the field in the snapshot
+     */
+    private void generateFieldConstant(PrintWriter out, String baseClassName, String snapshotClassName, FieldStore f, int index) {
+        String accessor = capitalizeInitial(f.fieldName);
+        out.println();
+        out.println(String.format("    /**%n     * Field %s of %s.%n     */", f.fieldName, baseClassName));
+        out.println(String.format("    public static final AuditedField<%s, %sAudit, %s> %s = new AuditedField<>(%d) {",
+                baseClassName, baseClassName, f.entityTypeName, constantName(f.fieldName), index));
+        out.println("        @Override");
+        out.println(String.format("        public %s get(%s entity) {", f.entityTypeName, baseClassName));
+        out.println(String.format("            return entity.get%s();", accessor));
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println(String.format("        public void set(%s entity, %s value) {", baseClassName, f.entityTypeName));
+        out.println(String.format("            entity.set%s(value);", accessor));
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println(String.format("        public boolean isDifferent(%1$s newValue, %1$s currentValue) {", f.entityTypeName));
+        if (f.isArray) {
+            out.println("            return !java.util.Arrays.equals(newValue, currentValue);");
+        } else {
+            out.println("            return newValue == null ? currentValue != null : !newValue.equals(currentValue);");
+        }
+        out.println("        }");
+        out.println();
+        out.println("        @Override");
+        out.println(String.format("        public %s newSnapshot(%s entity) {", snapshotClassName, baseClassName));
+        out.println(String.format("            return new %s(entity);", snapshotClassName));
+        out.println("        }");
+        out.println("    };");
+    }
+
+    /**
+     * Convert a camelCase field name to the UPPER_SNAKE_CASE name of a constant.
+     * @param fieldName the field name
+     * @return the constant name
+     */
+    private String constantName(String fieldName) {
+        return fieldName.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+    }
+
     /**
      * Lowercase the first letter in a String for camelCase naming.
      * @param s the text
@@ -626,11 +778,18 @@ public class AuditTableProcessor extends AbstractProcessor {
         final boolean isForeignKey;
         final String primaryKeyName;
         final String fieldName;
+        /**
+         * Fully qualified type of the field in the entity, boxed if it is a primitive.
+         */
+        final String entityTypeName;
+        final boolean isArray;
 
-        FieldStore(String fieldName, boolean isForeignKey, String primaryKeyName) {
+        FieldStore(String fieldName, boolean isForeignKey, String primaryKeyName, String entityTypeName, boolean isArray) {
             this.isForeignKey = isForeignKey;
             this.fieldName = fieldName;
             this.primaryKeyName = primaryKeyName;
+            this.entityTypeName = entityTypeName;
+            this.isArray = isArray;
         }
     }
 }
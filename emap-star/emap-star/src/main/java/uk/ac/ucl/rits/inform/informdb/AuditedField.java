@@ -0,0 +1,54 @@
+package uk.ac.ucl.rits.inform.informdb;
+
+/**
+ * A field of an entity that has an audit table, so that it can be compared, changed and snapshotted without going
+ * through reflection or a setter lambda.
+ * <p>
+ * An instance for each field is generated into the entity's snapshot class, e.g. {@code HospitalVisitSnapshot.ENCOUNTER}.
+ * @param <T> Entity type
+ * @param <A> Audit entity type
+ * @param <R> Type of the field, boxed if it is a primitive
+ */
+public abstract class AuditedField<T extends TemporalCore<T, A>, A extends AuditCore, R> {
+    private final int index;
+
+    /**
+     * @param index position of the field in its entity, unique within the entity and less than 64
+     */
+    protected AuditedField(int index) {
+        this.index = index;
+    }
+
+    /**
+     * @return position of the field in its entity
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @param entity entity to get the value from
+     * @return current value of the field
+     */
+    public abstract R get(T entity);
+
+    /**
+     * @param entity entity to change
+     * @param value  new value of the field
+     */
+    public abstract void set(T entity, R value);
+
+    /**
+     * @param newValue     new value, may be null
+     * @param currentValue current value, may be null
+     * @return true if the new value is different to the current value
+     */
+    public abstract boolean isDifferent(R newValue, R currentValue);
+
+    /**
+     * Start a snapshot of an entity, to record the original values of the fields that are changed.
+     * @param entity entity that is about to be changed
+     * @return empty snapshot of the entity's current state
+     */
+    public abstract EntitySnapshot<T, A> newSnapshot(T entity);
+}
@@ -0,0 +1,91 @@
+package uk.ac.ucl.rits.inform.informdb;
+
+import java.time.Instant;
+
+/**
+ * The state of an entity from before it was changed, kept as the original values of only the fields that have been
+ * changed since the snapshot was started.
+ * <p>
+ * A subclass for each entity that has an audit table is generated by the AuditTableProcessor, which builds the audit
+ * entity from the entity's current state with the original values of the changed fields put back.
+ * @param <T> Entity type
+ * @param <A> Audit entity type
+ */
+public abstract class EntitySnapshot<T extends TemporalCore<T, A>, A extends AuditCore> {
+    private final T entity;
+    private final Instant validFrom;
+    private final Instant storedFrom;
+    private final Object[] originalValues;
+    private long changedFields = 0;
+
+    /**
+     * @param entity     entity that is about to be changed
+     * @param fieldCount number of audited fields in the entity
+     */
+    protected EntitySnapshot(T entity, int fieldCount) {
+        this.entity = entity;
+        validFrom = entity.getValidFrom();
+        storedFrom = entity.getStoredFrom();
+        originalValues = new Object[fieldCount];
+    }
+
+    /**
+     * Record the value of a field before it is changed. Only the value from before the first change is kept.
+     * @param field         field that is being changed
+     * @param originalValue value of the field before the change
+     * @param <R>           type of the field
+     */
+    public <R> void keepOriginal(AuditedField<T, A, R> field, R originalValue) {
+        long fieldBit = 1L << field.getIndex();
+        if ((changedFields & fieldBit) == 0) {
+            changedFields |= fieldBit;
+            originalValues[field.getIndex()] = originalValue;
+        }
+    }
+
+    /**
+     * @param field field of the entity
+     * @return true if the field has been changed since the snapshot was started
+     */
+    protected boolean isChanged(AuditedField<T, A, ?> field) {
+        return (changedFields & (1L << field.getIndex())) != 0;
+    }
+
+    /**
+     * @param field field of the entity that has been changed
+     * @param <R>   type of the field
+     * @return value of the field from before it was changed
+     */
+    @SuppressWarnings("unchecked")
+    protected <R> R getOriginal(AuditedField<T, A, R> field) {
+        return (R) originalValues[field.getIndex()];
+    }
+
+    /**
+     * @return the entity, in its current state
+     */
+    protected T getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return valid from of the entity when the snapshot was started
+     */
+    protected Instant getValidFrom() {
+        return validFrom;
+    }
+
+    /**
+     * @return stored from of the entity when the snapshot was started
+     */
+    protected Instant getStoredFrom() {
+        return storedFrom;
+    }
+
+    /**
+     * @param validUntil  the event time that invalidated the snapshotted state
+     * @param storedUntil the time that star started processing the message that invalidated the snapshotted state
+     * @return A new audit entity with the state of the entity from when the snapshot was started.
+     */
+    public abstract A createAuditEntity(Instant validUntil, Instant storedUntil);
+}
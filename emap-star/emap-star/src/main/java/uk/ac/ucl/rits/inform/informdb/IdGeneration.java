@@ -0,0 +1,33 @@
+package uk.ac.ucl.rits.inform.informdb;
+
+/**
+ * How primary keys are generated for emap star tables.
+ * <p>
+ * All tables (apart from waveform) take their IDs from one sequence, which hibernate reads from in blocks of
+ * {@link #ALLOCATION_SIZE}, so that inserting a block of rows only needs one round trip to the sequence,
+ * and the inserts can be batched.
+ * The sequences must increment by {@link #ALLOCATION_SIZE}. They're created like that in a new schema,
+ * and core alters them when it starts, for schemas created when IDs were allocated one at a time.
+ * @author UCL RITS
+ */
+public final class IdGeneration {
+    /**
+     * Name of the generator to use in {@code @GeneratedValue} and {@code @SequenceGenerator}.
+     */
+    public static final String GENERATOR = "emap_id_generator";
+    /**
+     * The sequence, which keeps the name it had when it was used by {@code GenerationType.AUTO}.
+     */
+    public static final String SEQUENCE = "hibernate_sequence";
+    /**
+     * The sequence for waveform IDs, kept separate as waveform has far more rows than any other table.
+     */
+    public static final String WAVEFORM_SEQUENCE = "waveform_id_sequence";
+    /**
+     * Number of IDs allocated from each value of the sequence.
+     */
+    public static final int ALLOCATION_SIZE = 50;
+
+    private IdGeneration() {
+    }
+}
@@ -3,15 +3,18 @@ package uk.ac.ucl.rits.inform.informdb.conditions;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.ManyToOne;
 import javax.persistence.JoinColumn;
 import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import java.time.Instant;
 
 /**
@@ -35,7 +38,8 @@ public class AllergenReaction extends TemporalCore<AllergenReaction, AllergenRea
      * This is the primary key for the allergenReaction table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private long allergenReactionId;
 
     /**
@@ -43,7 +47,7 @@ public class AllergenReaction extends TemporalCore<AllergenReaction, AllergenRea
      *
      * This is a foreign key that joins to the patientCondition table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "patientConditionId", nullable = false)
     private PatientCondition patientConditionId;
 
@@ -1,4 +1,5 @@
 package uk.ac.ucl.rits.inform.informdb.conditions;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 
 import lombok.Data;
@@ -7,12 +8,14 @@ import lombok.NoArgsConstructor;
 import lombok.ToString;
 
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 
@@ -37,7 +40,8 @@ public class ConditionVisits {
      * This is the primary key for the ConditionVisits table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long conditionVisitsId;
 
     /**
@@ -45,7 +49,7 @@ public class ConditionVisits {
      *
      * This is a foreign key that joins to the HospitalVisit table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hospitalVisitId", nullable = false)
     private HospitalVisit hospitalVisitId;
 
@@ -55,7 +59,7 @@ public class ConditionVisits {
      *
      * This is a foreign key that joins to the PatientCondition table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "patientConditionId", nullable = false)
     private PatientCondition patientConditionId;
 
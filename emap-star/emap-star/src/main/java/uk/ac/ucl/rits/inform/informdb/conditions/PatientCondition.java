@@ -4,6 +4,7 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
@@ -11,12 +12,14 @@ import uk.ac.ucl.rits.inform.informdb.identity.Mrn;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -43,7 +46,8 @@ public class PatientCondition extends TemporalCore<PatientCondition, PatientCond
      * This is the primary key for the patientCondition table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private long patientConditionId;
 
     /**
@@ -51,7 +55,7 @@ public class PatientCondition extends TemporalCore<PatientCondition, PatientCond
      * <p>
      * This is a foreign key that joins the patientCondition table to the ConditionType table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "conditionTypeId", nullable = false)
     private ConditionType conditionTypeId;
 
@@ -65,7 +69,7 @@ public class PatientCondition extends TemporalCore<PatientCondition, PatientCond
      * <p>
      * This is a foreign key that joins the patientCondition table to the Mrn table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "mrnId", nullable = false)
     private Mrn mrnId;
 
@@ -74,7 +78,7 @@ public class PatientCondition extends TemporalCore<PatientCondition, PatientCond
      * <p>
      * This is a foreign key that joins the patientCondition table to the HospitalVisit table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hospitalVisitId")
     private HospitalVisit hospitalVisitId;
 
@@ -3,17 +3,20 @@ package uk.ac.ucl.rits.inform.informdb.consults;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import java.time.Instant;
 
 /**
@@ -32,7 +35,8 @@ public class ConsultationRequest extends TemporalCore<ConsultationRequest, Consu
      * This is the primary key for the consultationRequest table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private long consultationRequestId;
 
     /**
@@ -40,7 +44,7 @@ public class ConsultationRequest extends TemporalCore<ConsultationRequest, Consu
      *
      * This is a foreign key that joins the consultationRequest table to the ConsultationType table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "consultationTypeId", nullable = false)
     private ConsultationType consultationTypeId;
 
@@ -49,7 +53,7 @@ public class ConsultationRequest extends TemporalCore<ConsultationRequest, Consu
      *
      * This is a foreign key that joins the consultationRequest table to the HospitalVisit table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hospitalVisitId", nullable = false)
     private HospitalVisit hospitalVisitId;
 
@@ -4,10 +4,12 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 
+import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -15,6 +17,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import java.time.Instant;
 
 /**
@@ -33,7 +36,8 @@ public class AdvanceDecision extends TemporalCore<AdvanceDecision, AdvanceDecisi
      * This is the primary key for the advanceDecision table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private long advanceDecisionId;
 
     /**
@@ -41,7 +45,7 @@ public class AdvanceDecision extends TemporalCore<AdvanceDecision, AdvanceDecisi
      *
      * This is a foreign key that joins the advanceDecision table to the AdvanceDecisionType table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "advanceDecisionTypeId", nullable = false)
     private AdvanceDecisionType advanceDecisionTypeId;
 
@@ -50,7 +54,7 @@ public class AdvanceDecision extends TemporalCore<AdvanceDecision, AdvanceDecisi
      *
      * This is a foreign key that joins the advanceDecision table to the HospitalVisit table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hospitalVisitId", nullable = false)
     private HospitalVisit hospitalVisitId;
 
@@ -3,6 +3,7 @@ package uk.ac.ucl.rits.inform.informdb.identity;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservation;
@@ -10,6 +11,7 @@ import uk.ac.ucl.rits.inform.informdb.visit_recordings.VisitObservation;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -19,6 +21,7 @@ import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -50,7 +53,8 @@ public class HospitalVisit extends TemporalCore<HospitalVisit, HospitalVisitAudi
      * This is the primary key for the HospitalVisit table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long hospitalVisitId;
 
     /**
@@ -58,7 +62,7 @@ public class HospitalVisit extends TemporalCore<HospitalVisit, HospitalVisitAudi
      *
      * This is a foreign key that joins the hospitalVisit table to the Mrn table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "mrnId", nullable = false)
     private Mrn mrnId;
 
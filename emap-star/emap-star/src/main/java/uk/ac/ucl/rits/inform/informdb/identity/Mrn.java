@@ -13,11 +13,13 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.OneToMany;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.hibernate.annotations.Check;
 
 import lombok.Data;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import org.hibernate.annotations.ColumnDefault;
 
 /**
@@ -46,7 +48,8 @@ public class Mrn implements Serializable {
      * This is the primary key for the mrn table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long mrnId;
 
     //TODO Exclude from doxygen
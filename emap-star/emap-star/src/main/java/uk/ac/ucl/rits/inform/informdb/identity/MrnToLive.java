@@ -2,11 +2,13 @@ package uk.ac.ucl.rits.inform.informdb.identity;
 
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -15,6 +17,7 @@ import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.time.Instant;
 
@@ -41,7 +44,8 @@ public class MrnToLive extends TemporalCore<MrnToLive, MrnToLiveAudit> {
      * This is the primary key for the MrnToLive table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long mrnToLiveId;
 
     /**
@@ -49,7 +53,7 @@ public class MrnToLive extends TemporalCore<MrnToLive, MrnToLiveAudit> {
      * <p>
      * This is a foreign key that joins the mrnToLive table to the Mrn table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "mrnId", nullable = false)
     private Mrn mrnId;
 
@@ -58,7 +62,7 @@ public class MrnToLive extends TemporalCore<MrnToLive, MrnToLiveAudit> {
      * <p>
      * This is a foreign key that joins the mrnToLive table to the Mrn table.
      */
-    @ManyToOne(cascade = CascadeType.ALL)
+    @ManyToOne(fetch = FetchType.LAZY, cascade = CascadeType.ALL)
     @JoinColumn(name = "liveMrnId", nullable = false)
     private Mrn liveMrnId;
 
@@ -3,18 +3,21 @@ package uk.ac.ucl.rits.inform.informdb.labs;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.identity.HospitalVisit;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.time.Instant;
 
@@ -43,7 +46,8 @@ public class LabOrder extends TemporalCore<LabOrder, LabOrderAudit> {
      * This is the primary key for the labOrder table.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.GENERATOR)
+    @SequenceGenerator(name = IdGeneration.GENERATOR, sequenceName = IdGeneration.SEQUENCE, allocationSize = IdGeneration.ALLOCATION_SIZE)
     private Long labOrderId;
 
     /**
@@ -51,7 +55,7 @@ public class LabOrder extends TemporalCore<LabOrder, LabOrderAudit> {
      *
      * This is a foreign key that joins the labOrder table to the LabSample table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "labSampleId", nullable = false)
     private LabSample labSampleId;
 
@@ -61,7 +65,7 @@ public class LabOrder extends TemporalCore<LabOrder, LabOrderAudit> {
      * This is a foreign key that joins the labOrder table to the HospitalVisit table.
      * Can have labs that are not linked to a hospital visit.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "hospitalVisitId")
     private HospitalVisit hospitalVisitId;
 
@@ -70,7 +74,7 @@ public class LabOrder extends TemporalCore<LabOrder, LabOrderAudit> {
      *
      * This is a foreign key that joins the labOrder table to the LabBattery table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "labBatteryId", nullable = false)
     private LabBattery labBatteryId;
 
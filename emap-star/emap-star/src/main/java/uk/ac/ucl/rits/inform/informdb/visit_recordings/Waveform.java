@@ -4,12 +4,14 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import org.hibernate.annotations.Type;
+import uk.ac.ucl.rits.inform.informdb.IdGeneration;
 import uk.ac.ucl.rits.inform.informdb.TemporalCore;
 import uk.ac.ucl.rits.inform.informdb.annotation.AuditTable;
 import uk.ac.ucl.rits.inform.informdb.movement.LocationVisit;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
@@ -18,6 +20,7 @@ import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import java.time.Instant;
 
@@ -32,7 +35,7 @@ import java.time.Instant;
 @Entity
 @Table(indexes = {
         @Index(name = "waveform_datetime", columnList = "observationDatetime"),
-        @Index(name = "waveform_location", columnList = "sourceLocation"),
+        @Index(name = "waveform_location_datetime", columnList = "sourceLocation, observationDatetime"),
         @Index(name = "waveform_location_visit", columnList = "locationVisitId"),
         @Index(name = "waveform_observation_type", columnList = "visitObservationTypeId"),
 })
@@ -49,7 +52,9 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
      * This is the primary key.
      */
     @Id
-    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "waveform_id_sequence")
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = IdGeneration.WAVEFORM_SEQUENCE)
+    @SequenceGenerator(name = IdGeneration.WAVEFORM_SEQUENCE, sequenceName = IdGeneration.WAVEFORM_SEQUENCE,
+            allocationSize = IdGeneration.ALLOCATION_SIZE)
     private long waveformId;
 
     /**
@@ -58,7 +63,7 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
      * The Waveform table is sufficiently similar in meaning to VisitObservation that it makes sense
      * to reuse VisitObservationType rather than create a new waveform metadata table.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "visitObservationTypeId", nullable = false)
     private VisitObservationType visitObservationTypeId;
 
@@ -67,7 +72,7 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
      *
      * If it is null, this data is said to be orphaned.
      */
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "locationVisitId")
     private LocationVisit locationVisitId;
 
@@ -105,10 +110,21 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
 
     /**
      * \brief Value as a floating point array.
+     *
+     * Null if the values are stored in valuesCompressed instead.
+     * The waveform_decoded view has this column filled in either way.
      */
     @Type(type = "uk.ac.ucl.rits.inform.informdb.visit_recordings.WaveformArray")
-    @Column(columnDefinition = "DOUBLE PRECISION ARRAY", nullable = false)
-    private Double[] valuesArray;
+    @Column(columnDefinition = "DOUBLE PRECISION ARRAY")
+    private double[] valuesArray;
+
+    /**
+     * \brief Values compressed with {@link WaveformCompression}, if valuesArray is null.
+     *
+     * Can be decoded in SQL with the waveform_decode function.
+     */
+    @Column(columnDefinition = "bytea")
+    private byte[] valuesCompressed;
 
     /* unit goes in visit observation type (or equivalent table...) */
 
@@ -143,11 +159,22 @@ public class Waveform extends TemporalCore<Waveform, WaveformAudit> {
         this.locationVisitId = other.locationVisitId;
         this.unit = other.unit;
         this.valuesArray = other.valuesArray;
+        this.valuesCompressed = other.valuesCompressed;
         this.observationDatetime = other.observationDatetime;
         this.samplingRate = other.samplingRate;
         this.sourceLocation = other.sourceLocation;
     }
 
+    /**
+     * @return the values, whichever way they are stored
+     */
+    public double[] getValuesArray() {
+        if (valuesArray == null && valuesCompressed != null) {
+            return WaveformCompression.decode(valuesCompressed);
+        }
+        return valuesArray;
+    }
+
     @Override
     public Waveform copy() {
         return new Waveform(this);
@@ -12,8 +12,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Arrays;
-import java.util.Objects;
 
+/**
+ * Maps a primitive double array to a SQL array column.
+ * JDBC arrays can only be built from and read into objects, so the values are only boxed at the JDBC boundary.
+ */
 public class WaveformArray implements UserType {
     @Override
     public int[] sqlTypes() {
@@ -22,17 +25,17 @@ public class WaveformArray implements UserType {
 
     @Override
     public Class returnedClass() {
-        return Double[].class;
+        return double[].class;
     }
 
     @Override
     public boolean equals(Object o, Object o1) throws HibernateException {
-        return Objects.equals(o, o1);
+        return Arrays.equals((double[]) o, (double[]) o1);
     }
 
     @Override
     public int hashCode(Object o) throws HibernateException {
-        return Objects.hashCode(o);
+        return Arrays.hashCode((double[]) o);
     }
 
     @Override
@@ -42,8 +45,15 @@ public class WaveformArray implements UserType {
                               Object o) throws HibernateException, SQLException {
         String columnName = strings[0];
         Array sqlArray = (Array) resultSet.getObject(columnName);
-        Object[] doubleArray = (Object[]) sqlArray.getArray();
-        return Arrays.copyOf(doubleArray, doubleArray.length, Double[].class);
+        if (sqlArray == null) {
+            return null;
+        }
+        Object[] sqlValues = (Object[]) sqlArray.getArray();
+        double[] doubleArray = new double[sqlValues.length];
+        for (int i = 0; i < sqlValues.length; i++) {
+            doubleArray[i] = ((Number) sqlValues[i]).doubleValue();
+        }
+        return doubleArray;
     }
 
     @Override
@@ -56,8 +66,12 @@ public class WaveformArray implements UserType {
         if (objToSet == null) {
             preparedStatement.setNull(psIdx, Types.ARRAY);
         } else {
-            Double[] asDoubleArray = (Double[]) objToSet;
-            Array sqlArray = preparedStatement.getConnection().createArrayOf("NUMERIC", asDoubleArray);
+            double[] doubleArray = (double[]) objToSet;
+            Double[] boxedArray = new Double[doubleArray.length];
+            for (int i = 0; i < doubleArray.length; i++) {
+                boxedArray[i] = doubleArray[i];
+            }
+            Array sqlArray = preparedStatement.getConnection().createArrayOf("NUMERIC", boxedArray);
             preparedStatement.setArray(psIdx, sqlArray);
         }
     }
@@ -67,7 +81,7 @@ public class WaveformArray implements UserType {
         if (o == null) {
             return null;
         }
-        Double[] doubleArray = (Double[]) o;
+        double[] doubleArray = (double[]) o;
         return doubleArray.clone();
     }
 
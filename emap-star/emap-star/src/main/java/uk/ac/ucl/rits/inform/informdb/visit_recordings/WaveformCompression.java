@@ -0,0 +1,175 @@
+package uk.ac.ucl.rits.inform.informdb.visit_recordings;
+
+import java.util.Arrays;
+
+/**
+ * Lossless compression of waveform values, with the XOR encoding from Facebook's Gorilla time series database.
+ * <p>
+ * Neighbouring samples of a waveform tend to have the same sign, exponent and leading bits of the mantissa,
+ * so each value is stored as the XOR of its bits with those of the previous value:
+ * <ul>
+ *     <li>{@code 0} if the value is the same as the previous one</li>
+ *     <li>{@code 10} then the meaningful bits of the XOR, if they fall within the same window as the last XOR</li>
+ *     <li>{@code 11}, 5 bits of leading zero count, 6 bits of meaningful bit count (0 meaning 64),
+ *     then the meaningful bits, otherwise</li>
+ * </ul>
+ * The first value is stored in full. Sample times are evenly spaced from the observation datetime,
+ * so unlike Gorilla there are no timestamps to encode.
+ * <p>
+ * The data starts with a format version byte and a 32 bit sample count, and the bits are packed most significant first.
+ * The waveform_decode SQL function in core reads the same format.
+ */
+public final class WaveformCompression {
+    static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 5;
+    private static final int MAX_LEADING_ZEROS = 31;
+    /**
+     * Control bits, leading zero count, meaningful bit count and a whole value.
+     */
+    private static final int MAX_BITS_PER_VALUE = 2 + 5 + 6 + Long.SIZE;
+
+    private WaveformCompression() {}
+
+    /**
+     * @param values waveform values
+     * @return compressed values
+     */
+    public static byte[] encode(double[] values) {
+        BitWriter out = new BitWriter(HEADER_BYTES + (values.length * MAX_BITS_PER_VALUE + 7) / 8);
+        out.write(FORMAT_VERSION, 8);
+        out.write(values.length, 32);
+        if (values.length == 0) {
+            return out.toByteArray();
+        }
+        long previous = Double.doubleToRawLongBits(values[0]);
+        out.write(previous, Long.SIZE);
+        int windowLeading = -1;
+        int windowTrailing = 0;
+        for (int i = 1; i < values.length; i++) {
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previous;
+            if (xor == 0) {
+                out.write(0, 1);
+            } else {
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), MAX_LEADING_ZEROS);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (windowLeading >= 0 && leading >= windowLeading && trailing >= windowTrailing) {
+                    out.write(0b10, 2);
+                    out.write(xor >>> windowTrailing, Long.SIZE - windowLeading - windowTrailing);
+                } else {
+                    int meaningful = Long.SIZE - leading - trailing;
+                    out.write(0b11, 2);
+                    out.write(leading, 5);
+                    out.write(meaningful, 6);
+                    out.write(xor >>> trailing, meaningful);
+                    windowLeading = leading;
+                    windowTrailing = trailing;
+                }
+            }
+            previous = bits;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param data compressed values
+     * @return waveform values
+     * @throws IllegalArgumentException if the data isn't in a known format
+     */
+    public static double[] decode(byte[] data) {
+        BitReader in = new BitReader(data);
+        int version = (int) in.read(8);
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unknown waveform compression format " + version);
+        }
+        double[] values = new double[(int) in.read(32)];
+        if (values.length == 0) {
+            return values;
+        }
+        long previous = in.read(Long.SIZE);
+        values[0] = Double.longBitsToDouble(previous);
+        int meaningful = 0;
+        int trailing = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (in.read(1) == 1) {
+                if (in.read(1) == 1) {
+                    int leading = (int) in.read(5);
+                    meaningful = (int) in.read(6);
+                    if (meaningful == 0) {
+                        meaningful = Long.SIZE;
+                    }
+                    trailing = Long.SIZE - leading - meaningful;
+                }
+                previous ^= in.read(meaningful) << trailing;
+            }
+            values[i] = Double.longBitsToDouble(previous);
+        }
+        return values;
+    }
+
+    /**
+     * Packs bits into bytes, most significant first.
+     */
+    private static final class BitWriter {
+        private final byte[] buffer;
+        private int bitPosition;
+
+        BitWriter(int maxBytes) {
+            buffer = new byte[maxBytes];
+        }
+
+        /**
+         * @param value bits to write, in the lowest bitCount bits
+         * @param bitCount number of bits to write, up to 64
+         */
+        void write(long value, int bitCount) {
+            int remaining = bitCount;
+            while (remaining > 0) {
+                int free = 8 - (bitPosition & 7);
+                int count = Math.min(free, remaining);
+                int chunk = (int) (value >>> (remaining - count)) & ((1 << count) - 1);
+                buffer[bitPosition >>> 3] |= (byte) (chunk << (free - count));
+                bitPosition += count;
+                remaining -= count;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (bitPosition + 7) >>> 3);
+        }
+    }
+
+    /**
+     * Reads bits written by {@link BitWriter}.
+     */
+    private static final class BitReader {
+        private final byte[] buffer;
+        private int bitPosition;
+
+        BitReader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @param bitCount number of bits to read, up to 64
+         * @return the bits, in the lowest bitCount bits
+         * @throws IllegalArgumentException if the data ends first
+         */
+        long read(int bitCount) {
+            if (bitPosition + bitCount > buffer.length * 8) {
+                throw new IllegalArgumentException("Compressed waveform data is truncated");
+            }
+            long value = 0;
+            int remaining = bitCount;
+            while (remaining > 0) {
+                int available = 8 - (bitPosition & 7);
+                int count = Math.min(available, remaining);
+                int chunk = ((buffer[bitPosition >>> 3] & 0xff) >>> (available - count)) & ((1 << count) - 1);
+                value = (value << count) | chunk;
+                bitPosition += count;
+                remaining -= count;
+            }
+            return value;
+        }
+    }
+}
@@ -33,6 +33,7 @@ public class TestCopyConstructor {
             "java.lang.Boolean",
             "java.lang.Double",
             "java.lang.Double[]",
+            "double[]",
             "java.lang.Long",
             "java.lang.String",
             "java.time.Instant",
@@ -179,6 +180,8 @@ public class TestCopyConstructor {
                 return (double) INTEGERS.get(index);
             case "java.lang.Double[]":
                 return new Double[]{(double) INTEGERS.get(index)};
+            case "double[]":
+                return new double[]{(double) INTEGERS.get(index)};
             case "long":
             case "java.lang.Long":
                 return (long) INTEGERS.get(index);
@@ -1,7 +1,5 @@
 package uk.ac.ucl.rits.inform.datasources.ids;
 
-import ca.uhn.hl7v2.HapiContext;
-import ca.uhn.hl7v2.parser.PipeParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.CommandLineRunner;
@@ -40,30 +38,20 @@ public class AppHl7 {
     @Profile("default")
     public CommandLineRunner mainLoop(Publisher publisher, IdsOperations idsOps) {
         return (args) -> {
-            logger.info("Initialising HAPI...");
             long startTimeMillis = System.currentTimeMillis();
-            HapiContext context = HL7Utils.initializeHapiContext();
-            PipeParser parser = context.getPipeParser();
-            logger.info("Done initialising HAPI");
-
             int exitCode = 1;
-            while (true) {
-                try {
-                    idsOps.parseAndSendNextHl7(publisher, parser);
-                } catch (ReachedEndException ree) {
-                    // last message has been processed, so stop
-                    exitCode = 0;
-                    break;
-                } catch (Exception e) {
-                    logger.error("Exiting because encountered exception: ", e);
-                    break;
-                }
+            try {
+                idsOps.parseAndSendAll(publisher);
+            } catch (ReachedEndException ree) {
+                // last message has been processed, so stop
+                exitCode = 0;
+            } catch (Exception e) {
+                logger.error("Exiting because encountered exception: ", e);
             }
 
             long endCurrentTimeMillis = System.currentTimeMillis();
             logger.info(String.format("processed messages for %.0f secs, exiting with code %d",
                     (endCurrentTimeMillis - startTimeMillis) / 1000.0, exitCode));
-            context.close();
             idsOps.close();
             // Make sure all threads exit - if running in open-ended mode, ie. no IDS endUnid
             // to stop at, then the only way to get here is because something
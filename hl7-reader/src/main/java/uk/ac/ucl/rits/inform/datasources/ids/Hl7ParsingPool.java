@@ -0,0 +1,70 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses HL7 messages on a pool of worker threads, each with its own HAPI context and parser.
+ * Results can complete in any order, it is up to the caller to wait on them in the order they are needed.
+ */
+class Hl7ParsingPool implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(Hl7ParsingPool.class);
+
+    private final ExecutorService workers;
+    private final List<HapiContext> contexts = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<PipeParser> parsers = ThreadLocal.withInitial(() -> {
+        HapiContext context = HL7Utils.initializeHapiContext();
+        contexts.add(context);
+        return context.getPipeParser();
+    });
+
+    /**
+     * @param numWorkers number of messages to parse at once
+     */
+    Hl7ParsingPool(int numWorkers) {
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread thread = new Thread(r, "Hl7Parser-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param hl7msg HL7 message text as stored in the IDS
+     * @return the parsed message, which fails with an HL7Exception if it couldn't be parsed
+     */
+    Future<Message> parse(String hl7msg) {
+        return workers.submit(() -> {
+            // HL7 is supposed to use \r for line endings, but
+            // the IDS uses \n
+            return parsers.get().parse(hl7msg.replace("\n", "\r"));
+        });
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+        synchronized (contexts) {
+            for (HapiContext context : contexts) {
+                try {
+                    context.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close HAPI context", e);
+                }
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@ public class IdsConfiguration {
     private Instant serviceStartDatetime;
     private Instant endDatetime;
     private boolean startFromLastId;
+    private int prefetchWindow;
+    private int parseWorkers;
     private IdsProgressRepository idsProgressRepository;
     private SessionFactory sessionFactory;
 
@@ -76,6 +78,29 @@ public class IdsConfiguration {
         this.startFromLastId = startFromLastId;
     }
 
+    /**
+     * @return number of IDS messages to read with each query
+     */
+    int getPrefetchWindow() {
+        return prefetchWindow;
+    }
+
+    @Value("${ids.cfg.prefetch-window:500}")
+    void setPrefetchWindow(int prefetchWindow) {
+        this.prefetchWindow = prefetchWindow;
+    }
+
+    /**
+     * @return number of HL7 messages to parse at once
+     */
+    int getParseWorkers() {
+        return parseWorkers;
+    }
+
+    @Value("${ids.cfg.parse-workers:4}")
+    void setParseWorkers(int parseWorkers) {
+        this.parseWorkers = parseWorkers;
+    }
 
     SessionFactory getSessionFactory() {
         return sessionFactory;
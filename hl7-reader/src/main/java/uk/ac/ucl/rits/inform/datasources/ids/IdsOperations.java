@@ -10,8 +10,8 @@ import ca.uhn.hl7v2.model.v26.message.ORU_R01;
 import ca.uhn.hl7v2.model.v26.message.ORU_R30;
 import ca.uhn.hl7v2.model.v26.message.PPR_PC1;
 import ca.uhn.hl7v2.model.v26.segment.MSH;
-import ca.uhn.hl7v2.parser.PipeParser;
 import ca.uhn.hl7v2.util.Hl7InputStreamMessageIterator;
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -46,7 +46,10 @@ import java.io.InputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 
 /**
@@ -71,6 +74,30 @@ public class IdsOperations implements AutoCloseable {
     private final boolean idsEmptyOnInit;
     private final Integer defaultStartUnid;
     private final Integer endUnid;
+    private final IdsPrefetchingReader prefetchingReader;
+    private final int parseWorkers;
+
+    /**
+     * Number of messages that can be read ahead for each parse worker.
+     */
+    private static final int PIPELINE_DEPTH_PER_WORKER = 4;
+    /**
+     * Put in the pipeline after the pre-configured last message.
+     */
+    private static final PendingHl7 END_OF_IDS = new PendingHl7(null, null);
+
+    /**
+     * An IDS message that has been handed to the parsers.
+     */
+    private static final class PendingHl7 {
+        private final IdsMaster idsMsg;
+        private final Future<Message> parsed;
+
+        PendingHl7(IdsMaster idsMsg, Future<Message> parsed) {
+            this.idsMsg = idsMsg;
+            this.parsed = parsed;
+        }
+    }
 
     /**
      * @param idsConfiguration      configuration of interaction with IDS
@@ -100,6 +127,8 @@ public class IdsOperations implements AutoCloseable {
         logger.info("IdsOperations() idsEmptyOnInit = {}", idsEmptyOnInit);
         defaultStartUnid = getFirstMessageUnidFromDate(idsConfiguration.getStartDateTime());
         endUnid = getFirstMessageUnidFromDate(idsConfiguration.getEndDatetime());
+        parseWorkers = idsConfiguration.getParseWorkers();
+        prefetchingReader = new IdsPrefetchingReader(this::getNextHL7IdsRecords, idsConfiguration.getPrefetchWindow(), 10_000);
 
         // Progress is stored as the unid (the date info is purely for human convenience),
         logger.info(
@@ -124,6 +153,11 @@ public class IdsOperations implements AutoCloseable {
      */
     @Override
     public void close() {
+        try {
+            prefetchingReader.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         if (idsFactory != null) {
             idsFactory.close();
         }
@@ -282,96 +316,107 @@ public class IdsOperations implements AutoCloseable {
     }
 
     /**
-     * Get next entry in the IDS, if it exists.
+     * Get the next window of entries in the IDS.
      *
      * @param lastProcessedId the last one we have successfully processed
-     * @return the first message that comes after lastProcessedId, or null if there isn't one
-     * @throws InternalError if something has gone wrong with batching of HL7 messages
+     * @param windowSize      maximum number of entries to return
+     * @return entries after lastProcessedId in unid order, empty if there aren't any
      */
-    public IdsMaster getNextHL7IdsRecord(int lastProcessedId) {
-        // consider changing to "get next N messages" for more efficient database
-        // performance
-        // when doing large "catch-up" operations
-        // (handle the batching in the caller)
+    List<IdsMaster> getNextHL7IdsRecords(int lastProcessedId, int windowSize) {
         try (Session idsSession = idsFactory.openSession()) {
             idsSession.setDefaultReadOnly(true);
             Query<IdsMaster> qnext =
                     idsSession.createQuery("SELECT i FROM IdsMaster i where i.unid > :lastProcessedId order by i.unid", IdsMaster.class);
             qnext.setParameter("lastProcessedId", lastProcessedId);
-            qnext.setMaxResults(1);
-            List<IdsMaster> nextMsgOrEmpty = qnext.list();
-            if (nextMsgOrEmpty.isEmpty()) {
-                return null;
-            } else if (nextMsgOrEmpty.size() == 1) {
-                return nextMsgOrEmpty.get(0);
-            } else {
-                throw new InternalError();
-            }
+            qnext.setMaxResults(windowSize);
+            return qnext.list();
         }
     }
 
     /**
-     * Return the next HL7 message in the IDS. If there are no more, block until
-     * there are.
+     * Read, parse and send messages from the IDS until the pre-configured last message, or until something goes wrong.
+     * <p>
+     * Runs as a pipeline. A fetch stage reads messages from the IDS in unid order and hands each one to a pool of
+     * parsers. This thread then waits for each message to be parsed in turn and builds and sends its interchange messages,
+     * and progress is written as they are confirmed. Building stays in unid order because some factories keep track of
+     * progress between messages.
      *
-     * @param lastProcessedId the latest unique ID that has already been processed
-     * @return the next HL7 message record
+     * @param publisher the local AMQP handling class
+     * @throws AmqpException        if rabbitmq write fails
+     * @throws ReachedEndException  if we have reached the pre-configured last message
+     * @throws InterruptedException if interrupted while waiting for the next message or a publish confirmation
      */
-    public IdsMaster getNextHL7IdsRecordBlocking(int lastProcessedId) {
-        long secondsSleep = 10;
-        IdsMaster idsMsg = null;
-        while (true) {
-            idsMsg = getNextHL7IdsRecord(lastProcessedId);
-            if (idsMsg == null) {
-                logger.debug("No more messages in IDS, retrying in {} seconds", secondsSleep);
-                try {
-                    Thread.sleep(secondsSleep * 1000);
-                } catch (InterruptedException ie) {
-                    logger.trace("Sleep was interrupted");
+    public void parseAndSendAll(Publisher publisher) throws AmqpException, ReachedEndException, InterruptedException {
+        IdsProgress progress = getLatestProcessedId();
+        int lastProcessedId = progress.getLastProcessedIdsUnid();
+        if (reachedEnd(lastProcessedId)) {
+            logger.info("lastProcessedId = {} >= endUnid = {}, exiting", lastProcessedId, this.endUnid);
+            throw new ReachedEndException();
+        }
+        BlockingQueue<PendingHl7> inOrder = new ArrayBlockingQueue<>(PIPELINE_DEPTH_PER_WORKER * parseWorkers);
+        try (Hl7ParsingPool parsingPool = new Hl7ParsingPool(parseWorkers)) {
+            Thread fetchStage = new Thread(() -> fetchAndParse(lastProcessedId, parsingPool, inOrder), "IdsFetch");
+            fetchStage.setDaemon(true);
+            fetchStage.start();
+            try {
+                while (true) {
+                    PendingHl7 pending = inOrder.take();
+                    if (pending == END_OF_IDS) {
+                        logger.info("Processed up to endUnid = {}, exiting", this.endUnid);
+                        throw new ReachedEndException();
+                    }
+                    sendAndRecordProgress(publisher, pending, progress);
                 }
-            } else {
-                break;
+            } finally {
+                fetchStage.interrupt();
+                fetchStage.join();
             }
         }
-        return idsMsg;
+    }
+
+    private boolean reachedEnd(int lastId) {
+        return this.endUnid != null && lastId >= this.endUnid;
     }
 
     /**
-     * Wrapper for the entire transaction that performs: - read latest processed ID
-     * from EMAP star (ETL metadata) - process the message and write to EMAP star -
-     * write the latest processed ID to reflect the above message. Blocks until
-     * there are new messages.
+     * Fetch stage of the pipeline, runs until interrupted or the pre-configured last message has been fetched.
      *
-     * @param publisher the local AMQP handling class
-     * @param parser    the HAPI parser to be used
-     * @throws AmqpException       if rabbitmq write fails
-     * @throws ReachedEndException if we have reached the pre-configured last message
+     * @param lastProcessedId the latest unique ID that has already been processed
+     * @param parsingPool     parses each message
+     * @param inOrder         messages waiting to be sent, in unid order
      */
-    @Transactional
-    public void parseAndSendNextHl7(Publisher publisher, PipeParser parser) throws AmqpException, ReachedEndException {
-        IdsProgress progress = getLatestProcessedId();
-        int lastProcessedId = progress.getLastProcessedIdsUnid();
-        logger.debug("parseAndSendNextHl7, lastProcessedId = " + lastProcessedId);
-        if (this.endUnid != null && lastProcessedId >= this.endUnid) {
-            logger.info("lastProcessedId = {} >= endUnid = {}, exiting", lastProcessedId, this.endUnid);
-            throw new ReachedEndException();
+    private void fetchAndParse(int lastProcessedId, Hl7ParsingPool parsingPool, BlockingQueue<PendingHl7> inOrder) {
+        int lastFetchedId = lastProcessedId;
+        try {
+            while (!reachedEnd(lastFetchedId)) {
+                IdsMaster idsMsg = prefetchingReader.next(lastFetchedId);
+                inOrder.put(new PendingHl7(idsMsg, parsingPool.parse(idsMsg.getHl7message())));
+                lastFetchedId = idsMsg.getUnid();
+            }
+            inOrder.put(END_OF_IDS);
+        } catch (InterruptedException e) {
+            logger.trace("Fetch stage stopped after unid {}", lastFetchedId);
         }
-        IdsMaster idsMsg = getNextHL7IdsRecordBlocking(lastProcessedId);
+    }
 
+    /**
+     * Send stage of the pipeline: build interchange messages from one parsed HL7 message and send them.
+     * Progress is written once rabbitmq has confirmed every message from this and all earlier HL7 messages,
+     * so it never gets ahead of anything that could be lost in a crash.
+     *
+     * @param publisher the local AMQP handling class
+     * @param pending   IDS message and its parsing result
+     * @param progress  progress to update
+     * @throws AmqpException        if rabbitmq write fails
+     * @throws InterruptedException if interrupted while waiting for parsing or space in the publisher
+     */
+    private void sendAndRecordProgress(Publisher publisher, PendingHl7 pending, IdsProgress progress)
+            throws AmqpException, InterruptedException {
+        IdsMaster idsMsg = pending.idsMsg;
         Instant messageDatetime = idsMsg.getMessagedatetime();
+        List<ImmutablePair<EmapOperationMessage, String>> batch = new ArrayList<>();
         try {
-            String hl7msg = idsMsg.getHl7message();
-            // HL7 is supposed to use \r for line endings, but
-            // the IDS uses \n
-            hl7msg = hl7msg.replace("\n", "\r");
-            Message msgFromIds;
-            try {
-                msgFromIds = parser.parse(hl7msg);
-            } catch (HL7Exception hl7e) {
-                logger.error("[{}] HL7 parsing error", idsMsg.getUnid(), hl7e);
-                return;
-            }
-
+            Message msgFromIds = pending.parsed.get();
             // One HL7 message can give rise to multiple interchange messages (lab orders),
             // but failure is only expressed on a per-HL7 message basis.
             try {
@@ -379,24 +424,22 @@ public class IdsOperations implements AutoCloseable {
                 int subMessageCount = 0;
                 for (EmapOperationMessage msg : messagesFromHl7Message) {
                     subMessageCount++;
-                    logger.trace("[{}] sending message ({}/{}) to RabbitMQ",
-                            idsMsg.getUnid(), subMessageCount, messagesFromHl7Message.size());
-                    Semaphore semaphore = new Semaphore(0);
-                    publisher.submit(msg, msg.getSourceMessageId(), String.format("%s_1", msg.getSourceMessageId()), () -> {
-                        logger.trace("callback for {}", msg.getSourceMessageId());
-                        semaphore.release();
-                    });
-                    semaphore.acquire();
+                    batch.add(new ImmutablePair<>(msg, String.format("%s_%d", msg.getSourceMessageId(), subMessageCount)));
                 }
             } catch (Hl7MessageIgnoredException ignoredException) {
                 logger.warn("Skipping unid {} (class {}) {}", idsMsg.getUnid(), msgFromIds.getClass(), ignoredException.getMessage());
-            } catch (HL7Exception | Hl7InconsistencyException | InterruptedException e) {
+            } catch (HL7Exception | Hl7InconsistencyException e) {
                 logger.error("Skipping unid {} (class {})", idsMsg.getUnid(), msgFromIds.getClass(), e);
             }
-        } finally {
-            Instant processingEnd = Instant.now();
-            progress.updateAndSave(idsMsg.getUnid(), messageDatetime, processingEnd, idsProgressRepository);
+        } catch (ExecutionException e) {
+            logger.error("[{}] HL7 parsing error", idsMsg.getUnid(), e.getCause());
         }
+        logger.trace("[{}] sending {} messages to RabbitMQ", idsMsg.getUnid(), batch.size());
+        // an empty batch still needs to go through the publisher, so that progress is recorded in order
+        publisher.submitInOrder(batch, String.valueOf(idsMsg.getUnid()), () -> {
+            logger.trace("callback for {}", idsMsg.getUnid());
+            progress.updateAndSave(idsMsg.getUnid(), messageDatetime, Instant.now(), idsProgressRepository);
+        });
     }
 
     /**
@@ -0,0 +1,140 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ucl.rits.inform.datasources.idstables.IdsMaster;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads ahead of the message currently being processed, so that the IDS is queried once per window of messages
+ * instead of once per message.
+ * <p>
+ * A background thread fetches the next window of rows after the last one it has fetched (keyset pagination on unid)
+ * and puts them in a bounded buffer, blocking when the buffer is full.
+ * <p>
+ * This class doesn't know anything about progress. If the caller asks for the message after a unid that isn't the one
+ * it was last given (eg. because processing failed and progress wasn't saved), the buffer is thrown away and reading
+ * starts again from that unid.
+ */
+public class IdsPrefetchingReader implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(IdsPrefetchingReader.class);
+
+    /**
+     * Fetch a window of messages.
+     */
+    @FunctionalInterface
+    interface WindowFetcher {
+        /**
+         * @param afterUnid  only return messages with a unid greater than this
+         * @param windowSize maximum number of messages to return
+         * @return messages in unid order
+         */
+        List<IdsMaster> fetch(int afterUnid, int windowSize);
+    }
+
+    private final WindowFetcher fetcher;
+    private final int windowSize;
+    private final long emptyPollMillis;
+
+    private BlockingQueue<IdsMaster> buffer;
+    private Thread fetcherThread;
+    private Integer lastTakenUnid;
+
+    /**
+     * @param fetcher         fetches the next window of messages
+     * @param windowSize      number of messages to fetch per query, the buffer holds two windows
+     * @param emptyPollMillis how long to wait before trying again when there are no new messages
+     */
+    IdsPrefetchingReader(WindowFetcher fetcher, int windowSize, long emptyPollMillis) {
+        this.fetcher = fetcher;
+        this.windowSize = windowSize;
+        this.emptyPollMillis = emptyPollMillis;
+    }
+
+    /**
+     * Return the next message, blocking until there is one.
+     * @param lastProcessedId the latest unique ID that has already been processed
+     * @return the first message after lastProcessedId
+     * @throws InterruptedException if interrupted while waiting for a message
+     */
+    public synchronized IdsMaster next(int lastProcessedId) throws InterruptedException {
+        if (fetcherThread == null || lastTakenUnid == null || lastTakenUnid != lastProcessedId) {
+            restartFrom(lastProcessedId);
+        }
+        IdsMaster next = buffer.take();
+        lastTakenUnid = next.getUnid();
+        return next;
+    }
+
+    /**
+     * Throw away anything that has already been read, and start reading again after a unid.
+     * @param afterUnid unid to start after
+     * @throws InterruptedException if interrupted while waiting for the old fetcher to stop
+     */
+    private void restartFrom(int afterUnid) throws InterruptedException {
+        stopFetcher();
+        if (lastTakenUnid != null) {
+            logger.info("Expected to continue after unid {} but was asked for the message after {}, re-reading from there",
+                    lastTakenUnid, afterUnid);
+        }
+        lastTakenUnid = null;
+        BlockingQueue<IdsMaster> newBuffer = new ArrayBlockingQueue<>(2 * windowSize);
+        buffer = newBuffer;
+        fetcherThread = new Thread(() -> fillBuffer(newBuffer, afterUnid), "IdsPrefetch");
+        fetcherThread.setDaemon(true);
+        fetcherThread.start();
+    }
+
+    /**
+     * Runs in the background until interrupted.
+     * @param target    buffer to fill
+     * @param afterUnid unid to start after
+     */
+    private void fillBuffer(BlockingQueue<IdsMaster> target, int afterUnid) {
+        int fetchAfter = afterUnid;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<IdsMaster> window;
+                try {
+                    window = fetcher.fetch(fetchAfter, windowSize);
+                } catch (RuntimeException e) {
+                    logger.error("Could not read from the IDS after unid {}, retrying in {} ms", fetchAfter, emptyPollMillis, e);
+                    Thread.sleep(emptyPollMillis);
+                    continue;
+                }
+                if (window.isEmpty()) {
+                    logger.debug("No more messages in IDS, retrying in {} ms", emptyPollMillis);
+                    Thread.sleep(emptyPollMillis);
+                    continue;
+                }
+                logger.debug("Read {} messages after unid {}", window.size(), fetchAfter);
+                for (IdsMaster idsMaster : window) {
+                    target.put(idsMaster);
+                }
+                fetchAfter = window.get(window.size() - 1).getUnid();
+            }
+        } catch (InterruptedException e) {
+            logger.trace("Prefetch after unid {} stopped", fetchAfter);
+        }
+    }
+
+    private void stopFetcher() throws InterruptedException {
+        if (fetcherThread != null) {
+            fetcherThread.interrupt();
+            fetcherThread.join();
+            fetcherThread = null;
+        }
+    }
+
+    /**
+     * Stop reading ahead.
+     * @throws InterruptedException if interrupted while waiting for the fetcher to stop
+     */
+    @Override
+    public synchronized void close() throws InterruptedException {
+        stopFetcher();
+    }
+}
@@ -0,0 +1,56 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v26.segment.MSH;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Parsing HL7 messages on several threads at once.
+ */
+class TestHl7ParsingPool {
+    /**
+     * Each result matches the message it was submitted for, and IDS style line endings are handled.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testResultsMatchSubmittedMessages() throws Exception {
+        String hl7 = HL7Utils.readHl7FromResource("Adt/generic/A01.txt").replace("\r", "\n");
+        try (Hl7ParsingPool pool = new Hl7ParsingPool(4)) {
+            List<Future<Message>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                results.add(pool.parse(hl7.replace("MSH|^~\\&|EPIC|", String.format("MSH|^~\\&|APP%02d|", i))));
+            }
+            for (int i = 0; i < 20; i++) {
+                MSH msh = (MSH) results.get(i).get().get("MSH");
+                assertEquals(String.format("APP%02d", i), msh.getMsh3_SendingApplication().getHd1_NamespaceID().getValue());
+            }
+        }
+    }
+
+    /**
+     * A message that can't be parsed fails its own result only.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void testParsingErrorIsInResult() throws Exception {
+        String hl7 = HL7Utils.readHl7FromResource("Adt/generic/A01.txt");
+        try (Hl7ParsingPool pool = new Hl7ParsingPool(2)) {
+            Future<Message> bad = pool.parse("not HL7");
+            Future<Message> good = pool.parse(hl7);
+            ExecutionException e = assertThrows(ExecutionException.class, bad::get);
+            assertInstanceOf(HL7Exception.class, e.getCause());
+            assertNotNull(good.get());
+        }
+    }
+}
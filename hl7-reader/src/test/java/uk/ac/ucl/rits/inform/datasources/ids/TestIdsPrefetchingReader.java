@@ -0,0 +1,92 @@
+package uk.ac.ucl.rits.inform.datasources.ids;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.ac.ucl.rits.inform.datasources.idstables.IdsMaster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reading ahead from the IDS in windows.
+ */
+class TestIdsPrefetchingReader {
+    private static final int WINDOW_SIZE = 3;
+    private final List<IdsMaster> ids = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> queriedAfter = Collections.synchronizedList(new ArrayList<>());
+    private IdsPrefetchingReader reader;
+
+    private List<IdsMaster> fetch(int afterUnid, int windowSize) {
+        queriedAfter.add(afterUnid);
+        synchronized (ids) {
+            return ids.stream().filter(i -> i.getUnid() > afterUnid).limit(windowSize).collect(Collectors.toList());
+        }
+    }
+
+    private void addToIds(int fromUnid, int toUnid) {
+        for (int unid = fromUnid; unid <= toUnid; unid++) {
+            IdsMaster idsMaster = new IdsMaster();
+            idsMaster.setUnid(unid);
+            ids.add(idsMaster);
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        reader = new IdsPrefetchingReader(this::fetch, WINDOW_SIZE, 10);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        reader.close();
+    }
+
+    /**
+     * Messages are returned in order, with one query per window rather than per message.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testReadsInWindows() throws InterruptedException {
+        addToIds(1, 9);
+        for (int unid = 1; unid <= 9; unid++) {
+            assertEquals(unid, reader.next(unid - 1).getUnid());
+        }
+        // the window after 9 is prefetched in the background, so may or may not have been queried yet
+        List<Integer> windowQueries = queriedAfter.stream().filter(unid -> unid < 9).distinct().collect(Collectors.toList());
+        assertEquals(List.of(0, 3, 6), windowQueries);
+    }
+
+    /**
+     * Once there are no more messages, the reader waits for new ones to turn up.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testWaitsForNewMessages() throws InterruptedException {
+        addToIds(1, 1);
+        assertEquals(1, reader.next(0).getUnid());
+        Thread.sleep(50);
+        addToIds(2, 2);
+        assertEquals(2, reader.next(1).getUnid());
+    }
+
+    /**
+     * If the caller's progress doesn't follow on from the last message returned, start again from the caller's progress.
+     * @throws InterruptedException shouldn't happen
+     */
+    @Test
+    void testRereadsWhenProgressWasNotSaved() throws InterruptedException {
+        addToIds(1, 9);
+        assertEquals(1, reader.next(0).getUnid());
+        assertEquals(2, reader.next(1).getUnid());
+        // processing of 2 failed, so progress is still at 1
+        assertEquals(2, reader.next(1).getUnid());
+        assertEquals(3, reader.next(2).getUnid());
+        assertTrue(queriedAfter.contains(1));
+    }
+}
@@ -133,10 +133,9 @@ public class Hl7Generator {
 //            Collections.shuffle(synthMsgs);
 
             /*
-             * It seems like Spring Integration on the waveform-reader side won't properly multithread handlers
-             * for messages that all come in on a single connection. So create multiple connections here.
-             * However, in production we won't have control over the TCP client,
-             * so we will have to fix the waveform-reader eventually.
+             * The waveform-reader parses messages from a single connection in parallel across locations,
+             * as that's what production will send. Multiple connections are still useful for testing
+             * that it copes with several senders at once.
              */
             try (Hl7TcpClientPool tcpClient = hl7TcpClientFactory.createTcpClientPool(tcpClientPoolSize)) {
                 for (var msgStr : synthMsgs) {
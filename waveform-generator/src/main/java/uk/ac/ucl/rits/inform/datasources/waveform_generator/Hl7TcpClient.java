@@ -29,8 +29,7 @@ public class Hl7TcpClient implements AutoCloseable {
         OutputStream os = socket.getOutputStream();
         os.write("\r\u000b".getBytes());
         os.write(msg);
-        // There can't be any characters after this in the TCP message, or the
-        // Spring Integration TCP server will give errors.
+        // The reader treats anything after this as whitespace at the start of the next message.
         // I can't yet be sure that this is how Smartlinx behaves!
         os.write("\r\u001c".getBytes());
     }
@@ -0,0 +1,113 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed timer wheel holding at most one deadline per key, so that the keys whose deadline has passed can be found
+ * without looking at all the others.
+ * <p>
+ * Deadlines are rounded up to a whole tick. Each tick has a slot, and slots are reused every revolution of the wheel,
+ * so a slot can hold keys that are due on a later revolution; they are left where they are until then.
+ * If a key is scheduled again, only the earliest deadline is kept, as the owner of the key is expected to
+ * reschedule anything that turns out not to be ready yet.
+ * @param <K> key type
+ */
+class DeadlineWheel<K> {
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    private final long tickMillis;
+    private final List<Set<K>> slots;
+    private final Map<K, Long> deadlineTicks = new ConcurrentHashMap<>();
+    /**
+     * The last tick whose slot has been emptied of due keys. Guarded by this.
+     */
+    private long processedTick = NOT_STARTED;
+
+    /**
+     * @param tickMillis length of a tick
+     * @param slotCount  number of ticks in one revolution of the wheel
+     */
+    DeadlineWheel(long tickMillis, int slotCount) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    /**
+     * Schedule a key, unless it's already scheduled for the same tick or earlier.
+     * @param key      key to schedule
+     * @param deadline when the key is due
+     */
+    void schedule(K key, Instant deadline) {
+        long tick = Math.floorDiv(deadline.toEpochMilli() + tickMillis - 1, tickMillis);
+        Long existing = deadlineTicks.get(key);
+        if (existing != null && existing <= tick) {
+            return;
+        }
+        synchronized (this) {
+            // a deadline that has already passed is due at the next tick
+            long dueTick = processedTick == NOT_STARTED ? tick : Math.max(tick, processedTick + 1);
+            existing = deadlineTicks.get(key);
+            if (existing != null && existing <= dueTick) {
+                return;
+            }
+            // an entry left in the slot of the old deadline is skipped when that slot comes round
+            deadlineTicks.put(key, dueTick);
+            slotFor(dueTick).add(key);
+        }
+    }
+
+    /**
+     * Take the keys that are due, so they are no longer scheduled.
+     * @param nowTime the current time
+     * @return keys whose deadlines have passed
+     */
+    synchronized List<K> advance(Instant nowTime) {
+        long nowTick = Math.floorDiv(nowTime.toEpochMilli(), tickMillis);
+        List<K> dueKeys = new ArrayList<>();
+        if (processedTick != NOT_STARTED && nowTick <= processedTick) {
+            return dueKeys;
+        }
+        // no need to go round more than once
+        long firstTick = nowTick - slots.size() + 1;
+        if (processedTick != NOT_STARTED) {
+            firstTick = Math.max(firstTick, processedTick + 1);
+        }
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Iterator<K> slotKeys = slotFor(tick).iterator();
+            while (slotKeys.hasNext()) {
+                K key = slotKeys.next();
+                Long deadlineTick = deadlineTicks.get(key);
+                if (deadlineTick == null || slotFor(deadlineTick) != slotFor(tick)) {
+                    slotKeys.remove();
+                } else if (deadlineTick <= nowTick) {
+                    slotKeys.remove();
+                    deadlineTicks.remove(key);
+                    dueKeys.add(key);
+                }
+            }
+        }
+        processedTick = nowTick;
+        return dueKeys;
+    }
+
+    /**
+     * Forget all deadlines.
+     */
+    synchronized void clear() {
+        slots.forEach(Set::clear);
+        deadlineTicks.clear();
+        processedTick = NOT_STARTED;
+    }
+
+    private Set<K> slotFor(long tick) {
+        return slots.get((int) Math.floorMod(tick, (long) slots.size()));
+    }
+}
@@ -4,7 +4,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
 
@@ -18,16 +17,13 @@ import java.util.Scanner;
 public class Hl7FromFile {
     private final Logger logger = LoggerFactory.getLogger(Hl7FromFile.class);
 
-    private final ThreadPoolTaskExecutor listenTaskExecutor;
     private final Hl7ParseAndQueue hl7ParseAndQueue;
     private final File hl7DumpFile;
     static final String MESSAGE_DELIMITER = "\u001c";
 
-    Hl7FromFile(ThreadPoolTaskExecutor listenTaskExecutor,
-                Hl7ParseAndQueue hl7ParseAndQueue,
+    Hl7FromFile(Hl7ParseAndQueue hl7ParseAndQueue,
                 @Value("${waveform.hl7.test_dump_file:#{null}}") File hl7DumpFile
                 ) {
-        this.listenTaskExecutor = listenTaskExecutor;
         this.hl7ParseAndQueue = hl7ParseAndQueue;
         this.hl7DumpFile = hl7DumpFile;
     }
@@ -45,7 +41,7 @@ public class Hl7FromFile {
     }
 
     @Scheduled(fixedRate = Long.MAX_VALUE) // do once only
-    void readOnceAndQueueScheduled() throws Hl7ParseException, WaveformCollator.CollationException, IOException {
+    void readOnceAndQueueScheduled() throws Hl7ParseException, WaveformCollator.CollationException, IOException, InterruptedException {
         if (hl7DumpFile == null) {
             logger.info("No test HL7 file specified");
             return;
@@ -60,7 +56,8 @@ public class Hl7FromFile {
         System.exit(0);
     }
 
-    void readOnceAndQueue(File hl7DumpFile) throws Hl7ParseException, WaveformCollator.CollationException, IOException {
+    void readOnceAndQueue(File hl7DumpFile)
+            throws Hl7ParseException, WaveformCollator.CollationException, IOException, InterruptedException {
         List<String> messages = readFromFile(hl7DumpFile);
         logger.info("Read {} HL7 messages from test dump file", messages.size());
         for (int mi = 0; mi < messages.size(); mi++) {
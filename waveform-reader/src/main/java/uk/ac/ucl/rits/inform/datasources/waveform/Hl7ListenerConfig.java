@@ -1,26 +1,10 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.integration.channel.ExecutorChannel;
-import org.springframework.integration.channel.QueueChannel;
-import org.springframework.integration.dsl.IntegrationFlow;
-import org.springframework.integration.dsl.IntegrationFlows;
-import org.springframework.integration.ip.tcp.TcpReceivingChannelAdapter;
-import org.springframework.integration.ip.tcp.connection.DefaultTcpNetConnectionSupport;
-import org.springframework.integration.ip.tcp.connection.TcpNetConnection;
-import org.springframework.integration.ip.tcp.connection.TcpNetServerConnectionFactory;
-import org.springframework.integration.ip.tcp.serializer.ByteArraySingleTerminatorSerializer;
-import org.springframework.messaging.Message;
-import org.springframework.messaging.MessageChannel;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
 
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
@@ -29,142 +13,62 @@ import java.util.List;
  */
 @Configuration
 public class Hl7ListenerConfig {
-    private final Logger logger = LoggerFactory.getLogger(Hl7ListenerConfig.class);
-
     private final Hl7ParseAndQueue hl7ParseAndQueue;
+    private final boolean zeroCopyParser;
 
-    public Hl7ListenerConfig(Hl7ParseAndQueue hl7ParseAndQueue) {
+    /**
+     * @param hl7ParseAndQueue parser for incoming messages
+     * @param zeroCopyParser   parse the received bytes directly, rather than converting them to a string first
+     */
+    public Hl7ListenerConfig(Hl7ParseAndQueue hl7ParseAndQueue,
+                             @Value("${waveform.hl7.zero_copy_parser:true}") boolean zeroCopyParser) {
         this.hl7ParseAndQueue = hl7ParseAndQueue;
+        this.zeroCopyParser = zeroCopyParser;
     }
 
     /**
      * Specify the server config.
      * @param listenPort port to listen on (inside container)
      * @param sourceAddressAllowList list of source addresses that are allowed to connect to us
-     * @param listenTaskExecutor task executor to use for TCP listener
-     * @return connection factory
+     * @param handlerThreads number of threads to parse messages on; each location is always parsed on the same one
+     * @param handlerQueueCapacity number of messages that can wait for each parsing thread
+     * @param handlerHighWatermark messages waiting for the parsing threads above which reading is paused
+     * @param handlerLowWatermark messages waiting for the parsing threads below which reading can resume
+     * @param backPressure back-pressure from the later stages, to which the parsing threads are added
+     * @return the listener, which is started and stopped with the application context
      */
     @Bean
-    public TcpNetServerConnectionFactory serverConnectionFactory(
+    public Hl7NioListener hl7Listener(
             @Value("${waveform.hl7.listen_port}") int listenPort,
             @Value("${waveform.hl7.source_address_allow_list}") List<String> sourceAddressAllowList,
-            ThreadPoolTaskExecutor listenTaskExecutor
+            @Value("${waveform.hl7.handler_threads:4}") int handlerThreads,
+            @Value("${waveform.hl7.handler_queue_capacity:1000}") int handlerQueueCapacity,
+            @Value("${waveform.backpressure.handler.high_watermark:2000}") long handlerHighWatermark,
+            @Value("${waveform.backpressure.handler.low_watermark:500}") long handlerLowWatermark,
+            WaveformBackPressure backPressure
     ) {
-        TcpNetServerConnectionFactory connFactory = new TcpNetServerConnectionFactory(listenPort);
-        connFactory.setSoSendBufferSize(10 * 1024 * 1024);
-        connFactory.setSoReceiveBufferSize(10 * 1024 * 1024);
-        connFactory.setTaskExecutor(listenTaskExecutor);
-        connFactory.setSoTimeout(10_000);
-        connFactory.setSoTcpNoDelay(false);
-        connFactory.setSoKeepAlive(true);
-        // The message separator is actually "\r\x1c\r\x0b", but there is no pre-existing
-        // serializer which supports string separators.
-        // Since the 0x1c (file separator) character is pretty unusual and only occurs here,
-        // use this as a single byte separator and then we'll have to strip off the other junk later.
-        // Spring will get upset if we get sent anything after this character. May need to squash this
-        // error, at least if it's just some extraneous whitespace.
-        ByteArraySingleTerminatorSerializer serializer = new ByteArraySingleTerminatorSerializer((byte) 0x1c);
-        serializer.setMaxMessageSize(5_000_000);
-        connFactory.setDeserializer(serializer);
-        connFactory.setTcpNetConnectionSupport(new DefaultTcpNetConnectionSupport() {
-            @Override
-            public TcpNetConnection createNewConnection(
-                    Socket socket,
-                    boolean server,
-                    boolean lookupHost,
-                    ApplicationEventPublisher applicationEventPublisher,
-                    String connectionFactoryName) {
-                TcpNetConnection conn = super.createNewConnection(socket, server, lookupHost, applicationEventPublisher, connectionFactoryName);
-                String sourceAddress = conn.getHostAddress();
-                if (sourceAddressAllowList.contains(sourceAddress)
-                        || sourceAddressAllowList.contains("ALL")) {
-                    logger.info("connection accepted from {}:{}", sourceAddress, conn.getPort());
-                } else {
-                    logger.warn("CONNECTION REFUSED from {}:{}, allowlist = {}", sourceAddress, conn.getPort(), sourceAddressAllowList);
-                    conn.close();
-                }
-                return conn;
-            }
-        });
-        return connFactory;
-    }
-
-    @Bean
-    ThreadPoolTaskExecutor hl7HandlerTaskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(4);
-        executor.setMaxPoolSize(16);
-        executor.setThreadNamePrefix("HL7Handler-");
-        executor.setQueueCapacity(5000);
-        executor.initialize();
-        return executor;
-    }
-
-    @Bean
-    ThreadPoolTaskExecutor listenTaskExecutor() {
-        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(4);
-        executor.setMaxPoolSize(8);
-        executor.setThreadNamePrefix("TcpListen-");
-        executor.setQueueCapacity(5000);
-        executor.initialize();
-        return executor;
-    }
-
-    @Bean
-    MessageChannel executorStream(ThreadPoolTaskExecutor hl7HandlerTaskExecutor) {
-        ExecutorChannel executorChannel = new ExecutorChannel(hl7HandlerTaskExecutor);
-        return executorChannel;
-    }
-
-    @Bean
-    QueueChannel queueTcpStream() {
-        QueueChannel queueChannel = new QueueChannel(2000);
-        return queueChannel;
-    }
-
-    @Bean
-    IntegrationFlow integrationFlow(MessageChannel executorStream, MessageChannel queueTcpStream) {
-        return IntegrationFlows.from(queueTcpStream)
-                .channel(executorStream)
-                .handle(msg -> {
-                    try {
-                        handler((Message<byte[]>) msg);
-                    } catch (Hl7ParseException e) {
-                        throw new RuntimeException(e);
-                    } catch (WaveformCollator.CollationException e) {
-                        throw new RuntimeException(e);
-                    }
-                })
-                .get();
-    }
-
-
-    /**
-     * Routes the TCP connection to the message handling.
-     * @param connectionFactory connection factory
-     * @param queueTcpStream message channel for (split) HL7 messages
-     * @return adapter
-     */
-    @Bean
-    TcpReceivingChannelAdapter inbound(TcpNetServerConnectionFactory connectionFactory, MessageChannel queueTcpStream) {
-        TcpReceivingChannelAdapter adapter = new TcpReceivingChannelAdapter();
-        adapter.setConnectionFactory(connectionFactory);
-        adapter.setOutputChannel(queueTcpStream);
-        return adapter;
+        Hl7NioListener listener = new Hl7NioListener(
+                listenPort, sourceAddressAllowList, handlerThreads, handlerQueueCapacity, backPressure, this::handler);
+        backPressure.addStage("handler_queued_messages", "HL7 messages that have been read and are waiting to be parsed",
+                listener::getQueuedMessageCount, handlerHighWatermark, handlerLowWatermark);
+        return listener;
     }
 
     /**
      * Message handler. Source IP check has passed if we get here. No reply is expected.
-     * @param msg the incoming message
+     * @param messageBytes the incoming message
      * @throws Hl7ParseException if HL7 is invalid or in a form that the ad hoc parser can't handle
      * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
+     * @throws InterruptedException if interrupted while sending collated messages
      */
-    public void handler(Message<byte[]> msg) throws Hl7ParseException, WaveformCollator.CollationException {
-        byte[] asBytes = msg.getPayload();
-        String asStr = new String(asBytes, StandardCharsets.UTF_8);
+    public void handler(byte[] messageBytes) throws Hl7ParseException, WaveformCollator.CollationException, InterruptedException {
         // parse message from HL7 to interchange message, send to internal queue
-        hl7ParseAndQueue.parseAndQueue(asStr);
+        if (zeroCopyParser) {
+            hl7ParseAndQueue.parseAndQueue(messageBytes);
+        } else {
+            String asStr = new String(messageBytes, StandardCharsets.UTF_8);
+            hl7ParseAndQueue.parseAndQueue(asStr);
+        }
     }
 
 }
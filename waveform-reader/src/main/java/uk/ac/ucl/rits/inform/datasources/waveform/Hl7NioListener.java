@@ -0,0 +1,376 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ByteMessage;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Listen on a TCP port for incoming HL7 messages, using non-blocking IO.
+ * <p>
+ * A single IO thread accepts connections and reads from all of them, splitting what it reads into messages
+ * as it goes. Each message is then handed to one of a fixed set of handler threads, chosen by the message's
+ * location (PV1-3), so that messages for the same bed are handled in the order they arrived, while
+ * different beds are handled in parallel, even when everything comes in on a single connection.
+ * <p>
+ * Reading from all connections is paused while {@link WaveformBackPressure} says that a later stage is overloaded,
+ * which leaves the data in the socket buffers and so slows down the sender. As a last resort, if a single handler
+ * thread falls behind, its queue fills up and the IO thread waits for it.
+ */
+public class Hl7NioListener implements SmartLifecycle {
+    private final Logger logger = LoggerFactory.getLogger(Hl7NioListener.class);
+
+    /**
+     * The message separator is actually "\r\x1c\r\x0b", but since the 0x1c (file separator) character is
+     * pretty unusual and only occurs here, it's used as a single byte separator, and the other junk is
+     * stripped off as whitespace by the parser.
+     */
+    private static final byte MESSAGE_TERMINATOR = 0x1c;
+    private static final int MAX_MESSAGE_SIZE = 5_000_000;
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 10 * 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    /**
+     * How often to check whether reading can resume, while it's paused.
+     */
+    private static final long PAUSED_CHECK_MILLIS = 50;
+    /**
+     * Tells a handler thread to stop once it has handled everything queued before it.
+     */
+    private static final byte[] END_OF_QUEUE = new byte[0];
+
+    private final int listenPort;
+    private final List<String> sourceAddressAllowList;
+    private final WaveformBackPressure backPressure;
+    private final MessageHandler messageHandler;
+    private final List<BlockingQueue<byte[]>> handlerQueues;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private final List<Thread> handlerThreads = new ArrayList<>();
+    private volatile boolean running = false;
+    /**
+     * Whether connections are currently not being read from. Only used by the IO thread.
+     */
+    private boolean readingPaused = false;
+
+    /**
+     * Handles a single HL7 message, as received.
+     */
+    @FunctionalInterface
+    public interface MessageHandler {
+        /**
+         * @param messageBytes the message, without the terminating 0x1c
+         * @throws Hl7ParseException                   if HL7 is invalid or in a form that the ad hoc parser can't handle
+         * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
+         * @throws InterruptedException                if interrupted while sending collated messages
+         */
+        void handle(byte[] messageBytes) throws Hl7ParseException, WaveformCollator.CollationException, InterruptedException;
+    }
+
+    /**
+     * @param listenPort             port to listen on (0 to pick any free port)
+     * @param sourceAddressAllowList source addresses that are allowed to connect, or "ALL"
+     * @param handlerThreadCount     number of threads to handle messages on
+     * @param handlerQueueCapacity   number of messages that can wait for each handler thread
+     * @param backPressure           decides when to stop reading
+     * @param messageHandler         what to do with each message
+     */
+    public Hl7NioListener(int listenPort, List<String> sourceAddressAllowList, int handlerThreadCount, int handlerQueueCapacity,
+                          WaveformBackPressure backPressure, MessageHandler messageHandler) {
+        this.listenPort = listenPort;
+        this.sourceAddressAllowList = sourceAddressAllowList;
+        this.backPressure = backPressure;
+        this.messageHandler = messageHandler;
+        handlerQueues = new ArrayList<>(handlerThreadCount);
+        for (int i = 0; i < handlerThreadCount; i++) {
+            handlerQueues.add(new ArrayBlockingQueue<>(handlerQueueCapacity));
+        }
+    }
+
+    /**
+     * Open the port and start the IO and handler threads.
+     * @throws UncheckedIOException if the port can't be opened
+     */
+    @Override
+    public synchronized void start() {
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            // must be set before binding to have any effect on the accepted sockets' buffers
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER_SIZE);
+            serverChannel.bind(new InetSocketAddress(listenPort));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not listen on port " + listenPort, e);
+        }
+        for (int i = 0; i < handlerQueues.size(); i++) {
+            BlockingQueue<byte[]> queue = handlerQueues.get(i);
+            Thread handlerThread = new Thread(() -> handleQueuedMessages(queue), "HL7Handler-" + i);
+            handlerThread.start();
+            handlerThreads.add(handlerThread);
+        }
+        running = true;
+        ioThread = new Thread(this::readConnections, "HL7Listen");
+        ioThread.start();
+        logger.info("Listening for HL7 on port {} with {} handler threads", getLocalPort(), handlerQueues.size());
+    }
+
+    /**
+     * Stop accepting and reading data, then wait for the messages that were already read to be handled.
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            selector.wakeup();
+            ioThread.join();
+            for (BlockingQueue<byte[]> queue : handlerQueues) {
+                queue.put(END_OF_QUEUE);
+            }
+            for (Thread handlerThread : handlerThreads) {
+                handlerThread.join();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted while stopping HL7 listener");
+            ioThread.interrupt();
+            handlerThreads.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+        }
+        handlerThreads.clear();
+        logger.info("Stopped listening for HL7");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the port actually being listened on
+     */
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of messages that have been read and are waiting for a handler thread
+     */
+    public int getQueuedMessageCount() {
+        return handlerQueues.stream().mapToInt(BlockingQueue::size).sum();
+    }
+
+    private void readConnections() {
+        try (Selector ownedSelector = selector; ServerSocketChannel ownedServerChannel = serverChannel) {
+            while (running) {
+                boolean overloaded = backPressure.isOverloaded();
+                if (overloaded != readingPaused) {
+                    setReadingPaused(overloaded);
+                }
+                // nothing wakes the selector up when the later stages catch up, so keep checking while paused
+                ownedSelector.select(readingPaused ? PAUSED_CHECK_MILLIS : 0);
+                Iterator<SelectionKey> keys = ownedSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+            for (SelectionKey key : ownedSelector.keys()) {
+                key.channel().close();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.error("HL7 listener failed, no more data will be received", e);
+        } catch (InterruptedException e) {
+            logger.warn("HL7 listener interrupted while waiting for a handler thread");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void setReadingPaused(boolean pause) {
+        readingPaused = pause;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection) {
+                key.interestOps(pause ? 0 : SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        InetSocketAddress remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        String sourceAddress = remoteAddress.getAddress().getHostAddress();
+        if (!sourceAddressAllowList.contains(sourceAddress) && !sourceAddressAllowList.contains("ALL")) {
+            logger.warn("CONNECTION REFUSED from {}:{}, allowlist = {}", sourceAddress, remoteAddress.getPort(), sourceAddressAllowList);
+            channel.close();
+            return;
+        }
+        logger.info("connection accepted from {}:{}", sourceAddress, remoteAddress.getPort());
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        channel.register(selector, readingPaused ? 0 : SelectionKey.OP_READ, new Connection(sourceAddress + ":" + remoteAddress.getPort()));
+    }
+
+    private void read(SelectionKey key) throws InterruptedException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        readBuffer.clear();
+        int bytesRead;
+        try {
+            bytesRead = channel.read(readBuffer);
+        } catch (IOException e) {
+            logger.warn("Read from {} failed, closing connection", connection.description, e);
+            close(key, connection);
+            return;
+        }
+        if (bytesRead < 0) {
+            logger.info("connection closed by {}", connection.description);
+            close(key, connection);
+            return;
+        }
+        byte[] bytes = readBuffer.array();
+        int messageStart = 0;
+        for (int i = 0; i < bytesRead; i++) {
+            if (bytes[i] == MESSAGE_TERMINATOR) {
+                if (!connection.append(bytes, messageStart, i)) {
+                    tooLong(key, connection);
+                    return;
+                }
+                dispatch(connection.takeMessage());
+                messageStart = i + 1;
+            }
+        }
+        if (!connection.append(bytes, messageStart, bytesRead)) {
+            tooLong(key, connection);
+        }
+    }
+
+    private void tooLong(SelectionKey key, Connection connection) {
+        logger.error("Message from {} is longer than {} bytes, closing connection", connection.description, MAX_MESSAGE_SIZE);
+        close(key, connection);
+    }
+
+    private void close(SelectionKey key, Connection connection) {
+        if (connection.hasPartialMessage()) {
+            logger.warn("Discarding incomplete message of {} bytes from {}", connection.length, connection.description);
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            logger.warn("Failed to close connection from {}", connection.description, e);
+        }
+    }
+
+    /**
+     * Queue a message for the handler thread for its location, waiting if that thread is behind.
+     * @param messageBytes message to handle
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void dispatch(byte[] messageBytes) throws InterruptedException {
+        int locationHash = Hl7ByteMessage.fieldHash(messageBytes, "PV1", 3);
+        handlerQueues.get(Math.floorMod(locationHash, handlerQueues.size())).put(messageBytes);
+    }
+
+    private void handleQueuedMessages(BlockingQueue<byte[]> queue) {
+        while (true) {
+            byte[] messageBytes;
+            try {
+                messageBytes = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (messageBytes == END_OF_QUEUE) {
+                return;
+            }
+            try {
+                messageHandler.handle(messageBytes);
+            } catch (InterruptedException e) {
+                logger.warn("HL7 handler thread interrupted");
+                return;
+            } catch (Hl7ParseException | WaveformCollator.CollationException | RuntimeException e) {
+                logger.error("Failed to handle HL7 message", e);
+            }
+        }
+    }
+
+    /**
+     * The part of a message that has been read from a connection so far.
+     */
+    private static final class Connection {
+        private final String description;
+        private byte[] buffer = new byte[0];
+        private int length = 0;
+
+        Connection(String description) {
+            this.description = description;
+        }
+
+        /**
+         * @param bytes bytes read
+         * @param from  start of the bytes belonging to the current message
+         * @param to    end of the bytes belonging to the current message
+         * @return false if the message would be too long
+         */
+        boolean append(byte[] bytes, int from, int to) {
+            int newLength = length + to - from;
+            if (newLength > MAX_MESSAGE_SIZE) {
+                return false;
+            }
+            if (newLength > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.min(MAX_MESSAGE_SIZE, Math.max(newLength, buffer.length * 2)));
+            }
+            System.arraycopy(bytes, from, buffer, length, to - from);
+            length = newLength;
+            return true;
+        }
+
+        byte[] takeMessage() {
+            byte[] message = Arrays.copyOf(buffer, length);
+            length = 0;
+            return message;
+        }
+
+        boolean hasPartialMessage() {
+            for (int i = 0; i < length; i++) {
+                if (!Character.isWhitespace((char) buffer[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -6,12 +6,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ByteMessage;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Message;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ParseException;
 import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7Segment;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
+import java.nio.charset.StandardCharsets;
 import java.time.DateTimeException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
@@ -31,17 +33,22 @@ import java.util.Set;
 @Component
 public class Hl7ParseAndQueue {
     private final Logger logger = LoggerFactory.getLogger(Hl7ParseAndQueue.class);
+    private static final DateTimeFormatter HL7_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSZZ");
+    private static final Set<String> NUMERIC_HL7_TYPES = Set.of("NM", "NA");
     private final WaveformOperations waveformOperations;
     private final WaveformCollator waveformCollator;
     private final SourceMetadata sourceMetadata;
     private final LocationMapping locationMapping;
+    private final WaveformSegmentLog segmentLog;
     private long numHl7 = 0;
 
     Hl7ParseAndQueue(WaveformOperations waveformOperations,
                      WaveformCollator waveformCollator,
-                     SourceMetadata sourceMetadata, LocationMapping locationMapping) {
+                     SourceMetadata sourceMetadata, LocationMapping locationMapping,
+                     WaveformSegmentLog segmentLog) {
         this.waveformOperations = waveformOperations;
         this.waveformCollator = waveformCollator;
+        this.segmentLog = segmentLog;
         this.sourceMetadata = sourceMetadata;
         this.locationMapping = locationMapping;
     }
@@ -80,10 +87,9 @@ public class Hl7ParseAndQueue {
                 }
 
                 logger.trace("Parsing datetime {}", obsDatetimeStr);
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSZZ");
                 Instant obsDatetime;
                 try {
-                    TemporalAccessor ta = formatter.parse(obsDatetimeStr);
+                    TemporalAccessor ta = HL7_DATETIME_FORMATTER.parse(obsDatetimeStr);
                     obsDatetime = Instant.from(ta);
                 } catch (DateTimeException e) {
                     throw (Hl7ParseException) new Hl7ParseException("Datetime parsing failed").initCause(e);
@@ -91,42 +97,23 @@ public class Hl7ParseAndQueue {
 
                 String streamId = obx.getField(3);
 
-                Optional<SourceMetadataItem> metadataOpt = sourceMetadata.getStreamMetadata(streamId);
+                Optional<SourceMetadataItem> metadataOpt = usableStreamMetadata(streamId, obx.getField(2));
                 if (metadataOpt.isEmpty()) {
-                    logger.warn("Skipping stream {}, unrecognised streamID", streamId);
                     continue;
                 }
                 SourceMetadataItem metadata = metadataOpt.get();
-                if (!metadata.isUsable()) {
-                    logger.warn("Skipping stream {}, insufficient metadata", streamId);
-                    continue;
-                }
-                // Sampling rate and stream description is not in the message, so use the metadata
-                int samplingRate = metadata.samplingRate();
-                String mappedLocation = locationMapping.hl7AdtLocationFromCapsuleLocation(locationId);
-                String mappedStreamDescription = metadata.mappedStreamDescription();
-                String unit = metadata.unit();
-
-                // non-numerical types won't be able to go in the waveform table, but it's possible
-                // we might need them as a VisitObservation
-                String hl7Type = obx.getField(2);
-                if (!Set.of("NM", "NA").contains(hl7Type)) {
-                    logger.warn("Skipping stream {} with type {}, not numerical", streamId, hl7Type);
-                    continue;
-                }
                 String allPointsStr = obx.getField(5);
                 if (allPointsStr.contains("~")) {
                     throw new Hl7ParseException("must only be 1 repeat in OBX-5");
                 }
 
-                List<Double> points = Arrays.stream(allPointsStr.split("\\^")).map(Double::parseDouble).toList();
+                double[] points = Arrays.stream(allPointsStr.split("\\^")).mapToDouble(Double::parseDouble).toArray();
 
                 String messageIdSpecific = String.format("%s_%d_%d", messageIdBase, obrI, obxI);
                 logger.debug("location {}, time {}, messageId {}, value count = {}",
-                        locationId, obsDatetime, messageIdSpecific, points.size());
+                        locationId, obsDatetime, messageIdSpecific, points.length);
                 WaveformMessage waveformMessage = waveformMessageFromValues(
-                        samplingRate, locationId, mappedLocation, obsDatetime, messageIdSpecific,
-                        streamId, mappedStreamDescription, unit, points);
+                        metadata, locationId, obsDatetime, messageIdSpecific, streamId, points);
 
                 allWaveformMessages.add(waveformMessage);
             }
@@ -135,19 +122,109 @@ public class Hl7ParseAndQueue {
         return allWaveformMessages;
     }
 
-    @SuppressWarnings("checkstyle:ParameterNumber")
+    /**
+     * Same as {@link #parseHl7(String)}, but works directly on the bytes that were received,
+     * see {@link Hl7ByteMessage}.
+     * @param messageBytes the message as received
+     * @return the interchange messages, one per usable OBX segment
+     * @throws Hl7ParseException if HL7 is invalid or in a form that the ad hoc parser can't handle
+     */
+    List<WaveformMessage> parseHl7(byte[] messageBytes) throws Hl7ParseException {
+        List<WaveformMessage> allWaveformMessages = new ArrayList<>();
+        Hl7ByteMessage message = new Hl7ByteMessage(messageBytes);
+        if (message.isEmpty()) {
+            // message was all whitespace, ignore
+            logger.info("Ignoring empty or all-whitespace message");
+            return allWaveformMessages;
+        }
+        logger.debug("Parsing message of size {} ({} including stray whitespace)", message.getLength(), messageBytes.length);
+        int msh = message.getSingleSegment("MSH");
+        int pv1 = message.getSingleSegment("PV1");
+        String messageIdBase = message.getField(msh, 10);
+        if (!message.fieldEquals(msh, 9, "ORU^R01")) {
+            throw new Hl7ParseException("Was expecting ORU^R01, got " + message.getField(msh, 9));
+        }
+        // OBX segments belong to the most recent OBR
+        int obr = -1;
+        int obrI = 0;
+        int obxI = 0;
+        String locationId = null;
+        for (int seg = 0; seg < message.getSegmentCount(); seg++) {
+            if (message.isSegment(seg, "OBR")) {
+                obr = seg;
+                obrI++;
+                obxI = 0;
+                locationId = message.getField(obr, 10);
+                continue;
+            }
+            if (!message.isSegment(seg, "OBX")) {
+                continue;
+            }
+            if (obr < 0) {
+                throw new Hl7ParseException("Required parent OBR for segment OBX not found");
+            }
+            obxI++;
+            if (!message.fieldEquals(obr, 10, pv1, 3)) {
+                throw new Hl7ParseException("Unexpected location " + locationId + "|" + message.getField(pv1, 3));
+            }
+            Instant obsDatetime = message.getFieldAsInstant(seg, 14);
+            String streamId = message.getField(seg, 3);
+            Optional<SourceMetadataItem> metadataOpt = usableStreamMetadata(streamId, message.getField(seg, 2));
+            if (metadataOpt.isEmpty()) {
+                continue;
+            }
+            if (message.fieldContains(seg, 5, '~')) {
+                throw new Hl7ParseException("must only be 1 repeat in OBX-5");
+            }
+            double[] points = message.getFieldAsDoubles(seg, 5, '^');
+
+            String messageIdSpecific = String.format("%s_%d_%d", messageIdBase, obrI, obxI);
+            logger.debug("location {}, time {}, messageId {}, value count = {}",
+                    locationId, obsDatetime, messageIdSpecific, points.length);
+            allWaveformMessages.add(waveformMessageFromValues(
+                    metadataOpt.get(), locationId, obsDatetime, messageIdSpecific, streamId, points));
+        }
+        return allWaveformMessages;
+    }
+
+    /**
+     * Check whether a stream can be turned into waveform data.
+     * @param streamId stream ID from OBX-3
+     * @param hl7Type  value type from OBX-2
+     * @return metadata for the stream, or empty if the stream should be skipped
+     */
+    private Optional<SourceMetadataItem> usableStreamMetadata(String streamId, String hl7Type) {
+        Optional<SourceMetadataItem> metadataOpt = sourceMetadata.getStreamMetadata(streamId);
+        if (metadataOpt.isEmpty()) {
+            logger.warn("Skipping stream {}, unrecognised streamID", streamId);
+            return Optional.empty();
+        }
+        if (!metadataOpt.get().isUsable()) {
+            logger.warn("Skipping stream {}, insufficient metadata", streamId);
+            return Optional.empty();
+        }
+        // non-numerical types won't be able to go in the waveform table, but it's possible
+        // we might need them as a VisitObservation
+        if (!NUMERIC_HL7_TYPES.contains(hl7Type)) {
+            logger.warn("Skipping stream {} with type {}, not numerical", streamId, hl7Type);
+            return Optional.empty();
+        }
+        return metadataOpt;
+    }
+
     private WaveformMessage waveformMessageFromValues(
-            int samplingRate, String locationId, String mappedLocation, Instant messageStartTime, String messageId,
-            String sourceStreamId, String mappedStreamDescription, String unit, List<Double> arrayValues) {
+            SourceMetadataItem metadata, String locationId, Instant messageStartTime, String messageId,
+            String sourceStreamId, double[] arrayValues) {
         WaveformMessage waveformMessage = new WaveformMessage();
-        waveformMessage.setSamplingRate(samplingRate);
+        // Sampling rate and stream description is not in the message, so use the metadata
+        waveformMessage.setSamplingRate(metadata.samplingRate());
         waveformMessage.setSourceLocationString(locationId);
-        waveformMessage.setMappedLocationString(mappedLocation);
-        waveformMessage.setMappedStreamDescription(mappedStreamDescription);
+        waveformMessage.setMappedLocationString(locationMapping.hl7AdtLocationFromCapsuleLocation(locationId));
+        waveformMessage.setMappedStreamDescription(metadata.mappedStreamDescription());
         waveformMessage.setObservationTime(messageStartTime);
         waveformMessage.setSourceMessageId(messageId);
         waveformMessage.setSourceStreamId(sourceStreamId);
-        waveformMessage.setUnit(unit);
+        waveformMessage.setUnit(metadata.unit());
         waveformMessage.setNumericValues(new InterchangeValue<>(arrayValues));
         logger.trace("output interchange waveform message = {}", waveformMessage);
         return waveformMessage;
@@ -158,8 +235,9 @@ public class Hl7ParseAndQueue {
      * If HL7 is invalid or in a form that the ad hoc parser can't handle, log error and skip.
      * @param messageAsStr One HL7 message as a string
      * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
+     * @throws InterruptedException If the Publisher thread is interrupted
      */
-    public void parseAndQueue(String messageAsStr) throws WaveformCollator.CollationException {
+    public void parseAndQueue(String messageAsStr) throws WaveformCollator.CollationException, InterruptedException {
         List<WaveformMessage> msgs;
         try {
             msgs = parseHl7(messageAsStr);
@@ -169,9 +247,36 @@ public class Hl7ParseAndQueue {
                     e.getStackTrace());
             return;
         }
+        queue(msgs);
+    }
 
+    /**
+     * Same as {@link #parseAndQueue(String)}, but parses the bytes that were received without
+     * converting them to a string first.
+     * @param messageBytes One HL7 message as received
+     * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
+     * @throws InterruptedException If the Publisher thread is interrupted
+     */
+    public void parseAndQueue(byte[] messageBytes) throws WaveformCollator.CollationException, InterruptedException {
+        List<WaveformMessage> msgs;
+        try {
+            msgs = parseHl7(messageBytes);
+        } catch (Hl7ParseException e) {
+            logger.error("HL7 parsing failed, first 100 chars: {}\nstacktrace {}",
+                    new String(messageBytes, 0, Math.min(100, messageBytes.length), StandardCharsets.UTF_8),
+                    e.getStackTrace());
+            return;
+        }
+        queue(msgs);
+    }
+
+    private void queue(List<WaveformMessage> msgs) throws WaveformCollator.CollationException, InterruptedException {
         logger.trace("HL7 message generated {} Waveform messages, sending for collation", msgs.size());
-        waveformCollator.addMessages(msgs);
+        // spilled messages are only added to the collator later, by collateAndSend
+        List<WaveformMessage> toCollate = segmentLog.append(msgs, waveformCollator.getPendingSampleCount());
+        List<WaveformMessage> collatedMsgs = waveformCollator.addMessagesAndCollate(
+                toCollate, Instant.now(), maxCollatedMessageSamples, waitForDataLimitMillis, assumedRounding);
+        waveformOperations.sendMessages(collatedMsgs);
         numHl7++;
         if (numHl7 % 5000 == 0) {
             logger.debug("Have parsed and queued {} HL7 messages in total, {} pending messages, "
@@ -193,21 +298,28 @@ public class Hl7ParseAndQueue {
     private int waitForDataLimitMillis = 15000;
 
     /**
-     * Get collated messages, if any, and send them to the Publisher.
+     * Collate and send the data that has waited long enough for more data to arrive.
+     * Data that reaches the target message size is collated and sent as soon as it's queued instead.
+     * Also reads back data that was spilled to the segment log, as far as the collator has room for it.
      * @throws InterruptedException If the Publisher thread is interrupted
      * @throws WaveformCollator.CollationException if the data has a logical error that prevents collation
      */
-    @Scheduled(fixedDelay = 10 * 1000)
+    @Scheduled(fixedDelay = 1000)
     public void collateAndSend() throws InterruptedException, WaveformCollator.CollationException {
-        logger.debug("{} uncollated waveform messages pending", waveformCollator.pendingMessages.size());
-        List<WaveformMessage> msgs = waveformCollator.getReadyMessages(
+        segmentLog.flush();
+        List<WaveformMessage> spilledMsgs = segmentLog.readSpilled(waveformCollator.getPendingSampleCount());
+        if (!spilledMsgs.isEmpty()) {
+            logger.info("Read back {} spilled waveform messages", spilledMsgs.size());
+            waveformOperations.sendMessages(waveformCollator.addMessagesAndCollate(
+                    spilledMsgs, Instant.now(), maxCollatedMessageSamples, waitForDataLimitMillis, assumedRounding));
+        }
+        List<WaveformMessage> msgs = waveformCollator.getTimedOutMessages(
                 Instant.now(), maxCollatedMessageSamples, waitForDataLimitMillis, assumedRounding);
-        logger.info("{} collated waveform messages ready for sending", msgs.size());
-        for (var m: msgs) {
-            // consider sending to publisher in batches?
-            waveformOperations.sendMessage(m);
+        if (!msgs.isEmpty()) {
+            logger.info("{} timed out collated waveform messages ready for sending, {} uncollated messages pending",
+                    msgs.size(), waveformCollator.getPendingMessageCount());
         }
-        logger.info("collateAndSend end");
+        waveformOperations.sendMessages(msgs);
     }
 
 }
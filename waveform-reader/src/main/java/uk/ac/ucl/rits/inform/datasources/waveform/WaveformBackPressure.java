@@ -0,0 +1,95 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Decides when the HL7 listener should stop reading from the network, because a later stage is too far behind.
+ * <p>
+ * Each stage has a high and a low watermark. Reading pauses as soon as any stage goes over its high watermark, and
+ * only resumes once every stage is back under its low watermark, so that it doesn't flap around a single level.
+ * Data that isn't read stays in the socket buffers, so an overloaded reader slows the sender down through
+ * TCP flow control, rather than dropping messages or running out of memory.
+ * <p>
+ * If a MeterRegistry is available, the depth of each stage and whether reading is paused are published as metrics.
+ */
+public class WaveformBackPressure {
+    private final Logger logger = LoggerFactory.getLogger(WaveformBackPressure.class);
+
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private volatile MeterRegistry meterRegistry;
+    private volatile boolean paused = false;
+
+    private record Stage(String name, String description, LongSupplier depth, long highWatermark, long lowWatermark) {
+    }
+
+    /**
+     * Add a stage whose depth is taken into account.
+     * @param name          name of the stage, used for its metric
+     * @param description   what the depth measures
+     * @param depth         how much is waiting in the stage
+     * @param highWatermark depth above which reading is paused
+     * @param lowWatermark  depth below which this stage allows reading to resume
+     * @throws IllegalArgumentException if the low watermark is above the high watermark
+     */
+    public void addStage(String name, String description, LongSupplier depth, long highWatermark, long lowWatermark) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException(String.format(
+                    "Low watermark %d for %s is above high watermark %d", lowWatermark, name, highWatermark));
+        }
+        Stage stage = new Stage(name, description, depth, highWatermark, lowWatermark);
+        stages.add(stage);
+        if (meterRegistry != null) {
+            registerStageMetric(meterRegistry, stage);
+        }
+    }
+
+    /**
+     * Publish metrics for the current stages, and any that are added later.
+     * @param registry registry to publish to
+     */
+    public void registerMetrics(MeterRegistry registry) {
+        meterRegistry = registry;
+        stages.forEach(stage -> registerStageMetric(registry, stage));
+        Gauge.builder("emap.waveform.backpressure.paused", () -> paused ? 1 : 0)
+                .description("Whether reading HL7 from the network is paused until later stages catch up")
+                .register(registry);
+    }
+
+    private void registerStageMetric(MeterRegistry registry, Stage stage) {
+        Gauge.builder("emap.waveform.backpressure." + stage.name(), () -> stage.depth().getAsLong())
+                .description(stage.description())
+                .register(registry);
+    }
+
+    /**
+     * Check the stages, and decide whether reading should be paused.
+     * @return true if reading should be paused
+     */
+    public synchronized boolean isOverloaded() {
+        boolean wasPaused = paused;
+        if (wasPaused) {
+            paused = stages.stream().anyMatch(stage -> stage.depth().getAsLong() >= stage.lowWatermark());
+        } else {
+            paused = stages.stream().anyMatch(stage -> stage.depth().getAsLong() > stage.highWatermark());
+        }
+        if (paused != wasPaused) {
+            logger.warn("{} reading HL7, stage depths: {}", paused ? "Pausing" : "Resuming", describeDepths());
+        }
+        return paused;
+    }
+
+    private String describeDepths() {
+        return stages.stream()
+                .map(stage -> String.format("%s=%d (high %d, low %d)",
+                        stage.name(), stage.depth().getAsLong(), stage.highWatermark(), stage.lowWatermark()))
+                .collect(Collectors.joining(", "));
+    }
+}
@@ -4,6 +4,7 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
@@ -15,18 +16,70 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
 /**
  * Read interchange messages produced by {@link Hl7ParseAndQueue}, identify
  * contiguous data to turn them into bigger interchange messages for greater
  * DB storage efficiency.
+ * <p>
+ * Messages can be added from many threads at once without locking. Each location+stream is
+ * collated by one thread at a time.
+ * <p>
+ * Collation is event driven when messages are added with {@link #addMessagesAndCollate}: a location+stream
+ * is collated as soon as it has enough samples for a message, and otherwise when its deadline for waiting
+ * for more data passes, see {@link #getTimedOutMessages}. {@link #getReadyMessages} collates everything
+ * that is ready regardless.
  */
 public class WaveformCollator {
     private final Logger logger = LoggerFactory.getLogger(WaveformCollator.class);
-    protected final Map<Pair<String, String>, SortedMap<Instant, WaveformMessage>> pendingMessages = new HashMap<>();
+    private static final long DEADLINE_TICK_MILLIS = 1000;
+    private static final int DEADLINE_WHEEL_SLOTS = 64;
+    protected final Map<Pair<String, String>, SortedMap<Instant, WaveformMessage>> pendingMessages = new ConcurrentHashMap<>();
+    private final Map<Pair<String, String>, StreamState> streamStates = new ConcurrentHashMap<>();
+    private final DeadlineWheel<Pair<String, String>> deadlines = new DeadlineWheel<>(DEADLINE_TICK_MILLIS, DEADLINE_WHEEL_SLOTS);
+    private final AtomicInteger pendingMessageCount = new AtomicInteger();
+    private final AtomicLong pendingSampleCount = new AtomicLong();
+    private final WaveformSegmentLog segmentLog;
+
+    /**
+     * Collator that doesn't tell a segment log what it has collated.
+     */
+    public WaveformCollator() {
+        this(null);
+    }
+
+    /**
+     * @param segmentLog log holding the records of the messages added, told which ones have been collated into what
+     */
+    @Autowired
+    public WaveformCollator(WaveformSegmentLog segmentLog) {
+        this.segmentLog = segmentLog;
+    }
+
+    /**
+     * What event driven collation needs to know about one location+stream. Collation of the location+stream
+     * synchronizes on this.
+     */
+    private static final class StreamState {
+        private final AtomicLong pendingSamples = new AtomicLong();
+        /**
+         * Set when there were enough samples for a message but they weren't contiguous, so that adding to
+         * the end doesn't retry collation every time. Cleared when a message arrives out of order, as that
+         * may fill the gap.
+         */
+        private volatile boolean waitingForGap = false;
+        /**
+         * Where the first run of contiguous messages ended when it was last found to be not ready to collate.
+         */
+        private Instant firstRunEnd;
+    }
 
     Pair<String, String> makeKey(WaveformMessage msg) {
         return new ImmutablePair<>(msg.getSourceLocationString(), msg.getSourceStreamId());
@@ -38,42 +91,109 @@ public class WaveformCollator {
      * @throws CollationException if a message duplicates another message
      */
     public void addMessages(List<WaveformMessage> messagesToAdd) throws CollationException {
+        addAll(messagesToAdd, null);
+    }
+
+    /**
+     * Add short messages from the same patient, and collate the location+streams that now have enough samples
+     * for a message. The location+streams that don't are scheduled to be collated by {@link #getTimedOutMessages}
+     * once they have waited long enough for more data.
+     * @param messagesToAdd messages to add, can be for different location+stream
+     * @param nowTime see {@link #getReadyMessages}
+     * @param targetCollatedMessageSamples see {@link #getReadyMessages}
+     * @param waitForDataLimitMillis see {@link #getReadyMessages}
+     * @param assumedRounding see {@link #getReadyMessages}
+     * @return the collated messages that are now ready for sending, usually empty
+     * @throws CollationException if a message duplicates another message
+     */
+    public List<WaveformMessage> addMessagesAndCollate(List<WaveformMessage> messagesToAdd,
+                                                       Instant nowTime,
+                                                       int targetCollatedMessageSamples,
+                                                       int waitForDataLimitMillis,
+                                                       ChronoUnit assumedRounding) throws CollationException {
+        List<WaveformMessage> newMessages = new ArrayList<>();
+        for (Pair<String, String> key: addAll(messagesToAdd, waitForDataLimitMillis)) {
+            StreamState state = streamStates.get(key);
+            if (!state.waitingForGap && state.pendingSamples.get() >= targetCollatedMessageSamples) {
+                newMessages.addAll(collateStream(key, nowTime, targetCollatedMessageSamples, waitForDataLimitMillis, assumedRounding));
+            }
+        }
+        return newMessages;
+    }
+
+    /**
+     * @param messagesToAdd          messages to add, can be for different location+stream
+     * @param waitForDataLimitMillis how long to wait for more data before the location+streams are collated
+     *                               regardless, or null to not schedule them
+     * @return the location+streams that messages were added to
+     * @throws CollationException if a message duplicates another message
+     */
+    private Set<Pair<String, String>> addAll(List<WaveformMessage> messagesToAdd, Integer waitForDataLimitMillis)
+            throws CollationException {
         Map<Pair<String, String>, List<WaveformMessage>> messagesToAddByKey = new HashMap<>();
         for (WaveformMessage toAdd: messagesToAdd) {
             Pair<String, String> key = makeKey(toAdd);
             messagesToAddByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(toAdd);
         }
 
-        /* Lock the entire structure as briefly as possible, only to add new entries that don't exist.
-         * Lock because we mustn't simultaneously iterate over it in the reader thread.
-         */
-        synchronized (pendingMessages) {
-            for (var key: messagesToAddByKey.keySet()) {
-                pendingMessages.computeIfAbsent(key, k -> new TreeMap<>());
-            }
-        }
-
-        /* The bulk of time is spent only with a lock held on the data structure specific to
-         * the location+stream, thus enabling more parallelism.
-         * Need lock because we may be trying to collate at the same time as we're adding here.
-         * Group together all the messages for a particular location+stream, so that the lock
-         * for each one only needs to be taken out once.
-         */
-        for (var key: messagesToAddByKey.keySet()) {
-            SortedMap<Instant, WaveformMessage> existingMessages = pendingMessages.get(key);
-            synchronized (existingMessages) {
-                for (WaveformMessage msg: messagesToAddByKey.get(key)) {
-                    Instant observationTime = msg.getObservationTime();
-                    // messages may arrive out of order, but TreeMap will keep them sorted by obs time
-                    WaveformMessage existing = existingMessages.put(observationTime, msg);
-                    if (existing != null) {
-                        // in future we may want to compare them and only log error if they differ
-                        throw new CollationException(String.format("Already existing message with time %s: %s",
-                                observationTime, existing));
+        try {
+            for (var keyAndMessages: messagesToAddByKey.entrySet()) {
+                StreamState state = streamStates.computeIfAbsent(keyAndMessages.getKey(), k -> new StreamState());
+                // messages may arrive out of order, but the skip list will keep them sorted by obs time
+                SortedMap<Instant, WaveformMessage> existingMessages =
+                        pendingMessages.computeIfAbsent(keyAndMessages.getKey(), k -> new ConcurrentSkipListMap<>());
+                Instant earliestNextObservationTime = null;
+                try {
+                    for (WaveformMessage msg: keyAndMessages.getValue()) {
+                        Instant observationTime = msg.getObservationTime();
+                        if (!existingMessages.isEmpty() && observationTime.isBefore(existingMessages.lastKey())) {
+                            state.waitingForGap = false;
+                        }
+                        WaveformMessage existing = existingMessages.put(observationTime, msg);
+                        pendingSampleCount.addAndGet(sampleCount(msg));
+                        state.pendingSamples.addAndGet(sampleCount(msg));
+                        Instant nextObservationTime = msg.getExpectedNextObservationDatetime();
+                        if (earliestNextObservationTime == null || nextObservationTime.isBefore(earliestNextObservationTime)) {
+                            earliestNextObservationTime = nextObservationTime;
+                        }
+                        if (existing != null) {
+                            pendingSampleCount.addAndGet(-sampleCount(existing));
+                            state.pendingSamples.addAndGet(-sampleCount(existing));
+                            // in future we may want to compare them and only log error if they differ
+                            throw new CollationException(String.format("Already existing message with time %s: %s",
+                                    observationTime, existing));
+                        }
+                        pendingMessageCount.incrementAndGet();
+                    }
+                } finally {
+                    // scheduled even if a duplicate stops the batch, so that the messages added before it are still collated
+                    if (waitForDataLimitMillis != null && earliestNextObservationTime != null) {
+                        // the earliest that the run of messages containing these could have waited long enough
+                        deadlines.schedule(keyAndMessages.getKey(), earliestNextObservationTime.plusMillis(waitForDataLimitMillis));
                     }
                 }
             }
+        } catch (CollationException e) {
+            if (segmentLog != null) {
+                // a record with the same time as a pending message is released when that message is collated
+                segmentLog.rejected(messagesToAdd.stream().filter(msg -> !hasPendingMessageAt(msg)).toList());
+            }
+            throw e;
         }
+        return messagesToAddByKey.keySet();
+    }
+
+    /**
+     * @param msg message that was to be added
+     * @return whether a message with the same location+stream and observation time is waiting to be collated
+     */
+    private boolean hasPendingMessageAt(WaveformMessage msg) {
+        SortedMap<Instant, WaveformMessage> existingMessages = pendingMessages.get(makeKey(msg));
+        return existingMessages != null && existingMessages.containsKey(msg.getObservationTime());
+    }
+
+    private static int sampleCount(WaveformMessage msg) {
+        return msg.getNumericValues().get().length;
     }
 
     /**
@@ -102,30 +222,72 @@ public class WaveformCollator {
                 pendingMessages.size(),
                 pendingMessages.values().stream().filter(pm -> !pm.isEmpty()).count());
         logger.debug("Pending total samples: {}", getPendingSampleCount());
-        List<SortedMap<Instant, WaveformMessage>> pendingMessagesSnapshot;
-        synchronized (pendingMessages) {
-            // Here we (briefly) iterate over pendingMessages, so take out a lock to prevent
-            // undefined behaviour should we happen to be simultaneously adding items to this map.
-            // (Note that items are never deleted)
-            pendingMessagesSnapshot = new ArrayList<>(pendingMessages.values());
+        // Any new location+stream combos or messages added while this is running will get handled next time.
+        for (Pair<String, String> key: pendingMessages.keySet()) {
+            newMessages.addAll(collateStream(key, nowTime, targetCollatedMessageSamples, waitForDataLimitMillis, assumedRounding));
         }
-        // The snapshot may become slightly out of date, but that's fine because any new
-        // entries will get handled next time. The advantage is to allow
-        // more fine-grained locking to take place here.
-        for (SortedMap<Instant, WaveformMessage> perPatientMap: pendingMessagesSnapshot) {
+        return newMessages;
+    }
+
+    /**
+     * Collate the location+streams whose deadline for waiting for more data has passed,
+     * and schedule any that still have messages left for when those will have waited long enough.
+     * @param nowTime see {@link #getReadyMessages}
+     * @param targetCollatedMessageSamples see {@link #getReadyMessages}
+     * @param waitForDataLimitMillis see {@link #getReadyMessages}
+     * @param assumedRounding see {@link #getReadyMessages}
+     * @return the collated messages that are now ready for sending, may be empty if none are ready
+     * @throws CollationException if any set within pendingMessages contains messages not in
+     *                             fact all from the same patient+stream
+     */
+    public List<WaveformMessage> getTimedOutMessages(Instant nowTime,
+                                                     int targetCollatedMessageSamples,
+                                                     int waitForDataLimitMillis,
+                                                     ChronoUnit assumedRounding) throws CollationException {
+        List<WaveformMessage> newMessages = new ArrayList<>();
+        for (Pair<String, String> key: deadlines.advance(nowTime)) {
+            newMessages.addAll(collateStream(key, nowTime, targetCollatedMessageSamples, waitForDataLimitMillis, assumedRounding));
+            StreamState state = streamStates.get(key);
+            synchronized (state) {
+                if (!pendingMessages.get(key).isEmpty() && state.firstRunEnd != null) {
+                    deadlines.schedule(key, state.firstRunEnd.plusMillis(waitForDataLimitMillis));
+                }
+            }
+        }
+        return newMessages;
+    }
+
+    /**
+     * Collate as many messages as are ready for one location+stream.
+     * @param key location+stream
+     * @param nowTime see {@link #getReadyMessages}
+     * @param targetCollatedMessageSamples see {@link #getReadyMessages}
+     * @param waitForDataLimitMillis see {@link #getReadyMessages}
+     * @param assumedRounding see {@link #getReadyMessages}
+     * @return the collated messages, may be empty
+     * @throws CollationException if the messages are not in fact all from the same patient+stream
+     */
+    private List<WaveformMessage> collateStream(Pair<String, String> key,
+                                                Instant nowTime,
+                                                int targetCollatedMessageSamples,
+                                                int waitForDataLimitMillis,
+                                                ChronoUnit assumedRounding) throws CollationException {
+        List<WaveformMessage> newMessages = new ArrayList<>();
+        SortedMap<Instant, WaveformMessage> perPatientMap = pendingMessages.get(key);
+        StreamState state = streamStates.get(key);
+        synchronized (state) {
+            state.firstRunEnd = null;
             while (true) {
                 // There can be zero to multiple chunks that need turning into messages
-                WaveformMessage newMsg;
-                synchronized (perPatientMap) {
-                    newMsg = collateContiguousData(perPatientMap, nowTime,
-                            targetCollatedMessageSamples, waitForDataLimitMillis, assumedRounding);
-                }
+                WaveformMessage newMsg = collateContiguousData(perPatientMap, state, nowTime,
+                        targetCollatedMessageSamples, waitForDataLimitMillis, assumedRounding);
                 if (newMsg == null) {
                     break;
                 } else {
                     newMessages.add(newMsg);
                 }
             }
+            state.waitingForGap = state.pendingSamples.get() >= targetCollatedMessageSamples;
         }
         return newMessages;
     }
@@ -138,6 +300,7 @@ public class WaveformCollator {
      * Remove messages from the structure which were used as source data for the collated message.
      * Returns only one message, must be called repeatedly to see if more collating can be done.
      * @param perPatientMap sorted messages to collate, will have source items deleted from it
+     * @param state state of the same location+stream, kept up to date with what is collated
      * @param nowTime see {@link #getReadyMessages}
      * @param targetCollatedMessageSamples see {@link #getReadyMessages}
      * @param waitForDataLimitMillis see {@link #getReadyMessages}
@@ -147,6 +310,7 @@ public class WaveformCollator {
      */
 
     private WaveformMessage collateContiguousData(SortedMap<Instant, WaveformMessage> perPatientMap,
+                                                  StreamState state,
                                                   Instant nowTime,
                                                   int targetCollatedMessageSamples,
                                                   int waitForDataLimitMillis,
@@ -158,14 +322,15 @@ public class WaveformCollator {
         WaveformMessage firstMsg = perPatientMap.get(perPatientMap.firstKey());
         Pair<String, String> firstKey = makeKey(firstMsg);
 
-        int sizeBefore = perPatientMap.size();
         long sampleCount = 0;
         WaveformMessage previousMsg = null;
-        // existing values are not necessarily in mutable lists so use a new ArrayList
-        List<Double> newNumericValues = new ArrayList<>();
-        Iterator<Map.Entry<Instant, WaveformMessage>> perPatientMapIter = perPatientMap.entrySet().iterator();
+        // Start from firstMsg even if an earlier message has just been added, that one can wait until next time
+        Iterator<Map.Entry<Instant, WaveformMessage>> perPatientMapIter =
+                perPatientMap.tailMap(firstMsg.getObservationTime()).entrySet().iterator();
         // keep track of incoming message sizes for general interest (does not affect collation algorithm)
         Map<Integer, Integer> uncollatedMessageSizes = new HashMap<>();
+        // Messages may be added while we're working out what to collate, so remember exactly which ones were used
+        List<Map.Entry<Instant, WaveformMessage>> entriesToCollate = new ArrayList<>();
         int messagesToCollate = 0;
         while (perPatientMapIter.hasNext()) {
             Map.Entry<Instant, WaveformMessage> entry = perPatientMapIter.next();
@@ -175,7 +340,7 @@ public class WaveformCollator {
                 throw new CollationException(String.format("Key Mismatch: %s vs %s", firstKey, thisKey));
             }
 
-            int thisMessageSampleCount = msg.getNumericValues().get().size();
+            int thisMessageSampleCount = sampleCount(msg);
             int messageSizeCount = uncollatedMessageSizes.getOrDefault(thisMessageSampleCount, 0);
             uncollatedMessageSizes.put(thisMessageSampleCount, messageSizeCount + 1);
 
@@ -220,9 +385,9 @@ public class WaveformCollator {
                             msg.getSamplingRate(),
                             coe.getMessage(),
                             previousMsg.getObservationTime(), expectedNextDatetime,
-                            previousMsg.getNumericValues().get().size(),
+                            sampleCount(previousMsg),
                             msg.getObservationTime(), msg.getExpectedNextObservationDatetime(),
-                            msg.getNumericValues().get().size());
+                            sampleCount(msg));
                     // The data can't be corrected, but we can at least stop collating at this point.
                     // The overlapping message will be the first message of the next collation run,
                     // which at least exposes the overlap in the database rather than trying to obscure it.
@@ -232,6 +397,7 @@ public class WaveformCollator {
             previousMsg = msg;
 
             // don't modify yet, because we don't yet know if we will reach criteria to collate (num samples, time passed)
+            entriesToCollate.add(entry);
             messagesToCollate++;
         }
 
@@ -243,6 +409,7 @@ public class WaveformCollator {
         Instant expectedNextDatetime = previousMsg.getExpectedNextObservationDatetime();
         if (sampleCount < targetCollatedMessageSamples
                 && expectedNextDatetime.until(nowTime, ChronoUnit.MILLIS) <= waitForDataLimitMillis) {
+            state.firstRunEnd = expectedNextDatetime;
             return null;
         }
 
@@ -250,19 +417,30 @@ public class WaveformCollator {
                 messagesToCollate, sampleCount, uncollatedMessageSizes);
 
         // Do the actual collation now that we know how far to go.
-        Iterator<Map.Entry<Instant, WaveformMessage>> secondPassIter = perPatientMap.entrySet().iterator();
-        for (int i = 0; i < messagesToCollate; i++) {
-            Map.Entry<Instant, WaveformMessage> entry = secondPassIter.next();
+        int collatedSampleCount = 0;
+        for (Map.Entry<Instant, WaveformMessage> entry: entriesToCollate) {
+            collatedSampleCount += sampleCount(entry.getValue());
+        }
+        double[] newNumericValues = new double[collatedSampleCount];
+        int copiedSampleCount = 0;
+        for (Map.Entry<Instant, WaveformMessage> entry: entriesToCollate) {
             WaveformMessage msg = entry.getValue();
-            newNumericValues.addAll(msg.getNumericValues().get());
+            double[] values = msg.getNumericValues().get();
+            System.arraycopy(values, 0, newNumericValues, copiedSampleCount, values.length);
+            copiedSampleCount += values.length;
             // Remove all messages from the map that are used as source data, even the first one.
             // The underlying message object of the first element will still exist.
-            secondPassIter.remove();
+            perPatientMap.remove(entry.getKey(), msg);
         }
+        pendingMessageCount.addAndGet(-messagesToCollate);
+        pendingSampleCount.addAndGet(-collatedSampleCount);
+        state.pendingSamples.addAndGet(-collatedSampleCount);
         firstMsg.setNumericValues(new InterchangeValue<>(newNumericValues));
-        int sizeAfter = perPatientMap.size();
+        if (segmentLog != null) {
+            segmentLog.collated(firstMsg, entriesToCollate.stream().map(Map.Entry::getKey).toList());
+        }
         logger.info("Key {}, Collated {} messages into one, ({} data points)",
-                firstKey, sizeBefore - sizeAfter, sampleCount);
+                firstKey, messagesToCollate, sampleCount);
         return firstMsg;
     }
 
@@ -300,28 +478,26 @@ public class WaveformCollator {
     /**
      * @return The total number of samples pending in the queue.
      */
-    public int getPendingSampleCount() {
-        // Iteration, even without modification, can't be done while the structure might be being modified.
-        synchronized (pendingMessages) {
-            int totalSamples = 0;
-            for (var perPatientStream: pendingMessages.values()) {
-                synchronized (perPatientStream) {
-                    for (var msgs: perPatientStream.values()) {
-                        totalSamples += msgs.getNumericValues().get().size();
-                    }
-                }
-            }
-            return totalSamples;
-        }
+    public long getPendingSampleCount() {
+        return pendingSampleCount.get();
     }
 
     /**
      * @return The number of messages pending (uncollated) in the queue.
      */
     public int getPendingMessageCount() {
-        synchronized (pendingMessages) {
-            return pendingMessages.values().stream().map(Map::size).reduce(Integer::sum).orElse(0);
-        }
+        return pendingMessageCount.get();
+    }
+
+    /**
+     * Throw away all pending messages.
+     */
+    void clear() {
+        pendingMessages.clear();
+        streamStates.clear();
+        deadlines.clear();
+        pendingMessageCount.set(0);
+        pendingSampleCount.set(0);
     }
 
     class CollationException extends Throwable {
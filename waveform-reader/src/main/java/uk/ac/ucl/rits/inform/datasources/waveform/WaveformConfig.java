@@ -1,5 +1,8 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import uk.ac.ucl.rits.inform.interchange.springconfig.EmapDataSource;
@@ -14,4 +17,34 @@ public class WaveformConfig {
         return EmapDataSource.WAVEFORM_DATA;
     }
 
+    /**
+     * Back-pressure on reading HL7, from the collator and the publisher.
+     * The HL7 listener adds its own stage, see {@link Hl7ListenerConfig}.
+     * @param waveformCollator      collator, whose pending samples are one stage
+     * @param waveformOperations    publisher of collated messages, whose unconfirmed messages are another
+     * @param meterRegistry         registry for the metrics, if there is one
+     * @param collatorHighWatermark pending samples above which reading is paused
+     * @param collatorLowWatermark  pending samples below which reading can resume
+     * @param publishHighWatermark  unconfirmed collated messages above which reading is paused
+     * @param publishLowWatermark   unconfirmed collated messages below which reading can resume
+     * @return back-pressure, with the collator and publisher stages
+     */
+    @Bean
+    public WaveformBackPressure waveformBackPressure(
+            WaveformCollator waveformCollator,
+            WaveformOperations waveformOperations,
+            ObjectProvider<MeterRegistry> meterRegistry,
+            @Value("${waveform.backpressure.collator.high_watermark:25000000}") long collatorHighWatermark,
+            @Value("${waveform.backpressure.collator.low_watermark:20000000}") long collatorLowWatermark,
+            @Value("${waveform.backpressure.publish.high_watermark:2000}") long publishHighWatermark,
+            @Value("${waveform.backpressure.publish.low_watermark:1000}") long publishLowWatermark) {
+        WaveformBackPressure backPressure = new WaveformBackPressure();
+        backPressure.addStage("collator_pending_samples", "Samples waiting in the collator to be collated",
+                waveformCollator::getPendingSampleCount, collatorHighWatermark, collatorLowWatermark);
+        backPressure.addStage("publish_unconfirmed_messages", "Collated messages waiting for a confirm from rabbitmq",
+                waveformOperations::getUnconfirmedMessageCount, publishHighWatermark, publishLowWatermark);
+        meterRegistry.ifAvailable(backPressure::registerMetrics);
+        return backPressure;
+    }
+
 }
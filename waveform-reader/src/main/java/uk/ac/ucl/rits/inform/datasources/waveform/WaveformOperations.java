@@ -1,36 +1,132 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
+import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
 import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes collated waveform messages in batches.
+ * <p>
+ * Each batch is counted until rabbitmq has confirmed all of its messages, so that back-pressure can be applied
+ * and shutting down waits for the confirms rather than dropping whatever is still in flight.
+ * Confirmed batches are also released from the {@link WaveformSegmentLog}.
+ */
 @Component
 public class WaveformOperations {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final Publisher publisher;
+    private final WaveformSegmentLog segmentLog;
+    private final int batchSize;
+    private final long shutdownWaitMillis;
+    /**
+     * Number of messages in each batch that has been submitted but not yet confirmed, by batch ID.
+     */
+    private final Map<String, Integer> unconfirmedBatches = new ConcurrentHashMap<>();
+    /**
+     * Messages in the unconfirmed batches, kept separately so that it's cheap to check for back-pressure.
+     */
+    private final AtomicInteger unconfirmedMessageCount = new AtomicInteger();
 
-    public WaveformOperations(Publisher publisher) {
+    /**
+     * @param publisher          publisher for the waveform queue
+     * @param segmentLog         log of the source messages, which can be released once a batch is confirmed
+     * @param batchSize          maximum number of messages to publish in one batch
+     * @param shutdownWaitMillis how long to wait for unconfirmed batches when shutting down
+     */
+    public WaveformOperations(Publisher publisher,
+                              WaveformSegmentLog segmentLog,
+                              @Value("${waveform.publish.batch_size:100}") int batchSize,
+                              @Value("${waveform.publish.shutdown_wait_millis:10000}") long shutdownWaitMillis) {
         this.publisher = publisher;
+        this.segmentLog = segmentLog;
+        this.batchSize = batchSize;
+        this.shutdownWaitMillis = shutdownWaitMillis;
     }
 
-
     /**
-     * Send message to rabbitmq.
-     * @param msg the (collated) waveform message
+     * Send messages to rabbitmq, in batches of at most {@code waveform.publish.batch_size} messages.
+     * @param msgs the (collated) waveform messages
      * @throws InterruptedException If the Publisher thread is interrupted
      */
-    public void sendMessage(WaveformMessage msg) throws InterruptedException {
-        if (msg.getSourceMessageId() == null || msg.getSourceMessageId().isEmpty()) {
-            logger.error("ERROR: About to publish message with bad message ID {}", msg.getSourceMessageId());
+    public void sendMessages(List<WaveformMessage> msgs) throws InterruptedException {
+        for (int start = 0; start < msgs.size(); start += batchSize) {
+            submitBatch(msgs.subList(start, Math.min(start + batchSize, msgs.size())));
+        }
+    }
+
+    private void submitBatch(List<WaveformMessage> msgs) throws InterruptedException {
+        List<ImmutablePair<WaveformMessage, String>> batch = new ArrayList<>(msgs.size());
+        for (WaveformMessage msg : msgs) {
+            if (msg.getSourceMessageId() == null || msg.getSourceMessageId().isEmpty()) {
+                logger.error("ERROR: About to publish message with bad message ID {}", msg.getSourceMessageId());
+            }
+            batch.add(new ImmutablePair<>(msg, msg.getSourceMessageId()));
+        }
+        // message IDs are unique, so the first one identifies the batch
+        String batchId = msgs.get(0).getSourceMessageId();
+        List<WaveformMessage> batchMsgs = List.copyOf(msgs);
+        // counted before submitting, as the confirm can arrive before submit returns
+        if (unconfirmedBatches.putIfAbsent(batchId, batchMsgs.size()) != null) {
+            logger.error("Batch with ID {} is already being published, not publishing it again", batchId);
+            return;
+        }
+        unconfirmedMessageCount.addAndGet(batchMsgs.size());
+        boolean submitted = false;
+        try {
+            submitted = publisher.submit(batch, batchId, () -> {
+                // XXX: If/when we find a way of re-requesting old messages, we may want to keep track of progress here
+                // See issue #40.
+                segmentLog.confirmed(batchMsgs);
+                release(batchId);
+                logger.debug("Successful ACK for batch with ID {} ({} messages)", batchId, batch.size());
+            });
+        } finally {
+            if (!submitted) {
+                // the callback will never run
+                release(batchId);
+            }
+        }
+    }
+
+    private void release(String batchId) {
+        Integer messageCount = unconfirmedBatches.remove(batchId);
+        if (messageCount != null) {
+            unconfirmedMessageCount.addAndGet(-messageCount);
+        }
+    }
+
+    /**
+     * @return number of messages that have been submitted and not yet confirmed
+     */
+    public int getUnconfirmedMessageCount() {
+        return unconfirmedMessageCount.get();
+    }
+
+    /**
+     * Give batches that are still being published a chance to be confirmed before the publisher is shut down.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @PreDestroy
+    public void awaitConfirms() throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + shutdownWaitMillis;
+        while (!unconfirmedBatches.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(100);
+        }
+        if (!unconfirmedBatches.isEmpty()) {
+            logger.error("Shutting down with {} waveform messages in {} batches not confirmed by rabbitmq",
+                    getUnconfirmedMessageCount(), unconfirmedBatches.size());
         }
-        String messageId = msg.getSourceMessageId();
-        publisher.submit(msg, messageId, messageId, () -> {
-            // XXX: If/when we find a way of re-requesting old messages, we may want to keep track of progress here
-            // See issue #40.
-            logger.debug("Successful ACK for message with ID {}", messageId);
-        });
     }
 }
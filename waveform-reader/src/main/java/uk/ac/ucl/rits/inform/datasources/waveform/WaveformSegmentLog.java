@@ -0,0 +1,483 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.ac.ucl.rits.inform.interchange.InterchangeValue;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Append-only log of the uncollated waveform messages that the reader has received, kept in memory-mapped
+ * segment files, so that pending data can be recovered after a restart and doesn't all have to be kept on the heap.
+ * <p>
+ * Every message is appended before it's collated. The log keeps, per location+stream, the offset of each message
+ * that is in the {@link WaveformCollator}. Once a collated message has been confirmed by rabbitmq, the records of
+ * its source messages are marked as released, and a segment file is deleted once all its records are released.
+ * <p>
+ * If the collator already holds {@code waveform.buffer.heap_budget_samples} samples, messages are spilled: they are
+ * only appended to the log, and read back in order by {@link #readSpilled} when the collator has room again.
+ * On startup, all records that weren't released are read back in the same way.
+ * <p>
+ * Enabled by default. If {@code waveform.buffer.directory} is set to empty, messages go straight to the collator,
+ * and whatever hasn't been confirmed when the reader stops is lost.
+ * <p>
+ * Appending and reading back records lock the segments, but keeping track of which records are in the collator
+ * or waiting for a confirm doesn't, so collating and confirming messages only wait for an append when a segment
+ * has no live records left and is deleted.
+ */
+@Component
+public class WaveformSegmentLog {
+    private final Logger logger = LoggerFactory.getLogger(WaveformSegmentLog.class);
+    private static final Pattern SEGMENT_FILE_NAME = Pattern.compile("segment-(\\d+)\\.log");
+    private static final byte LIVE = 1;
+    private static final byte RELEASED = 2;
+    /**
+     * Record length and state.
+     */
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + 1;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long heapBudgetSamples;
+
+    /**
+     * Guards the segments, which one is active and the spill cursor.
+     */
+    private final Object segmentLock = new Object();
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment activeSegment;
+    /**
+     * Next spilled record to read back, or null if nothing has been spilled.
+     */
+    private RecordRef spillCursor;
+    /**
+     * Offsets of the records of messages that are in the collator, by location+stream and observation time.
+     */
+    private final Map<Pair<String, String>, NavigableMap<Instant, RecordRef>> collatorRecords = new ConcurrentHashMap<>();
+    /**
+     * Offsets of the source records of collated messages waiting for a confirm, by source message ID.
+     */
+    private final Map<String, List<RecordRef>> unconfirmedRecords = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory         directory for the segment files, empty to disable the log
+     * @param segmentMegabytes  size of each segment file
+     * @param heapBudgetSamples samples that the collator can hold before messages are spilled
+     */
+    public WaveformSegmentLog(
+            @Value("${waveform.buffer.directory:/waveform-buffer}") String directory,
+            @Value("${waveform.buffer.segment_megabytes:64}") int segmentMegabytes,
+            @Value("${waveform.buffer.heap_budget_samples:20000000}") long heapBudgetSamples) {
+        this.directory = directory.isEmpty() ? null : Path.of(directory);
+        this.segmentBytes = segmentMegabytes * 1024 * 1024;
+        this.heapBudgetSamples = heapBudgetSamples;
+    }
+
+    /**
+     * A record in a segment.
+     * @param segment  segment holding the record
+     * @param position offset of the record in the segment
+     */
+    private record RecordRef(Segment segment, int position) {
+    }
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static final class Segment {
+        private final long sequence;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition = 0;
+        private final AtomicInteger liveRecords = new AtomicInteger();
+
+        Segment(long sequence, Path path, int size) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    /**
+     * @return whether messages are written to the log
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Open the existing segments, and arrange for their unreleased records to be read back.
+     * @throws IOException if the segment files can't be read
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (!isEnabled()) {
+            logger.warn("Waveform segment log is disabled, data not yet confirmed by rabbitmq will be lost if the reader stops");
+            return;
+        }
+        synchronized (segmentLock) {
+            openSegments();
+        }
+    }
+
+    private void openSegments() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> existingFiles;
+        try (Stream<Path> files = Files.list(directory)) {
+            existingFiles = files.filter(path -> SEGMENT_FILE_NAME.matcher(path.getFileName().toString()).matches()).sorted().toList();
+        }
+        int recoveredRecords = 0;
+        for (Path path : existingFiles) {
+            Matcher matcher = SEGMENT_FILE_NAME.matcher(path.getFileName().toString());
+            matcher.matches();
+            Segment segment = new Segment(Long.parseLong(matcher.group(1)), path, 0);
+            scanRecords(segment);
+            if (segment.liveRecords.get() == 0) {
+                delete(segment);
+                continue;
+            }
+            segments.put(segment.sequence, segment);
+            recoveredRecords += segment.liveRecords.get();
+        }
+        if (!segments.isEmpty()) {
+            spillCursor = new RecordRef(segments.firstEntry().getValue(), 0);
+        }
+        // new records always go in a new segment
+        activeSegment = newSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1, segmentBytes);
+        logger.info("Waveform segment log in {} has {} records to recover from {} segments",
+                directory, recoveredRecords, segments.size() - 1);
+    }
+
+    private void scanRecords(Segment segment) {
+        int position = 0;
+        while (position + RECORD_HEADER_BYTES <= segment.buffer.capacity()) {
+            int length = segment.buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (segment.buffer.get(position + Integer.BYTES) == LIVE) {
+                segment.liveRecords.incrementAndGet();
+            }
+            position += Integer.BYTES + length;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Append messages to the log, and decide whether they go to the collator now or are spilled.
+     * @param msgs                   messages to append
+     * @param collatorPendingSamples number of samples in the collator
+     * @return the messages to add to the collator now, which is none if they were spilled
+     */
+    public List<WaveformMessage> append(List<WaveformMessage> msgs, long collatorPendingSamples) {
+        if (!isEnabled() || msgs.isEmpty()) {
+            return msgs;
+        }
+        synchronized (segmentLock) {
+            boolean spill = spillCursor != null || collatorPendingSamples >= heapBudgetSamples;
+            for (WaveformMessage msg : msgs) {
+                RecordRef ref = write(msg);
+                if (!spill) {
+                    trackInCollator(msg, ref);
+                } else if (spillCursor == null) {
+                    logger.warn("Waveform collator holds {} samples, spilling new messages to the segment log", collatorPendingSamples);
+                    spillCursor = ref;
+                }
+            }
+            return spill ? List.of() : msgs;
+        }
+    }
+
+    /**
+     * Read back spilled messages, as many as the collator has room for.
+     * @param collatorPendingSamples number of samples in the collator
+     * @return messages to add to the collator, in the order they were received
+     */
+    public List<WaveformMessage> readSpilled(long collatorPendingSamples) {
+        if (!isEnabled()) {
+            return List.of();
+        }
+        synchronized (segmentLock) {
+            return readSpilledRecords(collatorPendingSamples);
+        }
+    }
+
+    private List<WaveformMessage> readSpilledRecords(long collatorPendingSamples) {
+        List<WaveformMessage> msgs = new ArrayList<>();
+        long samples = collatorPendingSamples;
+        while (spillCursor != null && samples < heapBudgetSamples) {
+            Segment segment = spillCursor.segment();
+            int position = spillCursor.position();
+            if (position >= segment.writePosition) {
+                Map.Entry<Long, Segment> next = segments.higherEntry(segment.sequence);
+                if (next == null) {
+                    logger.info("Waveform segment log has caught up with spilled messages");
+                    spillCursor = null;
+                } else {
+                    spillCursor = new RecordRef(next.getValue(), 0);
+                }
+                continue;
+            }
+            int length = segment.buffer.getInt(position);
+            spillCursor = new RecordRef(segment, position + Integer.BYTES + length);
+            if (segment.buffer.get(position + Integer.BYTES) != LIVE) {
+                continue;
+            }
+            WaveformMessage msg = read(segment, position);
+            trackInCollator(msg, new RecordRef(segment, position));
+            msgs.add(msg);
+            samples += msg.getNumericValues().get().length;
+        }
+        return msgs;
+    }
+
+    /**
+     * The collator has turned some messages into one.
+     * @param collatedMsg             the collated message
+     * @param sourceObservationTimes  observation times of the messages that it was made from
+     */
+    public void collated(WaveformMessage collatedMsg, List<Instant> sourceObservationTimes) {
+        if (!isEnabled()) {
+            return;
+        }
+        NavigableMap<Instant, RecordRef> streamRecords = collatorRecords.get(streamKey(collatedMsg));
+        if (streamRecords == null) {
+            return;
+        }
+        List<RecordRef> sourceRecords = new ArrayList<>(sourceObservationTimes.size());
+        for (Instant observationTime : sourceObservationTimes) {
+            RecordRef ref = streamRecords.remove(observationTime);
+            if (ref != null) {
+                sourceRecords.add(ref);
+            }
+        }
+        unconfirmedRecords.merge(collatedMsg.getSourceMessageId(), sourceRecords, (existing, added) -> {
+            List<RecordRef> all = new ArrayList<>(existing);
+            all.addAll(added);
+            return all;
+        });
+    }
+
+    /**
+     * The collator rejected some messages, for example because they duplicated messages it already had,
+     * so they will never be collated and their records can be released.
+     * @param rejectedMsgs messages that the collator didn't add
+     */
+    public void rejected(List<WaveformMessage> rejectedMsgs) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (WaveformMessage msg : rejectedMsgs) {
+            NavigableMap<Instant, RecordRef> streamRecords = collatorRecords.get(streamKey(msg));
+            RecordRef ref = streamRecords == null ? null : streamRecords.remove(msg.getObservationTime());
+            if (ref != null) {
+                release(ref);
+            }
+        }
+    }
+
+    /**
+     * Collated messages have been confirmed by rabbitmq, so their source records are no longer needed.
+     * @param collatedMsgs the confirmed messages
+     */
+    public void confirmed(List<WaveformMessage> collatedMsgs) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (WaveformMessage msg : collatedMsgs) {
+            List<RecordRef> sourceRecords = unconfirmedRecords.remove(msg.getSourceMessageId());
+            if (sourceRecords != null) {
+                sourceRecords.forEach(this::release);
+            }
+        }
+    }
+
+    /**
+     * Write what has been appended so far to disk, so it survives the machine crashing as well as the reader.
+     */
+    public void flush() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (segmentLock) {
+            activeSegment.buffer.force();
+        }
+    }
+
+    /**
+     * Flush and close the segment files. Unreleased records are kept for next time.
+     */
+    @PreDestroy
+    public void close() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (segmentLock) {
+            activeSegment.buffer.force();
+            for (Segment segment : segments.values()) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    logger.warn("Could not close waveform segment {}", segment.path, e);
+                }
+            }
+        }
+    }
+
+    private void trackInCollator(WaveformMessage msg, RecordRef ref) {
+        RecordRef replaced = collatorRecords.computeIfAbsent(streamKey(msg), key -> new ConcurrentSkipListMap<>())
+                .put(msg.getObservationTime(), ref);
+        if (replaced != null) {
+            // the collator will have rejected the duplicate, so nothing will be collated from it
+            release(replaced);
+        }
+    }
+
+    private static Pair<String, String> streamKey(WaveformMessage msg) {
+        return new ImmutablePair<>(msg.getSourceLocationString(), msg.getSourceStreamId());
+    }
+
+    private void release(RecordRef ref) {
+        Segment segment = ref.segment();
+        segment.buffer.put(ref.position() + Integer.BYTES, RELEASED);
+        if (segment.liveRecords.decrementAndGet() > 0) {
+            return;
+        }
+        synchronized (segmentLock) {
+            // a spill cursor can still be on the segment, but only has released records left to skip over
+            if (segment != activeSegment && segments.remove(segment.sequence) != null) {
+                delete(segment);
+            }
+        }
+    }
+
+    private void delete(Segment segment) {
+        try {
+            segment.channel.close();
+            Files.delete(segment.path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Segment newSegment(long sequence, int size) throws IOException {
+        Segment segment = new Segment(sequence, directory.resolve(String.format("segment-%020d.log", sequence)), size);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    /**
+     * Record layout: length of the rest of the record, state, observation time, sampling rate, strings, samples.
+     * @param msg message to write
+     * @return where it was written
+     * @throws UncheckedIOException if a new segment file can't be created
+     */
+    private RecordRef write(WaveformMessage msg) {
+        byte[][] strings = {
+                bytes(msg.getSourceMessageId()), bytes(msg.getSourceLocationString()), bytes(msg.getMappedLocationString()),
+                bytes(msg.getSourceStreamId()), bytes(msg.getMappedStreamDescription()), bytes(msg.getUnit())};
+        double[] values = msg.getNumericValues().get();
+        int recordBytes = RECORD_HEADER_BYTES + Long.BYTES + 2 * Integer.BYTES + Integer.BYTES + values.length * Double.BYTES;
+        for (byte[] string : strings) {
+            recordBytes += Integer.BYTES + (string == null ? 0 : string.length);
+        }
+        try {
+            // leave room for a zero length to mark the end of the segment
+            if (activeSegment.writePosition + recordBytes + Integer.BYTES > activeSegment.buffer.capacity()) {
+                Segment full = activeSegment;
+                activeSegment = newSegment(full.sequence + 1, Math.max(segmentBytes, recordBytes + Integer.BYTES));
+                full.buffer.force();
+                if (full.liveRecords.get() == 0) {
+                    segments.remove(full.sequence);
+                    delete(full);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Segment segment = activeSegment;
+        int position = segment.writePosition;
+        ByteBuffer out = segment.buffer.slice(position, recordBytes);
+        out.position(RECORD_HEADER_BYTES);
+        out.putLong(msg.getObservationTime().getEpochSecond());
+        out.putInt(msg.getObservationTime().getNano());
+        out.putInt(msg.getSamplingRate());
+        for (byte[] string : strings) {
+            if (string == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(string.length);
+                out.put(string);
+            }
+        }
+        out.putInt(values.length);
+        out.asDoubleBuffer().put(values);
+        // length last, so that a record that was only partly written before a crash looks like the end of the segment
+        out.put(Integer.BYTES, LIVE);
+        out.putInt(0, recordBytes - Integer.BYTES);
+        segment.writePosition += recordBytes;
+        segment.liveRecords.incrementAndGet();
+        return new RecordRef(segment, position);
+    }
+
+    private static WaveformMessage read(Segment segment, int position) {
+        int recordBytes = Integer.BYTES + segment.buffer.getInt(position);
+        ByteBuffer in = segment.buffer.slice(position + RECORD_HEADER_BYTES, recordBytes - RECORD_HEADER_BYTES);
+        WaveformMessage msg = new WaveformMessage();
+        msg.setObservationTime(Instant.ofEpochSecond(in.getLong(), in.getInt()));
+        msg.setSamplingRate(in.getInt());
+        msg.setSourceMessageId(string(in));
+        msg.setSourceLocationString(string(in));
+        msg.setMappedLocationString(string(in));
+        msg.setSourceStreamId(string(in));
+        msg.setMappedStreamDescription(string(in));
+        msg.setUnit(string(in));
+        double[] values = new double[in.getInt()];
+        in.asDoubleBuffer().get(values);
+        msg.setNumericValues(new InterchangeValue<>(values));
+        return msg;
+    }
+
+    private static byte[] bytes(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
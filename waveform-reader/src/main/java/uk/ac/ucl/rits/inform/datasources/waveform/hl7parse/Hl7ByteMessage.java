@@ -0,0 +1,427 @@
+package uk.ac.ucl.rits.inform.datasources.waveform.hl7parse;
+
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * An even more basic HL7 parser than {@link Hl7Message}, which works directly on the bytes
+ * that were received.
+ * <p>
+ * Segments and fields are only indexed, by remembering where they start and end, so no substrings are
+ * created unless the calling code asks for a field as a string. Numeric fields can be parsed straight into
+ * a primitive array.
+ * <p>
+ * Segments are split on CR only and empty trailing fields are ignored, as in {@link Hl7Message}.
+ * Nesting of segments is left to the calling code, which can walk through the segments in order.
+ * The byte array must not be modified while this object is in use.
+ */
+public class Hl7ByteMessage {
+    private static final byte SEGMENT_SEPARATOR = '\r';
+    private static final byte FIELD_SEPARATOR = '|';
+    private static final DateTimeFormatter HL7_DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSZZ");
+    /**
+     * Doubles with fewer significant digits than this can be parsed exactly from their digits alone.
+     */
+    private static final int MAX_FAST_PATH_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final byte[] bytes;
+    private final int start;
+    private final int end;
+
+    private int segmentCount = 0;
+    /**
+     * Index into fieldStarts/fieldEnds of field 0 (the segment name) for each segment.
+     */
+    private int[] segmentFirstField = new int[16];
+    private int[] segmentFieldCount = new int[16];
+    private int fieldCount = 0;
+    private int[] fieldStarts = new int[256];
+    private int[] fieldEnds = new int[256];
+
+    /**
+     * Index an HL7 message. Leading and trailing whitespace (including the MLLP framing characters) is ignored.
+     * @param bytes the message as received (CR line endings)
+     */
+    public Hl7ByteMessage(byte[] bytes) {
+        this.bytes = bytes;
+        int s = 0;
+        int e = bytes.length;
+        while (s < e && isWhitespace(bytes[s])) {
+            s++;
+        }
+        while (e > s && isWhitespace(bytes[e - 1])) {
+            e--;
+        }
+        this.start = s;
+        this.end = e;
+        indexSegments();
+    }
+
+    /**
+     * Hash a field of the first segment with the given name, without indexing the message, so that messages can be
+     * routed cheaply before they're parsed properly. Doesn't account for MSH-1 being the field separator,
+     * so is not meant for MSH fields.
+     * @param bytes       the message as received (CR line endings)
+     * @param segmentName name of the segment, eg. "PV1"
+     * @param field1Index The HL7 field index within the segment, starting at 1
+     * @return hash of the field's bytes, or 0 if the segment or field isn't there
+     */
+    public static int fieldHash(byte[] bytes, String segmentName, int field1Index) {
+        int nameLength = segmentName.length();
+        int segmentStart = 0;
+        while (segmentStart < bytes.length) {
+            int nameEnd = segmentStart;
+            // segment names are ASCII, and leading whitespace (eg. the MLLP start block) is skipped as usual
+            while (nameEnd < bytes.length && isWhitespace(bytes[nameEnd])) {
+                nameEnd++;
+            }
+            int nameStart = nameEnd;
+            while (nameEnd < bytes.length && nameEnd - nameStart < nameLength && bytes[nameEnd] == segmentName.charAt(nameEnd - nameStart)) {
+                nameEnd++;
+            }
+            if (nameEnd - nameStart == nameLength && nameEnd < bytes.length && bytes[nameEnd] == FIELD_SEPARATOR) {
+                return hashField(bytes, nameEnd, field1Index);
+            }
+            while (segmentStart < bytes.length && bytes[segmentStart] != SEGMENT_SEPARATOR) {
+                segmentStart++;
+            }
+            segmentStart++;
+        }
+        return 0;
+    }
+
+    /**
+     * @param bytes       the message
+     * @param separator   position of the field separator after the segment name
+     * @param field1Index The HL7 field index within the segment, starting at 1
+     * @return hash of the field's bytes, or 0 if the segment ends first
+     */
+    private static int hashField(byte[] bytes, int separator, int field1Index) {
+        int fieldStart = separator + 1;
+        for (int field = 1; field < field1Index; field++) {
+            while (fieldStart < bytes.length && bytes[fieldStart] != FIELD_SEPARATOR && bytes[fieldStart] != SEGMENT_SEPARATOR) {
+                fieldStart++;
+            }
+            if (fieldStart >= bytes.length || bytes[fieldStart] == SEGMENT_SEPARATOR) {
+                return 0;
+            }
+            fieldStart++;
+        }
+        int hash = 1;
+        for (int i = fieldStart; i < bytes.length && bytes[i] != FIELD_SEPARATOR && bytes[i] != SEGMENT_SEPARATOR; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        // Only ASCII characters can be whitespace, multibyte UTF-8 characters all have the top bit set
+        return b >= 0 && Character.isWhitespace((char) b);
+    }
+
+    private void indexSegments() {
+        int segmentStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || bytes[i] == SEGMENT_SEPARATOR) {
+                if (i > segmentStart) {
+                    indexFields(segmentStart, i);
+                }
+                segmentStart = i + 1;
+            }
+        }
+    }
+
+    private void indexFields(int segmentStart, int segmentEnd) {
+        if (segmentCount == segmentFirstField.length) {
+            segmentFirstField = Arrays.copyOf(segmentFirstField, segmentCount * 2);
+            segmentFieldCount = Arrays.copyOf(segmentFieldCount, segmentCount * 2);
+        }
+        int firstField = fieldCount;
+        int fieldStart = segmentStart;
+        for (int i = segmentStart; i <= segmentEnd; i++) {
+            if (i == segmentEnd || bytes[i] == FIELD_SEPARATOR) {
+                addField(fieldStart, i);
+                if (fieldCount - firstField == 1 && isMsh(fieldStart, i) && i < segmentEnd) {
+                    // MSH-1 is the field separator itself
+                    addField(i, i + 1);
+                }
+                fieldStart = i + 1;
+            }
+        }
+        // drop empty trailing fields, but always keep the segment name
+        while (fieldCount - firstField > 1 && fieldStarts[fieldCount - 1] == fieldEnds[fieldCount - 1]) {
+            fieldCount--;
+        }
+        segmentFirstField[segmentCount] = firstField;
+        segmentFieldCount[segmentCount] = fieldCount - firstField;
+        segmentCount++;
+    }
+
+    private boolean isMsh(int fieldStart, int fieldEnd) {
+        return fieldEnd - fieldStart == 3
+                && bytes[fieldStart] == 'M' && bytes[fieldStart + 1] == 'S' && bytes[fieldStart + 2] == 'H';
+    }
+
+    private void addField(int fieldStart, int fieldEnd) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = fieldStart;
+        fieldEnds[fieldCount] = fieldEnd;
+        fieldCount++;
+    }
+
+    /**
+     * @return true if there is nothing but whitespace in the message
+     */
+    public boolean isEmpty() {
+        return segmentCount == 0;
+    }
+
+    /**
+     * @return number of bytes in the message, excluding surrounding whitespace
+     */
+    public int getLength() {
+        return end - start;
+    }
+
+    /**
+     * @return number of segments in the message
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param segmentName  name to compare with, eg. "OBX"
+     * @return whether the segment has the given name
+     */
+    public boolean isSegment(int segmentIndex, String segmentName) {
+        return fieldEquals(segmentIndex, 0, segmentName);
+    }
+
+    /**
+     * @param segmentName name of the segment, eg. "MSH"
+     * @return 0-indexed position of the only segment with this name
+     * @throws Hl7ParseException if there are != 1 of this segment in the message
+     */
+    public int getSingleSegment(String segmentName) throws Hl7ParseException {
+        int found = -1;
+        int numFound = 0;
+        for (int seg = 0; seg < segmentCount; seg++) {
+            if (isSegment(seg, segmentName)) {
+                found = seg;
+                numFound++;
+            }
+        }
+        if (numFound != 1) {
+            throw new Hl7ParseException(String.format("Expected one %s segment, got %d", segmentName, numFound));
+        }
+        return found;
+    }
+
+    private int fieldIndex(int segmentIndex, int field1Index) throws Hl7ParseException {
+        if (field1Index < 0 || field1Index >= segmentFieldCount[segmentIndex]) {
+            throw new Hl7ParseException("non existent field");
+        }
+        return segmentFirstField[segmentIndex] + field1Index;
+    }
+
+    /**
+     * Get unparsed contents of HL7 field. This is the only method that creates a string.
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @return unparsed string contents of the field
+     * @throws Hl7ParseException if field does not exist
+     */
+    public String getField(int segmentIndex, int field1Index) throws Hl7ParseException {
+        int field = fieldIndex(segmentIndex, field1Index);
+        return new String(bytes, fieldStarts[field], fieldEnds[field] - fieldStarts[field], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @param expected     ASCII string to compare with
+     * @return whether the field exists and is equal to expected
+     */
+    public boolean fieldEquals(int segmentIndex, int field1Index, String expected) {
+        if (field1Index < 0 || field1Index >= segmentFieldCount[segmentIndex]) {
+            return false;
+        }
+        int field = segmentFirstField[segmentIndex] + field1Index;
+        int fieldStart = fieldStarts[field];
+        if (fieldEnds[field] - fieldStart != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (bytes[fieldStart + i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param segmentIndex      0-indexed position of the segment in the message
+     * @param field1Index       The HL7 field index within the segment, starting at 1
+     * @param otherSegmentIndex segment of the field to compare with
+     * @param otherField1Index  field to compare with
+     * @return whether both fields exist and have the same contents
+     */
+    public boolean fieldEquals(int segmentIndex, int field1Index, int otherSegmentIndex, int otherField1Index) {
+        if (field1Index < 0 || field1Index >= segmentFieldCount[segmentIndex]
+                || otherField1Index < 0 || otherField1Index >= segmentFieldCount[otherSegmentIndex]) {
+            return false;
+        }
+        int field = segmentFirstField[segmentIndex] + field1Index;
+        int otherField = segmentFirstField[otherSegmentIndex] + otherField1Index;
+        return Arrays.equals(bytes, fieldStarts[field], fieldEnds[field], bytes, fieldStarts[otherField], fieldEnds[otherField]);
+    }
+
+    /**
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @param ch           ASCII character to look for
+     * @return whether the field contains the character
+     * @throws Hl7ParseException if field does not exist
+     */
+    public boolean fieldContains(int segmentIndex, int field1Index, char ch) throws Hl7ParseException {
+        int field = fieldIndex(segmentIndex, field1Index);
+        for (int i = fieldStarts[field]; i < fieldEnds[field]; i++) {
+            if (bytes[i] == ch) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse an HL7 datetime field in the form yyyyMMddHHmmss.SSSZZ, eg. 20240731142108.111+0100.
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @return the parsed datetime
+     * @throws Hl7ParseException if field does not exist or is not a valid datetime
+     */
+    public Instant getFieldAsInstant(int segmentIndex, int field1Index) throws Hl7ParseException {
+        int field = fieldIndex(segmentIndex, field1Index);
+        int s = fieldStarts[field];
+        try {
+            if (fieldEnds[field] - s != "yyyyMMddHHmmss.SSS+ZZZZ".length()
+                    || bytes[s + 14] != '.' || (bytes[s + 18] != '+' && bytes[s + 18] != '-')) {
+                // not in the usual form, let the formatter deal with it
+                return Instant.from(HL7_DATETIME_FORMATTER.parse(getField(segmentIndex, field1Index)));
+            }
+            int offsetSign = bytes[s + 18] == '-' ? -1 : 1;
+            ZoneOffset offset = ZoneOffset.ofHoursMinutes(
+                    offsetSign * digits(s + 19, 2), offsetSign * digits(s + 21, 2));
+            return LocalDateTime.of(digits(s, 4), digits(s + 4, 2), digits(s + 6, 2),
+                            digits(s + 8, 2), digits(s + 10, 2), digits(s + 12, 2), digits(s + 15, 3) * 1_000_000)
+                    .toInstant(offset);
+        } catch (DateTimeException e) {
+            throw (Hl7ParseException) new Hl7ParseException("Datetime parsing failed").initCause(e);
+        }
+    }
+
+    private int digits(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new DateTimeException("Not a digit at position " + (i - start));
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Parse a field of numbers separated by a component separator directly into an array.
+     * Empty trailing components are ignored, as with String.split.
+     * @param segmentIndex 0-indexed position of the segment in the message
+     * @param field1Index  The HL7 field index within the segment, starting at 1
+     * @param separator    ASCII separator between the numbers, eg. '^'
+     * @return the parsed numbers
+     * @throws Hl7ParseException if field does not exist
+     * @throws NumberFormatException if any of the values is not a number
+     */
+    public double[] getFieldAsDoubles(int segmentIndex, int field1Index, char separator) throws Hl7ParseException {
+        int field = fieldIndex(segmentIndex, field1Index);
+        int fieldStart = fieldStarts[field];
+        int fieldEnd = fieldEnds[field];
+        while (fieldEnd > fieldStart && bytes[fieldEnd - 1] == separator) {
+            fieldEnd--;
+        }
+        int numValues = 1;
+        for (int i = fieldStart; i < fieldEnd; i++) {
+            if (bytes[i] == separator) {
+                numValues++;
+            }
+        }
+        double[] values = new double[numValues];
+        int valueIndex = 0;
+        int valueStart = fieldStart;
+        for (int i = fieldStart; i <= fieldEnd; i++) {
+            if (i == fieldEnd || bytes[i] == separator) {
+                values[valueIndex++] = parseDouble(valueStart, i);
+                valueStart = i + 1;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Plain decimals with few enough digits (which is all we expect to see) are parsed without creating a string.
+     * The digits are read into a long and then divided by a power of ten. Both of these are exact, so the result is
+     * correctly rounded and identical to {@link Double#parseDouble}.
+     * Anything else (exponents, lots of digits, junk) is passed to {@link Double#parseDouble}.
+     * @param from index of first byte
+     * @param to   index after last byte
+     * @return the parsed double
+     * @throws NumberFormatException if the value is not a number
+     */
+    private double parseDouble(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int numDigits = 0;
+        int fractionDigits = -1;
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                numDigits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        if (i != to || numDigits == 0 || numDigits > MAX_FAST_PATH_DIGITS) {
+            return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.US_ASCII));
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+}
@@ -38,7 +38,7 @@ class TestHl7FromFile {
 
     @BeforeEach
     void clearMessages() {
-        waveformCollator.pendingMessages.clear();
+        waveformCollator.clear();
     }
 
     static IntStream ints() {
@@ -51,7 +51,8 @@ class TestHl7FromFile {
      */
     @ParameterizedTest
     @MethodSource({"ints"})
-    void readAllFromFile(int seed, @TempDir Path tempDir) throws IOException, Hl7ParseException, WaveformCollator.CollationException, URISyntaxException {
+    void readAllFromFile(int seed, @TempDir Path tempDir)
+            throws IOException, Hl7ParseException, WaveformCollator.CollationException, URISyntaxException, InterruptedException {
         Path tempHl7DumpFile = tempDir.resolve("test_hl7.txt");
         final int numHl7Messages = 10;
         makeTestFile(tempHl7DumpFile, numHl7Messages, new Random(seed));
@@ -0,0 +1,140 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import uk.ac.ucl.rits.inform.datasources.waveform.hl7parse.Hl7ByteMessage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Messages on a single connection are parsed in parallel across locations, but in order within each location.
+ */
+class TestHl7NioListener {
+    private final Map<String, List<Integer>> messageNumbersByLocation = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> threadsByLocation = new ConcurrentHashMap<>();
+    private final AtomicLong laterStageDepth = new AtomicLong();
+    private Hl7NioListener listener;
+
+    private void startListener(List<String> allowList) {
+        WaveformBackPressure backPressure = new WaveformBackPressure();
+        backPressure.addStage("later_stage", "something that falls behind", laterStageDepth::get, 10, 5);
+        listener = new Hl7NioListener(0, allowList, 3, 5, backPressure, messageBytes -> {
+            Hl7ByteMessage message = new Hl7ByteMessage(messageBytes);
+            String location = message.getField(message.getSingleSegment("PV1"), 3);
+            int messageNumber = Integer.parseInt(message.getField(message.getSingleSegment("MSH"), 10));
+            messageNumbersByLocation.computeIfAbsent(location, l -> Collections.synchronizedList(new ArrayList<>())).add(messageNumber);
+            threadsByLocation.computeIfAbsent(location, l -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread().getName());
+        });
+        listener.start();
+    }
+
+    @AfterEach
+    void stopListener() {
+        listener.stop();
+    }
+
+    private static byte[] makeMessage(int messageNumber, String location) {
+        String message = "\u000bMSH|^~\\&|||||||ORU^R01|" + messageNumber + "\rPV1||I|" + location + "\r\u001c\r";
+        return message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void inOrderForEachLocation() throws Exception {
+        startListener(List.of("127.0.0.1"));
+        int numLocations = 20;
+        int numMessages = 2000;
+        try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            byte[] pending = new byte[0];
+            for (int i = 0; i < numMessages; i++) {
+                byte[] message = makeMessage(i, "BED" + (i % numLocations));
+                // write across message boundaries, as the network might split them
+                byte[] joined = Arrays.copyOf(pending, pending.length + message.length);
+                System.arraycopy(message, 0, joined, pending.length, message.length);
+                int writeLength = joined.length * (i % 3 + 1) / 4;
+                out.write(joined, 0, writeLength);
+                pending = Arrays.copyOfRange(joined, writeLength, joined.length);
+            }
+            out.write(pending);
+        }
+        // messages that have been read are handled before stopping, but the connection may not have been read yet
+        waitForMessages(numMessages, 10_000);
+        listener.stop();
+
+        assertEquals(numLocations, messageNumbersByLocation.size());
+        for (int loc = 0; loc < numLocations; loc++) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = loc; i < numMessages; i += numLocations) {
+                expected.add(i);
+            }
+            assertEquals(expected, messageNumbersByLocation.get("BED" + loc));
+            assertEquals(1, threadsByLocation.get("BED" + loc).size());
+        }
+        long threadsUsed = threadsByLocation.values().stream().flatMap(Set::stream).distinct().count();
+        assertTrue(threadsUsed > 1);
+    }
+
+    private int handledCount() {
+        return messageNumbersByLocation.values().stream().mapToInt(List::size).sum();
+    }
+
+    private void waitForMessages(int numMessages, long timeoutMillis) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + timeoutMillis;
+        while (handledCount() < numMessages && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void notReadWhileOverloaded() throws Exception {
+        startListener(List.of("127.0.0.1"));
+        try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(makeMessage(0, "BED1"));
+            waitForMessages(1, 10_000);
+            assertEquals(1, handledCount());
+
+            laterStageDepth.set(11);
+            // reading pauses once the overload has been noticed, which the next message will wake the listener up to do
+            out.write(makeMessage(1, "BED1"));
+            Thread.sleep(200);
+            int handledBeforePause = handledCount();
+            out.write(makeMessage(2, "BED1"));
+            Thread.sleep(200);
+            assertEquals(handledBeforePause, handledCount());
+
+            // still above the low watermark
+            laterStageDepth.set(5);
+            Thread.sleep(200);
+            assertEquals(handledBeforePause, handledCount());
+
+            laterStageDepth.set(4);
+            waitForMessages(3, 10_000);
+            assertEquals(List.of(0, 1, 2), messageNumbersByLocation.get("BED1"));
+        }
+    }
+
+    @Test
+    void refusedIfNotAllowed() throws Exception {
+        startListener(List.of("10.0.0.1"));
+        try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+            InputStream in = socket.getInputStream();
+            // connection is closed straight away
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package uk.ac.ucl.rits.inform.datasources.waveform;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.ActiveProfiles;
@@ -11,8 +13,10 @@ import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -25,30 +29,63 @@ class TestHl7ParseAndQueue {
     @Autowired
     private Hl7ParseAndQueue hl7ParseAndQueue;
 
-    @Test
-    void goodMessageSideRoom() throws IOException, URISyntaxException, Hl7ParseException {
+    /**
+     * Both parsers should give the same results.
+     * @param hl7String message to parse
+     * @param zeroCopy  use the parser that works on bytes
+     * @return the parsed messages
+     * @throws Hl7ParseException if the message can't be parsed
+     */
+    private List<WaveformMessage> parse(String hl7String, boolean zeroCopy) throws Hl7ParseException {
+        if (zeroCopy) {
+            return hl7ParseAndQueue.parseHl7(hl7String.getBytes(StandardCharsets.UTF_8));
+        }
+        return hl7ParseAndQueue.parseHl7(hl7String);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void goodMessageSideRoom(boolean zeroCopy) throws IOException, URISyntaxException, Hl7ParseException {
         String hl7String = readHl7FromResource("hl7/test1.hl7");
-        checkMessage(hl7String, "UCHT03ICURM08", "T03^T03 SR08^SR08-08");
+        checkMessage(parse(hl7String, zeroCopy), "UCHT03ICURM08", "T03^T03 SR08^SR08-08");
     }
 
-    @Test
-    void goodMessageNormalBed() throws IOException, URISyntaxException, Hl7ParseException {
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void goodMessageNormalBed(boolean zeroCopy) throws IOException, URISyntaxException, Hl7ParseException {
         String hl7String = readHl7FromResource("hl7/test1.hl7");
         String bed15 = "UCHT03ICUBED15";
         hl7String = hl7String.replaceAll("UCHT03ICURM08", bed15);
-        checkMessage(hl7String, bed15, "T03^T03 BY01^BY01-15");
+        checkMessage(parse(hl7String, zeroCopy), bed15, "T03^T03 BY01^BY01-15");
     }
 
-    @Test
-    void messageWithUnknownLocation() throws IOException, URISyntaxException, Hl7ParseException {
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void messageWithUnknownLocation(boolean zeroCopy) throws IOException, URISyntaxException, Hl7ParseException {
         String hl7String = readHl7FromResource("hl7/test1.hl7");
         hl7String = hl7String.replaceAll("UCHT03ICURM08", "UCHT03ICUSOMETHING");
-        checkMessage(hl7String, "UCHT03ICUSOMETHING", null);
+        checkMessage(parse(hl7String, zeroCopy), "UCHT03ICUSOMETHING", null);
     }
 
-    void checkMessage(String hl7String, String expectedSourceLocation, String expectedMappedLocation)
-            throws IOException, URISyntaxException, Hl7ParseException {
-        List<WaveformMessage> msgs = hl7ParseAndQueue.parseHl7(hl7String);
+    /**
+     * Whitespace around the message and odd looking numbers shouldn't make any difference.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void parsersAgree() throws Exception {
+        String hl7String = readHl7FromResource("hl7/test1.hl7")
+                .replace("42.30^43.30^44.30", "-0.5^1e3^000012.25000^+7^")
+                .replace("42.50^43.50^44.5^45.5^46.5", "0.1^-123456789.123456789^.5^3.^99");
+        String surrounded = "\u000b\r" + hl7String + "\r\u001c\r";
+        List<WaveformMessage> fromString = parse(surrounded, false);
+        List<WaveformMessage> fromBytes = parse(surrounded, true);
+        assertEquals(5, fromString.size());
+        // source system isn't set until the message is published, and equals can't cope with that
+        assertEquals(fromString.toString(), fromBytes.toString());
+        assertArrayEquals(new double[]{-0.5, 1000, 12.25, 7}, fromBytes.get(2).getNumericValues().get());
+    }
+
+    void checkMessage(List<WaveformMessage> msgs, String expectedSourceLocation, String expectedMappedLocation) {
         assertEquals(5, msgs.size());
         List<String> actualSource = msgs.stream().map(WaveformMessage::getSourceLocationString).distinct().toList();
         assertEquals(1, actualSource.size());
@@ -72,34 +109,36 @@ class TestHl7ParseAndQueue {
         List<String> actualUnits = msgs.stream().map(WaveformMessage::getUnit).toList();
         assertEquals(List.of("mL", "cmH2O", "uV", "%", "%"), actualUnits);
         var expectedValues = List.of(
-                List.of(42.10),
-                List.of(42.20),
-                List.of(42.30, 43.30, 44.30),
-                List.of(42.40, 43.40, 44.40, 45.40),
-                List.of(42.50, 43.50, 44.5, 45.5, 46.5));
+                new double[]{42.10},
+                new double[]{42.20},
+                new double[]{42.30, 43.30, 44.30},
+                new double[]{42.40, 43.40, 44.40, 45.40},
+                new double[]{42.50, 43.50, 44.5, 45.5, 46.5});
 
         for (int i = 0; i < msgs.size(); i++) {
             WaveformMessage m = msgs.get(i);
-            InterchangeValue<List<Double>> numericValues = m.getNumericValues();
+            InterchangeValue<double[]> numericValues = m.getNumericValues();
             assertTrue(numericValues.isSave());
-            List<Double> expected = expectedValues.get(i);
-            assertEquals(expected, numericValues.get());
+            double[] expected = expectedValues.get(i);
+            assertArrayEquals(expected, numericValues.get());
         }
     }
 
-    @Test
-    void messageWithMoreThanOneRepeat() throws IOException, URISyntaxException {
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void messageWithMoreThanOneRepeat(boolean zeroCopy) throws IOException, URISyntaxException {
         String hl7String = readHl7FromResource("hl7/test1.hl7");
         String hl7WithReps = hl7String.replace("42.50^", "42.50~");
-        Hl7ParseException e = assertThrows(Hl7ParseException.class, () -> hl7ParseAndQueue.parseHl7(hl7WithReps));
+        Hl7ParseException e = assertThrows(Hl7ParseException.class, () -> parse(hl7WithReps, zeroCopy));
         assertTrue(e.getMessage().contains("only be 1 repeat"));
     }
 
-    @Test
-    void messageWithConflictingLocation() throws IOException, URISyntaxException {
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void messageWithConflictingLocation(boolean zeroCopy) throws IOException, URISyntaxException {
         String hl7String = readHl7FromResource("hl7/test1.hl7");
         String hl7WithReps = hl7String.replace("PV1||I|UCHT03ICURM08|", "PV1||I|UCHT03ICURM07|");
-        Hl7ParseException e = assertThrows(Hl7ParseException.class, () -> hl7ParseAndQueue.parseHl7(hl7WithReps));
+        Hl7ParseException e = assertThrows(Hl7ParseException.class, () -> parse(hl7WithReps, zeroCopy));
         assertTrue(e.getMessage().contains("Unexpected location"));
     }
 
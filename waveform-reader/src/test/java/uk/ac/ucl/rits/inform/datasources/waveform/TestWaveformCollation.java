@@ -3,6 +3,7 @@ package uk.ac.ucl.rits.inform.datasources.waveform;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -15,12 +16,17 @@ import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @SpringJUnitConfig
 @SpringBootTest
@@ -37,7 +43,7 @@ public class TestWaveformCollation {
 
     @BeforeEach
     void clearMessages() {
-        waveformCollator.pendingMessages.clear();
+        waveformCollator.clear();
     }
 
     List<WaveformMessage> makeTestMessages() {
@@ -76,6 +82,50 @@ public class TestWaveformCollation {
         waveformCollator.addMessages(inputMessages);
     }
 
+    /**
+     * Messages can be added from many threads at once, and the pending counts keep up.
+     * @throws Exception shouldn't happen
+     * @throws WaveformCollator.CollationException shouldn't happen
+     */
+    @Test
+    void concurrentAdds() throws Exception, WaveformCollator.CollationException {
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        Collections.shuffle(inputMessages, new Random(42));
+        int numThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            int threadNum = i;
+            List<WaveformMessage> messagesForThread = new ArrayList<>();
+            for (int j = threadNum; j < inputMessages.size(); j += numThreads) {
+                messagesForThread.add(inputMessages.get(j));
+            }
+            // add one at a time so that threads interleave
+            results.add(executor.submit(() -> {
+                for (WaveformMessage msg : messagesForThread) {
+                    try {
+                        waveformCollator.addMessages(List.of(msg));
+                    } catch (WaveformCollator.CollationException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+
+        assertEquals(1200, waveformCollator.getPendingMessageCount());
+        assertEquals(6000, waveformCollator.getPendingSampleCount());
+        List<WaveformMessage> collatedMsgs = waveformCollator.getReadyMessages(
+                messageStartDatetime.plus(25000, ChronoUnit.MILLIS), 3000, 15000, ChronoUnit.MILLIS);
+        assertEquals(List.of(3000, 3000), collatedMsgs.stream().map(m -> m.getNumericValues().get().length).toList());
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+        assertEquals(0, waveformCollator.getPendingSampleCount());
+    }
+
     static Stream<Arguments> noGapsData() {
         // There is a fixed quantity of 3000 samples in messages containing 5 samples each.
         // We are adjusting the *target* number of samples config option rather than
@@ -132,7 +182,7 @@ public class TestWaveformCollation {
 
         // THEN the messages have been combined into much fewer messages and the pending list is smaller or empty
         assertEquals(expectedNewMessageSampleCounts.size(), collatedMsgs.size());
-        List<Integer> actualSampleCounts = collatedMsgs.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleCounts = collatedMsgs.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedNewMessageSampleCounts, actualSampleCounts);
         assertEquals(expectedRemainingMessages, waveformCollator.pendingMessages.get(keyOfInterest).size());
 
@@ -184,7 +234,7 @@ public class TestWaveformCollation {
          * one of 1500 if only a moderate amount of time has passed.
          */
         assertEquals(expectedSampleSizes.size(), collatedMsgs.size());
-        List<Integer> actualSampleSizes = collatedMsgs.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleSizes = collatedMsgs.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedSampleSizes, actualSampleSizes);
 
         // The missing message has now turned up!
@@ -194,10 +244,90 @@ public class TestWaveformCollation {
         Instant now2 = now.plus(waitForDataLimitMillis, ChronoUnit.MILLIS);
         List<WaveformMessage> secondBatchMessages = waveformCollator.getReadyMessages(
                 now2, targetCollatedMessageSamples, waitForDataLimitMillis, ChronoUnit.MILLIS);
-        List<Integer> actualSampleSizes2 = secondBatchMessages.stream().map(m -> m.getNumericValues().get().size()).toList();
+        List<Integer> actualSampleSizes2 = secondBatchMessages.stream().map(m -> m.getNumericValues().get().length).toList();
         assertEquals(expectedSampleSizesAfterLateMessage.size(), secondBatchMessages.size());
         assertEquals(expectedSampleSizesAfterLateMessage, actualSampleSizes2);
         assertEquals(0, waveformCollator.pendingMessages.get(keyOfInterest).size());
     }
 
+    private static List<Integer> sampleCounts(List<WaveformMessage> msgs) {
+        return msgs.stream().map(m -> m.getNumericValues().get().length).toList();
+    }
+
+    /**
+     * Event driven collation sends a full message as soon as its last sample arrives, without waiting to be polled.
+     * @throws WaveformCollator.CollationException shouldn't happen
+     */
+    @Test
+    void collatedAsSoonAsTargetReached() throws WaveformCollator.CollationException {
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        List<WaveformMessage> collatedMsgs = new ArrayList<>();
+        for (int i = 0; i < inputMessages.size(); i++) {
+            collatedMsgs.addAll(waveformCollator.addMessagesAndCollate(
+                    List.of(inputMessages.get(i)), messageStartDatetime, 3000, 15000, ChronoUnit.MILLIS));
+            // one stream's messages are all added before the other's
+            int expectedCollatedCount = i < 599 ? 0 : i < 1199 ? 1 : 2;
+            assertEquals(expectedCollatedCount, collatedMsgs.size());
+        }
+        assertEquals(List.of(3000, 3000), sampleCounts(collatedMsgs));
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+        assertEquals(List.of(), waveformCollator.getTimedOutMessages(
+                messageStartDatetime.plus(60, ChronoUnit.SECONDS), 3000, 15000, ChronoUnit.MILLIS));
+    }
+
+    /**
+     * Data that can't make a full message is collated once it has waited long enough for more data, as with polling.
+     * @throws WaveformCollator.CollationException shouldn't happen
+     */
+    @Test
+    void collatedWhenDeadlinePasses() throws WaveformCollator.CollationException {
+        int waitForDataLimitMillis = 15000;
+        List<WaveformMessage> inputMessages = makeTestMessages();
+        WaveformMessage removedMessage = inputMessages.remove(300);
+        Collections.shuffle(inputMessages, new Random(42));
+        // only the stream without the gap can be collated straight away
+        List<WaveformMessage> collatedOnAdd = waveformCollator.addMessagesAndCollate(
+                inputMessages, messageStartDatetime, 3000, waitForDataLimitMillis, ChronoUnit.MILLIS);
+        assertEquals(List.of(3000), sampleCounts(collatedOnAdd));
+
+        // the first run of data ends 5 seconds after the start, and the second after 10 seconds
+        List<Integer> timedOutSampleCounts = new ArrayList<>();
+        for (int millisAfter : new int[]{19000, 20001, 25001}) {
+            timedOutSampleCounts.add(waveformCollator.getTimedOutMessages(
+                    messageStartDatetime.plus(millisAfter, ChronoUnit.MILLIS), 3000, waitForDataLimitMillis, ChronoUnit.MILLIS)
+                    .stream().mapToInt(m -> m.getNumericValues().get().length).sum());
+        }
+        assertEquals(List.of(0, 1500, 1495), timedOutSampleCounts);
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+
+        // the missing message turns up late, and has to wait for more data in its turn
+        waveformCollator.addMessagesAndCollate(
+                List.of(removedMessage), messageStartDatetime.plus(25001, ChronoUnit.MILLIS), 3000, waitForDataLimitMillis, ChronoUnit.MILLIS);
+        assertEquals(List.of(), waveformCollator.getTimedOutMessages(
+                messageStartDatetime.plus(25500, ChronoUnit.MILLIS), 3000, waitForDataLimitMillis, ChronoUnit.MILLIS));
+        assertEquals(List.of(5), sampleCounts(waveformCollator.getTimedOutMessages(
+                messageStartDatetime.plus(26001, ChronoUnit.MILLIS), 3000, waitForDataLimitMillis, ChronoUnit.MILLIS)));
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+    }
+
+    /**
+     * A duplicate stops a batch from being added, but the messages added before it still get collated once the deadline passes.
+     * @throws WaveformCollator.CollationException shouldn't happen
+     */
+    @Test
+    void collatedWhenDeadlinePassesAfterDuplicate() throws WaveformCollator.CollationException {
+        int waitForDataLimitMillis = 15000;
+        List<WaveformMessage> inputMessages = makeTestMessages().subList(0, 5);
+        List<WaveformMessage> batch = new ArrayList<>(inputMessages);
+        batch.add(inputMessages.get(2));
+        assertThrows(WaveformCollator.CollationException.class, () -> waveformCollator.addMessagesAndCollate(
+                batch, messageStartDatetime, 3000, waitForDataLimitMillis, ChronoUnit.MILLIS));
+        assertEquals(5, waveformCollator.getPendingMessageCount());
+
+        List<WaveformMessage> timedOut = waveformCollator.getTimedOutMessages(
+                messageStartDatetime.plus(60, ChronoUnit.SECONDS), 3000, waitForDataLimitMillis, ChronoUnit.MILLIS);
+        assertEquals(List.of(25), sampleCounts(timedOut));
+        assertEquals(0, waveformCollator.getPendingMessageCount());
+    }
+
 }
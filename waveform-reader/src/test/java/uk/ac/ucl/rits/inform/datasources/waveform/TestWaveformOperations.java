@@ -0,0 +1,82 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import uk.ac.ucl.rits.inform.interchange.messaging.Publisher;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Collated messages are published in bounded batches, and held on to until each batch is confirmed.
+ */
+class TestWaveformOperations {
+    private final InterchangeMessageFactory messageFactory = new InterchangeMessageFactory();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void sentInBatchesUntilConfirmed() throws Exception {
+        Publisher publisher = mock(Publisher.class);
+        when(publisher.submit(anyList(), any(), any())).thenReturn(true);
+        WaveformOperations waveformOperations = new WaveformOperations(publisher, new WaveformSegmentLog("", 1, 0), 100, 0);
+        List<WaveformMessage> msgs = messageFactory.getWaveformMsgs("59912", "something1", 300, 1250, 5,
+                "UCHT03TEST", "", Instant.parse("2022-03-04T12:11:00Z"), "unit1", ChronoUnit.MILLIS);
+        assertEquals(250, msgs.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            msgs.get(i).setSourceMessageId("msg" + i);
+        }
+
+        waveformOperations.sendMessages(msgs);
+
+        ArgumentCaptor<List<ImmutablePair<WaveformMessage, String>>> batches = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<String> batchIds = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Runnable> callbacks = ArgumentCaptor.forClass(Runnable.class);
+        verify(publisher, times(3)).submit(batches.capture(), batchIds.capture(), callbacks.capture());
+        assertEquals(List.of(100, 100, 50), batches.getAllValues().stream().map(List::size).toList());
+        assertEquals(msgs.get(100).getSourceMessageId(), batchIds.getAllValues().get(1));
+        assertEquals(msgs.get(100), batches.getAllValues().get(1).get(0).getLeft());
+        assertEquals(250, waveformOperations.getUnconfirmedMessageCount());
+
+        callbacks.getAllValues().get(1).run();
+        assertEquals(150, waveformOperations.getUnconfirmedMessageCount());
+        callbacks.getAllValues().get(0).run();
+        callbacks.getAllValues().get(2).run();
+        assertEquals(0, waveformOperations.getUnconfirmedMessageCount());
+    }
+
+    /**
+     * A batch that the publisher rejects as a duplicate will never be confirmed, so mustn't hold up later batches.
+     * @throws Exception shouldn't happen
+     */
+    @Test
+    void duplicateBatchNotCounted() throws Exception {
+        Publisher publisher = mock(Publisher.class);
+        when(publisher.submit(anyList(), any(), any())).thenReturn(false);
+        WaveformOperations waveformOperations = new WaveformOperations(publisher, new WaveformSegmentLog("", 1, 0), 100, 0);
+        List<WaveformMessage> msgs = messageFactory.getWaveformMsgs("59912", "something1", 300, 50, 5,
+                "UCHT03TEST", "", Instant.parse("2022-03-04T12:11:00Z"), "unit1", ChronoUnit.MILLIS);
+        msgs.get(0).setSourceMessageId("msg0");
+
+        waveformOperations.sendMessages(msgs);
+        assertEquals(0, waveformOperations.getUnconfirmedMessageCount());
+    }
+
+    @Test
+    void nothingToSend() throws Exception {
+        Publisher publisher = mock(Publisher.class);
+        new WaveformOperations(publisher, new WaveformSegmentLog("", 1, 0), 100, 0).sendMessages(List.of());
+        verify(publisher, times(0)).submit(anyList(), any(), any());
+    }
+}
@@ -0,0 +1,152 @@
+package uk.ac.ucl.rits.inform.datasources.waveform;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.ac.ucl.rits.inform.interchange.test.helpers.InterchangeMessageFactory;
+import uk.ac.ucl.rits.inform.interchange.visit_observations.WaveformMessage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Waveform messages in the segment log survive a restart until they've been collated and confirmed,
+ * and are spilled to it when the collator is over budget.
+ */
+class TestWaveformSegmentLog {
+    private final InterchangeMessageFactory messageFactory = new InterchangeMessageFactory();
+    private final Instant messageStartDatetime = Instant.parse("2022-03-04T12:11:00Z");
+
+    @TempDir
+    private Path directory;
+
+    /**
+     * @param numSamples           samples in total
+     * @param maxSamplesPerMessage samples in each message
+     * @return messages for one stream, with unique message IDs
+     */
+    private List<WaveformMessage> makeMessages(int numSamples, int maxSamplesPerMessage) {
+        List<WaveformMessage> msgs = messageFactory.getWaveformMsgs("59912", "something1", 300, numSamples, maxSamplesPerMessage,
+                "UCHT03TEST", "T03^T03 SR08^SR08-08", messageStartDatetime, "unit1", ChronoUnit.MILLIS);
+        for (int i = 0; i < msgs.size(); i++) {
+            msgs.get(i).setSourceMessageId("msg" + i);
+        }
+        return msgs;
+    }
+
+    private WaveformSegmentLog openLog(int segmentMegabytes, long heapBudgetSamples) throws IOException {
+        WaveformSegmentLog log = new WaveformSegmentLog(directory.toString(), segmentMegabytes, heapBudgetSamples);
+        log.open();
+        return log;
+    }
+
+    private long segmentFileCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    private static void assertSameMessages(List<WaveformMessage> expected, List<WaveformMessage> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i).getNumericValues().get(), actual.get(i).getNumericValues().get());
+            // source system is only set when publishing, and equals can't cope with that
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+        }
+    }
+
+    @Test
+    void unconfirmedMessagesRecoveredAfterRestart() throws Exception {
+        List<WaveformMessage> msgs = makeMessages(3000, 5);
+        WaveformSegmentLog log = openLog(1, Long.MAX_VALUE);
+        assertEquals(msgs, log.append(msgs, 0));
+        // no close, as if the reader had crashed
+
+        WaveformSegmentLog restartedLog = openLog(1, Long.MAX_VALUE);
+        List<WaveformMessage> recovered = restartedLog.readSpilled(0);
+        assertSameMessages(msgs, recovered);
+        assertEquals(List.of(), restartedLog.readSpilled(0));
+        // recovered messages are now in the collator, so new messages go straight there too
+        List<WaveformMessage> newMsgs = List.of(makeMessages(3005, 5).get(600));
+        assertEquals(newMsgs, restartedLog.append(newMsgs, 0));
+    }
+
+    @Test
+    void confirmedMessagesReleased() throws Throwable {
+        List<WaveformMessage> msgs = makeMessages(300_000, 3000);
+        // each segment holds a few dozen messages, and each collated message is made of ten of them
+        WaveformSegmentLog log = openLog(1, Long.MAX_VALUE);
+        WaveformCollator collator = new WaveformCollator(log);
+        List<WaveformMessage> collated = new ArrayList<>();
+        for (WaveformMessage msg : msgs) {
+            collated.addAll(collator.addMessagesAndCollate(log.append(List.of(msg), 0), messageStartDatetime, 30_000, 15000, ChronoUnit.MILLIS));
+        }
+        assertEquals(10, collated.size());
+        assertTrue(segmentFileCount() > 1);
+
+        log.confirmed(collated.subList(0, 5));
+        log.close();
+        List<WaveformMessage> recovered = openLog(1, Long.MAX_VALUE).readSpilled(0);
+        assertEquals(50, recovered.size());
+        assertEquals(msgs.get(50).getObservationTime(), recovered.get(0).getObservationTime());
+
+        log = openLog(1, Long.MAX_VALUE);
+        collator = new WaveformCollator(log);
+        collated = collator.addMessagesAndCollate(log.readSpilled(0), messageStartDatetime, 30_000, 15000, ChronoUnit.MILLIS);
+        assertEquals(5, collated.size());
+        log.confirmed(collated);
+        // only the segment that new messages would go in is left
+        assertEquals(1, segmentFileCount());
+    }
+
+    @Test
+    void spilledWhenOverBudget() throws Exception {
+        List<WaveformMessage> msgs = makeMessages(3000, 5);
+        WaveformSegmentLog log = openLog(1, 100);
+        assertEquals(msgs.subList(0, 10), log.append(msgs.subList(0, 10), 95));
+        assertEquals(List.of(), log.append(msgs.subList(10, 20), 100));
+        // once spilling, everything is spilled until it has been read back, so that it stays in order
+        assertEquals(List.of(), log.append(msgs.subList(20, 600), 0));
+
+        List<WaveformMessage> readBack = new ArrayList<>();
+        readBack.addAll(log.readSpilled(100));
+        assertEquals(0, readBack.size());
+        readBack.addAll(log.readSpilled(50));
+        assertEquals(10, readBack.size());
+        while (readBack.size() < 590) {
+            List<WaveformMessage> spilled = log.readSpilled(0);
+            assertEquals(Math.min(20, 590 - readBack.size()), spilled.size());
+            readBack.addAll(spilled);
+        }
+        assertSameMessages(msgs.subList(10, 600), readBack);
+        assertEquals(List.of(), log.readSpilled(0));
+    }
+
+    @Test
+    void rejectedMessagesReleased() throws Throwable {
+        List<WaveformMessage> msgs = makeMessages(3000, 5);
+        WaveformSegmentLog log = openLog(1, Long.MAX_VALUE);
+        WaveformCollator collator = new WaveformCollator(log);
+        collator.addMessages(log.append(msgs.subList(0, 10), 0));
+
+        // the duplicate replaces the message in the collator, and the messages after it are never added
+        WaveformMessage duplicate = makeMessages(3000, 5).get(0);
+        List<WaveformMessage> batch = List.of(duplicate, msgs.get(10), msgs.get(11));
+        assertThrows(WaveformCollator.CollationException.class, () -> collator.addMessages(log.append(batch, 0)));
+        log.close();
+
+        List<WaveformMessage> recovered = openLog(1, Long.MAX_VALUE).readSpilled(0);
+        assertSameMessages(msgs.subList(1, 10), recovered.subList(0, 9));
+        assertSameMessages(List.of(duplicate), recovered.subList(9, recovered.size()));
+    }
+}